@@ -0,0 +1,108 @@
+package eu.vamdc.xsams.views;
+
+import java.io.File;
+import java.net.URL;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the operations of {@link DataCache} under contention: lookups,
+ * adding and removing keys, and purges, each run on several threads at
+ * once, and a mix of lookups with writers. The cache is filled beforehand
+ * with keys for one data set, so no data are written during the
+ * measurement. Use the JMH option -t to change the number of threads.
+ *
+ * @author Guy Rixon
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CacheBenchmark {
+
+  @Param({"10000"})
+  public int keys;
+
+  private DataCache cache;
+
+  private File file;
+
+  private CachedDataSet dataSet;
+
+  private String[] preloaded;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    cache = new DataCache();
+    file = File.createTempFile("bench-", ".xsams.xml");
+    dataSet = new CachedDataSet(new URL("http://localhost/bench"), file, null, new AtomicLong());
+    preloaded = new String[keys];
+    for (int i = 0; i < keys; i++) {
+      preloaded[i] = cache.put(dataSet);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    cache.empty();
+    file.delete();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public CachedDataSet get() {
+    return cache.get(preloaded[ThreadLocalRandom.current().nextInt(keys)]);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void putAndRemove() {
+    cache.remove(cache.put(dataSet));
+  }
+
+  /**
+   * Adds an expired key for a data set without a file, then purges it.
+   */
+  @Benchmark
+  @Threads(4)
+  public void purge() throws Exception {
+    File ghost = new File(file.getPath() + ".ghost");
+    cache.put(new CachedDataSet(null, ghost, null, new AtomicLong(), new Date(0L)));
+    cache.purge();
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(3)
+  public CachedDataSet mixedGet() {
+    return get();
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(1)
+  public void mixedPutAndRemove() {
+    putAndRemove();
+  }
+
+}
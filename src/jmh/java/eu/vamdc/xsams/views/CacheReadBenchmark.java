@@ -0,0 +1,156 @@
+package eu.vamdc.xsams.views;
+
+import java.io.File;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares lookups in the cache, while one thread keeps adding and removing
+ * keys as uploads and purges do in service, before and after the change
+ * from a single monitor to concurrent collections. The "locked" map is a
+ * HashMap guarded by one lock, as the cache used to be; the "concurrent"
+ * map is the current {@link DataCache}. Use the JMH option -tg to change
+ * the numbers of readers and writers, e.g. -tg 8,1.
+ *
+ * @author Guy Rixon
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CacheReadBenchmark {
+
+  @Param({"locked", "concurrent"})
+  public String map;
+
+  @Param({"1000"})
+  public int keys;
+
+  private KeyMap sut;
+
+  private File file;
+
+  private CachedDataSet dataSet;
+
+  private String[] preloaded;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    sut = "locked".equals(map)? new LockedMap() : new CacheMap();
+    file = File.createTempFile("bench-", ".xsams.xml");
+    dataSet = new CachedDataSet(new URL("http://localhost/bench"), file, null, new AtomicLong());
+    preloaded = new String[keys];
+    for (int i = 0; i < keys; i++) {
+      preloaded[i] = sut.put(dataSet);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    sut.close();
+    file.delete();
+  }
+
+  @Benchmark
+  @Group("readWrite")
+  @GroupThreads(3)
+  public CachedDataSet read() {
+    return sut.get(preloaded[ThreadLocalRandom.current().nextInt(keys)]);
+  }
+
+  @Benchmark
+  @Group("readWrite")
+  @GroupThreads(1)
+  public void write() {
+    sut.remove(sut.put(dataSet));
+  }
+
+  private interface KeyMap {
+    String put(CachedDataSet x);
+    CachedDataSet get(String k);
+    void remove(String k);
+    void close() throws Exception;
+  }
+
+  /**
+   * The cache map as it was: a HashMap behind one monitor.
+   */
+  private static class LockedMap implements KeyMap {
+
+    private final HashMap<String, CachedDataSet> map = new HashMap<String, CachedDataSet>();
+
+    private int counter;
+
+    @Override
+    public synchronized String put(CachedDataSet x) {
+      counter++;
+      String k = Integer.toString(counter);
+      map.put(k, x);
+      return k;
+    }
+
+    @Override
+    public synchronized CachedDataSet get(String k) {
+      CachedDataSet x = map.get(k);
+      if (x != null) {
+        x.touch();
+      }
+      return x;
+    }
+
+    @Override
+    public synchronized void remove(String k) {
+      map.remove(k);
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  private static class CacheMap implements KeyMap {
+
+    private final DataCache cache = new DataCache();
+
+    @Override
+    public String put(CachedDataSet x) {
+      return cache.put(x);
+    }
+
+    @Override
+    public CachedDataSet get(String k) {
+      return cache.get(k);
+    }
+
+    @Override
+    public void remove(String k) {
+      cache.remove(k);
+    }
+
+    @Override
+    public void close() throws Exception {
+      cache.empty();
+    }
+  }
+
+}
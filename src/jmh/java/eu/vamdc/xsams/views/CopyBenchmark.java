@@ -0,0 +1,174 @@
+package eu.vamdc.xsams.views;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the rate of copying data into the cache by the old
+ * byte-at-a-time loop, reproduced here, with the current bulk copy. Each
+ * is run from a local file and from a local HTTP server, the latter with
+ * and without gzip encoding. From the server, the current copy is a whole
+ * {@link Download}.
+ *
+ * @author Guy Rixon
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CopyBenchmark {
+
+  @Param({"file", "identity", "gzip"})
+  public String source;
+
+  @Param({"67108864"})
+  public long size;
+
+  private File data;
+
+  private File target;
+
+  private HttpServer server;
+
+  private URL url;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    data = File.createTempFile("bench-", ".xsams.xml");
+    XsamsGenerator.write(data, "1.0", size);
+    target = File.createTempFile("bench-", ".xsams.xml");
+    if (!"file".equals(source)) {
+      server = startServer(data);
+      url = new URL("http://localhost:" + server.getAddress().getPort() + "/" + source);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    if (server != null) {
+      server.stop(0);
+    }
+    data.delete();
+    target.delete();
+  }
+
+  @Benchmark
+  public long legacy() throws Exception {
+    InputStream in;
+    if (url == null) {
+      in = new FileInputStream(data);
+    }
+    else {
+      URLConnection uc = url.openConnection();
+      uc.setRequestProperty("Accept-Encoding", "gzip, deflate");
+      uc.connect();
+      in = ("gzip".equals(uc.getContentEncoding()))?
+          new GZIPInputStream(uc.getInputStream()) : uc.getInputStream();
+    }
+    try {
+      return legacyCopy(in, target, new AtomicLong());
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  @Benchmark
+  public Object bulk() throws Exception {
+    if (url != null) {
+      return new Download(url, target).call();
+    }
+    InputStream in = new FileInputStream(data);
+    try {
+      return new CacheFileWriter(target, new AtomicLong()).write(in);
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  /**
+   * The copy loop as it was before bulk copying.
+   */
+  private static long legacyCopy(InputStream i, File f, AtomicLong bytesDownloaded) throws IOException {
+    BufferedInputStream in = new BufferedInputStream(i);
+    BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(f));
+    try {
+      while (true) {
+        int c = in.read();
+        if (c == -1) {
+          break;
+        }
+        else {
+          out.write(c);
+        }
+        bytesDownloaded.incrementAndGet();
+      }
+    }
+    finally {
+      out.close();
+    }
+    return bytesDownloaded.get();
+  }
+
+  private static HttpServer startServer(final File source) throws IOException {
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange x) throws IOException {
+        boolean gzip = x.getRequestURI().getPath().equals("/gzip");
+        if (gzip) {
+          x.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        x.sendResponseHeaders(200, 0);
+        OutputStream out = gzip? new GZIPOutputStream(x.getResponseBody(), 65536) : x.getResponseBody();
+        InputStream in = new FileInputStream(source);
+        try {
+          byte[] b = new byte[65536];
+          int n;
+          while ((n = in.read(b)) != -1) {
+            out.write(b, 0, n);
+          }
+        }
+        finally {
+          in.close();
+          out.close();
+        }
+      }
+    });
+    server.start();
+    return server;
+  }
+
+}
@@ -0,0 +1,118 @@
+package eu.vamdc.xsams.views;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the time for a {@link Download} to copy a document from a local
+ * HTTP server into a cache file, with each content encoding the download
+ * accepts. The server holds the encoded document in memory, so that the
+ * measurement is of the client: the transfer, decompression, version
+ * sniffing and writing to disk.
+ *
+ * @author Guy Rixon
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DownloadBenchmark {
+
+  @Param({"identity", "gzip", "deflate"})
+  public String encoding;
+
+  @Param({"1048576", "67108864"})
+  public int size;
+
+  private HttpServer server;
+
+  private URL url;
+
+  private File target;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    ByteArrayOutputStream document = new ByteArrayOutputStream(size + 1024);
+    Writer w = new OutputStreamWriter(document, "UTF-8");
+    XsamsGenerator.write(w, "1.0", size);
+    w.close();
+    final byte[] body = encode(document.toByteArray(), encoding);
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange x) throws IOException {
+        if (!"identity".equals(encoding)) {
+          x.getResponseHeaders().set("Content-Encoding", encoding);
+        }
+        x.sendResponseHeaders(200, body.length);
+        OutputStream out = x.getResponseBody();
+        try {
+          out.write(body);
+        }
+        finally {
+          out.close();
+        }
+      }
+    });
+    server.start();
+    url = new URL("http://localhost:" + server.getAddress().getPort() + "/data");
+    target = File.createTempFile("bench-", ".xsams.xml");
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    server.stop(0);
+    target.delete();
+  }
+
+  @Benchmark
+  public Object download() throws Exception {
+    return new Download(url, target).call();
+  }
+
+  /**
+   * Encodes a document as the server would send it. The deflate encoding
+   * is raw, without the zlib wrapper, as {@link Download} expects.
+   */
+  private static byte[] encode(byte[] data, String encoding) throws IOException {
+    if ("identity".equals(encoding)) {
+      return data;
+    }
+    ByteArrayOutputStream b = new ByteArrayOutputStream(data.length / 4);
+    OutputStream out = "gzip".equals(encoding)?
+        new GZIPOutputStream(b, 65536) :
+        new DeflaterOutputStream(b, new Deflater(Deflater.DEFAULT_COMPRESSION, true), 65536);
+    out.write(data);
+    out.close();
+    return b.toByteArray();
+  }
+
+}
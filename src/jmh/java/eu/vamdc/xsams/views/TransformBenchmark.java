@@ -0,0 +1,139 @@
+package eu.vamdc.xsams.views;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the time to transform a cached XSAMS document to BibTeX, as
+ * {@link TransformingServlet} does when it renders a data set, with each
+ * engine the servlet offers and for each XSAMS version. The engine
+ * "parallel" is the StAX engine with a pool in which to format large
+ * documents. The documents are
+ * synthetic and are made once per trial. The BibTeX is counted and
+ * discarded, so that the disk does not dominate the result.
+ * <p>
+ * The default sizes run from 10 KB to 100 MB. The XSLT engine builds the
+ * whole document in memory, so a 1 GB run needs a large heap and is best
+ * made with the StAX engine alone:
+ * <pre>
+ * mvn -P jmh test-compile exec:exec -Djmh.args="TransformBenchmark -p engine=stax -p size=1073741824"
+ * </pre>
+ *
+ * @author Guy Rixon
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class TransformBenchmark {
+
+  @Param({"0.3", "1.0"})
+  public String version;
+
+  @Param({"10240", "1048576", "104857600"})
+  public long size;
+
+  @Param({"xslt", "stax", "parallel"})
+  public String engine;
+
+  private File document;
+
+  private StylesheetRegistry stylesheets;
+
+  private StreamingBibliographyTransformer streamingTransformer;
+
+  private ForkJoinPool pool;
+
+  private StreamingBibliographyTransformer parallelTransformer;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    document = File.createTempFile("bench-", ".xsams.xml");
+    XsamsGenerator.write(document, version, size);
+    stylesheets = new StylesheetRegistry();
+    stylesheets.load(version, "/XsamsToBibtex.xsl");
+    streamingTransformer = new StreamingBibliographyTransformer();
+    pool = new ForkJoinPool();
+    parallelTransformer = new StreamingBibliographyTransformer(pool);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    pool.shutdownNow();
+    document.delete();
+  }
+
+  @Benchmark
+  public long transform() throws Exception {
+    CountingWriter w = new CountingWriter();
+    InputStream in = new BufferedInputStream(new FileInputStream(document));
+    try {
+      if ("xslt".equals(engine)) {
+        Transformer t = stylesheets.newTransformer(version, "/XsamsToBibtex.xsl");
+        t.transform(new StreamSource(in), new StreamResult(w));
+      }
+      else if ("parallel".equals(engine)) {
+        parallelTransformer.transform(in, version, new BibtexFormatter(), w);
+      }
+      else {
+        streamingTransformer.transform(in, version, new BibtexFormatter(), w);
+      }
+    }
+    finally {
+      in.close();
+    }
+    return w.count;
+  }
+
+
+  /**
+   * A writer that counts the characters written and discards them.
+   */
+  private static class CountingWriter extends Writer {
+
+    long count;
+
+    @Override
+    public void write(char[] c, int off, int len) throws IOException {
+      count += len;
+    }
+
+    @Override
+    public void write(String s, int off, int len) {
+      count += len;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+}
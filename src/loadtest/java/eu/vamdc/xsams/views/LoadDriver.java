@@ -0,0 +1,370 @@
+package eu.vamdc.xsams.views;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.webapp.WebAppContext;
+
+/**
+ * Drives the whole application under load, end to end. The driver runs the
+ * web application in an embedded Jetty and a stand-in VAMDC node that
+ * serves synthetic XSAMS documents from memory. Many clients then make the
+ * requests a real client makes: each submits the URL of a document to
+ * /service, follows the 303 redirect to /bibtex/{key}, waiting for the
+ * download, and reads the BibTeX. At the end, the driver reports the
+ * throughput and the percentiles of the latency of each phase.
+ * <p>
+ * Run it with
+ * <pre>
+ * mvn -P load-test test-compile exec:exec -Dload.args="clients=32 requests=2000"
+ * </pre>
+ * The arguments, all optional, are:
+ * <dl>
+ * <dt>clients</dt><dd>the number of concurrent clients (16);</dd>
+ * <dt>requests</dt><dd>the number of requests measured (500);</dd>
+ * <dt>warmup</dt><dd>the number of requests made before measuring (50);</dd>
+ * <dt>version</dt><dd>the XSAMS version of the documents (1.0);</dd>
+ * <dt>sources, states, processes</dt><dd>the size of each document (200, 100, 1000);</dd>
+ * <dt>categories</dt><dd>the mix of source categories, as for
+ *   {@link XsamsGenerator#setCategoryMix(String)};</dd>
+ * <dt>documents</dt><dd>the number of different documents served (4);</dd>
+ * <dt>distinct</dt><dd>true to give every request its own URL, so that no
+ *   download is shared; false to let requests for the same document share
+ *   one (true);</dd>
+ * <dt>wait</dt><dd>the time in seconds for which a client waits for its
+ *   data (60).</dd>
+ * </dl>
+ * The application uses the settings in its web.xml.
+ *
+ * @author Guy Rixon
+ */
+public class LoadDriver {
+
+  private static final String CONTEXT_PATH = "/xsams-views";
+
+  private final Properties settings;
+
+  private final int clients;
+
+  private final int requests;
+
+  private final int warmup;
+
+  private final boolean distinct;
+
+  private final int wait;
+
+  private byte[][] documents;
+
+  private HttpServer node;
+
+  private Server container;
+
+  private String nodeLocation;
+
+  private String serviceLocation;
+
+  private final AtomicInteger failures = new AtomicInteger();
+
+  private final AtomicLong bibtexBytes = new AtomicLong();
+
+  public LoadDriver(Properties p) {
+    settings = p;
+    clients = Integer.parseInt(p.getProperty("clients", "16"));
+    requests = Integer.parseInt(p.getProperty("requests", "500"));
+    warmup = Integer.parseInt(p.getProperty("warmup", "50"));
+    distinct = Boolean.parseBoolean(p.getProperty("distinct", "true"));
+    wait = Integer.parseInt(p.getProperty("wait", "60"));
+  }
+
+  public static void main(String[] args) throws Exception {
+    Properties p = new Properties();
+    for (String a : args) {
+      int eq = a.indexOf('=');
+      if (eq < 1) {
+        throw new IllegalArgumentException("Arguments are name=value; found " + a);
+      }
+      p.setProperty(a.substring(0, eq), a.substring(eq + 1));
+    }
+    LoadDriver d = new LoadDriver(p);
+    d.start();
+    try {
+      d.run();
+    }
+    finally {
+      d.stop();
+    }
+  }
+
+  /**
+   * Generates the documents and starts the node and the application.
+   */
+  public void start() throws Exception {
+    int n = Integer.parseInt(settings.getProperty("documents", "4"));
+    documents = new byte[n][];
+    for (int i = 0; i < n; i++) {
+      XsamsGenerator g = new XsamsGenerator(settings.getProperty("version", "1.0"));
+      g.setSourceCount(Integer.parseInt(settings.getProperty("sources", "200")));
+      g.setStateCount(Integer.parseInt(settings.getProperty("states", "100")));
+      g.setProcessCount(Integer.parseInt(settings.getProperty("processes", "1000")));
+      g.setCategoryMix(settings.getProperty("categories", XsamsGenerator.DEFAULT_CATEGORY_MIX));
+      g.setSeed(i + 1);
+      ByteArrayOutputStream b = new ByteArrayOutputStream();
+      Writer w = new OutputStreamWriter(b, "UTF-8");
+      g.write(w);
+      w.close();
+      documents[i] = b.toByteArray();
+    }
+    System.out.println("Generated " + n + " documents of about " +
+                       documents[0].length / 1024 + " KB");
+
+    node = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    node.createContext("/tap/sync", new DocumentHandler());
+    node.setExecutor(Executors.newCachedThreadPool());
+    node.start();
+    nodeLocation = "http://localhost:" + node.getAddress().getPort() + "/tap/sync";
+
+    container = new Server(new InetSocketAddress("localhost", 0));
+    WebAppContext webapp = new WebAppContext("src/main/webapp", CONTEXT_PATH);
+    webapp.setParentLoaderPriority(true);
+    container.setHandler(webapp);
+    container.start();
+    int port = ((ServerConnector) container.getConnectors()[0]).getLocalPort();
+    serviceLocation = "http://localhost:" + port + CONTEXT_PATH + "/service";
+  }
+
+  /**
+   * Stops the application and the node.
+   */
+  public void stop() throws Exception {
+    if (container != null) {
+      container.stop();
+    }
+    if (node != null) {
+      node.stop(0);
+      ((ExecutorService) node.getExecutor()).shutdownNow();
+    }
+  }
+
+  /**
+   * Makes the warm-up requests, then the measured requests, and reports.
+   */
+  public void run() throws Exception {
+    if (warmup > 0) {
+      drive(warmup, 0);
+      failures.set(0);
+      bibtexBytes.set(0L);
+    }
+    long start = System.nanoTime();
+    long[][] latencies = drive(requests, warmup);
+    long elapsed = System.nanoTime() - start;
+    report(latencies, elapsed);
+  }
+
+  /**
+   * Makes requests from all the clients at once.
+   *
+   * @param count The number of requests.
+   * @param first The number of the first request, which keeps URLs distinct across runs.
+   * @return The latencies in nanoseconds of the submission, the rendering and
+   *         the whole of each request; -1 where a request failed.
+   */
+  private long[][] drive(final int count, final int first) throws InterruptedException {
+    final long[][] latencies = new long[3][count];
+    for (long[] l : latencies) {
+      Arrays.fill(l, -1L);
+    }
+    final AtomicInteger next = new AtomicInteger();
+    ExecutorService pool = Executors.newFixedThreadPool(clients);
+    for (int c = 0; c < clients; c++) {
+      pool.execute(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = next.getAndIncrement(); i < count; i = next.getAndIncrement()) {
+            request(first + i, i, latencies);
+          }
+        }
+      });
+    }
+    pool.shutdown();
+    pool.awaitTermination(1L, TimeUnit.DAYS);
+    return latencies;
+  }
+
+  /**
+   * Makes one request, as a client would.
+   */
+  private void request(int n, int i, long[][] latencies) {
+    try {
+      String data = nodeLocation + "?doc=" + (n % documents.length);
+      if (distinct) {
+        data += "&n=" + n;
+      }
+      long t0 = System.nanoTime();
+      HttpURLConnection c = open(serviceLocation + "?url=" + URLEncoder.encode(data, "UTF-8"));
+      String location;
+      try {
+        if (c.getResponseCode() != HttpURLConnection.HTTP_SEE_OTHER) {
+          throw new IOException("/service answered " + c.getResponseCode());
+        }
+        location = c.getHeaderField("Location");
+        drain(c);
+      }
+      finally {
+        c.disconnect();
+      }
+      long t1 = System.nanoTime();
+      c = open(location + "?wait=" + wait);
+      try {
+        if (c.getResponseCode() != HttpURLConnection.HTTP_OK) {
+          throw new IOException(location + " answered " + c.getResponseCode());
+        }
+        bibtexBytes.addAndGet(drain(c));
+      }
+      finally {
+        c.disconnect();
+      }
+      long t2 = System.nanoTime();
+      latencies[0][i] = t1 - t0;
+      latencies[1][i] = t2 - t1;
+      latencies[2][i] = t2 - t0;
+    }
+    catch (IOException e) {
+      if (failures.getAndIncrement() < 10) {
+        System.err.println("Request " + n + " failed: " + e);
+      }
+    }
+  }
+
+  private HttpURLConnection open(String location) throws IOException {
+    HttpURLConnection c = (HttpURLConnection) new URL(location).openConnection();
+    c.setInstanceFollowRedirects(false);
+    c.setConnectTimeout(10000);
+    c.setReadTimeout((wait + 60) * 1000);
+    return c;
+  }
+
+  /**
+   * Reads and discards the body of a response.
+   *
+   * @return The number of bytes read.
+   */
+  private long drain(HttpURLConnection c) throws IOException {
+    InputStream in = c.getInputStream();
+    try {
+      byte[] buffer = new byte[8192];
+      long total = 0L;
+      for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+        total += n;
+      }
+      return total;
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  private void report(long[][] latencies, long elapsed) {
+    double seconds = elapsed / 1e9;
+    int succeeded = requests - failures.get();
+    System.out.println();
+    System.out.println(String.format("%d requests by %d clients in %.1f s: %.1f requests/s, %d failed",
+                                     requests, clients, seconds, succeeded / seconds, failures.get()));
+    System.out.println(String.format("XSAMS downloaded: %.1f MB/s; BibTeX received: %.1f MB/s",
+                                     (double) succeeded * documents[0].length / seconds / 1048576,
+                                     bibtexBytes.get() / seconds / 1048576));
+    System.out.println(String.format("%-8s %10s %10s %10s %10s", "Latency", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+    String[] phases = {"submit", "render", "total"};
+    for (int p = 0; p < phases.length; p++) {
+      long[] l = completed(latencies[p]);
+      System.out.println(String.format("%-8s %10.1f %10.1f %10.1f %10.1f", phases[p],
+                                       percentile(l, 50), percentile(l, 90),
+                                       percentile(l, 99), percentile(l, 100)));
+    }
+  }
+
+  /**
+   * Supplies the latencies of the requests that succeeded, sorted.
+   */
+  private static long[] completed(long[] latencies) {
+    long[] l = new long[latencies.length];
+    int n = 0;
+    for (long x : latencies) {
+      if (x >= 0L) {
+        l[n++] = x;
+      }
+    }
+    l = Arrays.copyOf(l, n);
+    Arrays.sort(l);
+    return l;
+  }
+
+  /**
+   * Computes a percentile by the nearest-rank method.
+   *
+   * @return The percentile in milliseconds; NaN if there are no values.
+   */
+  private static double percentile(long[] sorted, int p) {
+    if (sorted.length == 0) {
+      return Double.NaN;
+    }
+    int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+    return sorted[Math.max(rank, 1) - 1] / 1e6;
+  }
+
+
+  /**
+   * Serves the document named by the parameter doc; other parameters are
+   * ignored, so that they can make the URLs distinct.
+   */
+  private class DocumentHandler implements HttpHandler {
+
+    @Override
+    public void handle(HttpExchange x) throws IOException {
+      try {
+        String query = x.getRequestURI().getQuery();
+        int d = 0;
+        if (query != null) {
+          for (String term : query.split("&")) {
+            if (term.startsWith("doc=")) {
+              d = Integer.parseInt(term.substring(4));
+            }
+          }
+        }
+        byte[] body = documents[d % documents.length];
+        x.getResponseHeaders().set("Content-Type", "application/x-xsams+xml");
+        x.sendResponseHeaders(200, body.length);
+        OutputStream out = x.getResponseBody();
+        try {
+          out.write(body);
+        }
+        finally {
+          out.close();
+        }
+      }
+      finally {
+        x.close();
+      }
+    }
+  }
+
+}
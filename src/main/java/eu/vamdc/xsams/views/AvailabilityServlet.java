@@ -1,20 +1,50 @@
 package eu.vamdc.xsams.views;
 
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- *
+ * Reports the availability of the service. The VOSI availability document
+ * is served at /availability. The operational metrics of the data cache
+ * are served at /availability/metrics in the Prometheus text format, for
+ * monitoring systems to scrape.
+ * 
  * @author Guy Rixon
  */
 public class AvailabilityServlet extends HttpServlet {
+  
+  /**
+   * The media type of the Prometheus text format.
+   */
+  public static final String METRICS_CONTENT_TYPE = "text/plain; version=0.0.4";
 
   @Override
   protected void doGet(HttpServletRequest request, HttpServletResponse response) 
       throws ServletException, IOException {
-    request.getRequestDispatcher("/availability.jsp").forward(request, response);
+    if (request.getServletPath().endsWith("/metrics")) {
+      writeMetrics(response);
+    }
+    else {
+      request.getRequestDispatcher("/availability.jsp").forward(request, response);
+    }
   }
-}
\ No newline at end of file
+  
+  private void writeMetrics(HttpServletResponse response) throws IOException {
+    DataCache cache = (DataCache) getServletContext().getAttribute(DataCache.CACHE_ATTRIBUTE);
+    if (cache == null) {
+      response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The data cache is not running");
+      return;
+    }
+    response.setContentType(METRICS_CONTENT_TYPE);
+    response.setCharacterEncoding("UTF-8");
+    response.setHeader("Cache-Control", "no-cache");
+    Writer w = new OutputStreamWriter(response.getOutputStream(), "UTF-8");
+    cache.getMetrics().write(w, cache);
+    w.flush();
+  }
+}
@@ -0,0 +1,343 @@
+package eu.vamdc.xsams.views;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * A servlet that makes one bibliography from many data sets. The request
+ * names the data by any number of url parameters, which are downloaded into
+ * the cache as for /service, and key parameters, for data already cached.
+ * The downloads run in parallel on the cache's download threads. When all
+ * the data are ready, their sources are merged into one BibTeX response by
+ * a {@link BibliographyMerger}, with duplicates dropped. The data sets are
+ * merged in the order given, those named by key before those named by URL.
+ * <p>
+ * The request waits for the downloads for the time given by the parameter
+ * wait, in seconds, or by default for {@link #MAXIMUM_WAIT_IN_SECONDS}. If
+ * any data set fails or is not ready in time, the request fails as a
+ * request for that data set alone would, and nothing is merged. The keys
+ * for the downloads stay in the cache, so that a repeated request shares
+ * the downloads that succeeded.
+ * <p>
+ * While it waits, the request is parked, as for the wait parameter of 
+ * /bibtex, and the container thread is released. The request is 
+ * dispatched back to this servlet when every download has finished, when
+ * one has failed, or when the time is up. Only if the container cannot 
+ * park the request does the thread wait for the downloads.
+ *
+ * @author Guy Rixon
+ */
+public class BatchServlet extends ErrorReportingServlet {
+
+  /**
+   * The greatest number of data sets in one request.
+   */
+  public static final int MAXIMUM_BATCH_SIZE = 100;
+
+  /**
+   * The longest time for which a request waits for its downloads.
+   */
+  public static final long MAXIMUM_WAIT_IN_SECONDS = TransformingServlet.MAXIMUM_WAIT_IN_SECONDS;
+
+  /**
+   * The request attribute holding the data sets of a parked request.
+   */
+  private static final String DATA_SETS_ATTRIBUTE = BatchServlet.class.getName() + ".dataSets";
+
+  @Override
+  public void get(HttpServletRequest request, HttpServletResponse response)
+      throws RequestException, IOException, DownloadException, XMLStreamException {
+    List<CachedDataSet> dataSets = getParkedDataSets(request);
+    if (dataSets == null) {
+      long wait = getWaitSeconds(request);
+      dataSets = getDataSets(request);
+      if (wait > 0L && !isFinished(dataSets)) {
+        if (request.isAsyncSupported()) {
+          request.setAttribute(DATA_SETS_ATTRIBUTE, dataSets);
+          awaitDownloads(request, dataSets, wait);
+          return;
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(wait);
+        for (CachedDataSet x : dataSets) {
+          await(x, deadline);
+        }
+      }
+    }
+    check(dataSets);
+
+    response.setContentType("text/plain");
+    response.setCharacterEncoding("UTF-8");
+    Writer w = new OutputStreamWriter(response.getOutputStream(), "UTF-8");
+    BibliographyMerger merger = new BibliographyMerger(w);
+    long start = System.nanoTime();
+    for (CachedDataSet x : dataSets) {
+      InputStream in = new BufferedInputStream(new FileInputStream(x.getCacheFile()));
+      try {
+        merger.merge(in, x.getXsamsVersion());
+      }
+      finally {
+        in.close();
+      }
+    }
+    merger.flush();
+    getCache().getMetrics().getTransformTime().record(System.nanoTime() - start);
+    LOG.info("Merged " + dataSets.size() + " data sets: " + merger.getEntryCount() +
+             " sources, " + merger.getDuplicateCount() + " duplicates dropped");
+  }
+
+  @Override
+  public void post(HttpServletRequest request, HttpServletResponse response)
+      throws RequestException, IOException, DownloadException, XMLStreamException {
+    get(request, response);
+  }
+
+  /**
+   * Finds the data sets named in the request, starting downloads for the
+   * URLs.
+   *
+   * @param request The HTTP request.
+   * @return The data sets: those named by key, then those named by URL.
+   * @throws RequestException If no data, or too many, are named.
+   * @throws RequestException If a URL is not valid.
+   * @throws RequestException If nothing is cached under a key.
+   * @throws ServiceBusyException If too many downloads are waiting.
+   */
+  private List<CachedDataSet> getDataSets(HttpServletRequest request)
+      throws RequestException, IOException, DownloadException {
+    String[] urls = request.getParameterValues("url");
+    String[] keys = request.getParameterValues("key");
+    int n = ((urls == null)? 0 : urls.length) + ((keys == null)? 0 : keys.length);
+    if (n == 0) {
+      throw new RequestException("Please set the url or key parameters");
+    }
+    if (n > MAXIMUM_BATCH_SIZE) {
+      throw new RequestException("This application merges at most " + MAXIMUM_BATCH_SIZE +
+                                 " data sets at a time");
+    }
+
+    DataCache cache = getCache();
+    List<CachedDataSet> dataSets = new ArrayList<CachedDataSet>(n);
+    if (keys != null) {
+      for (String k : keys) {
+        CachedDataSet x = cache.get(k.trim());
+        if (x == null) {
+          throw new RequestException("Nothing is cached under " + k);
+        }
+        dataSets.add(x);
+      }
+    }
+    if (urls != null) {
+      for (String value : urls) {
+        URL u;
+        try {
+          u = new URL(value.trim());
+        }
+        catch (MalformedURLException e) {
+          throw new RequestException("'" + value + "' is not a valid URL");
+        }
+        dataSets.add(cache.putAndGet(u));
+      }
+    }
+    return dataSets;
+  }
+
+  /**
+   * Supplies the data sets of a request dispatched back to this servlet
+   * after waiting for its downloads.
+   *
+   * @param request The HTTP request.
+   * @return The data sets; null if the request has not been parked.
+   */
+  @SuppressWarnings("unchecked")
+  private List<CachedDataSet> getParkedDataSets(HttpServletRequest request) {
+    if (request.getDispatcherType() != DispatcherType.ASYNC) {
+      return null;
+    }
+    return (List<CachedDataSet>) request.getAttribute(DATA_SETS_ATTRIBUTE);
+  }
+
+  /**
+   * Parks the request until its downloads have finished, or one has
+   * failed, or the given time has passed, then dispatches it back to this
+   * servlet. The container thread is released meanwhile. When the request
+   * stops waiting, its listeners are withdrawn from the downloads still
+   * running.
+   *
+   * @param request The HTTP request.
+   * @param dataSets The data sets of the request.
+   * @param seconds The greatest time to wait.
+   */
+  private void awaitDownloads(HttpServletRequest request, 
+                              final List<CachedDataSet> dataSets, 
+                              long seconds) {
+    final AsyncContext context = request.startAsync();
+    context.setTimeout(seconds * 1000L);
+    final AtomicBoolean dispatched = new AtomicBoolean();
+    final List<Runnable> listeners = new ArrayList<Runnable>(dataSets.size());
+    for (final CachedDataSet x : dataSets) {
+      listeners.add(new Runnable() {
+        @Override
+        public void run() {
+          if ((x.hasFailed() || isFinished(dataSets)) && dispatched.compareAndSet(false, true)) {
+            withdraw(dataSets, listeners);
+            context.dispatch();
+          }
+        }
+      });
+    }
+    context.addListener(new AsyncListener() {
+      @Override
+      public void onTimeout(AsyncEvent event) {
+        withdraw(dataSets, listeners);
+        if (dispatched.compareAndSet(false, true)) {
+          context.dispatch();
+        }
+      }
+
+      @Override
+      public void onComplete(AsyncEvent event) {
+      }
+
+      @Override
+      public void onError(AsyncEvent event) {
+        withdraw(dataSets, listeners);
+        dispatched.set(true);
+      }
+
+      @Override
+      public void onStartAsync(AsyncEvent event) {
+      }
+    });
+    for (int i = 0; i < dataSets.size(); i++) {
+      dataSets.get(i).addCompletionListener(listeners.get(i));
+    }
+  }
+
+  /**
+   * Withdraws the listeners of a parked request from its data sets.
+   */
+  private void withdraw(List<CachedDataSet> dataSets, List<Runnable> listeners) {
+    for (int i = 0; i < dataSets.size(); i++) {
+      dataSets.get(i).removeCompletionListener(listeners.get(i));
+    }
+  }
+
+  /**
+   * Determines whether all the data sets have finished downloading,
+   * whether or not successfully.
+   */
+  private boolean isFinished(List<CachedDataSet> dataSets) {
+    for (CachedDataSet x : dataSets) {
+      if (x.isInProgress()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Waits for a data set to be ready. This blocks the thread, and is used
+   * only where the container cannot park the request.
+   *
+   * @param x The data set.
+   * @param deadline The time, from {@link System#nanoTime}, after which the wait fails.
+   * @throws DownloadException If the download failed.
+   */
+  private void await(CachedDataSet x, long deadline) throws DownloadException {
+    Future<Object> f = x.getFuture();
+    if (f != null && !f.isDone()) {
+      try {
+        f.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+      }
+      catch (TimeoutException e) {
+        // Reported by check().
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new DownloadException("Interrupted while waiting for " + describe(x));
+      }
+      catch (ExecutionException e) {
+        // Reported by check().
+      }
+    }
+  }
+
+  /**
+   * Checks that the data sets are ready to be merged. A failed download is
+   * reported in preference to one still running.
+   *
+   * @param dataSets The data sets.
+   * @throws DownloadException If a download failed.
+   * @throws DownloadTimeoutException If data are still being downloaded.
+   * @throws RequestException If the XSAMS version of some data was not recognized.
+   */
+  private void check(List<CachedDataSet> dataSets) throws DownloadException, RequestException {
+    for (CachedDataSet x : dataSets) {
+      if (x.hasFailed()) {
+        x.isReady();
+      }
+    }
+    for (CachedDataSet x : dataSets) {
+      if (x.isInProgress()) {
+        throw new DownloadTimeoutException("The data from " + describe(x) + " were not ready in time");
+      }
+      x.isReady();
+      if (x.getXsamsVersion() == null) {
+        throw new RequestException("XSAMS version was not recognized in " + describe(x));
+      }
+    }
+  }
+
+  /**
+   * Reads the time for which the request may wait for its downloads.
+   *
+   * @param request The HTTP request.
+   * @return The time in seconds, no more than {@link #MAXIMUM_WAIT_IN_SECONDS}.
+   * @throws RequestException If the parameter is not a whole number.
+   */
+  private long getWaitSeconds(HttpServletRequest request) throws RequestException {
+    String value = request.getParameter("wait");
+    if (value == null || value.trim().length() == 0) {
+      return MAXIMUM_WAIT_IN_SECONDS;
+    }
+    try {
+      return Math.max(0L, Math.min(Long.parseLong(value.trim()), MAXIMUM_WAIT_IN_SECONDS));
+    }
+    catch (NumberFormatException e) {
+      throw new RequestException("Parameter wait must be a whole number of seconds");
+    }
+  }
+
+  private String describe(CachedDataSet x) {
+    return (x.getOriginalUrl() == null)? x.getCacheFile().getName() : x.getOriginalUrl().toString();
+  }
+
+  private DataCache getCache() throws IllegalStateException {
+    DataCache cache = (DataCache) getServletContext().getAttribute(DataCache.CACHE_ATTRIBUTE);
+    if (cache == null) {
+      throw new IllegalStateException("The data cache is missing");
+    }
+    return cache;
+  }
+
+}
@@ -0,0 +1,204 @@
+package eu.vamdc.xsams.views;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Set;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Merges the sources of several XSAMS documents into one BibTeX
+ * bibliography, dropping duplicates. A source is a duplicate if an earlier
+ * source, in this document or an earlier one, has the same sourceID, the
+ * same DOI or the same title and year. DOIs are compared without case and
+ * without a resolver prefix (https://doi.org/, doi: etc.); titles are
+ * compared without case, punctuation or spacing.
+ * <p>
+ * The documents are read one at a time with a {@link SourceReader} and
+ * each new source is formatted by a {@link BibtexFormatter}, as for a
+ * single document, so no document is held in memory. Only a 64-bit
+ * fingerprint of each identifier is kept, for the sources already written.
+ *
+ * @author Guy Rixon
+ */
+public class BibliographyMerger {
+
+  private static final int CHUNK_SIZE = 8192;
+
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final BibtexFormatter formatter;
+
+  private final Writer out;
+
+  private final StringBuilder buffer;
+
+  private final Set<Long> seen;
+
+  private int entryCount;
+
+  private int duplicateCount;
+
+  /**
+   * Constructs a merger.
+   *
+   * @param w The destination for the BibTeX (not closed by the merger).
+   */
+  public BibliographyMerger(Writer w) {
+    formatter = new BibtexFormatter();
+    out = w;
+    buffer = new StringBuilder(CHUNK_SIZE);
+    seen = new HashSet<Long>();
+  }
+
+  /**
+   * Adds the sources of an XSAMS document to the bibliography.
+   *
+   * @param in The XSAMS document (not closed by this method).
+   * @param version The XSAMS version of the document, e.g. "1.0".
+   * @throws XMLStreamException If the document cannot be parsed.
+   * @throws IOException If the BibTeX cannot be written.
+   */
+  public void merge(InputStream in, String version) throws XMLStreamException, IOException {
+    SourceReader reader = new SourceReader(in, version);
+    try {
+      SourceRecord r;
+      while ((r = reader.next()) != null) {
+        add(r);
+      }
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Adds a source to the bibliography unless it duplicates one already added.
+   *
+   * @param r The source.
+   * @return True if the source was added; false if it was a duplicate.
+   * @throws IOException If the BibTeX cannot be written.
+   */
+  public boolean add(SourceRecord r) throws IOException {
+    long id = fingerprint("id:", r.getSourceId());
+    String doi = normalizeDoi(r.has("DigitalObjectIdentifier")?
+        r.getFirst("DigitalObjectIdentifier") : r.getFirst("DOI"));
+    long doiPrint = fingerprint("doi:", doi);
+    String title = normalizeTitle(r.getFirst("Title"));
+    long titlePrint = fingerprint("title:", (title == null)? null : title + "|" + r.getFirst("Year"));
+
+    // Every identifier of a duplicate is recorded too, so that a later
+    // source matching it by another identifier is also dropped.
+    boolean duplicate = (id != 0L && !seen.add(id)) |
+                        (doiPrint != 0L && !seen.add(doiPrint)) |
+                        (titlePrint != 0L && !seen.add(titlePrint));
+    if (duplicate) {
+      duplicateCount++;
+      return false;
+    }
+    formatter.format(r, buffer);
+    entryCount++;
+    if (buffer.length() >= CHUNK_SIZE) {
+      out.append(buffer);
+      buffer.setLength(0);
+    }
+    return true;
+  }
+
+  /**
+   * Writes any buffered BibTeX to the destination and flushes it.
+   *
+   * @throws IOException If the BibTeX cannot be written.
+   */
+  public void flush() throws IOException {
+    out.append(buffer);
+    buffer.setLength(0);
+    out.flush();
+  }
+
+  /**
+   * Supplies the number of sources written.
+   *
+   * @return The count.
+   */
+  public int getEntryCount() {
+    return entryCount;
+  }
+
+  /**
+   * Supplies the number of sources dropped as duplicates.
+   *
+   * @return The count.
+   */
+  public int getDuplicateCount() {
+    return duplicateCount;
+  }
+
+  /**
+   * Normalizes a DOI for comparison: the resolver prefix, if any, is
+   * removed and the rest put in lower case, DOIs being case-insensitive.
+   *
+   * @param doi The DOI as given; may be null.
+   * @return The normalized DOI; null if none was given.
+   */
+  static String normalizeDoi(String doi) {
+    if (doi == null) {
+      return null;
+    }
+    String d = doi.trim().toLowerCase();
+    String[] prefixes = {"https://doi.org/", "http://doi.org/", "https://dx.doi.org/",
+                         "http://dx.doi.org/", "doi:"};
+    for (String p : prefixes) {
+      if (d.startsWith(p)) {
+        d = d.substring(p.length()).trim();
+        break;
+      }
+    }
+    return (d.length() == 0)? null : d;
+  }
+
+  /**
+   * Normalizes a title for comparison: only letters and digits are kept,
+   * in lower case.
+   *
+   * @param title The title as given; may be null.
+   * @return The normalized title; null if it has no letters or digits.
+   */
+  static String normalizeTitle(String title) {
+    if (title == null) {
+      return null;
+    }
+    StringBuilder b = new StringBuilder(title.length());
+    for (int i = 0; i < title.length(); i++) {
+      char c = title.charAt(i);
+      if (Character.isLetterOrDigit(c)) {
+        b.append(Character.toLowerCase(c));
+      }
+    }
+    return (b.length() == 0)? null : b.toString();
+  }
+
+  /**
+   * Computes the 64-bit FNV-1a hash of an identifier.
+   *
+   * @param kind The kind of identifier, keeping the kinds apart.
+   * @param value The identifier; may be null.
+   * @return The hash; zero if the identifier is null or empty.
+   */
+  private static long fingerprint(String kind, String value) {
+    if (value == null || value.length() == 0) {
+      return 0L;
+    }
+    long h = FNV_OFFSET_BASIS;
+    String s = kind + value;
+    for (int i = 0; i < s.length(); i++) {
+      h ^= s.charAt(i);
+      h *= FNV_PRIME;
+    }
+    return (h == 0L)? 1L : h;
+  }
+
+}
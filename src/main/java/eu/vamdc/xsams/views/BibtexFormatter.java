@@ -0,0 +1,175 @@
+package eu.vamdc.xsams.views;
+
+import java.util.List;
+
+/**
+ * Formats source records as BibTeX. The output is the same, character for
+ * character, as that of the XsamsToBibtex stylesheets: each record starts
+ * on a new line; a record with a BibTeX element is copied as given; other
+ * records are formatted according to their Category, with books and
+ * articles recognized by Publisher or Volume when the category is wrong or
+ * missing. A record that fits no category gives just the new line.
+ * <p>
+ * BibTeX has no header or trailer, so {@link #begin} and {@link #end} add
+ * nothing.
+ *
+ * @author Guy Rixon
+ */
+public class BibtexFormatter implements SourceFormatter {
+
+  private static final String RECORD_SEPARATOR = "\n    ";
+
+  private static final String RECORD_END = "}\n    ";
+
+  private static final String[] MEDIA_TYPES = {"text/plain", "application/x-bibtex", "text/x-bibtex"};
+
+  @Override
+  public String getName() {
+    return "bib";
+  }
+
+  @Override
+  public String[] getMediaTypes() {
+    return MEDIA_TYPES.clone();
+  }
+
+  @Override
+  public void begin(StringBuilder b) {
+  }
+
+  @Override
+  public void format(SourceRecord r, int index, StringBuilder b) {
+    format(r, b);
+  }
+
+  @Override
+  public void end(int count, StringBuilder b) {
+  }
+
+  /**
+   * Formats one record.
+   *
+   * @param r The record.
+   * @return The BibTeX text.
+   */
+  public String format(SourceRecord r) {
+    StringBuilder b = new StringBuilder(256);
+    format(r, b);
+    return b.toString();
+  }
+
+  /**
+   * Formats one record, appending the BibTeX to a buffer.
+   *
+   * @param r The record.
+   * @param b The buffer.
+   */
+  public void format(SourceRecord r, StringBuilder b) {
+    b.append(RECORD_SEPARATOR);
+    if (r.has("BibTeX")) {
+      b.append(r.getFirst("BibTeX"));
+    }
+    else if (r.hasValue("Category", "journal")) {
+      article(r, b);
+    }
+    else if (r.hasValue("Category", "database")) {
+      database(r, b);
+    }
+    else if (r.hasValue("Category", "book")) {
+      book(r, b);
+    }
+    else if (r.hasValue("Category", "private communication")) {
+      privateCommunication(r, b);
+    }
+    else if (r.hasNonEmpty("Publisher")) {
+      // Detect books with wrong or missing categories.
+      book(r, b);
+    }
+    else if (r.hasNonEmpty("Volume")) {
+      // Detect journal articles with wrong or missing categories.
+      article(r, b);
+    }
+  }
+
+  private void privateCommunication(SourceRecord r, StringBuilder b) {
+    b.append("@misc {").append(r.getSourceId());
+    authorList(r, b);
+    field(r, "Title", ", title = {", b);
+    field(r, "Year", ", year = {", b);
+    b.append(", howpublished='private communication'");
+    field(r, "UniformResourceIdentifier", ", url={", b);
+    b.append(RECORD_END);
+  }
+
+  private void article(SourceRecord r, StringBuilder b) {
+    b.append("@article {").append(r.getSourceId());
+    authorList(r, b);
+    field(r, "Title", ", title = {", b);
+    field(r, "SourceName", ", journal = {", b);
+    field(r, "Volume", ", volume = {", b);
+    pages(r, b);
+    field(r, "Year", ", year = {", b);
+    b.append(RECORD_END);
+  }
+
+  private void book(SourceRecord r, StringBuilder b) {
+    b.append("@book {").append(r.getSourceId());
+    authorList(r, b);
+    field(r, "Title", ", title = {", b);
+    field(r, "Volume", ", volume = {", b);
+    publisher(r, b);
+    field(r, "Year", ", year = {", b);
+    b.append(RECORD_END);
+  }
+
+  private void database(SourceRecord r, StringBuilder b) {
+    b.append("@misc {").append(r.getSourceId());
+    b.append(", howpublished={database}");
+    authorList(r, b);
+    field(r, "Title", ", title = {", b);
+    field(r, "Year", ", year = {", b);
+    field(r, "UniformResourceIdentifier", ", url={", b);
+    b.append(RECORD_END);
+  }
+
+  private void authorList(SourceRecord r, StringBuilder b) {
+    if (r.hasNamedAuthor()) {
+      b.append(", author = {");
+      List<String> names = r.getAuthorNames();
+      for (int i = 0; i < names.size(); i++) {
+        if (i > 0) {
+          b.append(" and ");
+        }
+        b.append(names.get(i));
+      }
+      b.append('}');
+    }
+  }
+
+  private void pages(SourceRecord r, StringBuilder b) {
+    if (r.has("PageBegin")) {
+      b.append(", pages = {").append(r.getFirst("PageBegin"));
+      if (r.has("PageEnd")) {
+        b.append(',').append(r.getFirst("PageEnd"));
+      }
+      b.append('}');
+    }
+  }
+
+  private void publisher(SourceRecord r, StringBuilder b) {
+    if (r.has("Publisher")) {
+      b.append(", publisher = {").append(r.getFirst("Publisher"));
+      if (r.has("City")) {
+        b.append(", ").append(r.getFirst("City"));
+      }
+      b.append('}');
+    }
+  }
+
+  private void field(SourceRecord r, String name, String prefix, StringBuilder b) {
+    if (r.has(name)) {
+      b.append(prefix).append(r.getFirst(name)).append('}');
+    }
+  }
+
+}
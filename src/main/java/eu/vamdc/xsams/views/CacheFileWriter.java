@@ -0,0 +1,288 @@
+package eu.vamdc.xsams.views;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.xml.stream.XMLStreamException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Copies a stream of XSAMS into a cache file. The data are copied in large
+ * chunks, through a buffer that is reused by each thread, and written to
+ * the file's channel. The byte counter is updated once per chunk, so
+ * readers of the counter (e.g. later.jsp) see the progress without each
+ * byte costing an atomic update. If a {@link DownloadProgress} is set, it
+ * is signalled as each chunk reaches the file, for readers following the
+ * file as it grows. The XSAMS version of the document is detected as the
+ * data are written.
+ * <p>
+ * Optionally, the writer compacts the data as it copies them, keeping only
+ * the root element and the Sources (see {@link XsamsCompactor}). The byte
+ * counter then counts the bytes read, i.e. the size of the original
+ * document, while the disk allocation is charged for the bytes written.
+ *
+ * @author Guy Rixon
+ */
+public class CacheFileWriter {
+
+  private static final Log LOG = LogFactory.getLog(CacheFileWriter.class);
+
+  /**
+   * The size of the chunks in which data are copied.
+   */
+  public static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[BUFFER_SIZE];
+    }
+  };
+
+  private final File file;
+
+  private final AtomicLong counter;
+
+  private final DiskAllocation allocation;
+
+  /**
+   * The signals for readers of the file; null if there are none.
+   */
+  private DownloadProgress progress;
+
+  private String xsamsVersion;
+
+  private boolean compacting;
+
+  /**
+   * Constructs a writer for a given cache file, with no limit on the
+   * space used.
+   *
+   * @param f The file to receive the data.
+   * @param c The counter to be advanced by the number of bytes copied.
+   */
+  public CacheFileWriter(File f, AtomicLong c) {
+    this(f, c, null);
+  }
+
+  /**
+   * Constructs a writer for a given cache file. Space for each chunk is
+   * reserved from the given allocation before the chunk is written.
+   *
+   * @param f The file to receive the data.
+   * @param c The counter to be advanced by the number of bytes copied.
+   * @param a The disk allocation for the data set; null for no limit.
+   */
+  public CacheFileWriter(File f, AtomicLong c, DiskAllocation a) {
+    file = f;
+    counter = c;
+    allocation = a;
+  }
+
+  /**
+   * Sets whether the data are compacted to their Sources as they are copied.
+   *
+   * @param c True to compact the data; false to copy them unchanged.
+   */
+  public void setCompacting(boolean c) {
+    compacting = c;
+  }
+
+  /**
+   * Sets the signals to be given as chunks are written.
+   *
+   * @param p The signals; null for none.
+   */
+  public void setProgress(DownloadProgress p) {
+    progress = p;
+  }
+
+  /**
+   * Supplies the XSAMS version of the data written.
+   *
+   * @return The version, e.g. "1.0"; null if not recognized.
+   */
+  public String getXsamsVersion() {
+    return xsamsVersion;
+  }
+
+  /**
+   * Reads data from a stream and writes them to the file, replacing any
+   * earlier content. The stream is not closed.
+   *
+   * @param in The data to be read.
+   * @return The number of bytes copied.
+   * @throws FileNotFoundException If the file cannot be opened.
+   * @throws IOException If the stream cannot be read.
+   * @throws IOException If the the file cannot be written.
+   * @throws DownloadException if the stream gave no bytes.
+   * @throws DownloadException if the data are compacted and are not well-formed XML.
+   * @throws QuotaExceededException If the data exceed the disk allocation.
+   */
+  public long write(InputStream in)
+      throws FileNotFoundException, IOException, DownloadException {
+    if (compacting) {
+      return writeCompacted(in);
+    }
+    LOG.info("Caching to " + file);
+    byte[] buffer = BUFFER.get();
+    FileOutputStream f = new FileOutputStream(file);
+    XsamsVersionSniffer out = new XsamsVersionSniffer(Channels.newOutputStream(f.getChannel()));
+    try {
+      long total = 0L;
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        if (allocation != null) {
+          allocation.reserve(n);
+        }
+        out.write(buffer, 0, n);
+        total += n;
+        counter.addAndGet(n);
+        if (progress != null) {
+          progress.signal();
+        }
+      }
+      if (total == 0L) {
+        throw new DownloadException("No data were read");
+      }
+      xsamsVersion = out.getVersion();
+      return total;
+    }
+    finally {
+      out.close();
+      f.close();
+    }
+  }
+
+  /**
+   * Reads data from a stream and writes their root element and Sources to
+   * the file.
+   *
+   * @param in The data to be read.
+   * @return The number of bytes read.
+   */
+  private long writeCompacted(InputStream in)
+      throws FileNotFoundException, IOException, DownloadException {
+    LOG.info("Caching the sources to " + file);
+    FileOutputStream f = new FileOutputStream(file);
+    CountingInputStream source = new CountingInputStream(in);
+    AllocatingOutputStream sink = new AllocatingOutputStream(Channels.newOutputStream(f.getChannel()));
+    try {
+      xsamsVersion = new XsamsCompactor().compact(source, new BufferedOutputStream(sink, BUFFER_SIZE));
+    }
+    catch (XMLStreamException e) {
+      
+      // StAX wraps the failures of the streams; they are reported as such.
+      if (sink.quotaFailure != null) {
+        throw sink.quotaFailure;
+      }
+      if (source.failure != null) {
+        throw source.failure;
+      }
+      if (sink.failure != null) {
+        throw sink.failure;
+      }
+      if (source.total == 0L) {
+        throw new DownloadException("No data were read");
+      }
+      throw new DownloadException("The data are not well-formed XML: " + e.getMessage(), e);
+    }
+    finally {
+      f.close();
+    }
+    return source.total;
+  }
+
+
+  /**
+   * A stream that counts the bytes read, advancing the writer's counter
+   * once per chunk, and remembers any failure.
+   */
+  private class CountingInputStream extends FilterInputStream {
+
+    long total;
+
+    IOException failure;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      int n = read(b, 0, 1);
+      return (n == -1)? -1 : (b[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      try {
+        int n = super.read(b, off, len);
+        if (n > 0) {
+          total += n;
+          counter.addAndGet(n);
+        }
+        return n;
+      }
+      catch (IOException e) {
+        failure = e;
+        throw e;
+      }
+    }
+  }
+
+
+  /**
+   * A stream that reserves space from the allocation before each write,
+   * and remembers any failure.
+   */
+  private class AllocatingOutputStream extends FilterOutputStream {
+
+    QuotaExceededException quotaFailure;
+
+    IOException failure;
+
+    AllocatingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (allocation != null) {
+        try {
+          allocation.reserve(len);
+        }
+        catch (QuotaExceededException e) {
+          quotaFailure = e;
+          throw new IOException(e.getMessage(), e);
+        }
+      }
+      try {
+        out.write(b, off, len);
+      }
+      catch (IOException e) {
+        failure = e;
+        throw e;
+      }
+      if (progress != null) {
+        progress.signal();
+      }
+    }
+  }
+
+}
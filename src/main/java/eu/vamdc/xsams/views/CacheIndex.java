@@ -0,0 +1,398 @@
+package eu.vamdc.xsams.views;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The on-disk index of a persistent data cache. Each key has an entry in
+ * its own file, index/{key}.properties under the cache directory, giving
+ * the state of the data (downloading or complete), the name of the cache
+ * file, the original URL, the entry time, the instance that owns the data
+ * and, for complete data, the XSAMS version and the size.
+ * <p>
+ * Entries are written crash-safely: the properties are written to a
+ * temporary file, which is synced to disk and then moved over the entry
+ * atomically. A crash therefore leaves either the old entry or the new one,
+ * never a torn file.
+ * <p>
+ * The directory may be shared by several instances of the web application,
+ * each of which may read the others' entries. A download whose cache file
+ * has not grown for {@link #STALL_LIMIT_IN_MILLISECONDS} is taken to have
+ * been abandoned, e.g. by an instance that crashed. Each instance writes
+ * its entries under its own name, so that on restart it can tell its own
+ * data from those of its peers.
+ *
+ * @author Guy Rixon
+ */
+public class CacheIndex {
+
+  private static final Log LOG = LogFactory.getLog(CacheIndex.class);
+
+  private static final String SUFFIX = ".properties";
+
+  /**
+   * The time for which a download may make no progress before it is taken
+   * to be abandoned. This is longer than the read timeout of a download.
+   */
+  public static final long STALL_LIMIT_IN_MILLISECONDS = 5L * 60L * 1000L;
+
+  private static final String DOWNLOADING = "downloading";
+
+  private static final String COMPLETE = "complete";
+
+  private final File directory;
+
+  private final File indexDirectory;
+
+  /**
+   * The name of the instance writing the index.
+   */
+  private final String owner;
+
+  /**
+   * Constructs an index for a cache directory, creating the directories
+   * if necessary.
+   *
+   * @param dir The cache directory.
+   * @param instance The name of the instance that owns the entries written.
+   * @throws IOException If the directories cannot be created.
+   */
+  public CacheIndex(File dir, String instance) throws IOException {
+    directory = dir;
+    owner = instance;
+    indexDirectory = new File(dir, "index");
+    if (!indexDirectory.isDirectory() && !indexDirectory.mkdirs()) {
+      throw new IOException("Cannot create the cache index " + indexDirectory);
+    }
+  }
+
+  /**
+   * Supplies the directory holding the cached data.
+   *
+   * @return The directory.
+   */
+  public File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Determines whether an entry was written by the instance writing this
+   * index. Entries written before owners were recorded are taken to be
+   * owned, as they come from a time when the directory was not shared.
+   *
+   * @param e The entry.
+   * @return True if the data belong to this instance.
+   */
+  public boolean isOwn(Entry e) {
+    return e.owner == null || e.owner.equals(owner);
+  }
+
+  /**
+   * Determines whether a string may be used as a key. Keys are used in
+   * file names, so only letters and digits are allowed.
+   *
+   * @param key The candidate key.
+   * @return True if the key is acceptable.
+   */
+  public static boolean isValidKey(String key) {
+    if (key == null || key.length() == 0 || key.length() > 64) {
+      return false;
+    }
+    for (int i = 0; i < key.length(); i++) {
+      if (!Character.isLetterOrDigit(key.charAt(i)) || key.charAt(i) > 127) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Writes the entry for a key whose data are being downloaded.
+   *
+   * @param key The key.
+   * @param x The data set.
+   * @throws IOException If the entry cannot be written.
+   */
+  public void recordDownload(String key, CachedDataSet x) throws IOException {
+    Properties p = getProperties(key, x);
+    p.setProperty("state", DOWNLOADING);
+    store(p, getEntryFile(key), "XSAMS data cache entry");
+  }
+
+  /**
+   * Writes the entry for a key. The data must be complete.
+   *
+   * @param key The key.
+   * @param x The data set.
+   * @param version The XSAMS version of the data; null if not recognized.
+   * @throws IOException If the entry cannot be written.
+   */
+  public void record(String key, CachedDataSet x, String version) throws IOException {
+    Properties p = getProperties(key, x);
+    p.setProperty("state", COMPLETE);
+    if (version != null) {
+      p.setProperty("version", version);
+    }
+    p.setProperty("size", Long.toString(x.getCacheFile().length()));
+    store(p, getEntryFile(key), "XSAMS data cache entry");
+  }
+
+  private Properties getProperties(String key, CachedDataSet x) {
+    Properties p = new Properties();
+    p.setProperty("key", key);
+    p.setProperty("file", x.getCacheFile().getName());
+    if (x.getOriginalUrl() != null) {
+      p.setProperty("url", x.getOriginalUrl().toExternalForm());
+    }
+    p.setProperty("entryTime", Long.toString(x.getEntryTime().getTime()));
+    p.setProperty("owner", owner);
+    return p;
+  }
+
+  /**
+   * Reads the entry for one key.
+   *
+   * @param key The key.
+   * @return The entry; null if there is no valid entry for the key.
+   */
+  public Entry find(String key) {
+    if (!isValidKey(key)) {
+      return null;
+    }
+    File f = getEntryFile(key);
+    return f.isFile()? read(f) : null;
+  }
+
+  /**
+   * Determines whether there is an entry for a key, without reading it.
+   *
+   * @param key The key.
+   * @return True if an entry exists.
+   */
+  public boolean contains(String key) {
+    return isValidKey(key) && getEntryFile(key).isFile();
+  }
+
+  /**
+   * Writes properties to a file crash-safely: to a temporary file, synced
+   * to disk and then moved over the target.
+   */
+  private void store(Properties p, File target, String comment) throws IOException {
+    File tmp = new File(target.getPath() + ".tmp");
+    FileOutputStream out = new FileOutputStream(tmp);
+    try {
+      p.store(out, comment);
+      out.flush();
+      out.getFD().sync();
+    }
+    finally {
+      out.close();
+    }
+    try {
+      Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch (AtomicMoveNotSupportedException e) {
+      Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * Deletes the entry for a key, if there is one.
+   *
+   * @param key The key.
+   */
+  public void forget(String key) {
+    getEntryFile(key).delete();
+  }
+
+  /**
+   * Reads all the entries in the index. Entries that cannot be read, or
+   * whose data file is missing or of the wrong size, are deleted and not
+   * returned. Entries for abandoned downloads are deleted with their data.
+   * Entries for downloads still in progress, e.g. by another instance of
+   * the web application, are left in place and not returned.
+   *
+   * @return The valid entries for complete data.
+   */
+  public List<Entry> load() {
+    List<Entry> entries = new ArrayList<Entry>();
+    File[] files = indexDirectory.listFiles();
+    if (files == null) {
+      return entries;
+    }
+    for (File f : files) {
+      if (f.getName().endsWith(SUFFIX + ".tmp")) {
+        if (isAbandoned(f)) {
+          f.delete();
+        }
+      }
+      else if (f.getName().endsWith(SUFFIX)) {
+        Entry e = read(f);
+        if (e == null) {
+          f.delete();
+        }
+        else if (e.isComplete()) {
+          entries.add(e);
+        }
+        else if (e.isAbandoned()) {
+          LOG.info("Deleting " + e.getFile() + ", an abandoned download");
+          f.delete();
+          e.getFile().delete();
+        }
+      }
+    }
+    return entries;
+  }
+
+  private Entry read(File f) {
+    Properties p = new Properties();
+    try {
+      InputStream in = new FileInputStream(f);
+      try {
+        p.load(in);
+      }
+      finally {
+        in.close();
+      }
+      Entry e = new Entry();
+      e.key = p.getProperty("key");
+      e.file = new File(directory, p.getProperty("file"));
+      String u = p.getProperty("url");
+      e.url = (u == null)? null : new URL(u);
+      e.entryTime = Long.parseLong(p.getProperty("entryTime"));
+      e.complete = !DOWNLOADING.equals(p.getProperty("state"));
+      e.version = p.getProperty("version");
+      e.owner = p.getProperty("owner");
+      e.size = e.complete? Long.parseLong(p.getProperty("size")) : -1L;
+      if (!f.getName().equals(e.key + SUFFIX)) {
+        LOG.warn("Index entry " + f + " is for another key");
+        return null;
+      }
+      if (!e.file.isFile() || (e.complete && e.file.length() != e.size)) {
+        LOG.warn("Index entry " + f + " does not match its data file " + e.file);
+        return null;
+      }
+      return e;
+    }
+    catch (MalformedURLException e) {
+      LOG.warn("Index entry " + f + " has a bad URL", e);
+      return null;
+    }
+    catch (IOException e) {
+      LOG.warn("Index entry " + f + " cannot be read", e);
+      return null;
+    }
+    catch (RuntimeException e) {
+      LOG.warn("Index entry " + f + " is incomplete", e);
+      return null;
+    }
+  }
+
+  private File getEntryFile(String key) {
+    return new File(indexDirectory, key + SUFFIX);
+  }
+
+  /**
+   * Determines whether a file has been left untouched for longer than
+   * {@link #STALL_LIMIT_IN_MILLISECONDS}.
+   *
+   * @param f The file.
+   * @return True if the file is old enough to be abandoned.
+   */
+  public static boolean isAbandoned(File f) {
+    return System.currentTimeMillis() - f.lastModified() > STALL_LIMIT_IN_MILLISECONDS;
+  }
+
+
+  /**
+   * An entry read from the index.
+   */
+  public static class Entry {
+
+    String key;
+
+    File file;
+
+    URL url;
+
+    long entryTime;
+
+    boolean complete;
+
+    String version;
+
+    String owner;
+
+    long size;
+
+    /**
+     * Reveals whether the data are complete.
+     *
+     * @return True if complete; false if still being downloaded.
+     */
+    public boolean isComplete() {
+      return complete;
+    }
+
+    /**
+     * Reveals whether a download has made no progress for too long.
+     *
+     * @return True if the download is incomplete and stalled.
+     */
+    public boolean isAbandoned() {
+      return !complete && CacheIndex.isAbandoned(file);
+    }
+
+    public String getKey() {
+      return key;
+    }
+
+    public File getFile() {
+      return file;
+    }
+
+    public URL getUrl() {
+      return url;
+    }
+
+    public long getEntryTime() {
+      return entryTime;
+    }
+
+    public String getVersion() {
+      return version;
+    }
+
+    /**
+     * Supplies the name of the instance that owns the data.
+     *
+     * @return The name; null if the entry does not record it.
+     */
+    public String getOwner() {
+      return owner;
+    }
+
+    /**
+     * Supplies the size of complete data.
+     *
+     * @return The size in bytes; -1 if the data are not complete.
+     */
+    public long getSize() {
+      return size;
+    }
+  }
+
+}
@@ -4,6 +4,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.concurrent.ExecutionException;
+import javax.servlet.AsyncContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.fileupload.FileItemIterator;
@@ -40,68 +42,93 @@ public class CacheServlet extends ErrorReportingServlet {
     
     URL u = getUrl(request);
     String key = cache.put(u);
-    LOG.info("Cached at " + cache.get(key).getCacheFile());
+    LOG.info("Cached at " + cache.lookup(key).getCacheFile());
     redirect(request, key, response);
   }
 
   @Override
   public void post(HttpServletRequest request, HttpServletResponse response) throws IOException, RequestException, DownloadException {
-    if ("application/x-www-form-urlencoded".equals(request.getContentType())) {
+    String type = getMediaType(request);
+    if ("application/x-www-form-urlencoded".equals(type)) {
       LOG.debug("Handling application/x-www-form-urlencoded");
       URL u = getUrl(request);
       String key = cache.put(u);
-      LOG.debug("Cached at " + cache.get(key).getCacheFile());
+      LOG.debug("Cached at " + cache.lookup(key).getCacheFile());
       redirect(request, key, response);
       LOG.debug("Redirection committed.");
     }
+    else if (isXml(type)) {
+      LOG.debug("Handling " + type);
+      upload(request, response, request.getInputStream(), getContentLength(request));
+    }
     else {
       LOG.debug("Handling multipart");
       try {
         ServletFileUpload upload = new ServletFileUpload();
         FileItemIterator iter = upload.getItemIterator(request);
-        boolean cached = false;
         while (iter.hasNext()) {
           FileItemStream item = iter.next();
           String name = item.getFieldName();
           if (name.equals("url") && item.isFormField()) {
             String key = uploadFromUrl(item);
             redirect(request, key, response);
+            return;
           }
-          InputStream stream = item.openStream();
           if (item.isFormField()) {
+            InputStream stream = item.openStream();
             LOG.debug("Form field " + name + " with value " + Streams.asString(stream) + " detected.");
+            stream.close();
           }
           else {
             LOG.debug("File field " + name + " with file name " + item.getName() + " detected.");
-            String key = cache.put(stream);
-            redirect(request, key, response);
+            
+            // The rest of the request is not parsed: the upload reads the 
+            // file from the request stream after this method returns.
+            upload(request, response, item.openStream(), -1L);
+            return;
           }
-          stream.close();
         }
+        throw new RequestException("Please set the url parameter or upload a file");
       }
       catch (FileUploadException e) {
         throw new RequestException(e);
       }
     }
   }
+  
+  /**
+   * Caches an XSAMS document given as the body of the request. The body
+   * must be XML, e.g. application/xml.
+   */
+  @Override
+  public void put(HttpServletRequest request, HttpServletResponse response) 
+      throws IOException, RequestException, DownloadException {
+    String type = getMediaType(request);
+    if (!isXml(type)) {
+      throw new RequestException("Please PUT an XSAMS document as application/xml");
+    }
+    upload(request, response, request.getInputStream(), getContentLength(request));
+  }
     
   /**
-   * Initializes the map of cached data.
+   * Initializes the map of cached data, configured from the context
+   * parameters.
    */
   @Override
   public void init() {
-    cache = new DataCache();
+    cache = new DataCache(CacheSettings.fromContext(getServletContext()));
     getServletContext().setAttribute(DataCache.CACHE_ATTRIBUTE, cache);
   }
   
   /**
-   * Destroys the data cache, deleting the data.  
+   * Closes the data cache. The data are deleted unless the cache is
+   * persistent.
    */
   @Override
   public void destroy() {
     try {
       getServletContext().removeAttribute(DataCache.CACHE_ATTRIBUTE);
-      cache.empty();
+      cache.close();
       cache = null;
       
     }
@@ -167,47 +194,187 @@ public class CacheServlet extends ErrorReportingServlet {
   
   /**
    * Uploads a data set to the cache where the URL is given in the request.
+   * Failures of the cache are reported as they are, as for a URL given in
+   * the query.
    * 
    * @param item The request fragment holding the URL.
    * @return The key for the cached data.
-   * @throws RequestException If the data cannot be uploaded.
+   * @throws RequestException If the URL cannot be read from the request.
+   * @throws RequestException If the URL is not valid.
+   * @throws ServiceBusyException If the queue of downloads is full.
+   * @throws DownloadException If the download cannot be started.
+   * @throws IOException If the cache file cannot be created.
    */
-  private String uploadFromUrl(FileItemStream item) throws RequestException {
+  private String uploadFromUrl(FileItemStream item) 
+      throws RequestException, IOException, DownloadException {
+    String url;
     try {
       InputStream i = item.openStream();
       try {
-        String url = Streams.asString(i);
-        URL u = new URL(url);
-        return cache.put(u);
+        url = Streams.asString(i).trim();
       }
       finally {
         i.close();
       }
     }
-    catch (Exception e) {
-      throw new RequestException("Can't upload from parameter 'url'", e);
+    catch (IOException e) {
+      throw new RequestException("Can't read parameter 'url'", e);
+    }
+    URL u;
+    try {
+      u = new URL(url);
+    }
+    catch (MalformedURLException e) {
+      throw new RequestException("'" + url + "' is not a valid URL");
     }
+    return cache.put(u);
   }
 
   /**
-   * Uploads a data set to the cache where the data are given in the request.
+   * Caches data given in the request and redirects the client to them when
+   * they have all arrived. The data are read on one of the cache's upload
+   * threads while the request is asynchronous, so that a slow upload does 
+   * not hold a container thread. If the upload fails, the failure is 
+   * reported to the client and the key is removed.
    * 
-   * @param item The request fragment holding the data.
-   * @return The key for the cached data.
-   * @throws RequestException If the data cannot be uploaded.
+   * @param request The HTTP request.
+   * @param response The HTTP response.
+   * @param in The stream of data: the body of the request or a part of it.
+   * @param length The declared length of the data; -1 if not known.
+   * @throws UploadTooLargeException If the declared length is over the limit.
+   * @throws ServiceBusyException If too many uploads are waiting.
+   * @throws IOException If the cache file cannot be created.
    */
-  private String uploadFromRequestBody(FileItemStream item) throws RequestException {
-    try {
-      InputStream i = item.openStream();
+  private void upload(HttpServletRequest request, HttpServletResponse response, 
+                      InputStream in, long length) 
+      throws IOException, DownloadException {
+    String key = cache.upload(in, length);
+    CachedDataSet x = cache.lookup(key);
+    if (x == null) {
+      throw new DownloadException("The upload was lost from the cache");
+    }
+    
+    // The location is found now: the request may not be used once this
+    // thread has returned it to the container.
+    String location = Locations.getBibtexLocation(request, key);
+    if (request.isAsyncSupported()) {
+      AsyncContext context = request.startAsync();
+      context.setTimeout(0L);
+      x.addCompletionListener(new UploadCompletion(response, key, location, x, context));
+    }
+    else {
       try {
-        return cache.put(i);
+        x.getFuture().get();
       }
-      finally {
-        i.close();
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      catch (ExecutionException e) {
+        // Reported by the completion.
       }
+      new UploadCompletion(response, key, location, x, null).run();
     }
-    catch (Exception e) {
-      throw new RequestException("Can't upload from request body", e);
+  }
+  
+  /**
+   * Supplies the media type of the request's body, without parameters.
+   * 
+   * @param request The HTTP request.
+   * @return The type, in lower case; null if not given.
+   */
+  private String getMediaType(HttpServletRequest request) {
+    String type = request.getContentType();
+    if (type == null) {
+      return null;
+    }
+    int semicolon = type.indexOf(';');
+    return ((semicolon == -1)? type : type.substring(0, semicolon)).trim().toLowerCase();
+  }
+  
+  /**
+   * Determines whether a media type is XML, e.g. application/xml, 
+   * text/xml or application/x-xsams+xml.
+   */
+  private boolean isXml(String type) {
+    return "application/xml".equals(type) || 
+           "text/xml".equals(type) ||
+           (type != null && type.endsWith("+xml"));
+  }
+  
+  /**
+   * Supplies the declared length of the request's body. Unlike 
+   * {@link HttpServletRequest#getContentLength}, this works for bodies
+   * over 2 GB.
+   * 
+   * @param request The HTTP request.
+   * @return The length in bytes; -1 if not declared.
+   */
+  private long getContentLength(HttpServletRequest request) {
+    String value = request.getHeader("Content-Length");
+    if (value != null) {
+      try {
+        return Long.parseLong(value.trim());
+      }
+      catch (NumberFormatException e) {
+        LOG.debug("Ignoring Content-Length " + value);
+      }
+    }
+    return -1L;
+  }
+  
+  
+  /**
+   * Answers an upload when its data set is complete: a redirection to the
+   * data if they were cached, otherwise an error.
+   */
+  private class UploadCompletion implements Runnable {
+    
+    private final HttpServletResponse response;
+    
+    private final String key;
+    
+    private final String location;
+    
+    private final CachedDataSet dataSet;
+    
+    /**
+     * The context of the asynchronous request; null if the request is not 
+     * asynchronous.
+     */
+    private final AsyncContext context;
+    
+    UploadCompletion(HttpServletResponse response, String key, String location, 
+                     CachedDataSet x, AsyncContext context) {
+      this.response = response;
+      this.key = key;
+      this.location = location;
+      this.dataSet = x;
+      this.context = context;
+    }
+    
+    @Override
+    public void run() {
+      try {
+        dataSet.isReady();
+        LOG.debug("Uploaded to " + dataSet.getCacheFile());
+        response.setHeader("Location", location);
+        response.setStatus(HttpServletResponse.SC_SEE_OTHER);
+      }
+      catch (DownloadException e) {
+        // The rest of the request, if any, is not read.
+        cache.remove(key);
+        try {
+          reportError(e, response);
+        }
+        catch (IOException x) {
+          LOG.error("Failed to report the failed upload for key " + key, x);
+        }
+      }
+      finally {
+        if (context != null) {
+          context.complete();
+        }
+      }
     }
   }
   
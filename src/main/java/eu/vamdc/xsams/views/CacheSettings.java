@@ -0,0 +1,601 @@
+package eu.vamdc.xsams.views;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import javax.servlet.ServletContext;
+
+/**
+ * The configurable properties of the {@link DataCache}. Each property has a
+ * default, which may be overridden by a context parameter in web.xml.
+ * <p>
+ * The limits on the time taken by a download may also be set for one
+ * upstream host, by a context parameter named for the general limit with
+ * the host name appended after a dot, e.g. download-deadline-seconds.vald.astro.uu.se.
+ *
+ * @author Guy Rixon
+ */
+public class CacheSettings {
+
+  /**
+   * Context parameter: the time, in seconds, for which a download may be
+   * shared by later requests for the same URL.
+   */
+  public static final String DOWNLOAD_REUSE_PARAMETER = "download-reuse-seconds";
+
+  public static final long DEFAULT_DOWNLOAD_REUSE_IN_SECONDS = 10L * 60L;
+
+  /**
+   * Context parameter: the interval, in seconds, between purges of old data.
+   */
+  public static final String PURGE_INTERVAL_PARAMETER = "purge-interval-seconds";
+
+  public static final long DEFAULT_PURGE_INTERVAL_IN_SECONDS = 60L;
+
+  /**
+   * Context parameter: the time, in seconds, for which data are kept in the cache.
+   */
+  public static final String LIFETIME_PARAMETER = "cache-lifetime-seconds";
+
+  /**
+   * Context parameter: the greatest total size, in bytes, of the cached data;
+   * zero for no limit.
+   */
+  public static final String MAX_BYTES_PARAMETER = "cache-max-bytes";
+
+  /**
+   * Context parameter: the greatest size, in bytes, of one cached data set;
+   * zero for no limit.
+   */
+  public static final String MAX_DATA_SET_BYTES_PARAMETER = "data-set-max-bytes";
+
+  /**
+   * Context parameter: the number of downloads run at once.
+   */
+  public static final String DOWNLOAD_THREADS_PARAMETER = "download-threads";
+
+  public static final int DEFAULT_DOWNLOAD_THREADS = 5;
+
+  /**
+   * Context parameter: the number of downloads that may wait for a thread.
+   */
+  public static final String DOWNLOAD_QUEUE_PARAMETER = "download-queue-capacity";
+
+  public static final int DEFAULT_DOWNLOAD_QUEUE_CAPACITY = 100;
+
+  /**
+   * Context parameter: the number of times a failed download is retried.
+   */
+  public static final String DOWNLOAD_RETRIES_PARAMETER = "download-retries";
+
+  public static final int DEFAULT_DOWNLOAD_RETRIES = 3;
+
+  /**
+   * Context parameter: the pause, in seconds, before the first retry of a
+   * failed download; later pauses are longer.
+   */
+  public static final String DOWNLOAD_RETRY_BACKOFF_PARAMETER = "download-retry-backoff-seconds";
+
+  public static final long DEFAULT_DOWNLOAD_RETRY_BACKOFF_IN_SECONDS = 1L;
+
+  /**
+   * Context parameter: the greatest time, in seconds, that a download may
+   * take; zero for no limit.
+   */
+  public static final String DOWNLOAD_DEADLINE_PARAMETER = "download-deadline-seconds";
+
+  /**
+   * Context parameter: the least rate, in bytes per second, at which a
+   * download may proceed, averaged over the rate window; zero for no limit.
+   */
+  public static final String DOWNLOAD_MIN_RATE_PARAMETER = "download-min-bytes-per-second";
+
+  /**
+   * Context parameter: the time, in seconds, over which the rate of a
+   * download is averaged.
+   */
+  public static final String DOWNLOAD_RATE_WINDOW_PARAMETER = "download-rate-window-seconds";
+
+  public static final long DEFAULT_DOWNLOAD_RATE_WINDOW_IN_SECONDS = 60L;
+
+  /**
+   * Context parameter: the greatest size, in bytes, of data uploaded by a
+   * client; zero for no limit.
+   */
+  public static final String MAX_UPLOAD_BYTES_PARAMETER = "upload-max-bytes";
+
+  /**
+   * Context parameter: the number of uploads read at once.
+   */
+  public static final String UPLOAD_THREADS_PARAMETER = "upload-threads";
+
+  public static final int DEFAULT_UPLOAD_THREADS = 5;
+
+  /**
+   * Context parameter: the number of threads formatting large bibliographies
+   * in parallel; zero for one per processor.
+   */
+  public static final String FORMAT_THREADS_PARAMETER = "format-threads";
+
+  /**
+   * Context parameter: true to keep only the Sources of each cached
+   * document, dropping the rest as the data arrive.
+   */
+  public static final String COMPACT_PARAMETER = "cache-sources-only";
+
+  /**
+   * Context parameter: the directory in which cached data are kept. If set,
+   * the cache is persistent across restarts; if not, the data are kept in
+   * temporary files and deleted when the web application stops.
+   */
+  public static final String CACHE_DIRECTORY_PARAMETER = "cache-directory";
+
+  /**
+   * Context parameter: the name of this instance of the web application
+   * among those sharing the cache directory. Each instance must have its
+   * own name, which must stay the same across restarts; by default, the
+   * name of the host.
+   */
+  public static final String INSTANCE_PARAMETER = "cache-instance";
+
+  private File cacheDirectory = null;
+
+  private String instanceName = null;
+
+  private long downloadReuseMillis = DEFAULT_DOWNLOAD_REUSE_IN_SECONDS * 1000L;
+
+  private long lifetimeMillis = DataCache.CACHE_LIFETIME_IN_MILLISECONDS;
+
+  private long maxBytes = 0L;
+
+  private long maxDataSetBytes = 0L;
+
+  private long purgeIntervalMillis = DEFAULT_PURGE_INTERVAL_IN_SECONDS * 1000L;
+
+  private int downloadThreads = DEFAULT_DOWNLOAD_THREADS;
+
+  private int downloadQueueCapacity = DEFAULT_DOWNLOAD_QUEUE_CAPACITY;
+
+  private int downloadRetries = DEFAULT_DOWNLOAD_RETRIES;
+
+  private long downloadRetryBackoffMillis = DEFAULT_DOWNLOAD_RETRY_BACKOFF_IN_SECONDS * 1000L;
+
+  private long downloadDeadlineMillis = 0L;
+
+  private long minimumDownloadRate = 0L;
+
+  private long downloadRateWindowMillis = DEFAULT_DOWNLOAD_RATE_WINDOW_IN_SECONDS * 1000L;
+
+  private final Map<String, Long> hostDeadlineMillis = new HashMap<String, Long>();
+
+  private final Map<String, Long> hostMinimumRates = new HashMap<String, Long>();
+
+  private long maxUploadBytes = 0L;
+
+  private int uploadThreads = DEFAULT_UPLOAD_THREADS;
+
+  private int formatThreads = 0;
+
+  private boolean compacting = false;
+
+  /**
+   * Reads the settings from the context parameters of a web application.
+   * Parameters that are not set take their defaults.
+   *
+   * @param context The servlet context.
+   * @return The settings.
+   * @throws IllegalArgumentException If a parameter is not a valid number.
+   */
+  public static CacheSettings fromContext(ServletContext context) {
+    CacheSettings s = new CacheSettings();
+    Long reuse = getLong(context, DOWNLOAD_REUSE_PARAMETER);
+    if (reuse != null) {
+      s.setDownloadReuseMillis(reuse * 1000L);
+    }
+    Long purge = getLong(context, PURGE_INTERVAL_PARAMETER);
+    if (purge != null) {
+      s.setPurgeIntervalMillis(purge * 1000L);
+    }
+    Long lifetime = getLong(context, LIFETIME_PARAMETER);
+    if (lifetime != null) {
+      s.setLifetimeMillis(lifetime * 1000L);
+    }
+    Long max = getLong(context, MAX_BYTES_PARAMETER);
+    if (max != null) {
+      s.setMaxBytes(max);
+    }
+    Long maxDataSet = getLong(context, MAX_DATA_SET_BYTES_PARAMETER);
+    if (maxDataSet != null) {
+      s.setMaxDataSetBytes(maxDataSet);
+    }
+    Long threads = getLong(context, DOWNLOAD_THREADS_PARAMETER);
+    if (threads != null) {
+      s.setDownloadThreads(threads.intValue());
+    }
+    Long queue = getLong(context, DOWNLOAD_QUEUE_PARAMETER);
+    if (queue != null) {
+      s.setDownloadQueueCapacity(queue.intValue());
+    }
+    String directory = context.getInitParameter(CACHE_DIRECTORY_PARAMETER);
+    if (directory != null && directory.trim().length() > 0) {
+      s.setCacheDirectory(new File(directory.trim()));
+    }
+    String instance = context.getInitParameter(INSTANCE_PARAMETER);
+    if (instance != null && instance.trim().length() > 0) {
+      s.setInstanceName(instance.trim());
+    }
+    Long retries = getLong(context, DOWNLOAD_RETRIES_PARAMETER);
+    if (retries != null) {
+      s.setDownloadRetries(retries.intValue());
+    }
+    Long backoff = getLong(context, DOWNLOAD_RETRY_BACKOFF_PARAMETER);
+    if (backoff != null) {
+      s.setDownloadRetryBackoffMillis(backoff * 1000L);
+    }
+    Long deadline = getLong(context, DOWNLOAD_DEADLINE_PARAMETER);
+    if (deadline != null) {
+      s.setDownloadDeadlineMillis(deadline * 1000L);
+    }
+    Long rate = getLong(context, DOWNLOAD_MIN_RATE_PARAMETER);
+    if (rate != null) {
+      s.setMinimumDownloadRate(rate);
+    }
+    Long window = getLong(context, DOWNLOAD_RATE_WINDOW_PARAMETER);
+    if (window != null) {
+      s.setDownloadRateWindowMillis(window * 1000L);
+    }
+    // A per-host parameter left empty leaves the host to the general limit.
+    Enumeration<?> names = context.getInitParameterNames();
+    while (names != null && names.hasMoreElements()) {
+      String name = (String) names.nextElement();
+      if (name.startsWith(DOWNLOAD_DEADLINE_PARAMETER + ".")) {
+        String host = name.substring(DOWNLOAD_DEADLINE_PARAMETER.length() + 1);
+        Long hostDeadline = getLong(context, name);
+        if (hostDeadline != null) {
+          s.setDownloadDeadlineMillis(host, hostDeadline * 1000L);
+        }
+      }
+      else if (name.startsWith(DOWNLOAD_MIN_RATE_PARAMETER + ".")) {
+        String host = name.substring(DOWNLOAD_MIN_RATE_PARAMETER.length() + 1);
+        Long hostRate = getLong(context, name);
+        if (hostRate != null) {
+          s.setMinimumDownloadRate(host, hostRate);
+        }
+      }
+    }
+    Long maxUpload = getLong(context, MAX_UPLOAD_BYTES_PARAMETER);
+    if (maxUpload != null) {
+      s.setMaxUploadBytes(maxUpload);
+    }
+    Long uploads = getLong(context, UPLOAD_THREADS_PARAMETER);
+    if (uploads != null) {
+      s.setUploadThreads(uploads.intValue());
+    }
+    Long formatters = getLong(context, FORMAT_THREADS_PARAMETER);
+    if (formatters != null) {
+      s.setFormatThreads(formatters.intValue());
+    }
+    String compact = context.getInitParameter(COMPACT_PARAMETER);
+    if (compact != null && compact.trim().length() > 0) {
+      s.setCompacting(Boolean.parseBoolean(compact.trim()));
+    }
+    return s;
+  }
+
+  /**
+   * Supplies the time for which a download may be shared. Requests for the
+   * same URL within this time of the first request are given the same data.
+   *
+   * @return The time in milliseconds; zero if downloads are never shared.
+   */
+  public long getDownloadReuseMillis() {
+    return downloadReuseMillis;
+  }
+
+  public void setDownloadReuseMillis(long t) {
+    downloadReuseMillis = t;
+  }
+
+  /**
+   * Supplies the interval between purges of old data from the cache.
+   *
+   * @return The interval in milliseconds.
+   */
+  public long getPurgeIntervalMillis() {
+    return purgeIntervalMillis;
+  }
+
+  public void setPurgeIntervalMillis(long t) {
+    if (t <= 0L) {
+      throw new IllegalArgumentException("The purge interval must be positive");
+    }
+    purgeIntervalMillis = t;
+  }
+
+  /**
+   * Supplies the time for which data are kept in the cache.
+   *
+   * @return The time in milliseconds.
+   */
+  public long getLifetimeMillis() {
+    return lifetimeMillis;
+  }
+
+  public void setLifetimeMillis(long t) {
+    lifetimeMillis = t;
+  }
+
+  /**
+   * Supplies the greatest total size of the cached data.
+   *
+   * @return The size in bytes; zero if there is no limit.
+   */
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public void setMaxBytes(long n) {
+    maxBytes = n;
+  }
+
+  /**
+   * Supplies the greatest size of one cached data set.
+   *
+   * @return The size in bytes; zero if there is no limit.
+   */
+  public long getMaxDataSetBytes() {
+    return maxDataSetBytes;
+  }
+
+  public void setMaxDataSetBytes(long n) {
+    maxDataSetBytes = n;
+  }
+
+  /**
+   * Supplies the number of downloads run at once.
+   *
+   * @return The number of threads.
+   */
+  public int getDownloadThreads() {
+    return downloadThreads;
+  }
+
+  public void setDownloadThreads(int n) {
+    if (n <= 0) {
+      throw new IllegalArgumentException("The number of download threads must be positive");
+    }
+    downloadThreads = n;
+  }
+
+  /**
+   * Supplies the number of downloads that may wait for a thread. Requests
+   * beyond this are refused until the queue drains.
+   *
+   * @return The capacity of the queue.
+   */
+  public int getDownloadQueueCapacity() {
+    return downloadQueueCapacity;
+  }
+
+  public void setDownloadQueueCapacity(int n) {
+    if (n <= 0) {
+      throw new IllegalArgumentException("The capacity of the download queue must be positive");
+    }
+    downloadQueueCapacity = n;
+  }
+
+  /**
+   * Supplies the number of times a failed download is retried.
+   *
+   * @return The number of retries; zero for none.
+   */
+  public int getDownloadRetries() {
+    return downloadRetries;
+  }
+
+  public void setDownloadRetries(int n) {
+    if (n < 0) {
+      throw new IllegalArgumentException("The number of download retries may not be negative");
+    }
+    downloadRetries = n;
+  }
+
+  /**
+   * Supplies the pause before the first retry of a failed download. The
+   * pause doubles for each later retry.
+   *
+   * @return The time in milliseconds.
+   */
+  public long getDownloadRetryBackoffMillis() {
+    return downloadRetryBackoffMillis;
+  }
+
+  public void setDownloadRetryBackoffMillis(long t) {
+    downloadRetryBackoffMillis = t;
+  }
+
+  /**
+   * Supplies the greatest time that a download from a given host may take,
+   * counted from the start of the download. Downloads that take longer are
+   * abandoned.
+   *
+   * @param host The host name of the URL; may be null.
+   * @return The time in milliseconds; zero if there is no limit.
+   */
+  public long getDownloadDeadlineMillis(String host) {
+    Long t = (host == null)? null : hostDeadlineMillis.get(host.toLowerCase());
+    return (t == null)? downloadDeadlineMillis : t;
+  }
+
+  public void setDownloadDeadlineMillis(long t) {
+    if (t < 0L) {
+      throw new IllegalArgumentException("The download deadline may not be negative");
+    }
+    downloadDeadlineMillis = t;
+  }
+
+  public void setDownloadDeadlineMillis(String host, long t) {
+    if (t < 0L) {
+      throw new IllegalArgumentException("The download deadline may not be negative");
+    }
+    hostDeadlineMillis.put(host.toLowerCase(), t);
+  }
+
+  /**
+   * Supplies the least rate at which a download from a given host may
+   * proceed, averaged over the rate window. Slower downloads are abandoned.
+   *
+   * @param host The host name of the URL; may be null.
+   * @return The rate in bytes per second; zero if there is no limit.
+   */
+  public long getMinimumDownloadRate(String host) {
+    Long r = (host == null)? null : hostMinimumRates.get(host.toLowerCase());
+    return (r == null)? minimumDownloadRate : r;
+  }
+
+  public void setMinimumDownloadRate(long r) {
+    if (r < 0L) {
+      throw new IllegalArgumentException("The minimum download rate may not be negative");
+    }
+    minimumDownloadRate = r;
+  }
+
+  public void setMinimumDownloadRate(String host, long r) {
+    if (r < 0L) {
+      throw new IllegalArgumentException("The minimum download rate may not be negative");
+    }
+    hostMinimumRates.put(host.toLowerCase(), r);
+  }
+
+  /**
+   * Supplies the time over which the rate of a download is averaged. A
+   * download is not judged slow until it has run this long.
+   *
+   * @return The time in milliseconds.
+   */
+  public long getDownloadRateWindowMillis() {
+    return downloadRateWindowMillis;
+  }
+
+  public void setDownloadRateWindowMillis(long t) {
+    if (t <= 0L) {
+      throw new IllegalArgumentException("The download rate window must be positive");
+    }
+    downloadRateWindowMillis = t;
+  }
+
+  /**
+   * Supplies the greatest size of data uploaded by a client. Larger
+   * uploads are refused.
+   *
+   * @return The size in bytes; zero if there is no limit.
+   */
+  public long getMaxUploadBytes() {
+    return maxUploadBytes;
+  }
+
+  public void setMaxUploadBytes(long n) {
+    maxUploadBytes = n;
+  }
+
+  /**
+   * Supplies the number of uploads read at once. Further uploads wait in
+   * a queue of the same capacity as the queue of downloads.
+   *
+   * @return The number of threads.
+   */
+  public int getUploadThreads() {
+    return uploadThreads;
+  }
+
+  public void setUploadThreads(int n) {
+    if (n <= 0) {
+      throw new IllegalArgumentException("The number of upload threads must be positive");
+    }
+    uploadThreads = n;
+  }
+
+  /**
+   * Supplies the number of threads formatting large bibliographies in
+   * parallel. The threads are shared by all requests.
+   *
+   * @return The number of threads.
+   */
+  public int getFormatThreads() {
+    return (formatThreads == 0)? Runtime.getRuntime().availableProcessors() : formatThreads;
+  }
+
+  public void setFormatThreads(int n) {
+    if (n < 0) {
+      throw new IllegalArgumentException("The number of format threads must not be negative");
+    }
+    formatThreads = n;
+  }
+
+  /**
+   * Reveals whether cached documents are compacted to their Sources. The
+   * other parts of a document are not used by the transformations, and
+   * are usually most of it.
+   *
+   * @return True if only the root element and the Sources are kept.
+   */
+  public boolean isCompacting() {
+    return compacting;
+  }
+
+  public void setCompacting(boolean c) {
+    compacting = c;
+  }
+
+  /**
+   * Supplies the directory in which cached data are kept.
+   *
+   * @return The directory; null if the data are kept in temporary files.
+   */
+  public File getCacheDirectory() {
+    return cacheDirectory;
+  }
+
+  public void setCacheDirectory(File dir) {
+    cacheDirectory = dir;
+  }
+
+  /**
+   * Supplies the name under which this instance records the data it owns
+   * in a shared cache directory.
+   *
+   * @return The name given in the settings; otherwise the name of the host.
+   */
+  public String getInstanceName() {
+    if (instanceName != null) {
+      return instanceName;
+    }
+    try {
+      return InetAddress.getLocalHost().getHostName();
+    }
+    catch (UnknownHostException e) {
+      return "localhost";
+    }
+  }
+
+  public void setInstanceName(String name) {
+    instanceName = name;
+  }
+
+  private static Long getLong(ServletContext context, String name) {
+    String value = context.getInitParameter(name);
+    if (value == null || value.trim().length() == 0) {
+      return null;
+    }
+    try {
+      return Long.valueOf(value.trim());
+    }
+    catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Context parameter " + name + " is not a number: " + value);
+    }
+  }
+
+}
@@ -2,8 +2,13 @@ package eu.vamdc.xsams.views;
 
 import java.io.File;
 import java.net.URL;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -22,6 +27,48 @@ public class CachedDataSet {
   
   private AtomicLong progress;
   
+  /**
+   * The signals given as data are written to the cache file.
+   */
+  private volatile DownloadProgress downloadProgress;
+  
+  /**
+   * The XSAMS version of the data, as detected when the data were cached.
+   * For a download, this is set from the result of the future when the
+   * download completes.
+   */
+  private volatile String xsamsVersion;
+  
+  /**
+   * The formats in which the data have been rendered. Each rendering is
+   * kept in a file next to the cache file, named for the format.
+   */
+  private final Set<String> renderedFormats;
+  
+  private volatile boolean deleted;
+  
+  /**
+   * The number of cache keys mapped to this data set. A data set may be
+   * shared between keys when several requests ask for the same URL.
+   */
+  private final AtomicInteger references;
+  
+  /**
+   * The disk space used by the data set; null if not accounted.
+   */
+  private volatile DiskAllocation allocation;
+  
+  /**
+   * The time at which the data set was last looked up in the cache.
+   */
+  private volatile long lastAccessTime;
+  
+  /**
+   * True if the data belong to another instance of the web application
+   * sharing the cache directory.
+   */
+  private volatile boolean borrowed;
+  
   public CachedDataSet(URL u, File f, Future<Object> v, AtomicLong p) {
     this(u, f, v, p, new Date());
   }
@@ -30,22 +77,104 @@ public class CachedDataSet {
     this(null, f, null, new AtomicLong(), new Date());
   }
   
+  public CachedDataSet(File f, String version) {
+    this(null, f, null, new AtomicLong(), new Date());
+    xsamsVersion = version;
+  }
+  
+  /**
+   * Constructs a data set for complete data cached earlier, e.g. data
+   * found in the cache directory when the cache starts.
+   * 
+   * @param u The URL from which the data were downloaded; null if uploaded.
+   * @param f The cache file.
+   * @param version The XSAMS version of the data; null if not recognized.
+   * @param t The time, in milliseconds since the epoch, at which the data were first cached.
+   */
+  public CachedDataSet(URL u, File f, String version, long t) {
+    this(u, f, null, new AtomicLong(f.length()), new Date(t));
+    xsamsVersion = version;
+  }
+  
   protected CachedDataSet(URL u, File file, Future<Object> f, AtomicLong p, Date d) {
     cacheFile = file;
     originalUrl = u;
     future = f;
     entryTime = d;
     progress = p;
+    downloadProgress = new DownloadProgress();
+    renderedFormats = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    deleted = false;
+    references = new AtomicInteger();
+    lastAccessTime = System.currentTimeMillis();
   }
   
   public AtomicLong getByteCounter() {
     return progress;
   }
   
+  /**
+   * Supplies the signals given as data are written to the cache file. For
+   * data that are complete, or downloaded by another instance, no signals
+   * are given.
+   * 
+   * @return The signals.
+   */
+  public DownloadProgress getDownloadProgress() {
+    return downloadProgress;
+  }
+  
+  public void setDownloadProgress(DownloadProgress p) {
+    downloadProgress = p;
+  }
+  
   public File getCacheFile() {
     return cacheFile;
   }
   
+  /**
+   * Supplies the future result of the download.
+   * 
+   * @return The future; null if the data were not downloaded.
+   */
+  public Future<Object> getFuture() {
+    return future;
+  }
+  
+  /**
+   * Registers a listener to be run when the data are ready or the download
+   * has failed, whether the download is made here or, for borrowed data,
+   * by another instance. If the data were not downloaded, or the download
+   * has already finished, the listener is run at once in the calling thread.
+   * 
+   * @param r The listener.
+   */
+  public void addCompletionListener(Runnable r) {
+    if (future instanceof DownloadTask) {
+      ((DownloadTask) future).addCompletionListener(r);
+    }
+    else if (future instanceof PeerDownload) {
+      ((PeerDownload) future).addCompletionListener(r);
+    }
+    else {
+      r.run();
+    }
+  }
+  
+  /**
+   * Withdraws a listener registered by {@link #addCompletionListener}.
+   * 
+   * @param r The listener.
+   */
+  public void removeCompletionListener(Runnable r) {
+    if (future instanceof DownloadTask) {
+      ((DownloadTask) future).removeCompletionListener(r);
+    }
+    else if (future instanceof PeerDownload) {
+      ((PeerDownload) future).removeCompletionListener(r);
+    }
+  }
+  
   public URL getOriginalUrl() {
     return originalUrl;
   }
@@ -54,6 +183,65 @@ public class CachedDataSet {
     return entryTime;
   }
   
+  /**
+   * Supplies the XSAMS version of the data. The version is only known
+   * when the data are ready.
+   * 
+   * @return The version, e.g. "1.0"; null if not known or not recognized.
+   * @throws DownloadException If the download failed.
+   */
+  public String getXsamsVersion() throws DownloadException {
+    return isReady()? xsamsVersion : null;
+  }
+  
+  /**
+   * Records that the data set has been accessed.
+   */
+  public void touch() {
+    lastAccessTime = System.currentTimeMillis();
+  }
+  
+  /**
+   * Supplies the time of the latest access to the data set.
+   * 
+   * @return The time in milliseconds since the epoch.
+   */
+  public long getLastAccessTime() {
+    return lastAccessTime;
+  }
+  
+  public DiskAllocation getAllocation() {
+    return allocation;
+  }
+  
+  public void setAllocation(DiskAllocation a) {
+    allocation = a;
+  }
+  
+  /**
+   * Reveals whether the data belong to another instance of the web 
+   * application. Such data are only read here; {@link #delete} leaves
+   * them in place for their owner.
+   * 
+   * @return True if the data are borrowed.
+   */
+  public boolean isBorrowed() {
+    return borrowed;
+  }
+  
+  public void setBorrowed(boolean b) {
+    borrowed = b;
+  }
+  
+  /**
+   * Determines whether data are still being read into the cache file.
+   * 
+   * @return True if a download is in progress or queued.
+   */
+  public boolean isInProgress() {
+    return future != null && !future.isDone();
+  }
+  
   public boolean isReady() throws DownloadException {
     if (future == null) {
       return true;
@@ -61,7 +249,16 @@ public class CachedDataSet {
     else {
       if (future.isDone()) {
         try {
-          future.get();
+          Object result = future.get();
+          if (result instanceof String) {
+            xsamsVersion = (String) result;
+          }
+        }
+        catch (ExecutionException e) {
+          if (e.getCause() instanceof DownloadException) {
+            throw (DownloadException) e.getCause();
+          }
+          throw new DownloadException("Download failed", e.getCause());
         }
         catch (Exception e) {
           throw new DownloadException("Download failed", e.getCause());
@@ -74,12 +271,137 @@ public class CachedDataSet {
     }
   }
   
+  /**
+   * Determines whether the data set came from a download that failed or
+   * was cancelled. Such a data set must not be shared with later requests.
+   * 
+   * @return True if the download has failed.
+   */
+  public boolean hasFailed() {
+    if (future == null || !future.isDone()) {
+      return false;
+    }
+    try {
+      future.get();
+      return false;
+    }
+    catch (Exception e) {
+      return true;
+    }
+  }
+  
+  /**
+   * Records that a further cache key refers to this data set.
+   * 
+   * @return The number of references after the increment.
+   */
+  public int retain() {
+    return references.incrementAndGet();
+  }
+  
+  /**
+   * Records that a further cache key refers to this data set, unless the
+   * last reference has already been released. A data set whose references
+   * have all gone is about to be deleted and may not be revived.
+   * 
+   * @return True if the reference was recorded.
+   */
+  public boolean tryRetain() {
+    while (true) {
+      int n = references.get();
+      if (n < 0) {
+        return false;
+      }
+      if (references.compareAndSet(n, n + 1)) {
+        return true;
+      }
+    }
+  }
+  
+  /**
+   * Records that a cache key no longer refers to this data set. When the
+   * last reference goes, the data set is marked so that {@link #tryRetain}
+   * refuses further references.
+   * 
+   * @return True if no keys refer to the data set, which may then be deleted.
+   */
+  public boolean release() {
+    if (references.decrementAndGet() > 0) {
+      return false;
+    }
+    // A concurrent tryRetain may have revived the count between the
+    // decrement and here; in that case the data set lives on.
+    return references.compareAndSet(0, -1);
+  }
+  
+  /**
+   * Supplies the file for a rendering of the data. The file is next to the
+   * cache file and is deleted with it. The file may not exist yet.
+   * 
+   * @param format The format of the rendering, used as the file-name extension (e.g. "bib").
+   * @return The file.
+   */
+  public File getRenderedFile(String format) {
+    renderedFormats.add(format);
+    return new File(cacheFile.getPath() + "." + format);
+  }
+  
+  /**
+   * Supplies an entity tag for the data. The data never change once cached,
+   * so the tag depends only on the identity of the data set.
+   * 
+   * @return The tag, including the quotes.
+   */
+  public String getEntityTag() {
+    return String.format("\"%x-%x\"", entryTime.getTime(), cacheFile.getName().hashCode());
+  }
+  
+  /**
+   * Supplies an entity tag for a rendering of the data. The rendering 
+   * changes when the data do not, e.g. if the stylesheet is changed, so
+   * the tag includes a label for the way the rendering is made.
+   * 
+   * @param rendition The format and the way of rendering it, e.g. "stax.bib".
+   * @return The tag, including the quotes.
+   */
+  public String getEntityTag(String rendition) {
+    return String.format("\"%x-%x-%s\"", entryTime.getTime(), cacheFile.getName().hashCode(), 
+                         rendition);
+  }
+  
+  /**
+   * Reveals whether {@link #delete} has been called.
+   * 
+   * @return True if the data set has been deleted.
+   */
+  public boolean isDeleted() {
+    return deleted;
+  }
+  
+  /**
+   * Deletes the data set: cancels the download, if any, and deletes the
+   * cache file and all renderings of the data. The disk space is returned
+   * to the cache. Borrowed data are only marked as deleted.
+   */
   public void delete() {
+    deleted = true;
+    if (borrowed) {
+      if (future != null) {
+        future.cancel(false);
+      }
+      return;
+    }
     if (future != null) {
       future.cancel(true);
     }
     if (cacheFile != null) {
       cacheFile.delete();
+      for (String format : renderedFormats) {
+        new File(cacheFile.getPath() + "." + format).delete();
+      }
+    }
+    if (allocation != null) {
+      allocation.release();
     }
   }
   
@@ -0,0 +1,189 @@
+package eu.vamdc.xsams.views;
+
+/**
+ * Formats source records as CSL-JSON, the input of citeproc and of the
+ * Citation Style Language processors. The records of a document make one
+ * JSON array, with one item per record. The item type follows the Category
+ * of the source, as for RIS. Authors are given as literal names, since
+ * XSAMS does not split names into their parts; the year is given as a
+ * date-part if it is a number and otherwise as a raw date.
+ *
+ * @author Guy Rixon
+ */
+public class CslJsonFormatter implements SourceFormatter {
+
+  private static final String[] MEDIA_TYPES = {"application/vnd.citationstyles.csl+json",
+                                               "application/json"};
+
+  @Override
+  public String getName() {
+    return "json";
+  }
+
+  @Override
+  public String[] getMediaTypes() {
+    return MEDIA_TYPES.clone();
+  }
+
+  @Override
+  public void begin(StringBuilder b) {
+    b.append('[');
+  }
+
+  @Override
+  public void format(SourceRecord r, int index, StringBuilder b) {
+    if (index > 0) {
+      b.append(',');
+    }
+    b.append("\n  {\"id\": ");
+    string(r.getSourceId(), b);
+    b.append(", \"type\": ");
+    string(getType(r), b);
+    if (r.hasNamedAuthor()) {
+      b.append(", \"author\": [");
+      boolean first = true;
+      for (String name : r.getAuthorNames()) {
+        if (name.length() > 0) {
+          b.append(first? "{\"literal\": " : ", {\"literal\": ");
+          string(name, b);
+          b.append('}');
+          first = false;
+        }
+      }
+      b.append(']');
+    }
+    field(r, "Title", "title", b);
+    field(r, "SourceName", "container-title", b);
+    field(r, "Volume", "volume", b);
+    pages(r, b);
+    issued(r, b);
+    field(r, "Publisher", "publisher", b);
+    field(r, "City", "publisher-place", b);
+    field(r, r.has("DigitalObjectIdentifier")? "DigitalObjectIdentifier" : "DOI", "DOI", b);
+    field(r, "UniformResourceIdentifier", "URL", b);
+    b.append('}');
+  }
+
+  @Override
+  public void end(int count, StringBuilder b) {
+    b.append((count == 0)? "]\n" : "\n]\n");
+  }
+
+  /**
+   * Chooses the CSL item-type for a record.
+   */
+  private String getType(SourceRecord r) {
+    String category = r.getFirst("Category");
+    if ("journal".equals(category)) {
+      return "article-journal";
+    }
+    else if ("book".equals(category)) {
+      return "book";
+    }
+    else if ("database".equals(category) || "vamdc node".equals(category)) {
+      return "dataset";
+    }
+    else if ("private communication".equals(category)) {
+      return "personal_communication";
+    }
+    else if ("proceedings".equals(category)) {
+      return "paper-conference";
+    }
+    else if ("report".equals(category)) {
+      return "report";
+    }
+    else if ("thesis".equals(category)) {
+      return "thesis";
+    }
+    else if ("preprint".equals(category)) {
+      return "manuscript";
+    }
+    else if (r.hasNonEmpty("Publisher")) {
+      return "book";
+    }
+    else if (r.hasNonEmpty("Volume")) {
+      return "article-journal";
+    }
+    return "document";
+  }
+
+  private void pages(SourceRecord r, StringBuilder b) {
+    String begin = trimmed(r.getFirst("PageBegin"));
+    if (begin != null) {
+      String end = trimmed(r.getFirst("PageEnd"));
+      b.append(", \"page\": ");
+      string((end == null)? begin : begin + "-" + end, b);
+    }
+  }
+
+  private void issued(SourceRecord r, StringBuilder b) {
+    String year = trimmed(r.getFirst("Year"));
+    if (year != null) {
+      b.append(", \"issued\": ");
+      int y;
+      try {
+        y = Integer.parseInt(year);
+      }
+      catch (NumberFormatException e) {
+        b.append("{\"raw\": ");
+        string(year, b);
+        b.append('}');
+        return;
+      }
+      b.append("{\"date-parts\": [[").append(y).append("]]}");
+    }
+  }
+
+  private void field(SourceRecord r, String name, String key, StringBuilder b) {
+    String value = trimmed(r.getFirst(name));
+    if (value != null) {
+      b.append(", \"").append(key).append("\": ");
+      string(value, b);
+    }
+  }
+
+  private String trimmed(String s) {
+    if (s == null) {
+      return null;
+    }
+    String t = s.trim();
+    return (t.length() == 0)? null : t;
+  }
+
+  /**
+   * Writes a JSON string, quoted and escaped.
+   */
+  static void string(String s, StringBuilder b) {
+    b.append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '"':
+          b.append("\\\"");
+          break;
+        case '\\':
+          b.append("\\\\");
+          break;
+        case '\n':
+          b.append("\\n");
+          break;
+        case '\r':
+          b.append("\\r");
+          break;
+        case '\t':
+          b.append("\\t");
+          break;
+        default:
+          // The line separators are legal in JSON but not in JavaScript.
+          if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+            b.append(String.format("\\u%04x", (int) c));
+          }
+          else {
+            b.append(c);
+          }
+      }
+    }
+    b.append('"');
+  }
+
+}
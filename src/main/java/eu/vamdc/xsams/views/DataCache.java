@@ -1,20 +1,29 @@
 package eu.vamdc.xsams.views;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Map.Entry;
-import java.util.concurrent.ExecutorService;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -31,12 +40,53 @@ import org.apache.commons.logging.LogFactory;
  * Calling {@link #empty} empties the cache and deletes the associated data.
  * After this, new mappings may be entered.
  * <p>
+ * Data older than the lifetime given in the {@link CacheSettings} (by 
+ * default, {@link #CACHE_LIFETIME_IN_MILLISECONDS}) are removed by
+ * {@link #purge}, which is run periodically on a background thread. The keys
+ * are indexed by the entry time of their data, so each purge looks only at 
+ * the expired entries.
+ * <p>
+ * The settings may also limit the total size of the cached data and the size
+ * of each data set. Space is reserved as data are written. When the total
+ * would exceed the budget, whole data sets are evicted in order of least-recent
+ * access; data still being downloaded are not evicted. If eviction cannot make
+ * enough room, the download or upload fails with a {@link QuotaExceededException}.
+ * <p>
+ * Downloads run on a {@link DownloadScheduler} with the number of threads
+ * and the length of queue given in the settings. If the queue is full, the
+ * request fails with a {@link ServiceBusyException}.
+ * <p>
+ * If the settings name a cache directory, the data are kept there and the
+ * cache is persistent: each key is recorded in a {@link CacheIndex} in the
+ * directory once its data are complete, and a new cache on the same
+ * directory reloads the recorded keys, so that keys (and the URLs made from
+ * them) survive a restart of the web application. Calling {@link #close}
+ * stops a persistent cache without deleting the complete data. Without a
+ * cache directory, the data are kept in temporary files and are deleted
+ * by {@link #close}.
+ * <p>
+ * Several instances of the web application, e.g. behind a load balancer,
+ * may share one cache directory. Keys are random, so they never collide
+ * between instances. A download in progress is recorded in the index as
+ * soon as its key is issued. When an instance is asked for a key it does
+ * not hold, it looks for the key in the index and, if found, borrows the
+ * data: complete data are served from the shared file, and a peer's 
+ * download is followed through the index by a {@link PeerDownload}.
+ * Borrowed data are never deleted, evicted or charged to the budget here;
+ * they belong to the instance that cached them, and a borrowed key is
+ * dropped when its owner removes it from the index.
+ * <p>
  * Thread safety is important. The contents of the cache are catalogued in 
- * a private HashMap, with a private counter to hold the last-issued key. 
- * Access to the map and counter is via synchronized, protected methods called
- * from the public methods. The lock on the instance is held for a short a time
- * as possible. In particular, the lock is not held while data are being
- * read in to the cache, but only while they are added in the map.
+ * a private ConcurrentHashMap, and keys are drawn at random, so
+ * looking up data never waits for a download, an upload or a purge. The 
+ * expiry index and the table of shareable downloads are concurrent
+ * collections too. The number of keys referring to each data set is
+ * counted atomically in the data set, and whichever thread releases the
+ * last reference deletes the data; a data set with no references can
+ * never be shared again. No lock is held while data files are created or
+ * deleted, nor while downloads are cancelled. Eviction takes a lock, which
+ * serializes the choice of victims so that concurrent writers do not evict
+ * more than needed.
  * 
  * @author Guy Rixon
  */
@@ -51,17 +101,325 @@ public class DataCache {
   public static final long CACHE_LIFETIME_IN_MILLISECONDS = 
       CACHE_LIFETIME_IN_SECONDS * 1000L;
   
-  private Integer counter;
+  /**
+   * The number of random bytes in a key.
+   */
+  private static final int KEY_BYTES = 16;
+  
+  /**
+   * The space, as a percentage of the budget, that eviction frees beyond 
+   * what is needed, so that a large download does not evict for each chunk.
+   */
+  private static final int EVICTION_HEADROOM_PERCENT = 10;
+  
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  
+  private final SecureRandom random;
+  
+  private final ConcurrentHashMap<String, CachedDataSet> map;
+  
+  private final DownloadScheduler executor;
+  
+  /**
+   * Runs uploads, which read from streams given by clients.
+   */
+  private final DownloadScheduler uploader;
+  
+  /**
+   * Formats large bibliographies in parallel, for all requests.
+   */
+  private final ForkJoinPool formattingPool;
+  
+  /**
+   * Abandons downloads that miss their deadline or minimum rate.
+   */
+  private final DownloadWatchdog watchdog;
   
-  private HashMap<String, CachedDataSet> map;
+  /**
+   * The data sets downloaded from each URL that may still be shared with
+   * later requests for that URL.
+   */
+  private final ConcurrentHashMap<String, CachedDataSet> downloads;
   
-  private ExecutorService executor;
+  /**
+   * The keys in the map, ordered by the entry time of their data.
+   */
+  private final ConcurrentSkipListSet<ExpiryEntry> expiryIndex;
+  
+  /**
+   * The downloads by other instances, followed through the index, that 
+   * have not yet been seen to finish.
+   */
+  private final Set<PeerDownload> peerDownloads;
+  
+  /**
+   * Serializes the choice of data sets to evict.
+   */
+  private final Object evictionLock = new Object();
+  
+  private final CacheSettings settings;
+  
+  /**
+   * Runs the periodic purges.
+   */
+  private ScheduledExecutorService reaper;
+  
+  private final AtomicLong purgeCount;
+  
+  private final AtomicLong purgedDataSetCount;
+  
+  private final AtomicLong purgeNanoseconds;
+  
+  private volatile long lastPurgeNanoseconds;
+  
+  /**
+   * The total disk space reserved by data sets in the cache.
+   */
+  private final AtomicLong bytesInCache;
+  
+  private final AtomicLong evictedDataSetCount;
+  
+  private final Metrics metrics;
+  
+  /**
+   * The on-disk index of a persistent cache; null if the cache is not persistent.
+   */
+  private final CacheIndex index;
+  
+  /**
+   * The directory for cache files; null for the default temporary directory.
+   */
+  private final File directory;
   
   
   public DataCache() {
-    counter = 0;
-    map = new HashMap<String, CachedDataSet>();
-    executor = Executors.newFixedThreadPool(5);
+    this(new CacheSettings());
+  }
+  
+  public DataCache(CacheSettings s) {
+    random = new SecureRandom();
+    map = new ConcurrentHashMap<String, CachedDataSet>();
+    downloads = new ConcurrentHashMap<String, CachedDataSet>();
+    expiryIndex = new ConcurrentSkipListSet<ExpiryEntry>();
+    peerDownloads = Collections.newSetFromMap(new ConcurrentHashMap<PeerDownload, Boolean>());
+    executor = new DownloadScheduler(s.getDownloadThreads(), s.getDownloadQueueCapacity());
+    uploader = new DownloadScheduler(s.getUploadThreads(), s.getDownloadQueueCapacity(), 
+                                     "data-cache-upload-");
+    formattingPool = new ForkJoinPool(s.getFormatThreads());
+    watchdog = new DownloadWatchdog();
+    watchdog.start();
+    settings = s;
+    purgeCount = new AtomicLong();
+    purgedDataSetCount = new AtomicLong();
+    purgeNanoseconds = new AtomicLong();
+    bytesInCache = new AtomicLong();
+    evictedDataSetCount = new AtomicLong();
+    metrics = new Metrics();
+    directory = s.getCacheDirectory();
+    if (directory == null) {
+      index = null;
+    }
+    else {
+      try {
+        index = new CacheIndex(directory, s.getInstanceName());
+      }
+      catch (IOException e) {
+        throw new IllegalArgumentException("Cannot use " + directory + " as the cache directory", e);
+      }
+      reload();
+    }
+    startReaper();
+  }
+  
+  /**
+   * Reloads the keys recorded in the index of a persistent cache. Keys
+   * whose data are missing or damaged are dropped. Keys recorded by this
+   * instance are adopted and charged to the budget; keys recorded by other
+   * instances sharing the directory are borrowed, as if looked up, so that
+   * they are never deleted from here. Files in the cache directory that 
+   * belong to no recorded key, e.g. partial downloads interrupted by a 
+   * crash, are deleted once they are old enough not to be the work of 
+   * another instance sharing the directory.
+   */
+  private void reload() {
+    Map<File, CachedDataSet> dataSets = new HashMap<File, CachedDataSet>();
+    int keys = 0;
+    int borrowed = 0;
+    for (CacheIndex.Entry e : index.load()) {
+      CachedDataSet x = dataSets.get(e.getFile());
+      if (x == null) {
+        x = new CachedDataSet(e.getUrl(), e.getFile(), e.getVersion(), e.getEntryTime());
+        if (index.isOwn(e)) {
+          DiskAllocation a = new DiskAllocation(this, settings.getMaxDataSetBytes());
+          try {
+            a.reserve(e.getSize());
+          }
+          catch (QuotaExceededException q) {
+            LOG.warn("Dropping " + e.getFile() + " from the cache: " + q.getMessage());
+            index.forget(e.getKey());
+            continue;
+          }
+          x.setAllocation(a);
+        }
+        else {
+          // The data belong to another instance sharing the directory.
+          x.setBorrowed(true);
+        }
+        dataSets.put(e.getFile(), x);
+      }
+      if (x.isBorrowed()) {
+        borrowed++;
+      }
+      x.retain();
+      insert(e.getKey(), x);
+      keys++;
+    }
+    
+    // Downloads recent enough to share are offered again.
+    long now = System.currentTimeMillis();
+    for (CachedDataSet x : dataSets.values()) {
+      if (!x.isBorrowed() && x.getOriginalUrl() != null && 
+          now - x.getEntryTime().getTime() <= settings.getDownloadReuseMillis()) {
+        downloads.putIfAbsent(x.getOriginalUrl().toExternalForm(), x);
+      }
+    }
+    
+    // Files left by interrupted downloads and renderings are cleared away.
+    // Renderings of reloaded data are kept, and charged to their data set.
+    Map<String, CachedDataSet> byName = new HashMap<String, CachedDataSet>();
+    for (CachedDataSet x : dataSets.values()) {
+      byName.put(x.getCacheFile().getName(), x);
+    }
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        String name = f.getName();
+        if (!f.isFile() || !name.startsWith("cache-") || byName.containsKey(name)) {
+          continue;
+        }
+        // A rendering is named for its cache file and then its format,
+        // which may itself contain dots.
+        CachedDataSet x = null;
+        int dot = name.indexOf('.');
+        while (x == null && dot != -1) {
+          x = byName.get(name.substring(0, dot));
+          if (x == null) {
+            dot = name.indexOf('.', dot + 1);
+          }
+        }
+        if (x != null && x.isBorrowed()) {
+          // The rendering belongs to the owner of the data.
+          continue;
+        }
+        if (x != null && !name.endsWith(".tmp")) {
+          x.getRenderedFile(name.substring(dot + 1));
+          try {
+            x.getAllocation().reserveDerived(f.length());
+          }
+          catch (QuotaExceededException q) {
+            LOG.info("Deleting " + f + ": " + q.getMessage());
+            f.delete();
+          }
+        }
+        else if (CacheIndex.isAbandoned(f)) {
+          LOG.info("Deleting " + f + ", which is not in the cache index");
+          f.delete();
+        }
+      }
+    }
+    LOG.info("Reloaded " + keys + " keys, " + borrowed + " of them borrowed, for " + 
+             dataSets.size() + " data sets from " + directory);
+  }
+  
+  /**
+   * Reveals whether the cache keeps its data across restarts.
+   * 
+   * @return True if the cache has a cache directory and index.
+   */
+  public boolean isPersistent() {
+    return index != null;
+  }
+  
+  /**
+   * Schedules {@link #purge} to run at the interval given in the settings.
+   * The purges run on a daemon thread. In a persistent cache, the same
+   * thread polls the downloads followed from other instances, so that
+   * their completion listeners run soon after they finish.
+   */
+  private void startReaper() {
+    reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "data-cache-reaper");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    long interval = settings.getPurgeIntervalMillis();
+    reaper.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          purge();
+        }
+        catch (Exception e) {
+          LOG.error("Purge of the data cache failed", e);
+        }
+      }
+    }, interval, interval, TimeUnit.MILLISECONDS);
+    if (index != null) {
+      reaper.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            pollPeerDownloads();
+          }
+          catch (Exception e) {
+            LOG.error("Poll of the downloads by other instances failed", e);
+          }
+        }
+      }, PeerDownload.POLL_INTERVAL_IN_MILLISECONDS, PeerDownload.POLL_INTERVAL_IN_MILLISECONDS, 
+         TimeUnit.MILLISECONDS);
+    }
+  }
+  
+  /**
+   * Polls each download followed from another instance, which runs its
+   * completion listeners if it has finished, and stops following those
+   * that have.
+   */
+  private void pollPeerDownloads() {
+    Iterator<PeerDownload> i = peerDownloads.iterator();
+    while (i.hasNext()) {
+      if (i.next().isDone()) {
+        i.remove();
+      }
+    }
+  }
+  
+  /**
+   * Stops the cache. A persistent cache keeps its complete data, to be
+   * reloaded by the next cache on the same directory; downloads in progress
+   * are cancelled and their keys dropped. A cache that is not persistent
+   * is emptied.
+   * 
+   * @throws IOException If any data-set cannot be deleted.
+   */
+  public void close() throws IOException {
+    if (index == null) {
+      empty();
+      return;
+    }
+    reaper.shutdownNow();
+    executor.shutdownNow();
+    uploader.shutdownNow();
+    formattingPool.shutdownNow();
+    watchdog.stop();
+    for (Map.Entry<String, CachedDataSet> e : map.entrySet()) {
+      if (e.getValue().isInProgress()) {
+        remove(e.getKey());
+      }
+    }
   }
   
   /**
@@ -69,10 +427,26 @@ public class DataCache {
    * 
    * @throws IOException If any data-set cannot be deleted.
    */
-  public synchronized void empty() throws IOException {
+  public void empty() throws IOException {
+    reaper.shutdownNow();
     executor.shutdownNow();
-    for (CachedDataSet x : map.values()) {
-      if (!x.getCacheFile().delete()) {
+    uploader.shutdownNow();
+    formattingPool.shutdownNow();
+    watchdog.stop();
+    Set<CachedDataSet> doomed = new HashSet<CachedDataSet>(map.values());
+    if (index != null) {
+      for (Map.Entry<String, CachedDataSet> e : map.entrySet()) {
+        if (!e.getValue().isBorrowed()) {
+          index.forget(e.getKey());
+        }
+      }
+    }
+    map.clear();
+    expiryIndex.clear();
+    downloads.clear();
+    for (CachedDataSet x : doomed) {
+      x.delete();
+      if (!x.isBorrowed() && x.getCacheFile().exists()) {
         throw new IOException("Failed to delete " + x.getCacheFile() + " from the data cache");
       }
     }
@@ -82,20 +456,186 @@ public class DataCache {
    * Enqueues a download from the URL to a cache file and enters that
    * file into the cache map. The status of the download can be checked by
    * retrieving the map entry and checking the Future therein.
+   * <p>
+   * If the same URL was requested recently - within the reuse time given
+   * in the {@link CacheSettings} - and that download has not failed, then no
+   * new download is made. The new key is mapped to the existing data set,
+   * sharing its future, byte counter and cache file.
    * 
    * @param u The URL for the data.
    * @return The key for the cached data.
    * @throws DownloadException If the URL cannot be read.
    * @throws DownloadException If the URL is read but gives no bytes.
    * @throws IOException If the cache file cannot be created.
-   * @throws RequestException 
+   * @throws ServiceBusyException If the queue of downloads is full.
    */
   public String put(URL u) throws DownloadException, IOException {
-    File f = File.createTempFile("cache-", ".xsams.xml");
-    Download d = new Download(u, f);
-    Future<Object> v = executor.submit(d);
-    AtomicLong p = d.getByteCounter();
-    return put(new CachedDataSet(u, f, v, p));
+    String k = u.toExternalForm();
+    String key = share(k);
+    if (key != null) {
+      return key;
+    }
+    
+    // The file is created and the download prepared before the download is
+    // offered for sharing. Another request for the URL may overtake this 
+    // one, in which case its download is shared and this one is abandoned
+    // before it starts.
+    File f = File.createTempFile("cache-", ".xsams.xml", directory);
+    DiskAllocation a = new DiskAllocation(this, settings.getMaxDataSetBytes());
+    Download d = new Download(u, f, a);
+    d.setMaxRetries(settings.getDownloadRetries());
+    d.setRetryBackoffMillis(settings.getDownloadRetryBackoffMillis());
+    d.setMetrics(metrics);
+    d.setCompacting(settings.isCompacting());
+    d.setLimits(settings.getDownloadDeadlineMillis(u.getHost()),
+                settings.getMinimumDownloadRate(u.getHost()),
+                settings.getDownloadRateWindowMillis());
+    d.setWatchdog(watchdog);
+    DownloadTask v = new DownloadTask(d);
+    CachedDataSet x = new CachedDataSet(u, f, v, d.getByteCounter());
+    x.setDownloadProgress(d.getProgress());
+    x.setAllocation(a);
+    
+    // The reference for this request is counted before the download is
+    // offered for sharing, so that a sharer removing its own key cannot
+    // release the last reference.
+    x.retain();
+    while (true) {
+      CachedDataSet existing = downloads.putIfAbsent(k, x);
+      if (existing == null) {
+        break;
+      }
+      key = share(k);
+      if (key != null) {
+        LOG.debug("Sharing the download of " + u);
+        f.delete();
+        return key;
+      }
+      // The existing download could not be shared; replace it unless
+      // yet another request has done so already.
+      if (downloads.replace(k, existing, x)) {
+        break;
+      }
+    }
+    key = map(x);
+    try {
+      executor.execute(v);
+    }
+    catch (RejectedExecutionException e) {
+      DownloadException failure = executor.isShutdown()?
+          new DownloadException("The data cache has been shut down") :
+          new ServiceBusyException("Too many downloads are waiting; please try again later", 
+                                   executor.getRetryAfterSeconds());
+      
+      // Any request that shared the download in the meantime sees the same failure.
+      v.fail(failure);
+      downloads.remove(k, x);
+      remove(key);
+      throw failure;
+    }
+    return key;
+  }
+  
+  /**
+   * Enqueues a download, or shares one, as {@link #put(URL)} does, and
+   * supplies the data set entered under the new key. This saves a caller
+   * that needs the data set, rather than the key, from looking it up.
+   * 
+   * @param u The URL for the data.
+   * @return The data set.
+   * @throws DownloadException If the URL cannot be read.
+   * @throws DownloadException If the key was removed before it could be returned.
+   * @throws IOException If the cache file cannot be created.
+   * @throws ServiceBusyException If the queue of downloads is full.
+   */
+  public CachedDataSet putAndGet(URL u) throws DownloadException, IOException {
+    CachedDataSet x = map.get(put(u));
+    if (x == null) {
+      throw new DownloadException("The download of " + u + " was lost from the cache");
+    }
+    return x;
+  }
+  
+  /**
+   * Finds the position of a data set's download in the queue of downloads.
+   * 
+   * @param x The data set.
+   * @return The position, counting from one; zero if the download is not waiting.
+   */
+  public int getQueuePosition(CachedDataSet x) {
+    return executor.getQueuePosition(x.getFuture());
+  }
+  
+  /**
+   * Supplies the number of downloads waiting to start.
+   * 
+   * @return The number.
+   */
+  public int getQueueLength() {
+    return executor.getQueue().size();
+  }
+  
+  /**
+   * Supplies the number of downloads running.
+   * 
+   * @return The approximate number.
+   */
+  public int getActiveDownloadCount() {
+    return executor.getActiveCount();
+  }
+  
+  /**
+   * Supplies the number of keys in the cache, including borrowed keys.
+   * 
+   * @return The number.
+   */
+  public int getEntryCount() {
+    return map.size();
+  }
+  
+  /**
+   * Supplies the operational metrics of the cache, to which the servlets
+   * using the cache add their own.
+   * 
+   * @return The metrics.
+   */
+  public Metrics getMetrics() {
+    return metrics;
+  }
+  
+  /**
+   * Supplies the pool in which large bibliographies are formatted. The pool
+   * is shared by all requests and shut down with the cache.
+   * 
+   * @return The pool.
+   */
+  public ForkJoinPool getFormattingPool() {
+    return formattingPool;
+  }
+  
+  /**
+   * Maps a new key to a shareable download of the given URL, if there is
+   * one. Downloads that are too old to share, or that failed, are forgotten.
+   * 
+   * @param k The URL, in external form.
+   * @return The new key; null if there is no download to share.
+   */
+  private String share(String k) {
+    CachedDataSet x = downloads.get(k);
+    if (x == null) {
+      return null;
+    }
+    long age = System.currentTimeMillis() - x.getEntryTime().getTime();
+    if (x.isDeleted() || x.hasFailed() || age > settings.getDownloadReuseMillis()) {
+      downloads.remove(k, x);
+      return null;
+    }
+    if (!x.tryRetain()) {
+      // The last key for the data was removed since the lookup.
+      downloads.remove(k, x);
+      return null;
+    }
+    return map(x);
   }
   
   /**
@@ -106,48 +646,81 @@ public class DataCache {
    * @throws IOException If the data cannot be cached.
    * @throws RequestException If the stream gives no bytes.
    * @throws IOException If the cache file cannot be created.
+   * @throws QuotaExceededException If the data exceed the space allowed.
    */
   public String put(InputStream in) throws RequestException, IOException, FileNotFoundException, DownloadException {
-    File f = File.createTempFile("cache-", ".xsams.xml");
-    readFromStream(in, f);
-    return put(new CachedDataSet(null, f, null, null));
+    File f = File.createTempFile("cache-", ".xsams.xml", directory);
+    DiskAllocation a = new DiskAllocation(this, settings.getMaxDataSetBytes());
+    CacheFileWriter w = new CacheFileWriter(f, new AtomicLong(), a);
+    w.setCompacting(settings.isCompacting());
+    try {
+      w.write(in);
+    }
+    catch (IOException e) {
+      a.release();
+      f.delete();
+      throw e;
+    }
+    catch (DownloadException e) {
+      a.release();
+      f.delete();
+      throw e;
+    }
+    CachedDataSet x = new CachedDataSet(f, w.getXsamsVersion());
+    x.setAllocation(a);
+    return put(x);
   }
   
   /**
-   * Reads data from a stream and writes them to a file.
+   * Caches data read from a stream, e.g. the body of an HTTP request, on
+   * one of the cache's upload threads, so that the caller's thread is not
+   * held while the data arrive. The key is issued at once. Until the stream
+   * is exhausted, the data set is in progress, like a download, with a byte
+   * counter and a future; the caller must keep the stream open until the
+   * future completes. A failed upload keeps its key, as a failed download
+   * does, so that the failure can be reported; the caller should remove
+   * the key when the failure has been reported.
+   * <p>
+   * Data larger than the upload limit in the settings are refused: at once
+   * if the declared length is over the limit, otherwise as soon as the
+   * limit is passed. The disk allocation is charged as the data are written.
    * 
-   * @param in The data to be read.
-   * @param f The file to receive the data.
-   * @return The number of bytes read.
-   * @throws FileNotFoundException If the given file does not exist.
-   * @throws IOException If the stream cannot be read.
-   * @throws IOException If the the file cannot be written.
-   * @throws DownloadException if the stream gave no bytes.
+   * @param in The stream of data, which is not closed.
+   * @param length The declared length of the data; -1 if not known.
+   * @return The key for the cached data.
+   * @throws UploadTooLargeException If the declared length is over the limit.
+   * @throws ServiceBusyException If the queue of uploads is full.
+   * @throws DownloadException If the cache has been shut down.
+   * @throws IOException If the cache file cannot be created.
    */
-  private void readFromStream(InputStream i, File f) 
-      throws FileNotFoundException, IOException, DownloadException {
-    BufferedInputStream in = new BufferedInputStream(i);
-    BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(f));
-    LOG.info("Caching to " + f);
+  public String upload(InputStream in, long length) throws DownloadException, IOException {
+    long limit = settings.getMaxUploadBytes();
+    if (limit > 0L && length > limit) {
+      throw new UploadTooLargeException(limit);
+    }
+    File f = File.createTempFile("cache-", ".xsams.xml", directory);
+    DiskAllocation a = new DiskAllocation(this, settings.getMaxDataSetBytes());
+    Upload u = new Upload(in, f, a, limit);
+    u.setCompacting(settings.isCompacting());
+    DownloadTask v = new DownloadTask(u);
+    CachedDataSet x = new CachedDataSet(null, f, v, u.getByteCounter());
+    x.setDownloadProgress(u.getProgress());
+    x.setAllocation(a);
+    x.retain();
+    String key = map(x);
     try {
-      long bytesDownloaded = 0L;
-      while (true) {
-        int c = in.read();
-        if (c == -1) {
-          break;
-        }
-        else {
-          out.write(c);
-        }
-        bytesDownloaded++;
-      }
-      if (bytesDownloaded == 0L) {
-        throw new DownloadException("No data were read");
-      }
+      uploader.execute(v);
     }
-    finally {
-      out.close();
+    catch (RejectedExecutionException e) {
+      DownloadException failure = uploader.isShutdown()?
+          new DownloadException("The data cache has been shut down") :
+          new ServiceBusyException("Too many uploads are waiting; please try again later", 
+                                   uploader.getRetryAfterSeconds());
+      v.fail(failure);
+      remove(key);
+      throw failure;
     }
+    return key;
   }
   
   /**
@@ -159,55 +732,479 @@ public class DataCache {
    * @param x The data-set to be shared.
    * @return The key to the stored data.
    */
-  protected synchronized String put(CachedDataSet x) {
-    counter++;
-    String key = counter.toString();
-    map.put(key, x);
+  protected String put(CachedDataSet x) {
+    x.retain();
+    return map(x);
+  }
+  
+  /**
+   * Allocates a key for a data set and enters the key in the map and
+   * the expiry index. The caller must already have counted the reference
+   * on the data set. In a persistent cache, a download in progress is
+   * recorded in the index at once, so that other instances sharing the
+   * directory can follow it.
+   * 
+   * @param x The data set.
+   * @return The new key.
+   */
+  private String map(CachedDataSet x) {
+    String key = nextKey();
+    insert(key, x);
+    if (index != null) {
+      if (x.isInProgress()) {
+        try {
+          index.recordDownload(key, x);
+          if (map.get(key) != x) {
+            index.forget(key);
+          }
+        }
+        catch (IOException e) {
+          LOG.error("Failed to record key " + key + " in the cache index", e);
+        }
+      }
+      recordWhenComplete(key, x);
+    }
     return key;
   }
   
-  public synchronized CachedDataSet get(String k) {
-    return map.get(k);
+  /**
+   * Issues a new key: 128 random bits in hexadecimal. Keys drawn this way
+   * do not collide, in practice, even between instances of the web 
+   * application sharing a cache directory, and they cannot be guessed.
+   * 
+   * @return The key.
+   */
+  private String nextKey() {
+    byte[] b = new byte[KEY_BYTES];
+    random.nextBytes(b);
+    char[] c = new char[2 * KEY_BYTES];
+    for (int i = 0; i < KEY_BYTES; i++) {
+      c[2 * i] = HEX[(b[i] >> 4) & 0xf];
+      c[2 * i + 1] = HEX[b[i] & 0xf];
+    }
+    return new String(c);
   }
   
-  public synchronized boolean contains(String k) {
-    return map.containsKey(k);
+  private void insert(String key, CachedDataSet x) {
+    map.put(key, x);
+    expiryIndex.add(new ExpiryEntry(x.getEntryTime().getTime(), key));
   }
   
-  public synchronized void remove(String k) {
-    if (map.containsKey(k)) {
-      map.get(k).delete();
-      map.remove(k);
+  /**
+   * Records a key in the index of a persistent cache when its data are
+   * complete: at once for data already complete, otherwise when the 
+   * download finishes. Keys for failed downloads are dropped from the
+   * index; keys removed in the meantime are not recorded.
+   * 
+   * @param key The key.
+   * @param x The data set.
+   */
+  private void recordWhenComplete(final String key, final CachedDataSet x) {
+    x.addCompletionListener(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          if (map.get(key) == x && x.isReady()) {
+            index.record(key, x, x.getXsamsVersion());
+            if (map.get(key) != x) {
+              index.forget(key);
+            }
+          }
+        }
+        catch (DownloadException e) {
+          LOG.debug("Not recording key " + key + " for a failed download");
+          index.forget(key);
+        }
+        catch (IOException e) {
+          LOG.error("Failed to record key " + key + " in the cache index", e);
+        }
+      }
+    });
+  }
+  
+  /**
+   * Finds the data set for a key on behalf of a client, recording the 
+   * access for the purposes of eviction and counting the lookup as a hit 
+   * or a miss in the metrics. A persistent cache looks in its index for 
+   * keys issued by other instances sharing the cache directory.
+   * 
+   * @param k The key.
+   * @return The data set; null if nothing is cached under the key.
+   */
+  public CachedDataSet get(String k) {
+    CachedDataSet x = lookup(k);
+    if (x == null) {
+      metrics.miss();
+      return null;
     }
+    metrics.hit();
+    x.touch();
+    return x;
   }
   
   /**
-   * Removes from the cache all data older than a time specified by the
-   * constant {@link CACHE_LIFETIME_IN_MILLISECONDS}.
+   * Finds the data set for a key, as {@link #get} does, but without 
+   * recording the access. This is for lookups made by the application 
+   * itself, e.g. to log a key just issued or to check the validators of
+   * a request, which would otherwise distort the hit ratio.
+   * 
+   * @param k The key.
+   * @return The data set; null if nothing is cached under the key.
    */
-  public synchronized void purge() {
-    Iterator<Entry<String,CachedDataSet>> i = map.entrySet().iterator();
+  public CachedDataSet lookup(String k) {
+    CachedDataSet x = map.get(k);
+    if (x == null) {
+      x = (index == null)? null : borrow(k);
+    }
+    else if (x.isBorrowed() && x.getFuture() == null && !index.contains(k)) {
+      // The owner has removed the key.
+      drop(k, x);
+      x = null;
+    }
+    return x;
+  }
+  
+  public boolean contains(String k) {
+    return (index == null)? map.containsKey(k) : lookup(k) != null;
+  }
+  
+  /**
+   * Enters into the map a key found in the index of a shared cache
+   * directory, recorded there by another instance.
+   * 
+   * @param k The key.
+   * @return The borrowed data set; null if the key is not in the index.
+   */
+  private CachedDataSet borrow(String k) {
+    CacheIndex.Entry e = index.find(k);
+    if (e == null) {
+      return null;
+    }
+    CachedDataSet x;
+    PeerDownload d = null;
+    if (e.isComplete()) {
+      x = new CachedDataSet(e.getUrl(), e.getFile(), e.getVersion(), e.getEntryTime());
+    }
+    else {
+      AtomicLong p = new AtomicLong();
+      d = new PeerDownload(index, e, p);
+      x = new CachedDataSet(e.getUrl(), e.getFile(), d, p, new Date(e.getEntryTime()));
+    }
+    x.setBorrowed(true);
+    x.retain();
+    CachedDataSet existing = map.putIfAbsent(k, x);
+    if (existing != null) {
+      return existing;
+    }
+    if (d != null) {
+      peerDownloads.add(d);
+    }
+    expiryIndex.add(new ExpiryEntry(x.getEntryTime().getTime(), k));
+    LOG.debug("Borrowed key " + k + " from the shared cache directory");
+    return x;
+  }
+  
+  /**
+   * Drops a borrowed key from the map, leaving the index and the data to
+   * their owner.
+   * 
+   * @param k The key.
+   * @param x The data set mapped to the key.
+   */
+  private void drop(String k, CachedDataSet x) {
+    if (map.remove(k, x)) {
+      expiryIndex.remove(new ExpiryEntry(x.getEntryTime().getTime(), k));
+      if (x.release()) {
+        x.delete();
+      }
+    }
+  }
+  
+  /**
+   * Removes a mapping from the cache. The data are deleted unless they are
+   * shared with another key. A borrowed key is only dropped from this 
+   * instance.
+   * 
+   * @param k The key to the data.
+   */
+  public void remove(String k) {
+    CachedDataSet x = map.remove(k);
+    if (x != null) {
+      expiryIndex.remove(new ExpiryEntry(x.getEntryTime().getTime(), k));
+      if (index != null && !x.isBorrowed()) {
+        index.forget(k);
+      }
+      if (release(x)) {
+        x.delete();
+      }
+    }
+  }
+  
+  /**
+   * Removes from the cache all data older than the lifetime given in the
+   * settings. Only the expired
+   * entries at the head of the expiry index are visited. Purges may run
+   * concurrently with each other and with the other methods; each expired
+   * entry is removed by exactly one of them.
+   * <p>
+   * This method is called periodically by the reaper thread; it may also
+   * be called directly.
+   */
+  public void purge() {
+    long start = System.nanoTime();
+    long cutoff = System.currentTimeMillis() - settings.getLifetimeMillis();
+    List<CachedDataSet> doomed = new ArrayList<CachedDataSet>();
+    List<String> doomedKeys = new ArrayList<String>();
+    Iterator<ExpiryEntry> i = expiryIndex.iterator();
     while (i.hasNext()) {
-      Entry<String,CachedDataSet> q = i.next();
-      if (isTooOld(q.getValue().getEntryTime())) {
-        q.getValue().delete();
-        i.remove();
+      ExpiryEntry e = i.next();
+      if (e.time >= cutoff) {
+        break;
+      }
+      if (expiryIndex.remove(e)) {
+        CachedDataSet x = map.remove(e.key);
+        if (x != null) {
+          if (!x.isBorrowed()) {
+            doomedKeys.add(e.key);
+          }
+          if (release(x)) {
+            doomed.add(x);
+          }
+        }
       }
     }
+    forget(doomedKeys);
+    for (CachedDataSet x : doomed) {
+      x.delete();
+    }
+    long duration = System.nanoTime() - start;
+    purgeCount.incrementAndGet();
+    purgedDataSetCount.addAndGet(doomed.size());
+    purgeNanoseconds.addAndGet(duration);
+    lastPurgeNanoseconds = duration;
+    if (doomed.isEmpty()) {
+      LOG.debug("Purge found nothing to delete");
+    }
+    else {
+      LOG.info("Purged " + doomed.size() + " data sets in " + (duration / 1000000L) + " ms");
+    }
+  }
+  
+  /**
+   * Supplies the number of purges run since the cache was created.
+   * 
+   * @return The count.
+   */
+  public long getPurgeCount() {
+    return purgeCount.get();
+  }
+  
+  /**
+   * Supplies the number of data sets deleted by purges since the cache was created.
+   * 
+   * @return The count.
+   */
+  public long getPurgedDataSetCount() {
+    return purgedDataSetCount.get();
+  }
+  
+  /**
+   * Supplies the total time spent in purges since the cache was created.
+   * 
+   * @return The time in nanoseconds.
+   */
+  public long getPurgeNanoseconds() {
+    return purgeNanoseconds.get();
+  }
+  
+  /**
+   * Supplies the duration of the most recent purge.
+   * 
+   * @return The time in nanoseconds; zero if there has been no purge.
+   */
+  public long getLastPurgeNanoseconds() {
+    return lastPurgeNanoseconds;
+  }
+  
+  /**
+   * Charges the budget of the cache for more data. If the budget would be 
+   * exceeded, data sets are evicted to make room.
+   * 
+   * @param n The number of bytes wanted.
+   * @param requester The allocation making the request, which is never evicted.
+   * @throws QuotaExceededException If there is not enough room.
+   */
+  void reserve(long n, DiskAllocation requester) throws QuotaExceededException {
+    long max = settings.getMaxBytes();
+    long total = bytesInCache.addAndGet(n);
+    if (max > 0L && total > max) {
+      evict(max, requester);
+      if (bytesInCache.get() > max) {
+        bytesInCache.addAndGet(-n);
+        throw new QuotaExceededException("The data cache is full (limit " + max + " bytes)");
+      }
+    }
+  }
+  
+  /**
+   * Returns space to the budget of the cache.
+   * 
+   * @param n The number of bytes.
+   */
+  void unreserve(long n) {
+    bytesInCache.addAndGet(-n);
+  }
+  
+  /**
+   * Supplies the total disk space reserved by the cached data.
+   * 
+   * @return The number of bytes.
+   */
+  public long getBytesInCache() {
+    return bytesInCache.get();
+  }
+  
+  /**
+   * Supplies the number of data sets evicted to keep within the budget.
+   * 
+   * @return The count.
+   */
+  public long getEvictedDataSetCount() {
+    return evictedDataSetCount.get();
   }
   
   /**
-   * Determines whether a data set is old enough to be purged from the cache.
+   * Evicts data sets, least-recently accessed first, until the reserved
+   * space is below the budget by {@link #EVICTION_HEADROOM_PERCENT} or no 
+   * more can be evicted. Nothing is evicted if a concurrent eviction has 
+   * already brought the total within the budget. Data sets still being 
+   * written are never evicted. All the keys for a data set are removed 
+   * together. Only the choice of victims is made under a lock; the data are
+   * deleted after it has been released.
    * 
-   * @param then The timestamp for the data.
-   * @return True if the data are old enough to be purged.
+   * @param max The budget in bytes.
+   * @param requester The allocation that needs the space.
    */
-  private boolean isTooOld(Date then) {
-    Date now = new Date();
-    long age = now.getTime() - then.getTime();
-    return age > CACHE_LIFETIME_IN_MILLISECONDS;
+  private void evict(long max, DiskAllocation requester) {
+    List<CachedDataSet> doomed = new ArrayList<CachedDataSet>();
+    List<String> doomedKeys = new ArrayList<String>();
+    synchronized (evictionLock) {
+      long total = bytesInCache.get();
+      if (total <= max) {
+        return;
+      }
+      long needed = total - max + max * EVICTION_HEADROOM_PERCENT / 100L;
+      Set<CachedDataSet> eligible = new HashSet<CachedDataSet>();
+      for (CachedDataSet x : map.values()) {
+        if (!x.isBorrowed() && x.getAllocation() != requester && !x.isInProgress()) {
+          eligible.add(x);
+        }
+      }
+      List<CachedDataSet> candidates = new ArrayList<CachedDataSet>(eligible);
+      Collections.sort(candidates, new Comparator<CachedDataSet>() {
+        @Override
+        public int compare(CachedDataSet a, CachedDataSet b) {
+          long d = a.getLastAccessTime() - b.getLastAccessTime();
+          return (d < 0L)? -1 : ((d > 0L)? 1 : 0);
+        }
+      });
+      long freed = 0L;
+      Set<CachedDataSet> victims = new HashSet<CachedDataSet>();
+      for (CachedDataSet x : candidates) {
+        if (freed >= needed) {
+          break;
+        }
+        victims.add(x);
+        freed += (x.getAllocation() == null)? 0L : x.getAllocation().getBytes();
+      }
+      // A victim is deleted only by the thread that releases its last
+      // reference; one shared by a new key meanwhile survives.
+      for (Map.Entry<String, CachedDataSet> e : map.entrySet()) {
+        CachedDataSet x = e.getValue();
+        if (victims.contains(x) && map.remove(e.getKey(), x)) {
+          expiryIndex.remove(new ExpiryEntry(x.getEntryTime().getTime(), e.getKey()));
+          doomedKeys.add(e.getKey());
+          if (release(x)) {
+            doomed.add(x);
+          }
+        }
+      }
+    }
+    forget(doomedKeys);
+    for (CachedDataSet x : doomed) {
+      x.delete();
+    }
+    if (!doomed.isEmpty()) {
+      evictedDataSetCount.addAndGet(doomed.size());
+      LOG.info("Evicted " + doomed.size() + " data sets to keep within the cache budget");
+    }
+  }
+  
+  /**
+   * Drops keys from the index of a persistent cache.
+   * 
+   * @param keys The keys.
+   */
+  private void forget(List<String> keys) {
+    if (index != null) {
+      for (String k : keys) {
+        index.forget(k);
+      }
+    }
+  }
+  
+  /**
+   * Releases one key's reference to a data set. If no other key refers to 
+   * the data set, it is no longer offered for sharing and the caller must
+   * delete it.
+   * 
+   * @param x The data set.
+   * @return True if the data set should be deleted.
+   */
+  private boolean release(CachedDataSet x) {
+    if (x.release()) {
+      if (x.getOriginalUrl() != null) {
+        downloads.remove(x.getOriginalUrl().toExternalForm(), x);
+      }
+      return true;
+    }
+    else {
+      return false;
+    }
   }
   
   
+  /**
+   * An entry in the expiry index: a key and the entry time of its data.
+   */
+  private static class ExpiryEntry implements Comparable<ExpiryEntry> {
+    
+    final long time;
+    
+    final String key;
+    
+    ExpiryEntry(long t, String k) {
+      time = t;
+      key = k;
+    }
+
+    @Override
+    public int compareTo(ExpiryEntry o) {
+      if (time != o.time) {
+        return (time < o.time)? -1 : 1;
+      }
+      return key.compareTo(o.key);
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+      return (o instanceof ExpiryEntry) && compareTo((ExpiryEntry) o) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+      return key.hashCode();
+    }
+  }
   
 }
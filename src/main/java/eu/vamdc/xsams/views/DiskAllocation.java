@@ -0,0 +1,99 @@
+package eu.vamdc.xsams.views;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The disk space allocated to one data set in the cache. Space is reserved
+ * chunk by chunk as the data are written, and is checked against the limit
+ * for a single data set and against the budget for the whole cache. All the
+ * space is returned to the cache when the data set is deleted.
+ *
+ * @author Guy Rixon
+ */
+public class DiskAllocation {
+
+  private final DataCache cache;
+
+  private final long limit;
+
+  private final AtomicLong bytes;
+
+  /**
+   * Constructs an allocation.
+   *
+   * @param c The cache whose budget is to be charged; null if there is no budget.
+   * @param maxBytes The limit for this data set; zero for no limit.
+   */
+  public DiskAllocation(DataCache c, long maxBytes) {
+    cache = c;
+    limit = maxBytes;
+    bytes = new AtomicLong();
+  }
+
+  /**
+   * Reserves space for more data.
+   *
+   * @param n The number of bytes to reserve.
+   * @throws QuotaExceededException If the data set would exceed its limit.
+   * @throws QuotaExceededException If the cache would exceed its budget.
+   */
+  public void reserve(long n) throws QuotaExceededException {
+    long total = bytes.addAndGet(n);
+    if (limit > 0L && total > limit) {
+      bytes.addAndGet(-n);
+      throw new QuotaExceededException("The data set is larger than the limit of " + limit + " bytes");
+    }
+    if (cache != null) {
+      try {
+        cache.reserve(n, this);
+      }
+      catch (QuotaExceededException e) {
+        bytes.addAndGet(-n);
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Reserves space for files made from the data, such as renderings. The
+   * space is charged to the budget of the cache but not to the limit for
+   * the data set, which applies to the data alone.
+   *
+   * @param n The number of bytes to reserve.
+   * @throws QuotaExceededException If the cache would exceed its budget.
+   */
+  public void reserveDerived(long n) throws QuotaExceededException {
+    bytes.addAndGet(n);
+    if (cache != null) {
+      try {
+        cache.reserve(n, this);
+      }
+      catch (QuotaExceededException e) {
+        bytes.addAndGet(-n);
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Returns all the reserved space to the cache. Calling this method more
+   * than once has no further effect unless more space is reserved between
+   * the calls.
+   */
+  public void release() {
+    long n = bytes.getAndSet(0L);
+    if (cache != null && n > 0L) {
+      cache.unreserve(n);
+    }
+  }
+
+  /**
+   * Supplies the amount of space reserved.
+   *
+   * @return The number of bytes.
+   */
+  public long getBytes() {
+    return bytes.get();
+  }
+
+}
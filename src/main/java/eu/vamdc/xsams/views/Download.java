@@ -1,12 +1,12 @@
 package eu.vamdc.xsams.views;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.concurrent.Callable;
@@ -21,8 +21,26 @@ import org.apache.commons.logging.LogFactory;
  * A download of an XML file from a URL to a cache file.
  * The download is {@code Callable}: the actual transfer of bytes happens 
  * during the {@link #call} method, which can throw checked exceptions. 
- * This method returns null on completion (there is no result that can 
- * be returned as an object reference).
+ * This method returns the XSAMS version of the downloaded document, which
+ * is detected as the bytes are written to the cache file.
+ * <p>
+ * A download that fails with an I/O error (a refused or dropped connection,
+ * a timeout, a 5xx status) is retried after a pause, which doubles with
+ * each retry. If the response was not compressed, and the server accepts
+ * byte ranges and gave a validator (a strong ETag or a Last-Modified time),
+ * a transfer broken part-way is resumed from the bytes already on disk,
+ * using Range and If-Range. Otherwise, or if the server sends the whole document in reply
+ * to the range request, the download starts again from the beginning.
+ * Client errors (4xx) and failures of the data, such as an empty document
+ * or exceeding the disk allocation, are not retried.
+ * <p>
+ * A download that fails, for whatever reason, deletes its partial data and
+ * releases their disk space before it reports the failure.
+ * <p>
+ * A download may be given a deadline and a minimum rate, enforced by a
+ * {@link DownloadWatchdog}. A download that breaches them is aborted: its
+ * connection is closed and its thread interrupted, and the download fails
+ * with a {@link DownloadTimeoutException}, which is not retried.
  * 
  * @author Guy Rixon
  */
@@ -43,117 +61,608 @@ public class Download implements Callable<Object> {
   private AtomicLong bytesDownloaded;
   
   /**
-   * Constructs a Download for a given URL and cache file.
+   * The signals for readers following the cache file.
+   */
+  private final DownloadProgress progress;
+  
+  /**
+   * The disk space allocated to the download; null if there is no limit.
+   */
+  private DiskAllocation allocation;
+  
+  /**
+   * The number of times a failed download is retried.
+   */
+  private int maxRetries = CacheSettings.DEFAULT_DOWNLOAD_RETRIES;
+  
+  /**
+   * The pause before the first retry; later pauses are longer.
+   */
+  private long retryBackoffMillis = CacheSettings.DEFAULT_DOWNLOAD_RETRY_BACKOFF_IN_SECONDS * 1000L;
+  
+  /**
+   * The number of retries made so far, whether resumptions or restarts.
+   */
+  private int retries;
+  
+  /**
+   * The metrics in which the download is recorded; null if not recorded.
+   */
+  private Metrics metrics;
+  
+  /**
+   * True if only the Sources of the document are kept.
+   */
+  private boolean compacting;
+  
+  /**
+   * The greatest duration of the download, in milliseconds; zero for no limit.
+   */
+  private long deadlineMillis;
+  
+  /**
+   * The least rate of the download, in bytes per second; zero for no limit.
+   */
+  private long minimumRate;
+  
+  /**
+   * The time over which the rate of the download is averaged.
+   */
+  private long rateWindowMillis = CacheSettings.DEFAULT_DOWNLOAD_RATE_WINDOW_IN_SECONDS * 1000L;
+  
+  /**
+   * The enforcer of the limits; null if they are not enforced.
+   */
+  private DownloadWatchdog watchdog;
+  
+  /**
+   * The thread running the download; null if not running.
+   */
+  private Thread runner;
+  
+  /**
+   * The connection currently being read; null if none.
+   */
+  private volatile URLConnection connection;
+  
+  /**
+   * The reason for aborting the download; null unless aborted.
+   */
+  private volatile DownloadTimeoutException abortCause;
+  
+  /**
+   * Constructs a Download for a given URL and cache file, with no limit
+   * on its size.
    * 
    * @param u The URL to download.
    * @param f The file (must exist before construction).
    * @throws FileNotFoundException If the file does not exist.
    */
   public Download(URL u, File f) throws FileNotFoundException {
+    this(u, f, null);
+  }
+  
+  /**
+   * Constructs a Download for a given URL and cache file. The download
+   * fails if it exceeds the given disk allocation.
+   * 
+   * @param u The URL to download.
+   * @param f The file (must exist before construction).
+   * @param a The disk allocation; null for no limit.
+   * @throws FileNotFoundException If the file does not exist.
+   */
+  public Download(URL u, File f, DiskAllocation a) throws FileNotFoundException {
     url = u;
     file = f;
     if (!f.exists()) {
       throw new FileNotFoundException("Cache file does not exist: " + f);
     }
     bytesDownloaded = new AtomicLong();
+    progress = new DownloadProgress();
+    allocation = a;
   }
   
   public AtomicLong getByteCounter() {
     return bytesDownloaded;
   }
+  
+  public DownloadProgress getProgress() {
+    return progress;
+  }
+  
+  /**
+   * Sets the number of times a failed download is retried.
+   * 
+   * @param n The number of retries; zero for none.
+   */
+  public void setMaxRetries(int n) {
+    maxRetries = n;
+  }
+  
+  /**
+   * Sets the pause before the first retry. The pause doubles for each
+   * later retry.
+   * 
+   * @param t The time in milliseconds.
+   */
+  public void setRetryBackoffMillis(long t) {
+    retryBackoffMillis = t;
+  }
+  
+  /**
+   * Sets the metrics in which the outcome and rate of the download are
+   * recorded.
+   * 
+   * @param m The metrics; null for none.
+   */
+  public void setMetrics(Metrics m) {
+    metrics = m;
+  }
+  
+  /**
+   * Sets whether the document is compacted to its Sources as it is
+   * downloaded. The byte counter still counts the whole document.
+   * 
+   * @param c True to keep only the root element and the Sources.
+   */
+  public void setCompacting(boolean c) {
+    compacting = c;
+  }
+  
+  /**
+   * Sets the limits on the time taken by the download. The limits are
+   * enforced only if a watchdog is set.
+   * 
+   * @param deadline The greatest duration, in milliseconds; zero for no limit.
+   * @param minimum The least rate, in bytes per second; zero for no limit.
+   * @param window The time over which the rate is averaged, in milliseconds.
+   */
+  public void setLimits(long deadline, long minimum, long window) {
+    deadlineMillis = deadline;
+    minimumRate = minimum;
+    rateWindowMillis = window;
+  }
+  
+  public long getDeadlineMillis() {
+    return deadlineMillis;
+  }
+  
+  public long getMinimumRate() {
+    return minimumRate;
+  }
+  
+  public long getRateWindowMillis() {
+    return rateWindowMillis;
+  }
+  
+  /**
+   * Sets the watchdog that enforces the limits of the download.
+   * 
+   * @param w The watchdog; null for none.
+   */
+  public void setWatchdog(DownloadWatchdog w) {
+    watchdog = w;
+  }
+  
+  public URL getUrl() {
+    return url;
+  }
+  
+  /**
+   * Aborts the download. The connection is closed and the thread of the
+   * download interrupted, so that the download stops at once even if it
+   * is blocked on the network. The download then fails with the given
+   * exception. Aborting a download that has finished has no effect.
+   * 
+   * @param e The reason.
+   */
+  public synchronized void abort(DownloadTimeoutException e) {
+    if (runner == null) {
+      return;
+    }
+    abortCause = e;
+    URLConnection c = connection;
+    if (c instanceof HttpURLConnection) {
+      ((HttpURLConnection) c).disconnect();
+    }
+    runner.interrupt();
+  }
+  
+  /**
+   * Supplies the number of retries made so far.
+   * 
+   * @return The count.
+   */
+  public int getRetryCount() {
+    return retries;
+  }
 
   /**
    * Executes the download.
    * 
-   * @return null, even when the download succeeds.
+   * @return The XSAMS version of the document; null if it was not recognized.
    * @throws FileNotFoundException If the file does not exist.
    * @throws DownloadException If the URL is read but gives no bytes.
+   * @throws QuotaExceededException If the data exceed the disk allocation.
    */
   @Override
   public Object call() throws DownloadException, IOException {
-    readFromUrl(url, file);
-    return null;
+    if (metrics == null) {
+      return download();
+    }
+    metrics.downloadStarted();
+    long start = System.nanoTime();
+    try {
+      Object version = download();
+      metrics.downloadCompleted(url.getHost(), bytesDownloaded.get(), System.nanoTime() - start);
+      return version;
+    }
+    catch (IOException e) {
+      metrics.downloadFailed(url.getHost(), bytesDownloaded.get(), System.nanoTime() - start, e);
+      throw e;
+    }
+    catch (DownloadException e) {
+      metrics.downloadFailed(url.getHost(), bytesDownloaded.get(), System.nanoTime() - start, e);
+      throw e;
+    }
+  }
+  
+  /**
+   * Downloads the data, under the watch of the watchdog if the download has
+   * limits. If the download fails, the partial data are discarded.
+   * 
+   * @return The XSAMS version of the document; null if it was not recognized.
+   * @throws DownloadTimeoutException If the download was aborted.
+   */
+  private String download() throws IOException, DownloadException {
+    boolean watched = watchdog != null && (deadlineMillis > 0L || minimumRate > 0L);
+    synchronized (this) {
+      runner = Thread.currentThread();
+    }
+    if (watched) {
+      watchdog.watch(this);
+    }
+    try {
+      return readFromUrl(url, file);
+    }
+    catch (IOException e) {
+      discard();
+      if (abortCause != null) {
+        throw abortCause;
+      }
+      throw e;
+    }
+    catch (DownloadException e) {
+      discard();
+      if (abortCause != null) {
+        throw abortCause;
+      }
+      throw e;
+    }
+    catch (RuntimeException e) {
+      discard();
+      throw e;
+    }
+    finally {
+      if (watched) {
+        watchdog.unwatch(this);
+      }
+      synchronized (this) {
+        runner = null;
+        connection = null;
+        if (abortCause != null) {
+          // The interrupt was sent by abort and is answered by the timeout.
+          Thread.interrupted();
+        }
+      }
+    }
+  }
+  
+  /**
+   * Deletes the partial data of a failed download and releases their
+   * disk space.
+   */
+  private void discard() {
+    if (allocation != null) {
+      allocation.release();
+    }
+    if (!file.delete() && file.exists()) {
+      LOG.warn("Failed to delete the partial download " + file);
+    }
   }
   
   /**
-   * Downloads the data from a URL and copies them to a file. If the URL supports
+   * Downloads the data from a URL and copies them to a file, retrying as
+   * described for the class. Before a restart after some data were written,
+   * the byte counter and the disk allocation are reset and the restart is 
+   * signalled, so that readers following the file fail instead of reading
+   * on into the new data; the file is then overwritten. A retry after a 
+   * failure to connect, or after an error from the server, is not a restart.
+   * 
+   * @param u The URL to read.
+   * @param f The file to receive the data.
+   * @return The XSAMS version of the document; null if it was not recognized.
+   * @throws IOException If the URL cannot be read, after all retries.
+   * @throws IOException If the file cannot be written.
+   * @throws FileNotFoundException If the file does not exist.
+   * @throws DownloadException If the URL is read but gives no bytes.
+   * @throws DownloadException If the server reports a client error.
+   */
+  private String readFromUrl(URL u, File f) 
+      throws IOException, FileNotFoundException, DownloadException {
+    while (true) {
+      try {
+        return transfer(u, f);
+      }
+      catch (IOException e) {
+        backOff(e);
+        LOG.info("Restarting the download of " + u);
+        if (bytesDownloaded.get() > 0L) {
+          progress.restart();
+          bytesDownloaded.set(0L);
+          if (allocation != null) {
+            allocation.release();
+          }
+        }
+      }
+    }
+  }
+  
+  /**
+   * Makes one transfer from a URL to a file. If the URL supports
    * "gzip" or "deflate" compression then the download is compressed in transfer
-   * and the data are decompressed before filing.
+   * and the data are decompressed before filing. The decompressors use buffers
+   * the same size as the chunks in which the data are copied. Uncompressed
+   * transfers are resumed, if possible, when the connection breaks.
    * 
    * @param u The URL to read.
    * @param f The file to receive the data.
+   * @return The XSAMS version of the document; null if it was not recognized.
    * @throws IOException If the URL cannot be read.
    * @throws IOException If the file cannot be written.
-   * @throws FileNotFoundException If the file does not exist.
    * @throws DownloadException If the URL is read but gives no bytes.
+   * @throws DownloadException If the server reports a client error.
    */
-  private void readFromUrl(URL u, File f) 
+  private String transfer(URL u, File f) 
       throws IOException, FileNotFoundException, DownloadException {
-    URLConnection uc = u.openConnection();
-    uc.setConnectTimeout(60000);
-    uc.setReadTimeout(60000);
-    uc.setRequestProperty("Accept-Encoding", "gzip, deflate");
-      
-    uc.connect();
+    URLConnection uc = openConnection(u, "gzip, deflate");
+    checkStatus(uc, HttpURLConnection.HTTP_OK);
       
     String encoding = uc.getContentEncoding();
     LOG.debug("Transfer encoding is " + encoding);
       
-    InputStream q;
+    Inflater inflater = null;
+    InputStream in;
     if (encoding != null && encoding.equalsIgnoreCase("gzip")) {
-      q = new GZIPInputStream(uc.getInputStream());
+      in = new GZIPInputStream(uc.getInputStream(), CacheFileWriter.BUFFER_SIZE);
     }
     else if (encoding != null && encoding.equalsIgnoreCase("deflate")) {
-      q = new InflaterInputStream(uc.getInputStream(), new Inflater(true));
+      inflater = new Inflater(true);
+      in = new InflaterInputStream(uc.getInputStream(), inflater, CacheFileWriter.BUFFER_SIZE);
     }
     else {
-      q = uc.getInputStream();
+      in = new ResumingInputStream(u, uc);
     }
-    BufferedInputStream in = new BufferedInputStream(q);
     try {
-      readFromStream(in, f);
+      CacheFileWriter w = new CacheFileWriter(f, bytesDownloaded, allocation);
+      w.setCompacting(compacting);
+      w.setProgress(progress);
+      w.write(in);
+      return w.getXsamsVersion();
     }
     finally {
       in.close();
+      if (inflater != null) {
+        inflater.end();
+      }
     }
   }
   
+  /**
+   * Opens a connection to a URL.
+   * 
+   * @param u The URL.
+   * @param acceptEncoding The value for the Accept-Encoding header.
+   * @return The connection, connected.
+   * @throws IOException If the connection cannot be made.
+   */
+  private URLConnection openConnection(URL u, String acceptEncoding) throws IOException {
+    if (abortCause != null) {
+      throw new InterruptedIOException("Download of " + url + " was aborted");
+    }
+    URLConnection uc = u.openConnection();
+    uc.setConnectTimeout(60000);
+    uc.setReadTimeout(60000);
+    uc.setRequestProperty("Accept-Encoding", acceptEncoding);
+    connection = uc;
+    return uc;
+  }
   
   /**
-   * Reads data from a stream and writes them to a file.
+   * Connects and checks the HTTP status of the response, if the URL is
+   * an HTTP URL.
    * 
-   * @param in The data to be read.
-   * @param f The file to receive the data.
-   * @return The number of bytes read.
-   * @throws FileNotFoundException If the given file does not exist.
-   * @throws IOException If the stream cannot be read.
-   * @throws IOException If the the file cannot be written.
-   * @throws DownloadException if the stream gave no bytes.
-   */
-  private void readFromStream(InputStream i, File f) 
-      throws FileNotFoundException, IOException, DownloadException {
-    BufferedInputStream in = new BufferedInputStream(i);
-    BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(f));
-    LOG.info("Caching to " + f);
+   * @param uc The connection.
+   * @param expected The status expected.
+   * @return The status; zero if the URL is not an HTTP URL.
+   * @throws IOException If the status is a server error, which may be retried.
+   * @throws DownloadException If the status is a client error or otherwise unexpected.
+   */
+  private int checkStatus(URLConnection uc, int... expected) throws IOException, DownloadException {
+    uc.connect();
+    if (!(uc instanceof HttpURLConnection)) {
+      return 0;
+    }
+    HttpURLConnection h = (HttpURLConnection) uc;
+    int status = h.getResponseCode();
+    for (int e : expected) {
+      if (status == e) {
+        return status;
+      }
+    }
+    h.disconnect();
+    String message = "HTTP status " + status + " from " + uc.getURL();
+    if (status >= 500) {
+      throw new IOException(message);
+    }
+    throw new DownloadException(message);
+  }
+  
+  /**
+   * Pauses before a retry. The pause doubles with each retry made.
+   * 
+   * @param e The failure that prompted the retry.
+   * @throws IOException The given failure, if it may not be retried or 
+   *         the retries are used up.
+   * @throws InterruptedIOException If the download is cancelled during the pause.
+   */
+  private void backOff(IOException e) throws IOException {
+    if (retries >= maxRetries || isCancellation(e)) {
+      throw e;
+    }
+    long pause = retryBackoffMillis << Math.min(retries, 16);
+    retries++;
+    LOG.warn("Download of " + url + " failed (" + e + "); retry " + retries + 
+             " of " + maxRetries + " in " + pause + " ms");
     try {
+      Thread.sleep(pause);
+    }
+    catch (InterruptedException x) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Download of " + url + " was cancelled");
+    }
+  }
+  
+  private boolean isCancellation(IOException e) {
+    return Thread.currentThread().isInterrupted() || 
+           (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException));
+  }
+  
+  
+  /**
+   * The body of an uncompressed response, resumed with a range request 
+   * when the connection breaks. If the server will not resume, the stream
+   * fails and the whole download is restarted.
+   */
+  private class ResumingInputStream extends InputStream {
+    
+    private final URL url;
+    
+    /**
+     * The value for If-Range; null if the transfer cannot be resumed.
+     */
+    private final String validator;
+    
+    /**
+     * The length of the whole document; -1 if not known.
+     */
+    private final long length;
+    
+    private InputStream in;
+    
+    private long position;
+    
+    ResumingInputStream(URL u, URLConnection uc) throws IOException {
+      url = u;
+      in = uc.getInputStream();
+      length = uc.getContentLengthLong();
+      validator = getValidator(uc);
+      position = 0L;
+    }
+    
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      int n = read(b, 0, 1);
+      return (n == -1)? -1 : (b[0] & 0xff);
+    }
+    
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
       while (true) {
-        int c = in.read();
-        if (c == -1) {
-          break;
+        try {
+          int n = in.read(b, off, len);
+          if (n == -1 && length >= 0L && position < length) {
+            throw new IOException("Connection closed after " + position + " of " + length + " bytes");
+          }
+          if (n > 0) {
+            position += n;
+          }
+          return n;
         }
-        else {
-          out.write(c);
+        catch (IOException e) {
+          if (validator == null || position == 0L) {
+            throw e;
+          }
+          backOff(e);
+          resume();
         }
-        bytesDownloaded.incrementAndGet();
       }
-      if (bytesDownloaded.get() == 0L) {
-        throw new DownloadException("No data were read");
+    }
+    
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+    
+    /**
+     * Reconnects, asking for the rest of the document. The resumed body
+     * replaces the broken one.
+     * 
+     * @throws IOException If the server will not resume the transfer.
+     */
+    private void resume() throws IOException {
+      try {
+        in.close();
+      }
+      catch (IOException e) {
+        // The connection is already broken.
+      }
+      LOG.info("Resuming the download of " + url + " from byte " + position);
+      URLConnection uc = openConnection(url, "identity");
+      uc.setRequestProperty("Range", "bytes=" + position + "-");
+      uc.setRequestProperty("If-Range", validator);
+      int status;
+      try {
+        status = checkStatus(uc, HttpURLConnection.HTTP_OK, HttpURLConnection.HTTP_PARTIAL);
+      }
+      catch (DownloadException e) {
+        throw new IOException("Cannot resume: " + e.getMessage(), e);
+      }
+      if (status != HttpURLConnection.HTTP_PARTIAL || 
+          !String.valueOf(position).equals(getRangeStart(uc))) {
+        ((HttpURLConnection) uc).disconnect();
+        throw new IOException("The server did not resume the transfer at byte " + position);
       }
+      in = uc.getInputStream();
     }
-    finally {
-      out.close();
+    
+    private String getValidator(URLConnection uc) {
+      String encoding = uc.getContentEncoding();
+      if (!(uc instanceof HttpURLConnection) || 
+          (encoding != null && !encoding.equalsIgnoreCase("identity")) ||
+          !"bytes".equalsIgnoreCase(uc.getHeaderField("Accept-Ranges"))) {
+        return null;
+      }
+      String etag = uc.getHeaderField("ETag");
+      if (etag != null && !etag.startsWith("W/")) {
+        return etag;
+      }
+      return uc.getHeaderField("Last-Modified");
+    }
+    
+    /**
+     * Reads the first byte position from the Content-Range of a response,
+     * e.g. "1000" from "bytes 1000-1999/2000".
+     */
+    private String getRangeStart(URLConnection uc) {
+      String range = uc.getHeaderField("Content-Range");
+      if (range == null || !range.startsWith("bytes ")) {
+        return null;
+      }
+      int dash = range.indexOf('-');
+      return (dash == -1)? null : range.substring(6, dash).trim();
     }
   }
   
-  
 }
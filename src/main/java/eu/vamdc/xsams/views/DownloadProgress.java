@@ -0,0 +1,82 @@
+package eu.vamdc.xsams.views;
+
+/**
+ * Signals the progress of a transfer into a cache file to the readers that
+ * follow the file as it grows (see {@link GrowingFileInputStream}). The
+ * writer gives a signal for each chunk it writes, so that a reader that has
+ * caught up can wait for the next chunk instead of polling the file.
+ * <p>
+ * The writer also counts the restarts of the transfer. A restart rewrites
+ * the file from its beginning, so a reader part-way through the file would
+ * read a mixture of two transfers; readers check the count and fail instead.
+ *
+ * @author Guy Rixon
+ */
+public class DownloadProgress {
+
+  /**
+   * The number of signals given so far.
+   */
+  private long signals;
+
+  /**
+   * The number of times the transfer has started again from the beginning.
+   */
+  private int restarts;
+
+  /**
+   * Signals that the transfer has advanced, waking any waiting readers.
+   */
+  public synchronized void signal() {
+    signals++;
+    notifyAll();
+  }
+
+  /**
+   * Signals that the transfer is about to rewrite the file from the
+   * beginning. This must be called before the file is truncated.
+   */
+  public synchronized void restart() {
+    restarts++;
+    signal();
+  }
+
+  /**
+   * Supplies the number of restarts so far.
+   *
+   * @return The count.
+   */
+  public synchronized int getRestartCount() {
+    return restarts;
+  }
+
+  /**
+   * Supplies the number of signals given so far. A reader takes the count
+   * before it reads, then waits for the count to change.
+   *
+   * @return The count.
+   */
+  public synchronized long getSignalCount() {
+    return signals;
+  }
+
+  /**
+   * Waits until a signal is given after the given count, or until the given
+   * time has passed.
+   *
+   * @param seen The count of signals already seen.
+   * @param millis The greatest time to wait, in milliseconds.
+   * @return The count of signals now.
+   * @throws InterruptedException If the thread is interrupted while waiting.
+   */
+  public synchronized long await(long seen, long millis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + millis;
+    long remaining = millis;
+    while (signals == seen && remaining > 0L) {
+      wait(remaining);
+      remaining = deadline - System.currentTimeMillis();
+    }
+    return signals;
+  }
+
+}
@@ -0,0 +1,156 @@
+package eu.vamdc.xsams.views;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs downloads into the cache on a fixed number of threads, with a
+ * bounded queue of waiting downloads. When the queue is full, further
+ * downloads are rejected (by a RejectedExecutionException from
+ * {@link #execute}) so that the caller can tell the client to come back
+ * later.
+ * <p>
+ * The scheduler times each download and keeps a moving average of the
+ * times. From this it estimates the rate at which the queue drains and
+ * hence how long a new request would wait.
+ *
+ * @author Guy Rixon
+ */
+public class DownloadScheduler extends ThreadPoolExecutor {
+
+  /**
+   * The assumed duration of a download before any has been timed.
+   */
+  public static final long DEFAULT_DOWNLOAD_NANOSECONDS = 60L * 1000000000L;
+
+  /**
+   * The longest wait that is ever suggested to a client.
+   */
+  public static final long MAXIMUM_RETRY_AFTER_SECONDS = 60L * 60L;
+
+  /**
+   * The weight of the latest download in the moving average.
+   */
+  private static final double SMOOTHING = 0.2;
+
+  private final ThreadLocal<Long> startTime = new ThreadLocal<Long>();
+
+  private double meanNanoseconds;
+
+  /**
+   * Constructs a scheduler.
+   *
+   * @param threads The number of downloads run at once.
+   * @param capacity The number of downloads that may wait.
+   */
+  public DownloadScheduler(int threads, int capacity) {
+    this(threads, capacity, "data-cache-download-");
+  }
+
+  /**
+   * Constructs a scheduler whose threads are named with a given prefix,
+   * e.g. a scheduler for uploads.
+   *
+   * @param threads The number of downloads run at once.
+   * @param capacity The number of downloads that may wait.
+   * @param prefix The prefix of the names of the threads.
+   */
+  public DownloadScheduler(int threads, int capacity, String prefix) {
+    super(threads, threads, 0L, TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<Runnable>(capacity), new DownloadThreadFactory(prefix));
+    meanNanoseconds = DEFAULT_DOWNLOAD_NANOSECONDS;
+  }
+
+  @Override
+  protected void beforeExecute(Thread t, Runnable r) {
+    super.beforeExecute(t, r);
+    startTime.set(System.nanoTime());
+  }
+
+  @Override
+  protected void afterExecute(Runnable r, Throwable t) {
+    super.afterExecute(r, t);
+    Long start = startTime.get();
+    if (start != null) {
+      record(System.nanoTime() - start);
+      startTime.remove();
+    }
+  }
+
+  private synchronized void record(long nanoseconds) {
+    meanNanoseconds = SMOOTHING * nanoseconds + (1.0 - SMOOTHING) * meanNanoseconds;
+  }
+
+  /**
+   * Supplies the moving average of the time taken by a download.
+   *
+   * @return The time in nanoseconds.
+   */
+  public synchronized long getMeanDownloadNanoseconds() {
+    return (long) meanNanoseconds;
+  }
+
+  /**
+   * Supplies the rate at which waiting downloads are started, on the
+   * assumption that all threads are busy.
+   *
+   * @return The rate in downloads per second.
+   */
+  public double getDrainRate() {
+    return getMaximumPoolSize() * 1.0e9 / Math.max(1L, getMeanDownloadNanoseconds());
+  }
+
+  /**
+   * Estimates how long a new request must wait before its download could
+   * be queued, i.e. how long until the head of the queue has drained.
+   *
+   * @return The time in seconds, at least one.
+   */
+  public long getRetryAfterSeconds() {
+    double seconds = Math.ceil(1.0 / getDrainRate());
+    return Math.max(1L, Math.min(MAXIMUM_RETRY_AFTER_SECONDS, (long) seconds));
+  }
+
+  /**
+   * Finds the position of a download in the queue.
+   *
+   * @param r The download, as passed to {@link #execute}.
+   * @return The position, counting from one; zero if the download is not waiting.
+   */
+  public int getQueuePosition(Object r) {
+    if (r == null) {
+      return 0;
+    }
+    Object[] waiting = getQueue().toArray();
+    for (int i = 0; i < waiting.length; i++) {
+      if (waiting[i] == r) {
+        return i + 1;
+      }
+    }
+    return 0;
+  }
+
+
+  /**
+   * Names the download threads so that they can be identified in dumps.
+   */
+  private static class DownloadThreadFactory implements ThreadFactory {
+
+    private final AtomicInteger count = new AtomicInteger();
+
+    private final String prefix;
+
+    DownloadThreadFactory(String p) {
+      prefix = p;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+      return new Thread(r, prefix + count.incrementAndGet());
+    }
+  }
+
+}
@@ -0,0 +1,104 @@
+package eu.vamdc.xsams.views;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A download, or an upload, as scheduled for execution. Unlike a plain
+ * FutureTask, the task can be failed from outside, e.g. when it cannot be
+ * scheduled, so that every request sharing the download sees the reason.
+ * Listeners may also be registered to run when the task completes, so
+ * that requests waiting for the data need not poll.
+ *
+ * @author Guy Rixon
+ */
+public class DownloadTask extends FutureTask<Object> {
+
+  private static final Log LOG = LogFactory.getLog(DownloadTask.class);
+
+  /**
+   * The listeners waiting for completion; null once the task has completed
+   * and the listeners have been run.
+   */
+  private List<Runnable> listeners;
+
+  public DownloadTask(Callable<Object> d) {
+    super(d);
+    listeners = new ArrayList<Runnable>();
+  }
+
+  /**
+   * Completes the task with an exception, unless it has already completed.
+   *
+   * @param t The cause of the failure.
+   */
+  public void fail(Throwable t) {
+    setException(t);
+  }
+
+  /**
+   * Registers a listener to be run when the task completes, whether it
+   * succeeds, fails or is cancelled. If the task has already completed, the
+   * listener is run at once in the calling thread; otherwise it is run in
+   * the thread that completes the task. Listeners should be quick.
+   *
+   * @param r The listener.
+   */
+  public void addCompletionListener(Runnable r) {
+    synchronized (this) {
+      if (listeners != null) {
+        listeners.add(r);
+        return;
+      }
+    }
+    runListener(r);
+  }
+
+  /**
+   * Withdraws a listener, e.g. when the request that was waiting for the
+   * task has timed out. Does nothing if the listener is not registered or
+   * the task has completed.
+   *
+   * @param r The listener.
+   */
+  public synchronized void removeCompletionListener(Runnable r) {
+    if (listeners != null) {
+      listeners.remove(r);
+    }
+  }
+
+  /**
+   * Supplies the number of listeners waiting for completion.
+   *
+   * @return The number of listeners; zero once the task has completed.
+   */
+  public synchronized int getListenerCount() {
+    return (listeners == null)? 0 : listeners.size();
+  }
+
+  @Override
+  protected void done() {
+    List<Runnable> l;
+    synchronized (this) {
+      l = listeners;
+      listeners = null;
+    }
+    for (Runnable r : l) {
+      runListener(r);
+    }
+  }
+
+  private void runListener(Runnable r) {
+    try {
+      r.run();
+    }
+    catch (RuntimeException e) {
+      LOG.error("Completion listener failed", e);
+    }
+  }
+
+}
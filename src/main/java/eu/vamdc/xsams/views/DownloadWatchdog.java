@@ -0,0 +1,222 @@
+package eu.vamdc.xsams.views;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Enforces the time limits of downloads. A download in progress is checked
+ * at intervals against its deadline, counted from the start of the
+ * download, and against its minimum rate, averaged over a sliding window.
+ * A download that breaches either limit is aborted with a
+ * {@link DownloadTimeoutException} (see {@link Download#abort}).
+ * <p>
+ * The read timeout of a connection does not catch a server that sends a
+ * byte now and then, which can otherwise hold a download thread for ever.
+ * <p>
+ * The rate is only judged once the download has run for a whole window.
+ * If the download is restarted, so that its byte counter goes back, the
+ * window starts again.
+ *
+ * @author Guy Rixon
+ */
+public class DownloadWatchdog {
+
+  private static final Log LOG = LogFactory.getLog(DownloadWatchdog.class);
+
+  /**
+   * The interval between checks, unless otherwise given.
+   */
+  public static final long DEFAULT_CHECK_INTERVAL_IN_MILLISECONDS = 1000L;
+
+  private final long checkIntervalMillis;
+
+  private final Map<Download, Watch> watches;
+
+  private ScheduledExecutorService scheduler;
+
+  public DownloadWatchdog() {
+    this(DEFAULT_CHECK_INTERVAL_IN_MILLISECONDS);
+  }
+
+  /**
+   * Constructs a watchdog.
+   *
+   * @param interval The time between checks, in milliseconds.
+   */
+  public DownloadWatchdog(long interval) {
+    checkIntervalMillis = interval;
+    watches = new ConcurrentHashMap<Download, Watch>();
+  }
+
+  /**
+   * Starts checking the downloads watched, in a thread of the watchdog.
+   */
+  public synchronized void start() {
+    if (scheduler != null) {
+      return;
+    }
+    scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "data-cache-watchdog");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          check(now());
+        }
+        catch (Exception e) {
+          LOG.error("Check of the downloads failed", e);
+        }
+      }
+    }, checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops checking. Downloads still watched are left to run.
+   */
+  public synchronized void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+  }
+
+  /**
+   * Starts watching a download. The download should call this when it
+   * starts, from its own thread.
+   *
+   * @param d The download.
+   */
+  public void watch(Download d) {
+    watches.put(d, new Watch(d, now()));
+  }
+
+  /**
+   * Stops watching a download, e.g. when it has finished.
+   *
+   * @param d The download.
+   */
+  public void unwatch(Download d) {
+    watches.remove(d);
+  }
+
+  /**
+   * Supplies the number of downloads being watched.
+   *
+   * @return The count.
+   */
+  public int getWatchCount() {
+    return watches.size();
+  }
+
+  /**
+   * Checks every download watched and aborts those that have breached
+   * their limits.
+   *
+   * @param now The time of the check, in milliseconds from an arbitrary origin.
+   */
+  void check(long now) {
+    for (Watch w : watches.values()) {
+      DownloadTimeoutException breach = w.check(now);
+      if (breach != null) {
+        LOG.warn(breach.getMessage());
+        watches.remove(w.download);
+        w.download.abort(breach);
+      }
+    }
+  }
+
+  private static long now() {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+  }
+
+
+  /**
+   * The state of one download as seen by the watchdog. A watch is only
+   * checked in the thread of the watchdog.
+   */
+  private static class Watch {
+
+    final Download download;
+
+    final long start;
+
+    /**
+     * The times of the checks within the current window, with the byte
+     * count at each: {time, bytes}.
+     */
+    final ArrayDeque<long[]> samples;
+
+    Watch(Download d, long t) {
+      download = d;
+      start = t;
+      samples = new ArrayDeque<long[]>();
+      samples.add(new long[] {t, d.getByteCounter().get()});
+    }
+
+    /**
+     * Checks the download against its limits.
+     *
+     * @param now The time of the check.
+     * @return The breach; null if the download is within its limits.
+     */
+    DownloadTimeoutException check(long now) {
+      long deadline = download.getDeadlineMillis();
+      if (deadline > 0L && now - start > deadline) {
+        return new DownloadTimeoutException("The download of " + download.getUrl() + 
+                                            " did not finish within " + deadline / 1000L + " s");
+      }
+
+      long minimum = download.getMinimumRate();
+      long window = download.getRateWindowMillis();
+      if (minimum <= 0L || window <= 0L) {
+        return null;
+      }
+      long bytes = download.getByteCounter().get();
+      if (bytes < samples.getLast()[1]) {
+        samples.clear();
+      }
+      samples.addLast(new long[] {now, bytes});
+
+      // Keep the latest sample from before the window, as its start.
+      while (samples.size() > 1) {
+        Iterator<long[]> i = samples.iterator();
+        i.next();
+        if (i.next()[0] <= now - window) {
+          samples.removeFirst();
+        }
+        else {
+          break;
+        }
+      }
+      long[] first = samples.getFirst();
+      long elapsed = now - first[0];
+      if (elapsed < window) {
+        return null;
+      }
+      long rate = (bytes - first[1]) * 1000L / elapsed;
+      if (rate < minimum) {
+        return new DownloadTimeoutException("The download of " + download.getUrl() + 
+                                            " slowed to " + rate + " bytes/s over " + 
+                                            elapsed / 1000L + " s; at least " + minimum + 
+                                            " bytes/s are required");
+      }
+      return null;
+    }
+
+  }
+
+}
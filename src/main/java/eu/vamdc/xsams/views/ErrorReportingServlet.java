@@ -16,27 +16,19 @@ public abstract class ErrorReportingServlet extends HttpServlet {
   
   protected static final Log LOG = LogFactory.getLog(ErrorReportingServlet.class);
   
+  /**
+   * HTTP status 507 (WebDAV), not defined by HttpServletResponse.
+   */
+  public static final int SC_INSUFFICIENT_STORAGE = 507;
+  
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) 
     throws IOException {
     try {
       get(request, response);
     }
-    catch (RequestException e) {
-      LOG.error("Request rejected", e);
-      response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.toString());
-    }
-    catch (DownloadTimeoutException e) {
-      LOG.error("Request failed", e);
-      response.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT, e.toString());
-    }
-    catch (DownloadException e) {
-      LOG.error("Request failed", e);
-      response.sendError(HttpServletResponse.SC_BAD_GATEWAY, e.toString());
-    }
     catch (Exception e) {
-      LOG.error("Request failed", e);
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Failed to cache the XSAMS document: " + e.toString());
+      reportError(e, response);
     }
   }
   
@@ -46,19 +38,58 @@ public abstract class ErrorReportingServlet extends HttpServlet {
     try {
       post(request, response);
     }
-    catch (RequestException e) {
+    catch (Exception e) {
+      reportError(e, response);
+    }
+  }
+  
+  @Override
+  public void doPut(HttpServletRequest request, HttpServletResponse response) 
+      throws ServletException, IOException {
+    try {
+      put(request, response);
+    }
+    catch (Exception e) {
+      reportError(e, response);
+    }
+  }
+  
+  /**
+   * Logs an exception and reports it to the client as an HTTP error. The
+   * status depends on the type of the exception. Subclasses call this for
+   * failures found after the request has gone asynchronous.
+   * 
+   * @param e The exception.
+   * @param response The HTTP response, which must not have been committed.
+   * @throws IOException If the error cannot be sent.
+   */
+  protected void reportError(Exception e, HttpServletResponse response) throws IOException {
+    if (e instanceof RequestException) {
       LOG.error("Request rejected", e);
       response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.toString());
     }
-    catch (DownloadTimeoutException e) {
+    else if (e instanceof DownloadTimeoutException) {
       LOG.error("Request failed", e);
       response.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT, e.toString());
     }
-    catch (DownloadException e) {
+    else if (e instanceof UploadTooLargeException) {
+      LOG.error("Request rejected", e);
+      response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, e.toString());
+    }
+    else if (e instanceof QuotaExceededException) {
+      LOG.error("Request failed", e);
+      response.sendError(SC_INSUFFICIENT_STORAGE, e.toString());
+    }
+    else if (e instanceof ServiceBusyException) {
+      LOG.warn("Request deferred", e);
+      response.setHeader("Retry-After", Long.toString(((ServiceBusyException) e).getRetryAfterSeconds()));
+      response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.toString());
+    }
+    else if (e instanceof DownloadException) {
       LOG.error("Request failed", e);
       response.sendError(HttpServletResponse.SC_BAD_GATEWAY, e.toString());
     }
-    catch (Exception e) {
+    else {
       LOG.error("Request failed", e);
       response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Failed to cache the XSAMS document: " + e.toString());
     }
@@ -68,4 +99,15 @@ public abstract class ErrorReportingServlet extends HttpServlet {
   
   public abstract void post(HttpServletRequest request, HttpServletResponse response) throws Exception;
   
+  /**
+   * Handles a PUT request. By default, PUT is not allowed.
+   * 
+   * @param request The HTTP request.
+   * @param response The HTTP response.
+   * @throws Exception If the request fails.
+   */
+  public void put(HttpServletRequest request, HttpServletResponse response) throws Exception {
+    response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+  }
+  
 }
@@ -0,0 +1,191 @@
+package eu.vamdc.xsams.views;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * A stream that reads the cache file of a data set while the data are still
+ * being downloaded into it. When the reader catches up with the download,
+ * reads block until more data arrive. The end of the stream is reached only
+ * when the download has finished and all its data have been read. If the
+ * download fails, the reader gets an IOException. So does a reader of a
+ * download that restarts from the beginning, since the file is rewritten
+ * under it.
+ * <p>
+ * The reader waits for the signals of the data set's {@link DownloadProgress},
+ * given as each chunk is written and when the download completes, so it
+ * wakes as soon as there is something to read. Data downloaded by another
+ * instance of the web application give no signals; for these the file is
+ * checked every {@link #CHECK_INTERVAL_IN_MILLISECONDS}.
+ * <p>
+ * The time that the reader may spend waiting can be limited, so that a
+ * stalled download does not hold the reading thread indefinitely. A reader
+ * that waits longer in total gets an IOException.
+ *
+ * @author Guy Rixon
+ */
+public class GrowingFileInputStream extends InputStream {
+
+  /**
+   * The greatest time between checks for more data when no signal is given.
+   */
+  public static final long CHECK_INTERVAL_IN_MILLISECONDS = 1000L;
+
+  private final CachedDataSet dataSet;
+
+  private final FileInputStream in;
+
+  private final DownloadProgress progress;
+
+  /**
+   * The count of restarts of the download when the file was opened.
+   */
+  private final int restarts;
+
+  /**
+   * Wakes the reader when the download completes.
+   */
+  private final Runnable completion;
+
+  /**
+   * The greatest total time spent waiting for data; zero for no limit.
+   */
+  private final long maximumWaitMillis;
+
+  /**
+   * The total time spent waiting for data so far.
+   */
+  private long waitedMillis;
+
+  /**
+   * Opens a stream on the cache file of a data set, with no limit on the
+   * time spent waiting for data.
+   *
+   * @param x The data set.
+   * @throws IOException If the cache file cannot be opened.
+   */
+  public GrowingFileInputStream(CachedDataSet x) throws IOException {
+    this(x, 0L);
+  }
+
+  /**
+   * Opens a stream on the cache file of a data set.
+   *
+   * @param x The data set.
+   * @param maxWait The greatest total time, in milliseconds, for which reads
+   *        may wait for data; zero for no limit.
+   * @throws IOException If the cache file cannot be opened.
+   */
+  public GrowingFileInputStream(CachedDataSet x, long maxWait) throws IOException {
+    dataSet = x;
+    progress = x.getDownloadProgress();
+    restarts = progress.getRestartCount();
+    in = new FileInputStream(x.getCacheFile());
+    maximumWaitMillis = maxWait;
+    completion = new Runnable() {
+      @Override
+      public void run() {
+        progress.signal();
+      }
+    };
+    x.addCompletionListener(completion);
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] b = new byte[1];
+    int n = read(b, 0, 1);
+    return (n == -1)? -1 : (b[0] & 0xff);
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    while (true) {
+      // The signals and the state of the download are checked before the 
+      // read, so that data written just before a signal or before 
+      // completion are not missed.
+      long seen = progress.getSignalCount();
+      boolean finished = !dataSet.isInProgress();
+      int n = in.read(b, off, len);
+      checkRestarts();
+      if (n > 0) {
+        return n;
+      }
+      if (finished) {
+        checkDownload();
+        return -1;
+      }
+      awaitData(seen);
+    }
+  }
+
+  @Override
+  public int available() throws IOException {
+    return in.available();
+  }
+
+  @Override
+  public void close() throws IOException {
+    dataSet.removeCompletionListener(completion);
+    in.close();
+  }
+
+  /**
+   * Waits for a signal from the download, or for the check interval.
+   *
+   * @param seen The count of signals seen before the last read.
+   * @throws IOException If the limit on waiting has been reached.
+   * @throws InterruptedIOException If the thread is interrupted.
+   */
+  private void awaitData(long seen) throws IOException {
+    long wait = CHECK_INTERVAL_IN_MILLISECONDS;
+    if (maximumWaitMillis > 0L) {
+      if (waitedMillis >= maximumWaitMillis) {
+        throw new IOException("No data arrived from the download of " + 
+                              dataSet.getOriginalUrl() + " within " + 
+                              (maximumWaitMillis / 1000L) + " seconds");
+      }
+      wait = Math.min(wait, maximumWaitMillis - waitedMillis);
+    }
+    long start = System.currentTimeMillis();
+    try {
+      progress.await(seen, wait);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for data");
+    }
+    finally {
+      waitedMillis += System.currentTimeMillis() - start;
+    }
+  }
+
+  /**
+   * Checks that the download has not restarted since the file was opened.
+   * The check follows each read: the count is raised before the file is
+   * rewritten, so data read from the rewritten file are never passed on.
+   *
+   * @throws IOException If the download has restarted.
+   */
+  private void checkRestarts() throws IOException {
+    if (progress.getRestartCount() != restarts) {
+      throw new IOException("The download of " + dataSet.getOriginalUrl() + 
+                            " restarted from the beginning");
+    }
+  }
+
+  private void checkDownload() throws IOException {
+    try {
+      dataSet.isReady();
+    }
+    catch (DownloadException e) {
+      throw new IOException("The download failed", e);
+    }
+  }
+
+}
@@ -0,0 +1,356 @@
+package eu.vamdc.xsams.views;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Operational metrics for the data cache and the servlets that use it:
+ * counts of downloads by outcome, transfer rates per upstream host, cache
+ * hits and misses, and histograms of the time spent sniffing the XSAMS
+ * version and transforming data. The metrics, together with gauges read
+ * from the cache, are written in the Prometheus text format by
+ * {@link #write}.
+ * <p>
+ * Recording is cheap enough for the hot path. Counters touched on every
+ * lookup are striped over several cells, chosen by thread, so that
+ * concurrent readers do not contend for one cache line; the cells are
+ * summed only when the metrics are written. Histograms have fixed buckets
+ * whose bounds are powers of two microseconds, so a recording costs one
+ * shift and two atomic additions. No locks are taken.
+ *
+ * @author Guy Rixon
+ */
+public class Metrics {
+
+  /**
+   * The greatest number of upstream hosts reported individually. Transfers
+   * from further hosts are reported under {@link #OTHER_HOSTS}.
+   */
+  public static final int MAXIMUM_HOSTS = 1000;
+
+  public static final String OTHER_HOSTS = "other";
+
+  private final Counter downloadsStarted = new Counter();
+
+  private final Counter downloadsCompleted = new Counter();
+
+  private final Counter downloadsFailed = new Counter();
+
+  private final Counter downloadsTimedOut = new Counter();
+
+  private final Counter hits = new Counter();
+
+  private final Counter misses = new Counter();
+
+  private final ConcurrentHashMap<String, Transfers> hosts =
+      new ConcurrentHashMap<String, Transfers>();
+
+  private final Histogram sniffTime = new Histogram();
+
+  private final Histogram transformTime = new Histogram();
+
+  /**
+   * Records that a download has started to run.
+   */
+  public void downloadStarted() {
+    downloadsStarted.increment();
+  }
+
+  /**
+   * Records that a download has finished with all its data.
+   *
+   * @param host The upstream host.
+   * @param bytes The number of bytes written to the cache.
+   * @param nanoseconds The duration of the download.
+   */
+  public void downloadCompleted(String host, long bytes, long nanoseconds) {
+    downloadsCompleted.increment();
+    recordTransfer(host, bytes, nanoseconds);
+  }
+
+  /**
+   * Records that a download has failed, after any retries. Failures caused
+   * by timeouts are counted separately as well.
+   *
+   * @param host The upstream host.
+   * @param bytes The number of bytes written to the cache before the failure.
+   * @param nanoseconds The duration of the download.
+   * @param cause The failure.
+   */
+  public void downloadFailed(String host, long bytes, long nanoseconds, Throwable cause) {
+    downloadsFailed.increment();
+    if (cause instanceof SocketTimeoutException || cause instanceof DownloadTimeoutException) {
+      downloadsTimedOut.increment();
+    }
+    recordTransfer(host, bytes, nanoseconds);
+  }
+
+  private void recordTransfer(String host, long bytes, long nanoseconds) {
+    String h = (host == null || host.length() == 0)? OTHER_HOSTS : host;
+    Transfers t = hosts.get(h);
+    if (t == null) {
+      if (hosts.size() >= MAXIMUM_HOSTS) {
+        h = OTHER_HOSTS;
+      }
+      Transfers fresh = new Transfers();
+      t = hosts.putIfAbsent(h, fresh);
+      if (t == null) {
+        t = fresh;
+      }
+    }
+    t.bytes.addAndGet(bytes);
+    t.nanoseconds.addAndGet(nanoseconds);
+  }
+
+  /**
+   * Records a lookup of a key that found data.
+   */
+  public void hit() {
+    hits.increment();
+  }
+
+  /**
+   * Records a lookup of a key that found nothing.
+   */
+  public void miss() {
+    misses.increment();
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * Supplies the fraction of lookups that found data.
+   *
+   * @return The ratio; zero if there have been no lookups.
+   */
+  public double getHitRatio() {
+    long h = hits.get();
+    long n = h + misses.get();
+    return (n == 0L)? 0.0 : (double) h / n;
+  }
+
+  /**
+   * Supplies the histogram of time spent detecting the XSAMS version of
+   * data being read.
+   *
+   * @return The histogram.
+   */
+  public Histogram getSniffTime() {
+    return sniffTime;
+  }
+
+  /**
+   * Supplies the histogram of time spent transforming data, e.g. by XSLT,
+   * per request that rendered them.
+   *
+   * @return The histogram.
+   */
+  public Histogram getTransformTime() {
+    return transformTime;
+  }
+
+  /**
+   * Writes the metrics in the Prometheus text format, version 0.0.4.
+   *
+   * @param w The destination.
+   * @param cache The cache whose current state is reported; null to
+   *        report only the recorded metrics.
+   * @throws IOException If the metrics cannot be written.
+   */
+  public void write(Writer w, DataCache cache) throws IOException {
+    PrintWriter out = new PrintWriter(w);
+    counter(out, "xsams_downloads_started_total", "Downloads started.", downloadsStarted.get());
+    counter(out, "xsams_downloads_completed_total", "Downloads completed.", downloadsCompleted.get());
+    counter(out, "xsams_downloads_failed_total", "Downloads failed after all retries.", downloadsFailed.get());
+    counter(out, "xsams_downloads_timed_out_total", "Downloads failed by a timeout.", downloadsTimedOut.get());
+
+    Map<String, Transfers> byHost = new TreeMap<String, Transfers>(hosts);
+    header(out, "xsams_download_bytes_total", "counter", "Bytes downloaded, by upstream host.");
+    for (Map.Entry<String, Transfers> e : byHost.entrySet()) {
+      line(out, "xsams_download_bytes_total{host=\"" + escape(e.getKey()) + "\"} " + e.getValue().bytes.get());
+    }
+    header(out, "xsams_download_seconds_total", "counter", "Time spent downloading, by upstream host.");
+    for (Map.Entry<String, Transfers> e : byHost.entrySet()) {
+      line(out, "xsams_download_seconds_total{host=\"" + escape(e.getKey()) + "\"} " +
+                  seconds(e.getValue().nanoseconds.get()));
+    }
+    header(out, "xsams_download_bytes_per_second", "gauge", "Mean transfer rate, by upstream host.");
+    for (Map.Entry<String, Transfers> e : byHost.entrySet()) {
+      line(out, "xsams_download_bytes_per_second{host=\"" + escape(e.getKey()) + "\"} " +
+                  e.getValue().getRate());
+    }
+
+    if (cache != null) {
+      gauge(out, "xsams_download_queue_depth", "Downloads waiting to start.", cache.getQueueLength());
+      gauge(out, "xsams_download_active_threads", "Downloads running.", cache.getActiveDownloadCount());
+      gauge(out, "xsams_cache_entries", "Keys in the cache.", cache.getEntryCount());
+      gauge(out, "xsams_cache_bytes", "Disk space reserved by cached data.", cache.getBytesInCache());
+    }
+    counter(out, "xsams_cache_hits_total", "Lookups of keys that found data.", hits.get());
+    counter(out, "xsams_cache_misses_total", "Lookups of keys that found nothing.", misses.get());
+    header(out, "xsams_cache_hit_ratio", "gauge", "Fraction of lookups that found data.");
+    line(out, "xsams_cache_hit_ratio " + getHitRatio());
+
+    sniffTime.write(out, "xsams_version_sniff_seconds", "Time spent detecting the XSAMS version, per request.");
+    transformTime.write(out, "xsams_transform_seconds", "Time spent transforming data, per request.");
+    out.flush();
+    if (out.checkError()) {
+      throw new IOException("Failed to write the metrics");
+    }
+  }
+
+  private static void counter(PrintWriter out, String name, String help, long value) {
+    header(out, name, "counter", help);
+    line(out, name + " " + value);
+  }
+
+  private static void gauge(PrintWriter out, String name, String help, long value) {
+    header(out, name, "gauge", help);
+    line(out, name + " " + value);
+  }
+
+  private static void header(PrintWriter out, String name, String type, String help) {
+    line(out, "# HELP " + name + " " + help);
+    line(out, "# TYPE " + name + " " + type);
+  }
+
+  /**
+   * Writes a line ending in a bare line-feed, as the format requires,
+   * whatever the platform's line separator.
+   */
+  private static void line(PrintWriter out, String s) {
+    out.print(s);
+    out.print('\n');
+  }
+
+  private static String escape(String label) {
+    return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+  private static double seconds(long nanoseconds) {
+    return nanoseconds / 1.0e9;
+  }
+
+
+  /**
+   * A count kept in several cells, so that threads incrementing it at
+   * the same time seldom touch the same cache line. The cells are spaced
+   * a cache line apart within one array.
+   */
+  public static class Counter {
+
+    private static final int STRIPES = 16;
+
+    private static final int SPACING = 8;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * SPACING);
+
+    public void increment() {
+      int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+      cells.incrementAndGet(stripe * SPACING);
+    }
+
+    public long get() {
+      long n = 0L;
+      for (int i = 0; i < STRIPES; i++) {
+        n += cells.get(i * SPACING);
+      }
+      return n;
+    }
+  }
+
+
+  /**
+   * A histogram of durations. Bucket i counts durations of at most
+   * 2<sup>i</sup> microseconds; the last bucket counts all longer ones.
+   */
+  public static class Histogram {
+
+    /**
+     * The number of bounded buckets; the greatest bound is about 67 seconds.
+     */
+    public static final int BUCKETS = 27;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS + 1);
+
+    private final AtomicLong sum = new AtomicLong();
+
+    /**
+     * Records a duration.
+     *
+     * @param nanoseconds The duration.
+     */
+    public void record(long nanoseconds) {
+      long micros = Math.max(0L, nanoseconds) / 1000L;
+      int i = (micros <= 1L)? 0 : 64 - Long.numberOfLeadingZeros(micros - 1L);
+      counts.incrementAndGet(Math.min(i, BUCKETS));
+      sum.addAndGet(nanoseconds);
+    }
+
+    /**
+     * Supplies the number of durations recorded.
+     *
+     * @return The count.
+     */
+    public long getCount() {
+      long n = 0L;
+      for (int i = 0; i <= BUCKETS; i++) {
+        n += counts.get(i);
+      }
+      return n;
+    }
+
+    /**
+     * Supplies the number of durations recorded in one bucket.
+     *
+     * @param i The bucket, from zero to {@link #BUCKETS}.
+     * @return The count.
+     */
+    public long getBucketCount(int i) {
+      return counts.get(i);
+    }
+
+    void write(PrintWriter out, String name, String help) {
+      header(out, name, "histogram", help);
+      long cumulative = 0L;
+      for (int i = 0; i < BUCKETS; i++) {
+        cumulative += counts.get(i);
+        line(out, name + "_bucket{le=\"" + ((1L << i) / 1.0e6) + "\"} " + cumulative);
+      }
+      cumulative += counts.get(BUCKETS);
+      line(out, name + "_bucket{le=\"+Inf\"} " + cumulative);
+      line(out, name + "_sum " + seconds(sum.get()));
+      line(out, name + "_count " + cumulative);
+    }
+  }
+
+
+  /**
+   * The transfers from one upstream host.
+   */
+  private static class Transfers {
+
+    final AtomicLong bytes = new AtomicLong();
+
+    final AtomicLong nanoseconds = new AtomicLong();
+
+    double getRate() {
+      long t = nanoseconds.get();
+      return (t == 0L)? 0.0 : bytes.get() * 1.0e9 / t;
+    }
+  }
+
+}
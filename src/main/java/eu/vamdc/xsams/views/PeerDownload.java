@@ -0,0 +1,238 @@
+package eu.vamdc.xsams.views;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The future result of a download made by another instance of the web
+ * application into a shared cache directory. The download is followed
+ * through the state recorded in the {@link CacheIndex}: it succeeds when
+ * its entry is marked complete, and fails if the entry disappears or the
+ * cache file stops growing for {@link CacheIndex#STALL_LIMIT_IN_MILLISECONDS}.
+ * The byte counter is advanced from the length of the cache file.
+ * <p>
+ * The state on disk is read at most once per {@link #POLL_INTERVAL_IN_MILLISECONDS},
+ * however often the future is asked. Nothing tells this instance when the
+ * peer finishes, so completion listeners are run by whichever thread first
+ * sees the outcome. The cache polls each download it follows from its
+ * reaper thread, so that listeners do not wait for a request to look.
+ * <p>
+ * The download belongs to the other instance, so it cannot be cancelled
+ * from here; cancelling merely stops following it.
+ *
+ * @author Guy Rixon
+ */
+public class PeerDownload implements Future<Object> {
+
+  private static final Log LOG = LogFactory.getLog(PeerDownload.class);
+
+  /**
+   * The minimum interval between readings of the state on disk.
+   */
+  public static final long POLL_INTERVAL_IN_MILLISECONDS = 200L;
+
+  private final CacheIndex index;
+
+  private final CacheIndex.Entry entry;
+
+  private final AtomicLong progress;
+
+  /**
+   * The result once known: the XSAMS version (or the empty string if not
+   * recognized) on success, or an ExecutionException on failure.
+   */
+  private volatile Object outcome;
+
+  private volatile boolean cancelled;
+
+  /**
+   * The time, from System.nanoTime(), before which the state on disk is
+   * not read again.
+   */
+  private volatile long nextPollNanos;
+
+  /**
+   * The listeners waiting for completion; null once the download has
+   * finished and the listeners have been run.
+   */
+  private List<Runnable> listeners;
+
+  /**
+   * Constructs a future for a download in progress.
+   *
+   * @param i The index of the shared cache directory.
+   * @param e The entry for the download, in the downloading state.
+   * @param p The counter to be advanced as the cache file grows.
+   */
+  public PeerDownload(CacheIndex i, CacheIndex.Entry e, AtomicLong p) {
+    index = i;
+    entry = e;
+    progress = p;
+    nextPollNanos = System.nanoTime();
+    listeners = new ArrayList<Runnable>();
+  }
+
+  /**
+   * Registers a listener to be run when the download finishes, whether it
+   * succeeds, fails or is cancelled. If it has already finished, the
+   * listener is run at once in the calling thread; otherwise it is run in
+   * the thread that sees the outcome. Listeners should be quick.
+   *
+   * @param r The listener.
+   */
+  public void addCompletionListener(Runnable r) {
+    synchronized (this) {
+      if (listeners != null) {
+        listeners.add(r);
+        return;
+      }
+    }
+    runListener(r);
+  }
+
+  /**
+   * Withdraws a listener. Does nothing if the listener is not registered
+   * or the download has finished.
+   *
+   * @param r The listener.
+   */
+  public synchronized void removeCompletionListener(Runnable r) {
+    if (listeners != null) {
+      listeners.remove(r);
+    }
+  }
+
+  /**
+   * Supplies the number of listeners waiting for completion.
+   *
+   * @return The number of listeners; zero once the download has finished.
+   */
+  public synchronized int getListenerCount() {
+    return (listeners == null)? 0 : listeners.size();
+  }
+
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    if (isDone()) {
+      return false;
+    }
+    cancelled = true;
+    done();
+    return true;
+  }
+
+  @Override
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  @Override
+  public boolean isDone() {
+    return cancelled || poll() != null;
+  }
+
+  @Override
+  public Object get() throws InterruptedException, ExecutionException {
+    while (true) {
+      try {
+        return get(POLL_INTERVAL_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+      }
+      catch (TimeoutException e) {
+        // Still in progress; look again.
+      }
+    }
+  }
+
+  @Override
+  public Object get(long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException {
+    long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+    while (true) {
+      if (cancelled) {
+        throw new CancellationException();
+      }
+      Object o = poll();
+      if (o instanceof ExecutionException) {
+        throw (ExecutionException) o;
+      }
+      if (o != null) {
+        return ((String) o).length() == 0? null : o;
+      }
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0L) {
+        throw new TimeoutException();
+      }
+      Thread.sleep(Math.min(remaining, POLL_INTERVAL_IN_MILLISECONDS));
+    }
+  }
+
+  /**
+   * Checks the state of the download on disk, unless it was checked less
+   * than {@link #POLL_INTERVAL_IN_MILLISECONDS} ago. The thread that first
+   * sees an outcome runs the completion listeners.
+   *
+   * @return The outcome; null if the download is still in progress.
+   */
+  Object poll() {
+    if (outcome != null) {
+      return outcome;
+    }
+    long now = System.nanoTime();
+    if (now - nextPollNanos < 0L) {
+      return null;
+    }
+    nextPollNanos = now + TimeUnit.MILLISECONDS.toNanos(POLL_INTERVAL_IN_MILLISECONDS);
+    progress.set(entry.getFile().length());
+    CacheIndex.Entry e = index.find(entry.getKey());
+    if (e == null || !e.getFile().equals(entry.getFile())) {
+      outcome = new ExecutionException(
+          new DownloadException("The download of " + entry.getUrl() + " was abandoned"));
+    }
+    else if (e.isComplete()) {
+      progress.set(e.getSize());
+      outcome = (e.getVersion() == null)? "" : e.getVersion();
+    }
+    else if (e.isAbandoned()) {
+      outcome = new ExecutionException(
+          new DownloadException("The download of " + entry.getUrl() + " has stalled"));
+    }
+    if (outcome != null) {
+      done();
+    }
+    return outcome;
+  }
+
+  /**
+   * Runs the completion listeners, unless they have been run already.
+   */
+  private void done() {
+    List<Runnable> l;
+    synchronized (this) {
+      l = listeners;
+      listeners = null;
+    }
+    if (l != null) {
+      for (Runnable r : l) {
+        runListener(r);
+      }
+    }
+  }
+
+  private void runListener(Runnable r) {
+    try {
+      r.run();
+    }
+    catch (RuntimeException e) {
+      LOG.error("Completion listener failed", e);
+    }
+  }
+
+}
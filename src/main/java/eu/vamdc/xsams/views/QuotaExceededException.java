@@ -0,0 +1,19 @@
+package eu.vamdc.xsams.views;
+
+/**
+ * Exception indicating that data could not be cached because they would
+ * exceed the space allowed to the cache or to a single data set.
+ *
+ * @author Guy Rixon
+ */
+public class QuotaExceededException extends DownloadException {
+
+  public QuotaExceededException(String message) {
+    super(message);
+  }
+
+  public QuotaExceededException(String message, Throwable t) {
+    super(message, t);
+  }
+
+}
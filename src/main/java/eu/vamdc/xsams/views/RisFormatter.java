@@ -0,0 +1,127 @@
+package eu.vamdc.xsams.views;
+
+/**
+ * Formats source records as RIS, the tagged format read by most reference
+ * managers. Each record becomes one reference, from TY to ER, followed by a
+ * blank line. The type of reference follows the Category of the source;
+ * as for BibTeX, a source without a known category is taken as a book if
+ * it has a Publisher and as an article if it has a Volume.
+ * <p>
+ * RIS is a format of lines, so each run of white space in a value, which
+ * may include line breaks, is replaced by one space. Lines end with CR LF, as the format requires.
+ *
+ * @author Guy Rixon
+ */
+public class RisFormatter implements SourceFormatter {
+
+  private static final String[] MEDIA_TYPES = {"application/x-research-info-systems"};
+
+  private static final String LINE_END = "\r\n";
+
+  @Override
+  public String getName() {
+    return "ris";
+  }
+
+  @Override
+  public String[] getMediaTypes() {
+    return MEDIA_TYPES.clone();
+  }
+
+  @Override
+  public void begin(StringBuilder b) {
+  }
+
+  @Override
+  public void format(SourceRecord r, int index, StringBuilder b) {
+    line("TY", getType(r), b);
+    line("ID", r.getSourceId(), b);
+    for (String name : r.getAuthorNames()) {
+      line("AU", name, b);
+    }
+    line("TI", r.getFirst("Title"), b);
+    line("T2", r.getFirst("SourceName"), b);
+    line("VL", r.getFirst("Volume"), b);
+    line("SP", r.getFirst("PageBegin"), b);
+    line("EP", r.getFirst("PageEnd"), b);
+    line("PY", r.getFirst("Year"), b);
+    line("PB", r.getFirst("Publisher"), b);
+    line("CY", r.getFirst("City"), b);
+    line("DO", r.has("DigitalObjectIdentifier")?
+        r.getFirst("DigitalObjectIdentifier") : r.getFirst("DOI"), b);
+    line("UR", r.getFirst("UniformResourceIdentifier"), b);
+    b.append("ER  - ").append(LINE_END).append(LINE_END);
+  }
+
+  @Override
+  public void end(int count, StringBuilder b) {
+  }
+
+  /**
+   * Chooses the RIS reference-type for a record.
+   */
+  private String getType(SourceRecord r) {
+    String category = r.getFirst("Category");
+    if ("journal".equals(category)) {
+      return "JOUR";
+    }
+    else if ("book".equals(category)) {
+      return "BOOK";
+    }
+    else if ("database".equals(category) || "vamdc node".equals(category)) {
+      return "DBASE";
+    }
+    else if ("private communication".equals(category)) {
+      return "PCOMM";
+    }
+    else if ("proceedings".equals(category)) {
+      return "CONF";
+    }
+    else if ("report".equals(category)) {
+      return "RPRT";
+    }
+    else if ("thesis".equals(category)) {
+      return "THES";
+    }
+    else if ("preprint".equals(category)) {
+      return "UNPB";
+    }
+    else if (r.hasNonEmpty("Publisher")) {
+      return "BOOK";
+    }
+    else if (r.hasNonEmpty("Volume")) {
+      return "JOUR";
+    }
+    return "GEN";
+  }
+
+  /**
+   * Writes one tagged line, unless the value is missing or blank.
+   */
+  private void line(String tag, String value, StringBuilder b) {
+    if (value == null) {
+      return;
+    }
+    String v = value.trim();
+    if (v.length() == 0) {
+      return;
+    }
+    b.append(tag).append("  - ");
+    boolean space = false;
+    for (int i = 0; i < v.length(); i++) {
+      char c = v.charAt(i);
+      if (Character.isWhitespace(c)) {
+        space = true;
+      }
+      else {
+        if (space) {
+          b.append(' ');
+          space = false;
+        }
+        b.append(c);
+      }
+    }
+    b.append(LINE_END);
+  }
+
+}
@@ -0,0 +1,28 @@
+package eu.vamdc.xsams.views;
+
+/**
+ * Exception indicating that a download could not be scheduled because too
+ * many downloads are already waiting. The client should try again after
+ * the given time.
+ *
+ * @author Guy Rixon
+ */
+public class ServiceBusyException extends DownloadException {
+
+  private final long retryAfterSeconds;
+
+  public ServiceBusyException(String message, long retryAfter) {
+    super(message);
+    retryAfterSeconds = retryAfter;
+  }
+
+  /**
+   * Supplies the time after which the client might succeed.
+   *
+   * @return The time in seconds.
+   */
+  public long getRetryAfterSeconds() {
+    return retryAfterSeconds;
+  }
+
+}
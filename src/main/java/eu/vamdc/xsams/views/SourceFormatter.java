@@ -0,0 +1,54 @@
+package eu.vamdc.xsams.views;
+
+/**
+ * A bibliographic format into which source records can be written. Each
+ * implementation makes one format (BibTeX, RIS etc.) from the records read
+ * by a {@link SourceReader}, appending the text to a buffer. The records of
+ * one document are passed in order, between one call of {@link #begin} and
+ * one of {@link #end}, so that a format may have a header, separators and
+ * a trailer. Formatters keep no state between calls and may be shared.
+ *
+ * @author Guy Rixon
+ */
+public interface SourceFormatter {
+
+  /**
+   * Supplies the short name of the format. The name is used as the suffix
+   * of request paths and as the file-name extension of renderings.
+   *
+   * @return The name, e.g. "bib".
+   */
+  String getName();
+
+  /**
+   * Supplies the media types of the format. The first is the type served.
+   *
+   * @return The types, e.g. {"text/plain", "application/x-bibtex"}.
+   */
+  String[] getMediaTypes();
+
+  /**
+   * Starts the bibliography for one document.
+   *
+   * @param b The buffer.
+   */
+  void begin(StringBuilder b);
+
+  /**
+   * Formats one record, appending the text to a buffer.
+   *
+   * @param r The record.
+   * @param index The position of the record in the document, counting from zero.
+   * @param b The buffer.
+   */
+  void format(SourceRecord r, int index, StringBuilder b);
+
+  /**
+   * Ends the bibliography for one document.
+   *
+   * @param count The number of records formatted.
+   * @param b The buffer.
+   */
+  void end(int count, StringBuilder b);
+
+}
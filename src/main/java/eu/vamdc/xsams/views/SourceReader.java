@@ -0,0 +1,181 @@
+package eu.vamdc.xsams.views;
+
+import java.io.InputStream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * A streaming reader for the Source elements of an XSAMS document. The
+ * document is read with StAX and each Source element is delivered as a
+ * {@link SourceRecord} by {@link #next}. Everything outside the Source
+ * elements (States, Processes etc.) is passed over without being built
+ * into objects, so the memory used does not depend on the size of the
+ * document.
+ * <p>
+ * Source elements are recognized wherever they appear, but only in the
+ * namespace of the given XSAMS version. This matches the behaviour of the
+ * XsamsToBibtex stylesheets.
+ *
+ * @author Guy Rixon
+ */
+public class SourceReader {
+
+  private final XMLStreamReader reader;
+
+  private final String namespace;
+
+  /**
+   * Constructs a reader on a stream of XSAMS.
+   *
+   * @param in The XSAMS document.
+   * @param version The XSAMS version of the document, e.g. "1.0".
+   * @throws XMLStreamException If the document cannot be read.
+   */
+  public SourceReader(InputStream in, String version) throws XMLStreamException {
+    XMLInputFactory f = XMLInputFactory.newFactory();
+    f.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    reader = f.createXMLStreamReader(in);
+    namespace = XsamsVersionSniffer.toNamespace(version);
+  }
+
+  /**
+   * Reads the next Source element.
+   *
+   * @return The record of the Source; null if there are no more Source elements.
+   * @throws XMLStreamException If the document cannot be parsed.
+   */
+  public SourceRecord next() throws XMLStreamException {
+    while (reader.hasNext()) {
+      if (reader.next() == XMLStreamConstants.START_ELEMENT && isXsams("Source")) {
+        return readSource();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Closes the reader. The underlying stream is not closed.
+   *
+   * @throws XMLStreamException If the reader cannot be closed.
+   */
+  public void close() throws XMLStreamException {
+    reader.close();
+  }
+
+  /**
+   * Reads a Source element; the reader must be positioned at its start tag.
+   * On return, the reader is positioned at the end tag.
+   */
+  private SourceRecord readSource() throws XMLStreamException {
+    SourceRecord r = new SourceRecord(reader.getAttributeValue(null, "sourceID"));
+    while (true) {
+      int e = reader.next();
+      if (e == XMLStreamConstants.END_ELEMENT) {
+        return r;
+      }
+      else if (e == XMLStreamConstants.START_ELEMENT) {
+        if (isXsams("Authors")) {
+          readAuthors(r);
+        }
+        else if (namespace.equals(reader.getNamespaceURI())) {
+          r.addChild(reader.getLocalName(), readStringValue());
+        }
+        else {
+          skipElement();
+        }
+      }
+    }
+  }
+
+  private void readAuthors(SourceRecord r) throws XMLStreamException {
+    while (true) {
+      int e = reader.next();
+      if (e == XMLStreamConstants.END_ELEMENT) {
+        return;
+      }
+      else if (e == XMLStreamConstants.START_ELEMENT) {
+        if (isXsams("Author")) {
+          r.addAuthor(readAuthorName());
+        }
+        else {
+          skipElement();
+        }
+      }
+    }
+  }
+
+  private String readAuthorName() throws XMLStreamException {
+    String name = null;
+    while (true) {
+      int e = reader.next();
+      if (e == XMLStreamConstants.END_ELEMENT) {
+        return name;
+      }
+      else if (e == XMLStreamConstants.START_ELEMENT) {
+        if (name == null && isXsams("Name")) {
+          name = readStringValue();
+        }
+        else {
+          skipElement();
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the string value of the current element. On return, the reader is
+   * positioned at the end tag of the element.
+   */
+  private String readStringValue() throws XMLStreamException {
+    StringBuilder b = new StringBuilder();
+    int depth = 0;
+    while (true) {
+      int e = reader.next();
+      switch (e) {
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.CDATA:
+        case XMLStreamConstants.SPACE:
+          b.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+          break;
+        case XMLStreamConstants.START_ELEMENT:
+          depth++;
+          break;
+        case XMLStreamConstants.END_ELEMENT:
+          if (depth == 0) {
+            return b.toString();
+          }
+          depth--;
+          break;
+        default:
+          break;
+      }
+    }
+  }
+
+  /**
+   * Passes over the current element and its content. On return, the reader
+   * is positioned at the end tag of the element.
+   */
+  private void skipElement() throws XMLStreamException {
+    int depth = 0;
+    while (true) {
+      int e = reader.next();
+      if (e == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+      }
+      else if (e == XMLStreamConstants.END_ELEMENT) {
+        if (depth == 0) {
+          return;
+        }
+        depth--;
+      }
+    }
+  }
+
+  private boolean isXsams(String localName) {
+    return localName.equals(reader.getLocalName()) && namespace.equals(reader.getNamespaceURI());
+  }
+
+}
@@ -0,0 +1,139 @@
+package eu.vamdc.xsams.views;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The content of one Source element from the Sources section of an XSAMS
+ * document. Only what the bibliographic formatters need is kept: the
+ * sourceID attribute, the string value of each XSAMS child-element (by
+ * local name, in document order) and the names of the authors.
+ * <p>
+ * The string value of an element is, as in XPath, the concatenation of all
+ * the text inside it.
+ *
+ * @author Guy Rixon
+ */
+public class SourceRecord {
+
+  private final String sourceId;
+
+  private final Map<String, List<String>> children;
+
+  private final List<String> authorNames;
+
+  private boolean authorNamed;
+
+  public SourceRecord(String id) {
+    sourceId = (id == null)? "" : id;
+    children = new HashMap<String, List<String>>();
+    authorNames = new ArrayList<String>();
+    authorNamed = false;
+  }
+
+  /**
+   * Records the string value of a child element.
+   *
+   * @param name The local name of the element.
+   * @param value The string value of the element.
+   */
+  public void addChild(String name, String value) {
+    List<String> values = children.get(name);
+    if (values == null) {
+      values = new ArrayList<String>(1);
+      children.put(name, values);
+    }
+    values.add(value);
+  }
+
+  /**
+   * Records an author.
+   *
+   * @param name The string value of the author's first Name element; null if the author has no name.
+   */
+  public void addAuthor(String name) {
+    if (name == null) {
+      authorNames.add("");
+    }
+    else {
+      authorNames.add(name);
+      authorNamed = true;
+    }
+  }
+
+  /**
+   * Supplies the value of the sourceID attribute.
+   *
+   * @return The ID; an empty string if the attribute was missing.
+   */
+  public String getSourceId() {
+    return sourceId;
+  }
+
+  public boolean has(String name) {
+    return children.containsKey(name);
+  }
+
+  /**
+   * Supplies the string value of the first child element of the given name.
+   *
+   * @param name The local name of the element.
+   * @return The value; null if there is no such element.
+   */
+  public String getFirst(String name) {
+    List<String> values = children.get(name);
+    return (values == null)? null : values.get(0);
+  }
+
+  public List<String> getAll(String name) {
+    List<String> values = children.get(name);
+    return (values == null)? Collections.<String>emptyList() : Collections.unmodifiableList(values);
+  }
+
+  /**
+   * Determines whether any child element of the given name has the given
+   * value. This is the XPath comparison of a node-set with a string.
+   *
+   * @param name The local name of the element.
+   * @param value The value to match.
+   * @return True if there is a match.
+   */
+  public boolean hasValue(String name, String value) {
+    List<String> values = children.get(name);
+    return values != null && values.contains(value);
+  }
+
+  /**
+   * Determines whether there is a child element of the given name and none
+   * of the elements of that name is empty.
+   *
+   * @param name The local name of the element.
+   * @return True if there is at least one element and none is empty.
+   */
+  public boolean hasNonEmpty(String name) {
+    return has(name) && !hasValue(name, "");
+  }
+
+  /**
+   * Supplies the names of the authors, in document order. An author with no
+   * Name element is represented by an empty string.
+   *
+   * @return The names.
+   */
+  public List<String> getAuthorNames() {
+    return Collections.unmodifiableList(authorNames);
+  }
+
+  /**
+   * Determines whether any author has a name.
+   *
+   * @return True if at least one Author has a Name element.
+   */
+  public boolean hasNamedAuthor() {
+    return authorNamed;
+  }
+
+}
@@ -0,0 +1,285 @@
+package eu.vamdc.xsams.views;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * A transformer from XSAMS to any number of bibliographic formats in one
+ * pass. The document is streamed with StAX by a {@link SourceReader}, which
+ * holds only one Source element at a time, and each Source is passed to
+ * every {@link SourceFormatter} in turn. The cost of parsing the document,
+ * which is most of the cost for a large document, is therefore paid once
+ * however many formats are made.
+ * <p>
+ * Each format has its own buffer, written to its own destination in large
+ * chunks.
+ * <p>
+ * Given a {@link ForkJoinPool}, the transformer formats documents with many
+ * sources in parallel. The parsing stays in the calling thread; the records
+ * are gathered into chunks as they are read and each chunk is formatted as
+ * a task in the pool, while the next chunk is read. The results are written
+ * in the order of the chunks, so the output is the same as when formatted
+ * serially. Only a few chunks are in hand at once, so the memory used still
+ * does not depend on the size of the document. Documents with no more than
+ * {@link #PARALLEL_THRESHOLD} sources are formatted serially, in the
+ * calling thread, where the tasks would cost more than they save.
+ *
+ * @author Guy Rixon
+ */
+public class StreamingBibliographyTransformer {
+
+  /**
+   * The number of sources a document must exceed to be formatted in parallel.
+   */
+  public static final int PARALLEL_THRESHOLD = 1024;
+
+  /**
+   * The number of sources formatted in one task.
+   */
+  public static final int RECORDS_PER_TASK = 256;
+
+  private static final int CHUNK_SIZE = 8192;
+
+  private final boolean flushEachChunk;
+
+  /**
+   * The pool for formatting in parallel; null to format serially.
+   */
+  private final ForkJoinPool pool;
+
+  private final int threshold;
+
+  private final int recordsPerTask;
+
+  public StreamingBibliographyTransformer() {
+    this(false);
+  }
+
+  /**
+   * Constructs a transformer that formats serially.
+   *
+   * @param flush True if the outputs should be flushed after each chunk,
+   *        so that a reader sees the entries as soon as they are made.
+   */
+  public StreamingBibliographyTransformer(boolean flush) {
+    flushEachChunk = flush;
+    pool = null;
+    threshold = PARALLEL_THRESHOLD;
+    recordsPerTask = RECORDS_PER_TASK;
+  }
+
+  /**
+   * Constructs a transformer that formats large documents in parallel.
+   *
+   * @param p The pool in which to format; null to format serially.
+   */
+  public StreamingBibliographyTransformer(ForkJoinPool p) {
+    this(p, PARALLEL_THRESHOLD, RECORDS_PER_TASK);
+  }
+
+  StreamingBibliographyTransformer(ForkJoinPool p, int parallelThreshold, int taskSize) {
+    flushEachChunk = false;
+    pool = p;
+    threshold = parallelThreshold;
+    recordsPerTask = taskSize;
+  }
+
+  /**
+   * Transforms an XSAMS document to one bibliographic format.
+   *
+   * @param in The XSAMS document (not closed by this method).
+   * @param version The XSAMS version of the document, e.g. "1.0".
+   * @param formatter The format.
+   * @param out The destination for the bibliography (not closed by this method).
+   * @throws XMLStreamException If the document cannot be parsed.
+   * @throws IOException If the bibliography cannot be written.
+   */
+  public void transform(InputStream in, String version, SourceFormatter formatter, Writer out)
+      throws XMLStreamException, IOException {
+    List<SourceFormatter> formatters = new ArrayList<SourceFormatter>(1);
+    formatters.add(formatter);
+    List<Writer> outputs = new ArrayList<Writer>(1);
+    outputs.add(out);
+    transform(in, version, formatters, outputs);
+  }
+
+  /**
+   * Transforms an XSAMS document to several bibliographic formats.
+   *
+   * @param in The XSAMS document (not closed by this method).
+   * @param version The XSAMS version of the document, e.g. "1.0".
+   * @param outputs The destination for each format (not closed by this method).
+   * @throws XMLStreamException If the document cannot be parsed.
+   * @throws IOException If a bibliography cannot be written.
+   */
+  public void transform(InputStream in, String version, Map<SourceFormatter, Writer> outputs)
+      throws XMLStreamException, IOException {
+    transform(in, version,
+              new ArrayList<SourceFormatter>(outputs.keySet()),
+              new ArrayList<Writer>(outputs.values()));
+  }
+
+  private void transform(InputStream in, String version,
+                         List<SourceFormatter> formatters, List<Writer> outputs)
+      throws XMLStreamException, IOException {
+    int n = formatters.size();
+    List<StringBuilder> buffers = new ArrayList<StringBuilder>(n);
+    for (int i = 0; i < n; i++) {
+      StringBuilder b = new StringBuilder(CHUNK_SIZE);
+      formatters.get(i).begin(b);
+      buffers.add(b);
+    }
+
+    SourceReader reader = new SourceReader(in, version);
+    Deque<FormattingTask> inFlight = new ArrayDeque<FormattingTask>();
+    try {
+      int count = 0;
+      boolean parallel = false;
+      List<SourceRecord> held = new ArrayList<SourceRecord>();
+      SourceRecord r;
+      while ((r = reader.next()) != null) {
+        count++;
+        if (pool == null) {
+          format(formatters, r, count - 1, buffers, outputs);
+          continue;
+        }
+        held.add(r);
+        if (!parallel && held.size() > threshold) {
+          parallel = true;
+        }
+        if (parallel && held.size() >= recordsPerTask) {
+          submit(formatters, held, count - held.size(), inFlight);
+          held = new ArrayList<SourceRecord>(recordsPerTask);
+          // Keep the pool busy, but hold only a few chunks at once.
+          while (inFlight.size() > 2 * pool.getParallelism()) {
+            write(inFlight.remove().join(), buffers, outputs);
+          }
+        }
+      }
+      if (parallel) {
+        if (!held.isEmpty()) {
+          submit(formatters, held, count - held.size(), inFlight);
+        }
+        while (!inFlight.isEmpty()) {
+          write(inFlight.remove().join(), buffers, outputs);
+        }
+      }
+      else {
+        int index = count - held.size();
+        for (SourceRecord s : held) {
+          format(formatters, s, index++, buffers, outputs);
+        }
+      }
+
+      for (int i = 0; i < n; i++) {
+        StringBuilder b = buffers.get(i);
+        formatters.get(i).end(count, b);
+        Writer out = outputs.get(i);
+        out.append(b);
+        out.flush();
+      }
+    }
+    finally {
+      for (FormattingTask t : inFlight) {
+        t.cancel(false);
+      }
+      reader.close();
+    }
+  }
+
+  /**
+   * Formats one record in every format, in the calling thread.
+   */
+  private void format(List<SourceFormatter> formatters, SourceRecord r, int index,
+                      List<StringBuilder> buffers, List<Writer> outputs) throws IOException {
+    for (int i = 0; i < formatters.size(); i++) {
+      StringBuilder b = buffers.get(i);
+      formatters.get(i).format(r, index, b);
+      drain(b, outputs.get(i));
+    }
+  }
+
+  /**
+   * Submits records to the pool, in tasks of at most the set size.
+   */
+  private void submit(List<SourceFormatter> formatters, List<SourceRecord> records, int firstIndex,
+                      Deque<FormattingTask> inFlight) {
+    for (int i = 0; i < records.size(); i += recordsPerTask) {
+      int j = Math.min(records.size(), i + recordsPerTask);
+      List<SourceRecord> chunk = new ArrayList<SourceRecord>(records.subList(i, j));
+      FormattingTask t = new FormattingTask(formatters, chunk, firstIndex + i);
+      pool.execute(t);
+      inFlight.add(t);
+    }
+  }
+
+  /**
+   * Writes the result of a task, one text per format.
+   */
+  private void write(String[] texts, List<StringBuilder> buffers, List<Writer> outputs)
+      throws IOException {
+    for (int i = 0; i < texts.length; i++) {
+      StringBuilder b = buffers.get(i);
+      b.append(texts[i]);
+      drain(b, outputs.get(i));
+    }
+  }
+
+  /**
+   * Writes a buffer to its destination once it holds a full chunk.
+   */
+  private void drain(StringBuilder b, Writer out) throws IOException {
+    if (b.length() >= CHUNK_SIZE) {
+      out.append(b);
+      b.setLength(0);
+      if (flushEachChunk) {
+        out.flush();
+      }
+    }
+  }
+
+  /**
+   * Formats a chunk of records in every format.
+   */
+  private static class FormattingTask extends RecursiveTask<String[]> {
+
+    private final List<SourceFormatter> formatters;
+
+    private final List<SourceRecord> records;
+
+    private final int firstIndex;
+
+    FormattingTask(List<SourceFormatter> f, List<SourceRecord> r, int i) {
+      formatters = f;
+      records = r;
+      firstIndex = i;
+    }
+
+    @Override
+    protected String[] compute() {
+      String[] texts = new String[formatters.size()];
+      StringBuilder b = new StringBuilder(records.size() * 256);
+      for (int i = 0; i < texts.length; i++) {
+        b.setLength(0);
+        SourceFormatter f = formatters.get(i);
+        int index = firstIndex;
+        for (SourceRecord r : records) {
+          f.format(r, index++, b);
+        }
+        texts[i] = b.toString();
+      }
+      return texts;
+    }
+
+  }
+
+}
@@ -0,0 +1,252 @@
+package eu.vamdc.xsams.views;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A registry of compiled XSLT stylesheets. Each stylesheet is loaded from
+ * the class-path as /{version}/{name}, where version is the XSAMS version
+ * (e.g. "1.0") and name is the stylesheet name (e.g. "XsamsToBibtex.xsl").
+ * The stylesheet is compiled once into a {@code Templates} object and is
+ * then shared; {@link #newTransformer} gives a fresh {@code Transformer}
+ * for each use, since transformers are not thread-safe.
+ * <p>
+ * The registry is thread-safe. Compiled stylesheets are held in a concurrent
+ * map. If a stylesheet resource is changed, {@link #reloadIfModified}
+ * recompiles it; {@link #reload} unconditionally recompiles everything.
+ * <p>
+ * The registry has a version, {@link #getVersion}, derived from the text of
+ * the stylesheets compiled. Output made by the stylesheets can be labelled
+ * with the version, so that output from a stylesheet since changed is
+ * recognized as stale, even across restarts.
+ *
+ * @author Guy Rixon
+ */
+public class StylesheetRegistry {
+
+  private static final Log LOG = LogFactory.getLog(StylesheetRegistry.class);
+
+  private final TransformerFactory factory;
+
+  private final ConcurrentMap<String, CompiledStylesheet> map;
+
+  /**
+   * The version of the stylesheets in the map, recomputed whenever the map
+   * changes; see {@link #getVersion}.
+   */
+  private volatile String version;
+
+  public StylesheetRegistry() {
+    factory = TransformerFactory.newInstance();
+    map = new ConcurrentHashMap<String, CompiledStylesheet>();
+    updateVersion();
+  }
+
+  /**
+   * Compiles a stylesheet and enters it in the registry, replacing any
+   * earlier compilation.
+   *
+   * @param version The XSAMS version.
+   * @param name The stylesheet name.
+   * @throws IllegalStateException If the stylesheet is not on the class-path.
+   * @throws TransformerConfigurationException If the stylesheet does not compile.
+   */
+  public void load(String version, String name)
+      throws IllegalStateException, TransformerConfigurationException {
+    CompiledStylesheet s = compile(version, name);
+    map.put(toKey(version, name), s);
+    updateVersion();
+  }
+
+  /**
+   * Supplies a transformer for the given stylesheet. The stylesheet is
+   * compiled on first use if it was not loaded already.
+   *
+   * @param version The XSAMS version.
+   * @param name The stylesheet name.
+   * @return The transformer (never null).
+   * @throws IllegalStateException If the stylesheet is not on the class-path.
+   * @throws TransformerConfigurationException If the stylesheet does not compile.
+   */
+  public Transformer newTransformer(String version, String name)
+      throws IllegalStateException, TransformerConfigurationException {
+    String key = toKey(version, name);
+    CompiledStylesheet s = map.get(key);
+    if (s == null) {
+      s = compile(version, name);
+      CompiledStylesheet earlier = map.putIfAbsent(key, s);
+      if (earlier == null) {
+        updateVersion();
+      }
+      else {
+        s = earlier;
+      }
+    }
+    return s.templates.newTransformer();
+  }
+
+  /**
+   * Supplies the version of the stylesheets in the registry. The version
+   * changes when any stylesheet is compiled from different text, and is
+   * the same in every run of the application for the same stylesheets.
+   *
+   * @return The version, as eight hexadecimal digits.
+   */
+  public String getVersion() {
+    return version;
+  }
+
+  /**
+   * Recompiles every stylesheet in the registry.
+   *
+   * @throws TransformerConfigurationException If any stylesheet does not compile.
+   */
+  public void reload() throws TransformerConfigurationException {
+    for (CompiledStylesheet s : map.values()) {
+      load(s.version, s.name);
+    }
+    LOG.info("Reloaded " + map.size() + " stylesheets");
+  }
+
+  /**
+   * Recompiles those stylesheets whose resources have changed since they
+   * were last compiled. Resources that do not report a modification time
+   * (e.g. those inside a jar) are never reloaded by this method.
+   *
+   * @throws TransformerConfigurationException If any stylesheet does not compile.
+   */
+  public void reloadIfModified() throws TransformerConfigurationException {
+    for (CompiledStylesheet s : map.values()) {
+      long t = getLastModified(s.resource);
+      if (t > s.lastModified) {
+        LOG.info("Stylesheet " + s.resource + " has changed");
+        load(s.version, s.name);
+      }
+    }
+  }
+
+  private CompiledStylesheet compile(String version, String name)
+      throws IllegalStateException, TransformerConfigurationException {
+    String path = "/" + version + (name.startsWith("/")? "" : "/") + name;
+    URL u = StylesheetRegistry.class.getResource(path);
+    if (u == null) {
+      throw new IllegalStateException("Can't find the stylesheet " + path);
+    }
+    long t = getLastModified(u);
+    byte[] text = read(u, path);
+    CRC32 crc = new CRC32();
+    crc.update(text);
+    StreamSource source = new StreamSource(new ByteArrayInputStream(text), u.toString());
+    Templates templates;
+    synchronized (factory) {
+      templates = factory.newTemplates(source);
+    }
+    LOG.info("Compiled stylesheet " + path);
+    return new CompiledStylesheet(version, name, u, t, crc.getValue(), templates);
+  }
+
+  /**
+   * Recomputes the version from the stylesheets now in the map. Concurrent
+   * updates are serialized so that the last one to finish sees every change.
+   */
+  private synchronized void updateVersion() {
+    CRC32 crc = new CRC32();
+    for (Map.Entry<String, CompiledStylesheet> e : new TreeMap<String, CompiledStylesheet>(map).entrySet()) {
+      long c = e.getValue().checksum;
+      try {
+        crc.update(e.getKey().getBytes("UTF-8"));
+      }
+      catch (UnsupportedEncodingException ex) {
+        throw new IllegalStateException(ex);
+      }
+      for (int i = 0; i < 8; i++) {
+        crc.update((int) (c >>> (8 * i)));
+      }
+    }
+    version = String.format("%08x", crc.getValue());
+  }
+
+  private byte[] read(URL u, String path) throws IllegalStateException {
+    try {
+      InputStream in = u.openStream();
+      try {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+          out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch (IOException e) {
+      throw new IllegalStateException("Can't read the stylesheet " + path, e);
+    }
+  }
+
+  private long getLastModified(URL u) {
+    try {
+      URLConnection c = u.openConnection();
+      c.setUseCaches(false);
+      long t = c.getLastModified();
+      c.getInputStream().close();
+      return t;
+    }
+    catch (IOException e) {
+      return 0L;
+    }
+  }
+
+  private String toKey(String version, String name) {
+    return version + "/" + name;
+  }
+
+
+  /**
+   * A compiled stylesheet with the details needed to recompile it.
+   */
+  private static class CompiledStylesheet {
+
+    final String version;
+
+    final String name;
+
+    final URL resource;
+
+    final long lastModified;
+
+    final long checksum;
+
+    final Templates templates;
+
+    CompiledStylesheet(String v, String n, URL u, long t, long c, Templates x) {
+      version = v;
+      name = n;
+      resource = u;
+      lastModified = t;
+      checksum = c;
+      templates = x;
+    }
+  }
+
+}
@@ -1,28 +1,74 @@
 package eu.vamdc.xsams.views;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.SequenceInputStream;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.xml.stream.XMLEventReader;
-import javax.xml.stream.XMLInputFactory;
-import javax.xml.stream.events.XMLEvent;
-import javax.xml.transform.Source;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
 /**
  * A servlet that transforms data to web pages using XSLT. The servlet uses
  * the data cache shared throughout the web application.
+ * <p>
+ * If the data are still being downloaded, the servlet normally answers with
+ * a page (later.jsp) that asks the client to reload. If the request has the
+ * parameter wait, giving a number of seconds, the request is instead parked
+ * asynchronously until the download finishes or the time runs out, without
+ * holding a container thread. The request is then dispatched to the servlet
+ * again, which answers with the data or, if they are still not ready, with
+ * later.jsp. The servlet must be declared async-supported for this.
+ * <p>
+ * If the request has the parameter stream=true, BibTeX for data still being
+ * downloaded is written as the download proceeds: the cache file is read
+ * as it grows and passed through the streaming transformer, whatever engine
+ * is configured. Such output is not kept; requests after the download has
+ * finished are served in the usual way.
+ * <p>
+ * The bibliography is made in BibTeX, RIS or CSL-JSON. The format is named
+ * by a suffix to the key in the path, e.g. /bibtex/{key}.ris, or else
+ * chosen from the Accept header; BibTeX is the default. The formats are
+ * rendered together, in one pass over the data, when the first of them is
+ * asked for, and each is kept in its own file next to the cache file. Only
+ * BibTeX can be made by the stylesheets; when the XSLT engine is selected,
+ * the other formats are made by the streaming transformer. The streaming
+ * transformer formats documents with many sources in parallel, in the
+ * formatting pool of the data cache, which the stylesheets cannot do.
+ * <p>
+ * The files of rendered bibliographies and the entity tags of the responses
+ * are labelled with the engine and, for the XSLT engine, the version of the
+ * stylesheets, so a bibliography rendered before a change of either is 
+ * neither served nor confirmed as current. The Last-Modified time is that
+ * of the rendered file.
  * 
  * @throws RequestException If the request does not identified the cached data to view.
  * @throws RequestException If the specified data are not in the cache.
@@ -35,65 +81,722 @@ import javax.xml.transform.stream.StreamSource;
  */
 public class TransformingServlet extends ErrorReportingServlet {
   
+  /**
+   * The XSAMS versions for which stylesheets are compiled at start-up.
+   */
+  public static final String[] XSAMS_VERSIONS = {"0.3", "1.0"};
+  
+  /**
+   * The request parameter giving the time, in seconds, for which a request
+   * may wait for a download to finish.
+   */
+  public static final String WAIT_PARAMETER = "wait";
+  
+  /**
+   * The longest time for which a request may wait for a download.
+   */
+  public static final long MAXIMUM_WAIT_IN_SECONDS = 300L;
+  
+  /**
+   * The request parameter that asks for BibTeX to be written while the data
+   * are downloaded.
+   */
+  public static final String STREAM_PARAMETER = "stream";
+  
+  /**
+   * The init-parameter naming the formats offered, separated by spaces or
+   * commas. The first is the default.
+   */
+  public static final String FORMATS_PARAMETER = "formats";
+  
+  /**
+   * The formats offered when the init-parameter formats is not set.
+   */
+  public static final String DEFAULT_FORMATS = "bib ris json";
+  
+  private StylesheetRegistry stylesheets;
+  
+  private boolean reloadStylesheets;
+  
+  /**
+   * True if BibTeX is made by the stylesheets; false if by the StAX transformer.
+   */
+  private boolean useStylesheets;
+  
+  /**
+   * The formats offered, by name. The first is the default.
+   */
+  private final Map<String, SourceFormatter> formatters = 
+      new LinkedHashMap<String, SourceFormatter>();
+  
+  /**
+   * Compiles the stylesheets for all known XSAMS versions. If the init-parameter
+   * reload-stylesheets is set to true, the stylesheets are checked for changes
+   * on each request and recompiled if changed.
+   * <p>
+   * The init-parameter engine selects the way of transforming the data:
+   * "xslt" (the default) for the stylesheets; "stax" for the streaming
+   * transformer, which gives the same BibTeX in constant memory and uses
+   * several threads for large documents.
+   * <p>
+   * The init-parameter formats names the formats offered: any of "bib",
+   * "ris" and "json".
+   * 
+   * @throws ServletException If a stylesheet cannot be compiled.
+   * @throws ServletException If the engine is not known.
+   * @throws ServletException If a format is not known.
+   */
+  @Override
+  public void init() throws ServletException {
+    String engine = getInitParameter("engine");
+    if (engine != null && !"xslt".equals(engine) && !"stax".equals(engine)) {
+      throw new ServletException("Transformation engine " + engine + " is not known");
+    }
+    useStylesheets = !"stax".equals(engine);
+    String names = getInitParameter(FORMATS_PARAMETER);
+    if (names == null || names.trim().length() == 0) {
+      names = DEFAULT_FORMATS;
+    }
+    SourceFormatter[] known = {new BibtexFormatter(), new RisFormatter(), new CslJsonFormatter()};
+    for (String name : names.trim().split("[\\s,]+")) {
+      SourceFormatter f = null;
+      for (SourceFormatter k : known) {
+        if (k.getName().equals(name)) {
+          f = k;
+        }
+      }
+      if (f == null) {
+        throw new ServletException("Bibliographic format " + name + " is not known");
+      }
+      formatters.put(name, f);
+    }
+    String stylesheetName = getInitParameter("stylesheet");
+    reloadStylesheets = Boolean.parseBoolean(getInitParameter("reload-stylesheets"));
+    stylesheets = new StylesheetRegistry();
+    try {
+      for (String version : XSAMS_VERSIONS) {
+        stylesheets.load(version, stylesheetName);
+      }
+    }
+    catch (Exception e) {
+      throw new ServletException("Failed to compile the stylesheet " + stylesheetName, e);
+    }
+  }
+  
+  /**
+   * Recompiles all the stylesheets used by this servlet.
+   * 
+   * @throws TransformerException If a stylesheet cannot be compiled.
+   */
+  public void reloadStylesheets() throws TransformerException {
+    stylesheets.reload();
+  }
+  
   @Override
   public void get(HttpServletRequest request, HttpServletResponse response) 
       throws RequestException, IllegalStateException, FileNotFoundException, 
-             IOException, TransformerException, DownloadException, ServletException {
+             IOException, TransformerException, XMLStreamException, DownloadException, 
+             ServletException {
     String key = getKey(request);
     
-    CachedDataSet x = getCache().get(key);
+    // A request dispatched back after waiting was counted when it arrived.
+    CachedDataSet x = getDataSet(key, request.getDispatcherType() != DispatcherType.ASYNC);
     if (x.isReady()) {
       transformXsams(request, key, response);
     }
+    else if (Boolean.parseBoolean(request.getParameter(STREAM_PARAMETER))) {
+      transformDownload(request, x, response);
+    }
     else {
-      writeDeferral(request, x, response);
+      long wait = getWaitSeconds(request);
+      if (wait > 0L && request.isAsyncSupported() && 
+          request.getDispatcherType() != DispatcherType.ASYNC) {
+        awaitDownload(request, x, wait);
+      }
+      else {
+        writeDeferral(request, x, response);
+      }
+    }
+  }
+  
+  /**
+   * Writes BibTeX for data that are still being downloaded, reading the
+   * cache file as it grows. The response is written in chunks as entries
+   * are made, without a Content-Length. If the download fails part-way,
+   * the response is cut short, as it is if the download stalls, so that
+   * the request waits for data no longer in total than a request may wait
+   * with {@link #WAIT_PARAMETER}.
+   * 
+   * @param request The HTTP request.
+   * @param x The data set being downloaded.
+   * @param response The HTTP response.
+   * @throws RequestException If the XSAMS version of the data is not recognized.
+   * @throws IOException If the data cannot be read or the response written.
+   * @throws XMLStreamException If the data cannot be parsed.
+   */
+  private void transformDownload(HttpServletRequest request, 
+                                 CachedDataSet x, 
+                                 HttpServletResponse response) 
+      throws RequestException, IOException, XMLStreamException {
+    InputStream in = new GrowingFileInputStream(x, MAXIMUM_WAIT_IN_SECONDS * 1000L);
+    try {
+      // The version is found from the head of the document, which is then
+      // replayed to the transformer.
+      ByteArrayOutputStream head = new ByteArrayOutputStream();
+      XsamsVersionSniffer sniffer = new XsamsVersionSniffer(head);
+      byte[] buffer = new byte[8192];
+      int n;
+      long start = System.nanoTime();
+      while (!sniffer.isFinished() && (n = in.read(buffer)) != -1) {
+        sniffer.write(buffer, 0, n);
+      }
+      String version = sniffer.getVersion();
+      getCache().getMetrics().getSniffTime().record(System.nanoTime() - start);
+      if (version == null) {
+        throw new RequestException("XSAMS version was not recognized");
+      }
+      InputStream data = new SequenceInputStream(new ByteArrayInputStream(head.toByteArray()), in);
+      SourceFormatter format = getFormat(request, response);
+      response.setContentType(format.getMediaTypes()[0]);
+      response.setCharacterEncoding("UTF-8");
+      Writer w = new OutputStreamWriter(response.getOutputStream(), "UTF-8");
+      new StreamingBibliographyTransformer(true).transform(data, version, format, w);
+      w.flush();
+    }
+    finally {
+      in.close();
+    }
+  }
+  
+  /**
+   * Parks the request until the data are ready or the given time has
+   * passed, then dispatches it back to this servlet. The container thread
+   * is released meanwhile. A request that stops waiting withdraws its
+   * listener from the download, so that a long download does not gather
+   * the listeners of every request that gave up on it.
+   * 
+   * @param request The HTTP request.
+   * @param x The data set being downloaded.
+   * @param seconds The greatest time to wait.
+   */
+  private void awaitDownload(HttpServletRequest request, final CachedDataSet x, long seconds) {
+    final AsyncContext context = request.startAsync();
+    context.setTimeout(seconds * 1000L);
+    final AtomicBoolean dispatched = new AtomicBoolean();
+    final Runnable ready = new Runnable() {
+      @Override
+      public void run() {
+        if (dispatched.compareAndSet(false, true)) {
+          context.dispatch();
+        }
+      }
+    };
+    context.addListener(new AsyncListener() {
+      @Override
+      public void onTimeout(AsyncEvent event) {
+        x.removeCompletionListener(ready);
+        if (dispatched.compareAndSet(false, true)) {
+          context.dispatch();
+        }
+      }
+      
+      @Override
+      public void onComplete(AsyncEvent event) {
+      }
+      
+      @Override
+      public void onError(AsyncEvent event) {
+        x.removeCompletionListener(ready);
+        dispatched.set(true);
+      }
+      
+      @Override
+      public void onStartAsync(AsyncEvent event) {
+      }
+    });
+    x.addCompletionListener(ready);
+  }
+  
+  /**
+   * Reads the time for which the request may wait for a download.
+   * 
+   * @param request The HTTP request.
+   * @return The time in seconds, no more than {@link #MAXIMUM_WAIT_IN_SECONDS}; 
+   *         zero if the request may not wait.
+   * @throws RequestException If the parameter is not a whole number.
+   */
+  private long getWaitSeconds(HttpServletRequest request) throws RequestException {
+    String value = request.getParameter(WAIT_PARAMETER);
+    if (value == null || value.trim().length() == 0) {
+      return 0L;
+    }
+    try {
+      long wait = Long.parseLong(value.trim());
+      return Math.max(0L, Math.min(wait, MAXIMUM_WAIT_IN_SECONDS));
+    }
+    catch (NumberFormatException e) {
+      throw new RequestException("Parameter " + WAIT_PARAMETER + " must be a whole number of seconds");
     }
   }
   
   @Override
   public void post(HttpServletRequest request, HttpServletResponse response) 
       throws RequestException, IllegalStateException, FileNotFoundException, 
-             IOException, TransformerException, DownloadException, ServletException {
+             IOException, TransformerException, XMLStreamException, DownloadException, 
+             ServletException {
     get(request, response);
   }
   
+  /**
+   * Supplies the time at which the requested bibliography was rendered.
+   * This lets the container answer conditional requests with If-Modified-Since
+   * and add Last-Modified to the response.
+   * 
+   * @param request The HTTP request.
+   * @return The time in milliseconds; -1 if the data are not cached or not
+   *         ready, or the bibliography has not been rendered by the current
+   *         engine and stylesheets.
+   */
+  @Override
+  protected long getLastModified(HttpServletRequest request) {
+    try {
+      String key = getKey(request);
+      CachedDataSet x = getCache().lookup(key);
+      if (x != null && x.isReady()) {
+        long t = x.getRenderedFile(getRendition(getFormat(request))).lastModified();
+        if (t == 0L) {
+          return -1L;
+        }
+        
+        // HTTP dates are in whole seconds, and some containers compare
+        // If-Modified-Since with this time as it is.
+        t = t / 1000L * 1000L;
+        if (request.getDateHeader("If-Modified-Since") >= t) {
+          // The container answers 304 without calling get, so the lookup
+          // is counted here.
+          getCache().get(key);
+        }
+        return t;
+      }
+    }
+    catch (Exception e) {
+      // Treat as unknown; the failure is reported when the request is handled.
+    }
+    return -1L;
+  }
+  
+  /**
+   * Transforms cached XSAMS to a bibliography and writes the result to the
+   * response. The XSAMS version was detected when the data were cached, so
+   * the cache file is opened once only, for the transformation.
+   * <p>
+   * The bibliography is rendered once per data set and format and kept in a
+   * file next to the cache file; later requests are served from that file.
+   * The response carries an entity tag, and a request with a matching 
+   * If-None-Match is answered with 304 and no body.
+   * 
+   * @param request The HTTP request.
+   * @param key The key to the cached data.
+   * @param response The HTTP response.
+   * <p>
+   * If the data set is deleted from the cache meanwhile, the response has
+   * status 410 (gone).
+   * 
+   * @throws RequestException If nothing is cached under the key.
+   * @throws RequestException If the XSAMS version was not recognized.
+   * @throws DownloadException If the download of the data failed.
+   * @throws TransformerException If the XSLT engine cannot transform the data.
+   * @throws XMLStreamException If the StAX engine cannot transform the data.
+   */
   public void transformXsams(HttpServletRequest request, String key, HttpServletResponse response) 
-      throws RequestException, IllegalStateException, FileNotFoundException, IOException, TransformerException {
-    String version = getXsamsVersion(getData(key));
-    StreamSource in = getData(key);
-    response.setContentType("text/plain");
-    response.setCharacterEncoding("UTF-8");
-    StreamResult out = new StreamResult(response.getWriter());
+      throws RequestException, IllegalStateException, FileNotFoundException, IOException, 
+             TransformerException, XMLStreamException, DownloadException {
+    CachedDataSet x = getDataSet(key, false);
+    SourceFormatter format = getFormat(request, response);
+    String rendition = getRendition(format);
+    String tag = x.getEntityTag(rendition);
+    response.setHeader("ETag", tag);
+    if (matchesEntityTag(request.getHeader("If-None-Match"), tag)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+    
+    File rendered = x.getRenderedFile(rendition);
+    if (!rendered.exists() && !render(x, format)) {
+      writeGone(key, response);
+      return;
+    }
+    FileInputStream in;
+    try {
+      in = new FileInputStream(rendered);
+    }
+    catch (FileNotFoundException e) {
+      if (x.isDeleted()) {
+        writeGone(key, response);
+        return;
+      }
+      throw e;
+    }
+    try {
+      response.setContentType(format.getMediaTypes()[0]);
+      response.setCharacterEncoding("UTF-8");
+      long length = in.getChannel().size();
+      if (length <= Integer.MAX_VALUE) {
+        response.setContentLength((int) length);
+      }
+      OutputStream out = response.getOutputStream();
+      byte[] buffer = new byte[CacheFileWriter.BUFFER_SIZE];
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        out.write(buffer, 0, n);
+      }
+    }
+    finally {
+      in.close();
+    }
+  }
+  
+  /**
+   * Transforms cached XSAMS to bibliographies in files. BibTeX, when the XSLT
+   * engine is selected, is made alone by the stylesheet; otherwise every
+   * format not yet rendered is made in one pass over the data. Each file is
+   * written first to a temporary file which is then renamed, so a rendered
+   * file is never seen part-written. The rendered files are charged to the
+   * disk allocation of the data set, and so to the budget of the cache.
+   * 
+   * @throws QuotaExceededException If the cache has no room for the renderings.
+   * 
+   * @param x The data set.
+   * @param requested The format asked for.
+   * @return True if the formats were rendered; false if the data set was
+   *         deleted, in which case no renderings are left.
+   * @throws RequestException If the XSAMS version was not recognized.
+   */
+  private boolean render(CachedDataSet x, SourceFormatter requested) 
+      throws RequestException, IllegalStateException, FileNotFoundException, IOException, 
+             TransformerException, XMLStreamException, DownloadException {
+    String version = x.getXsamsVersion();
+    if (version == null) {
+      throw new RequestException("XSAMS version was not recognized");
+    }
+    boolean stylesheet = useStylesheets && "bib".equals(requested.getName());
+    List<SourceFormatter> formats = new ArrayList<SourceFormatter>();
+    if (stylesheet) {
+      formats.add(requested);
+    }
+    else {
+      for (SourceFormatter f : formatters.values()) {
+        if (f == requested || !x.getRenderedFile(getRendition(f)).exists()) {
+          formats.add(f);
+        }
+      }
+    }
+    
+    List<File> rendered = new ArrayList<File>();
+    List<File> temporary = new ArrayList<File>();
+    Map<SourceFormatter, Writer> outputs = new LinkedHashMap<SourceFormatter, Writer>();
+    boolean done = false;
+    try {
+      for (SourceFormatter f : formats) {
+        File r = x.getRenderedFile(getRendition(f));
+        File tmp = File.createTempFile(r.getName(), ".tmp", r.getParentFile());
+        rendered.add(r);
+        temporary.add(tmp);
+        outputs.put(f, new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(tmp)), "UTF-8"));
+      }
+      InputStream in;
+      try {
+        in = openData(x);
+      }
+      catch (FileNotFoundException e) {
+        if (x.isDeleted()) {
+          return false;
+        }
+        throw e;
+      }
+      try {
+        long start = System.nanoTime();
+        if (stylesheet) {
+          Transformer t = getTransformer(version);
+          t.transform(new StreamSource(in), new StreamResult(outputs.get(requested)));
+        }
+        else {
+          new StreamingBibliographyTransformer(getCache().getFormattingPool())
+              .transform(in, version, outputs);
+        }
+        getCache().getMetrics().getTransformTime().record(System.nanoTime() - start);
+      }
+      finally {
+        in.close();
+      }
+      for (Writer w : outputs.values()) {
+        w.close();
+      }
+      
+      // A rendering made meanwhile by another request is kept, and this
+      // one dropped, so that no rendering is charged twice.
+      long size = 0L;
+      for (int i = 0; i < rendered.size(); i++) {
+        if (!rendered.get(i).exists()) {
+          size += temporary.get(i).length();
+        }
+      }
+      if (x.getAllocation() != null) {
+        x.getAllocation().reserveDerived(size);
+      }
+      for (int i = 0; i < rendered.size(); i++) {
+        if (rendered.get(i).exists()) {
+          temporary.get(i).delete();
+          continue;
+        }
+        if (!temporary.get(i).renameTo(rendered.get(i))) {
+          throw new IOException("Failed to rename " + temporary.get(i) + " to " + rendered.get(i));
+        }
+        LOG.info("Rendered " + rendered.get(i));
+      }
+      done = true;
+    }
+    finally {
+      if (!done) {
+        for (Writer w : outputs.values()) {
+          try {
+            w.close();
+          }
+          catch (IOException e) {
+            // The rendering has failed anyway.
+          }
+        }
+        for (File tmp : temporary) {
+          tmp.delete();
+        }
+      }
+    }
     
-    Transformer t = TransformerFactory.newInstance().newTransformer(getXslt(version));
-    t.transform(in, out);
+    // The data set may have been purged while the rendering was written,
+    // and its allocation released before the renderings were charged.
+    if (x.isDeleted()) {
+      for (File r : rendered) {
+        r.delete();
+      }
+      if (x.getAllocation() != null) {
+        x.getAllocation().release();
+      }
+      return false;
+    }
+    return true;
   }
   
+  /**
+   * Labels a format with the way it is rendered: the engine and, for the
+   * stylesheets, their version. The label names the rendered file and is 
+   * part of the entity tag.
+   * 
+   * @param format The format.
+   * @return The label, e.g. "xslt-0a1b2c3d.bib" or "stax.ris".
+   */
+  private String getRendition(SourceFormatter format) {
+    if (useStylesheets && "bib".equals(format.getName())) {
+      return "xslt-" + stylesheets.getVersion() + "." + format.getName();
+    }
+    return "stax." + format.getName();
+  }
   
+  /**
+   * Answers a request for data deleted from the cache while the request
+   * was being handled.
+   */
+  private void writeGone(String key, HttpServletResponse response) throws IOException {
+    LOG.info("The data under " + key + " were deleted during the request");
+    response.sendError(HttpServletResponse.SC_GONE, "The data under " + key + " are no longer cached");
+  }
   
-  protected StreamSource getData(String key) 
-      throws RequestException, IllegalStateException, FileNotFoundException {
-    DataCache cache = (DataCache) getServletContext().getAttribute(DataCache.CACHE_ATTRIBUTE);
-    if (cache == null) {
-      throw new IllegalStateException("The data cache is missing");
+  /**
+   * Determines whether the value of an If-None-Match header matches an entity tag.
+   * 
+   * @param header The header value; may be null.
+   * @param tag The entity tag, including quotes.
+   * @return True if the header matches.
+   */
+  private boolean matchesEntityTag(String header, String tag) {
+    if (header == null) {
+      return false;
     }
-    getCache().purge();
-    CachedDataSet x = getCache().get(key);
+    for (String t : header.split(",")) {
+      String u = t.trim();
+      if (u.startsWith("W/")) {
+        u = u.substring(2);
+      }
+      if (u.equals("*") || u.equals(tag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  
+  /**
+   * Finds a data set in the cache for a client's request, counting the
+   * lookup in the cache's metrics. Old data are purged by the cache in the
+   * background, not here.
+   * 
+   * @param key The key to the cached data.
+   * @return The data set (never null).
+   * @throws RequestException If nothing is cached under the key.
+   * @throws IllegalStateException If the data cache is not available.
+   */
+  protected CachedDataSet getDataSet(String key) 
+      throws RequestException, IllegalStateException {
+    return getDataSet(key, true);
+  }
+  
+  /**
+   * Finds a data set in the cache.
+   * 
+   * @param key The key to the cached data.
+   * @param counted True to count the lookup in the cache's metrics; false 
+   *        if the request's lookup has been counted already.
+   * @return The data set (never null).
+   * @throws RequestException If nothing is cached under the key.
+   * @throws IllegalStateException If the data cache is not available.
+   */
+  protected CachedDataSet getDataSet(String key, boolean counted) 
+      throws RequestException, IllegalStateException {
+    CachedDataSet x = counted? getCache().get(key) : getCache().lookup(key);
     if (x == null) {
       throw new RequestException("Nothing is cached under " + key);
     }
+    return x;
+  }
+  
+  /**
+   * Opens the cache file of a data set. The caller must close the stream.
+   * 
+   * @param x The data set.
+   * @return The stream of data from the cache file.
+   * @throws FileNotFoundException If the cache file is missing.
+   */
+  protected InputStream openData(CachedDataSet x) throws FileNotFoundException {
     try {
-      return new StreamSource(new FileInputStream(x.getCacheFile()));
+      return new BufferedInputStream(new FileInputStream(x.getCacheFile()));
     }
     catch (FileNotFoundException e) {
       throw new FileNotFoundException("Cached XSAMS file " + x.getCacheFile() + " is missing");
     }
   }
   
+  /**
+   * Reads the key from the request path, without any format suffix.
+   * 
+   * @param request The HTTP request.
+   * @return The key.
+   * @throws RequestException If the path names no data.
+   */
   protected String getKey(HttpServletRequest request) throws RequestException {
     String q = request.getPathInfo();
     log("q=" + q);
-    return (q.startsWith("/"))? q.substring(1) : q;
+    if (q == null) {
+      throw new RequestException("Please give the key to the cached data in the path");
+    }
+    String key = (q.startsWith("/"))? q.substring(1) : q;
+    int dot = key.indexOf('.');
+    return (dot == -1)? key : key.substring(0, dot);
+  }
+  
+  /**
+   * Chooses the format of the bibliography: the one named by the suffix to
+   * the key in the path, if any, or else the best match for the Accept 
+   * header. In the latter case the response is marked as varying by Accept.
+   * 
+   * @param request The HTTP request.
+   * @param response The HTTP response.
+   * @return The format.
+   * @throws RequestException If the suffix names a format not offered.
+   */
+  protected SourceFormatter getFormat(HttpServletRequest request, HttpServletResponse response) 
+      throws RequestException {
+    String q = request.getPathInfo();
+    if (q == null || q.lastIndexOf('.') == -1) {
+      response.setHeader("Vary", "Accept");
+    }
+    return getFormat(request);
+  }
+  
+  private SourceFormatter getFormat(HttpServletRequest request) throws RequestException {
+    String q = request.getPathInfo();
+    int dot = (q == null)? -1 : q.lastIndexOf('.');
+    if (dot != -1) {
+      String name = q.substring(dot + 1);
+      SourceFormatter f = formatters.get(name);
+      if (f == null) {
+        throw new RequestException("Format " + name + " is not offered; try one of " + 
+                                   formatters.keySet());
+      }
+      return f;
+    }
+    return negotiate(request.getHeader("Accept"), formatters.values());
+  }
+  
+  /**
+   * Chooses the format that best matches an Accept header. Each format 
+   * takes the quality of the most specific media range matching any of its
+   * media types; the format of highest quality wins, and of equal ones the
+   * earliest. If no format is acceptable, the first is chosen anyway.
+   * 
+   * @param accept The value of the Accept header; may be null.
+   * @param formats The formats offered, the default first.
+   * @return The format.
+   */
+  static SourceFormatter negotiate(String accept, Collection<SourceFormatter> formats) {
+    SourceFormatter first = formats.iterator().next();
+    if (accept == null || accept.trim().length() == 0) {
+      return first;
+    }
+    SourceFormatter best = null;
+    double bestQuality = 0.0;
+    for (SourceFormatter f : formats) {
+      double quality = 0.0;
+      int specificity = -1;
+      for (String range : accept.split(",")) {
+        String[] parts = range.split(";");
+        String type = parts[0].trim().toLowerCase();
+        int s = -1;
+        for (String t : f.getMediaTypes()) {
+          if (type.equals(t)) {
+            s = Math.max(s, 2);
+          }
+          else if (type.endsWith("/*") && t.startsWith(type.substring(0, type.length() - 1))) {
+            s = Math.max(s, 1);
+          }
+          else if (type.equals("*/*") || type.equals("*")) {
+            s = Math.max(s, 0);
+          }
+        }
+        if (s > specificity) {
+          specificity = s;
+          quality = getQuality(parts);
+        }
+      }
+      if (quality > bestQuality) {
+        best = f;
+        bestQuality = quality;
+      }
+    }
+    return (best == null)? first : best;
+  }
+  
+  private static double getQuality(String[] parameters) {
+    for (int i = 1; i < parameters.length; i++) {
+      String p = parameters[i].trim();
+      if (p.startsWith("q=")) {
+        try {
+          return Double.parseDouble(p.substring(2).trim());
+        }
+        catch (NumberFormatException e) {
+          return 0.0;
+        }
+      }
+    }
+    return 1.0;
   }
   
   protected String getOriginalUrlEncoded(String key) throws RequestException {
@@ -110,13 +813,22 @@ public class TransformingServlet extends ErrorReportingServlet {
     }
   }
   
-  protected Source getXslt(String version) {
-    String stylesheetName = getInitParameter("stylesheet");
-    InputStream in = this.getClass().getResourceAsStream("/"+version+"/"+stylesheetName);
-    if (in == null) {
-      throw new IllegalStateException("Can't find the stylesheet " + stylesheetName);
+  /**
+   * Supplies a transformer for the given XSAMS version, using the stylesheet
+   * named in the init-parameters. The transformer comes from the compiled
+   * stylesheet in the registry; it is not shared with other requests.
+   * 
+   * @param version The XSAMS version.
+   * @return The transformer.
+   * @throws IllegalStateException If the stylesheet is not available.
+   * @throws TransformerException If the stylesheet cannot be compiled.
+   */
+  protected Transformer getTransformer(String version) 
+      throws IllegalStateException, TransformerException {
+    if (reloadStylesheets) {
+      stylesheets.reloadIfModified();
     }
-    return new StreamSource(in);
+    return stylesheets.newTransformer(version, getInitParameter("stylesheet"));
   }
   
   
@@ -128,48 +840,11 @@ public class TransformingServlet extends ErrorReportingServlet {
     return cache;
   }
   
-  protected String getXsamsVersion(Source xml) throws RequestException {
-    XMLEventReader in = null;
-    try {
-      in = XMLInputFactory.newFactory().createXMLEventReader(xml);
-      while (in.hasNext()) {
-        XMLEvent x = (XMLEvent) in.next();
-        if (x.isStartElement()) {
-          String n = x.asStartElement().getName().getNamespaceURI();
-          if ("http://vamdc.org/xml/xsams/0.3".equals(n)) {
-            LOG.info("XSAMS v0.3");
-            return "0.3";
-          }
-          else if ("http://vamdc.org/xml/xsams/1.0".equals(n)) {
-            LOG.info("XSAMS v1.0");
-            return "1.0";
-          }
-          else {
-            throw new RequestException("XSAMS version was not recognized");
-          }
-        }
-      }
-      throw new RequestException("XSAMS version was not given");
-    }
-    catch(Exception e) {
-      throw new RequestException("XSAMS version was not found", e);
-    }
-    finally {
-      if (in != null) {
-        try {
-          in.close();
-        }
-        catch (Exception e) {
-          // Ignore it.
-        }
-      }
-    }
-  }
-
   private void writeDeferral(HttpServletRequest request, CachedDataSet x, HttpServletResponse response) 
       throws ServletException, IOException {
     long bytesDownloaded = x.getByteCounter().get();
     request.setAttribute("eu.vamdc.xsams.views.bytesdownloaded", bytesDownloaded);
+    request.setAttribute("eu.vamdc.xsams.views.queueposition", getCache().getQueuePosition(x));
     request.getRequestDispatcher("/later.jsp").forward(request, response);
   }
   
@@ -0,0 +1,182 @@
+package eu.vamdc.xsams.views;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An upload of XSAMS from a stream, e.g. the body of an HTTP request, to a
+ * cache file. Like a {@link Download}, the upload is {@code Callable}, so
+ * that it can be run by an executor and followed through its future and
+ * byte counter; {@link #call} returns the XSAMS version of the document.
+ * <p>
+ * An upload may be given a limit on its size. The limit is checked as the
+ * data are read: an upload that passes it fails at once, without reading
+ * the rest of the stream. Failed uploads are not retried, since the stream
+ * cannot be read again; their partial data are deleted and their disk
+ * space released.
+ *
+ * @author Guy Rixon
+ */
+public class Upload implements Callable<Object> {
+
+  private final InputStream in;
+
+  private final File file;
+
+  private final AtomicLong bytesUploaded;
+
+  /**
+   * The signals for readers following the cache file.
+   */
+  private final DownloadProgress progress;
+
+  /**
+   * The disk space allocated to the upload; null if there is no limit.
+   */
+  private final DiskAllocation allocation;
+
+  /**
+   * The greatest number of bytes that may be uploaded; zero for no limit.
+   */
+  private final long limit;
+
+  /**
+   * True if only the Sources of the document are kept.
+   */
+  private boolean compacting;
+
+  /**
+   * Constructs an upload.
+   *
+   * @param i The stream of data, which is not closed by the upload.
+   * @param f The file to receive the data.
+   * @param a The disk allocation; null for no limit.
+   * @param maxBytes The greatest size of the upload; zero for no limit.
+   */
+  public Upload(InputStream i, File f, DiskAllocation a, long maxBytes) {
+    in = i;
+    file = f;
+    allocation = a;
+    limit = maxBytes;
+    bytesUploaded = new AtomicLong();
+    progress = new DownloadProgress();
+  }
+
+  public AtomicLong getByteCounter() {
+    return bytesUploaded;
+  }
+
+  public DownloadProgress getProgress() {
+    return progress;
+  }
+
+  /**
+   * Sets whether the document is compacted to its Sources as it is read.
+   * The limit and the byte counter still apply to the whole document.
+   *
+   * @param c True to keep only the root element and the Sources.
+   */
+  public void setCompacting(boolean c) {
+    compacting = c;
+  }
+
+  /**
+   * Executes the upload.
+   *
+   * @return The XSAMS version of the document; null if it was not recognized.
+   * @throws IOException If the stream cannot be read.
+   * @throws IOException If the cache file cannot be written.
+   * @throws DownloadException If the stream gives no bytes.
+   * @throws UploadTooLargeException If the data exceed the limit for the upload.
+   * @throws QuotaExceededException If the data exceed the disk allocation.
+   */
+  @Override
+  public Object call() throws DownloadException, IOException {
+    CacheFileWriter w = new CacheFileWriter(file, bytesUploaded, allocation);
+    w.setCompacting(compacting);
+    w.setProgress(progress);
+    try {
+      w.write((limit > 0L)? new LimitedInputStream(in, limit) : in);
+    }
+    catch (LimitExceededException e) {
+      discard();
+      throw new UploadTooLargeException(limit);
+    }
+    catch (IOException e) {
+      discard();
+      throw e;
+    }
+    catch (DownloadException e) {
+      discard();
+      throw e;
+    }
+    catch (RuntimeException e) {
+      discard();
+      throw e;
+    }
+    return w.getXsamsVersion();
+  }
+
+  /**
+   * Deletes the partial data of a failed upload and releases their disk space.
+   */
+  private void discard() {
+    if (allocation != null) {
+      allocation.release();
+    }
+    file.delete();
+  }
+
+
+  /**
+   * Signals, from inside the copying of the data, that the limit has been
+   * passed.
+   */
+  private static class LimitExceededException extends IOException {
+  }
+
+
+  /**
+   * A stream that fails when more than a given number of bytes have been
+   * read from it.
+   */
+  private static class LimitedInputStream extends FilterInputStream {
+
+    private long remaining;
+
+    LimitedInputStream(InputStream in, long limit) {
+      super(in);
+      remaining = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) {
+        count(1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) {
+        count(n);
+      }
+      return n;
+    }
+
+    private void count(int n) throws LimitExceededException {
+      remaining -= n;
+      if (remaining < 0L) {
+        throw new LimitExceededException();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,28 @@
+package eu.vamdc.xsams.views;
+
+/**
+ * Exception indicating that uploaded data were refused because they are
+ * larger than the limit for uploads. Typically, such an exception would be
+ * turned into an HTTP response with code 413 "request entity too large".
+ *
+ * @author Guy Rixon
+ */
+public class UploadTooLargeException extends QuotaExceededException {
+
+  private final long limit;
+
+  public UploadTooLargeException(long maxBytes) {
+    super("The upload is larger than the limit of " + maxBytes + " bytes");
+    limit = maxBytes;
+  }
+
+  /**
+   * Supplies the limit that was exceeded.
+   *
+   * @return The limit in bytes.
+   */
+  public long getLimit() {
+    return limit;
+  }
+
+}
@@ -0,0 +1,147 @@
+package eu.vamdc.xsams.views;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Copies an XSAMS document, keeping only the root element and its Sources
+ * element. The States, Processes and everything else under the root are
+ * dropped; only the Sources are used by the transformations, and they are
+ * usually a small part of the document. The root keeps its namespace
+ * declarations and attributes, so the copy is still a document of the same
+ * XSAMS version. Comments and processing instructions are dropped.
+ * <p>
+ * The document is streamed with StAX, so the memory used does not depend
+ * on its size. The copy is written in UTF-8.
+ *
+ * @author Guy Rixon
+ */
+public class XsamsCompactor {
+
+  private final XMLInputFactory inputFactory;
+
+  private final XMLOutputFactory outputFactory;
+
+  public XsamsCompactor() {
+    inputFactory = XMLInputFactory.newFactory();
+    inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    outputFactory = XMLOutputFactory.newFactory();
+  }
+
+  /**
+   * Copies the root and Sources of a document.
+   *
+   * @param in The document (not closed by this method).
+   * @param out The destination for the copy (flushed but not closed).
+   * @return The XSAMS version of the document, from the namespace of the
+   *         root element; null if not recognized.
+   * @throws XMLStreamException If the document is not well-formed.
+   * @throws XMLStreamException If the copy cannot be written.
+   */
+  public String compact(InputStream in, OutputStream out) throws XMLStreamException {
+    XMLStreamReader r = inputFactory.createXMLStreamReader(in);
+    XMLStreamWriter w = outputFactory.createXMLStreamWriter(out, "UTF-8");
+    try {
+      String version = null;
+      String rootNamespace = null;
+      int depth = 0;
+      int keptDepth = 0;
+      w.writeStartDocument("UTF-8", "1.0");
+      w.writeCharacters("\n");
+      while (r.hasNext()) {
+        switch (r.next()) {
+          case XMLStreamConstants.START_ELEMENT:
+            depth++;
+            if (depth == 1) {
+              rootNamespace = r.getNamespaceURI();
+              version = XsamsVersionSniffer.toVersion(rootNamespace);
+              copyStartElement(r, w);
+            }
+            else if (keptDepth > 0 || (depth == 2 && isSources(r, rootNamespace))) {
+              keptDepth++;
+              copyStartElement(r, w);
+            }
+            break;
+          case XMLStreamConstants.END_ELEMENT:
+            if (depth == 1) {
+              w.writeCharacters("\n");
+              w.writeEndElement();
+            }
+            else if (keptDepth > 0) {
+              keptDepth--;
+              w.writeEndElement();
+            }
+            depth--;
+            break;
+          case XMLStreamConstants.CHARACTERS:
+          case XMLStreamConstants.SPACE:
+            if (keptDepth > 0) {
+              w.writeCharacters(r.getTextCharacters(), r.getTextStart(), r.getTextLength());
+            }
+            break;
+          case XMLStreamConstants.CDATA:
+            if (keptDepth > 0) {
+              w.writeCData(r.getText());
+            }
+            break;
+          default:
+            break;
+        }
+      }
+      w.writeEndDocument();
+      w.flush();
+      return version;
+    }
+    finally {
+      r.close();
+      w.close();
+    }
+  }
+
+  private boolean isSources(XMLStreamReader r, String rootNamespace) {
+    if (!"Sources".equals(r.getLocalName())) {
+      return false;
+    }
+    String ns = r.getNamespaceURI();
+    return (ns == null)? rootNamespace == null : ns.equals(rootNamespace);
+  }
+
+  /**
+   * Writes a start tag as read, with its namespace declarations and
+   * attributes.
+   */
+  private void copyStartElement(XMLStreamReader r, XMLStreamWriter w) throws XMLStreamException {
+    w.writeStartElement(nonNull(r.getPrefix()), r.getLocalName(), nonNull(r.getNamespaceURI()));
+    for (int i = 0; i < r.getNamespaceCount(); i++) {
+      String prefix = r.getNamespacePrefix(i);
+      if (prefix == null || prefix.length() == 0) {
+        w.writeDefaultNamespace(nonNull(r.getNamespaceURI(i)));
+      }
+      else {
+        w.writeNamespace(prefix, nonNull(r.getNamespaceURI(i)));
+      }
+    }
+    for (int i = 0; i < r.getAttributeCount(); i++) {
+      String prefix = r.getAttributePrefix(i);
+      if (prefix == null || prefix.length() == 0) {
+        w.writeAttribute(r.getAttributeLocalName(i), r.getAttributeValue(i));
+      }
+      else {
+        w.writeAttribute(prefix, r.getAttributeNamespace(i), r.getAttributeLocalName(i),
+                         r.getAttributeValue(i));
+      }
+    }
+  }
+
+  private static String nonNull(String s) {
+    return (s == null)? "" : s;
+  }
+
+}
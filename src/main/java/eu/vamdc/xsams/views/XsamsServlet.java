@@ -0,0 +1,456 @@
+package eu.vamdc.xsams.views;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet that serves cached XSAMS as it was cached, e.g. for other VAMDC
+ * tools. The data set is named by its key in the path: /xsams/{key}. If the
+ * cache keeps only the Sources of each document, that is what is served.
+ * <p>
+ * Where the container offers sendfile (Tomcat's
+ * org.apache.tomcat.sendfile.support), the cache file is handed to the
+ * container, which sends it without copying it through the heap. Otherwise
+ * it is copied to the output stream of the response with
+ * {@link FileChannel#transferTo}, which passes the data through a buffer
+ * since the stream is not a file or socket channel.
+ * <p>
+ * Requests may ask for a single byte range, and a client that accepts gzip
+ * gets a compressed copy, made on the first such request and kept next to
+ * the cache file like other renderings. The copy is charged to the budget
+ * of the cache; if there is no room for it, the data are sent uncompressed.
+ * <p>
+ * Data still being downloaded are not served; the client is asked to try
+ * again later.
+ *
+ * @author Guy Rixon
+ */
+public class XsamsServlet extends ErrorReportingServlet {
+
+  /**
+   * The media type of XSAMS, as served by VAMDC nodes.
+   */
+  public static final String XSAMS_MEDIA_TYPE = "application/x-xsams+xml";
+
+  /**
+   * The time, in seconds, after which a client should ask again for data
+   * still being downloaded.
+   */
+  public static final long RETRY_AFTER_SECONDS = 10L;
+
+  /**
+   * The format of the compressed copy, as passed to
+   * {@link CachedDataSet#getRenderedFile}.
+   */
+  private static final String GZIP_FORMAT = "gz";
+
+  @Override
+  public void get(HttpServletRequest request, HttpServletResponse response)
+      throws RequestException, IOException, DownloadException {
+    String key = getKey(request);
+    CachedDataSet x = getCache().get(key);
+    if (x == null) {
+      throw new RequestException("Nothing is cached under " + key);
+    }
+    if (!x.isReady()) {
+      throw new ServiceBusyException("The data under " + key + " are still being cached",
+                                     RETRY_AFTER_SECONDS);
+    }
+
+    File f = x.getCacheFile();
+    boolean gzip = false;
+    if (acceptsGzip(request.getHeader("Accept-Encoding"))) {
+      File compressed = x.getRenderedFile(GZIP_FORMAT);
+      if (compressed.exists() || compress(x, compressed)) {
+        f = compressed;
+        gzip = true;
+      }
+    }
+    String tag = x.getEntityTag();
+    if (gzip) {
+      tag = tag.substring(0, tag.length() - 1) + "-gz\"";
+    }
+    response.setHeader("ETag", tag);
+    response.setHeader("Vary", "Accept-Encoding");
+    response.setHeader("Accept-Ranges", "bytes");
+    if (matchesEntityTag(request.getHeader("If-None-Match"), tag)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+    if (gzip) {
+      response.setHeader("Content-Encoding", "gzip");
+    }
+    response.setContentType(XSAMS_MEDIA_TYPE);
+
+    long length = f.length();
+    ByteRange range = null;
+    if (isRangeCurrent(request, tag, getLastModified(x))) {
+      range = parseRange(request.getHeader("Range"), length);
+    }
+    if (range == null) {
+      send(request, response, f, 0L, length);
+    }
+    else if (range.isSatisfiable()) {
+      response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+      response.setHeader("Content-Range",
+                         "bytes " + range.getFirst() + "-" + range.getLast() + "/" + length);
+      send(request, response, f, range.getFirst(), range.getLast() + 1L);
+    }
+    else {
+      // Not sendError, which may drop the headers.
+      response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+      response.setHeader("Content-Range", "bytes */" + length);
+      response.setContentLength(0);
+    }
+  }
+
+  @Override
+  public void post(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+  }
+
+  /**
+   * Supplies the time at which the requested data were cached. This lets
+   * the container answer conditional requests with If-Modified-Since and
+   * add Last-Modified to the response.
+   *
+   * @param request The HTTP request.
+   * @return The time in milliseconds; -1 if the data are not cached or not ready.
+   */
+  @Override
+  protected long getLastModified(HttpServletRequest request) {
+    try {
+      String key = getKey(request);
+      CachedDataSet x = getCache().lookup(key);
+      if (x != null && x.isReady()) {
+        long t = getLastModified(x);
+        if (t == -1L) {
+          return -1L;
+        }
+        if (request.getDateHeader("If-Modified-Since") >= t) {
+          // The container answers 304 without calling get, so the lookup
+          // is counted here.
+          getCache().get(key);
+        }
+        return t;
+      }
+    }
+    catch (Exception e) {
+      // Treat as unknown; the failure is reported when the request is handled.
+    }
+    return -1L;
+  }
+
+  /**
+   * Supplies the time that Last-Modified advertises for a data set: the
+   * time at which the data were cached, whether the response is sent from
+   * the cache file or from its compressed copy. HTTP dates are in whole
+   * seconds, and some containers compare If-Modified-Since with this time
+   * as it is, so the time is rounded down to a whole second.
+   *
+   * @param x The data set.
+   * @return The time in milliseconds; -1 if not known.
+   */
+  private long getLastModified(CachedDataSet x) {
+    long t = x.getCacheFile().lastModified();
+    return (t == 0L)? -1L : t / 1000L * 1000L;
+  }
+
+  /**
+   * Sends part of a file as the body of the response. The Content-Length
+   * is set here.
+   *
+   * @param request The HTTP request.
+   * @param response The HTTP response.
+   * @param f The file.
+   * @param start The offset of the first byte to send.
+   * @param end The offset after the last byte to send.
+   * @throws IOException If the file cannot be read or the response written.
+   */
+  private void send(HttpServletRequest request, HttpServletResponse response,
+                    File f, long start, long end) throws IOException {
+    // The servlet 3.0 API sets the length only as an int.
+    response.setHeader("Content-Length", Long.toString(end - start));
+    if ("HEAD".equals(request.getMethod()) || start == end) {
+      return;
+    }
+    if (Boolean.TRUE.equals(request.getAttribute("org.apache.tomcat.sendfile.support"))) {
+      request.setAttribute("org.apache.tomcat.sendfile.filename", f.getCanonicalPath());
+      request.setAttribute("org.apache.tomcat.sendfile.start", Long.valueOf(start));
+      request.setAttribute("org.apache.tomcat.sendfile.end", Long.valueOf(end));
+      return;
+    }
+    FileInputStream in = new FileInputStream(f);
+    try {
+      FileChannel c = in.getChannel();
+      WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+      long position = start;
+      while (position < end) {
+        long n = c.transferTo(position, end - position, out);
+        if (n <= 0L) {
+          throw new IOException("Cache file " + f + " is shorter than expected");
+        }
+        position += n;
+      }
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Writes a gzip copy of the cache file. The copy is written first to a
+   * temporary file which is then renamed, so the copy is never seen
+   * part-written. The copy is charged to the disk allocation of the data set.
+   *
+   * @param x The data set.
+   * @param compressed The file to receive the copy.
+   * @return True if the copy was made; false if the cache has no room for it.
+   * @throws IOException If the copy cannot be written.
+   */
+  private boolean compress(CachedDataSet x, File compressed) throws IOException {
+    File tmp = File.createTempFile(compressed.getName(), ".tmp", compressed.getParentFile());
+    boolean done = false;
+    try {
+      InputStream in = new BufferedInputStream(new FileInputStream(x.getCacheFile()));
+      try {
+        OutputStream out = new GZIPOutputStream(new FileOutputStream(tmp), CacheFileWriter.BUFFER_SIZE);
+        try {
+          byte[] buffer = new byte[CacheFileWriter.BUFFER_SIZE];
+          int n;
+          while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+          }
+        }
+        finally {
+          out.close();
+        }
+      }
+      finally {
+        in.close();
+      }
+      if (compressed.exists()) {
+        // Another request made the copy meanwhile.
+        return true;
+      }
+      if (x.getAllocation() != null) {
+        try {
+          x.getAllocation().reserveDerived(tmp.length());
+        }
+        catch (QuotaExceededException e) {
+          LOG.warn("No room to keep a compressed copy of " + x.getCacheFile() + ": " + e.getMessage());
+          return false;
+        }
+      }
+      if (!tmp.renameTo(compressed)) {
+        throw new IOException("Failed to rename " + tmp + " to " + compressed);
+      }
+      done = true;
+      LOG.info("Compressed " + compressed);
+    }
+    finally {
+      if (!done) {
+        tmp.delete();
+      }
+    }
+
+    // The data set may have been purged while the copy was written, and
+    // its allocation released before the copy was charged.
+    if (x.isDeleted()) {
+      compressed.delete();
+      if (x.getAllocation() != null) {
+        x.getAllocation().release();
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Determines whether the client accepts gzip.
+   *
+   * @param header The value of the Accept-Encoding header; may be null.
+   * @return True if gzip is accepted with a quality above zero.
+   */
+  static boolean acceptsGzip(String header) {
+    if (header == null) {
+      return false;
+    }
+    for (String coding : header.split(",")) {
+      String[] parts = coding.split(";");
+      String name = parts[0].trim().toLowerCase();
+      if (name.equals("gzip") || name.equals("x-gzip")) {
+        for (int i = 1; i < parts.length; i++) {
+          String p = parts[i].trim();
+          if (p.startsWith("q=")) {
+            try {
+              return Double.parseDouble(p.substring(2).trim()) > 0.0;
+            }
+            catch (NumberFormatException e) {
+              return false;
+            }
+          }
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Determines whether a Range header applies, given the If-Range header.
+   * Without If-Range the range always applies; otherwise it applies only
+   * if the entity tag or the time of modification matches. A date is
+   * compared with the time sent in Last-Modified, not with the time of the
+   * file being served, which may be the later compressed copy.
+   *
+   * @param request The HTTP request.
+   * @param tag The entity tag of the response.
+   * @param lastModified The time sent in Last-Modified, in milliseconds.
+   * @return True if a Range header should be honoured.
+   */
+  private boolean isRangeCurrent(HttpServletRequest request, String tag, long lastModified) {
+    String ifRange = request.getHeader("If-Range");
+    if (ifRange == null) {
+      return true;
+    }
+    ifRange = ifRange.trim();
+    if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+      return ifRange.equals(tag);
+    }
+    try {
+      return request.getDateHeader("If-Range") / 1000L == lastModified / 1000L;
+    }
+    catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Parses a Range header. Only a single range of bytes is served; a
+   * header asking for several ranges, or in units other than bytes, is
+   * ignored and the whole entity is sent.
+   *
+   * @param header The value of the Range header; may be null.
+   * @param length The length of the entity.
+   * @return The range; null if the whole entity is to be sent.
+   */
+  static ByteRange parseRange(String header, long length) {
+    if (header == null) {
+      return null;
+    }
+    String h = header.trim();
+    if (!h.startsWith("bytes=") || h.indexOf(',') != -1) {
+      return null;
+    }
+    String spec = h.substring(6).trim();
+    int dash = spec.indexOf('-');
+    if (dash == -1) {
+      return null;
+    }
+    try {
+      String a = spec.substring(0, dash).trim();
+      String b = spec.substring(dash + 1).trim();
+      if (a.length() == 0) {
+        // A suffix: the last b bytes.
+        long n = Long.parseLong(b);
+        if (n <= 0L || length == 0L) {
+          return ByteRange.UNSATISFIABLE;
+        }
+        return new ByteRange(Math.max(0L, length - n), length - 1L);
+      }
+      long first = Long.parseLong(a);
+      long last = (b.length() == 0)? Long.MAX_VALUE : Long.parseLong(b);
+      if (first < 0L || last < first) {
+        return null;
+      }
+      if (first >= length) {
+        return ByteRange.UNSATISFIABLE;
+      }
+      return new ByteRange(first, Math.min(last, length - 1L));
+    }
+    catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Determines whether the value of an If-None-Match header matches an entity tag.
+   *
+   * @param header The header value; may be null.
+   * @param tag The entity tag, including quotes.
+   * @return True if the header matches.
+   */
+  private boolean matchesEntityTag(String header, String tag) {
+    if (header == null) {
+      return false;
+    }
+    for (String t : header.split(",")) {
+      String u = t.trim();
+      if (u.startsWith("W/")) {
+        u = u.substring(2);
+      }
+      if (u.equals("*") || u.equals(tag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private String getKey(HttpServletRequest request) throws RequestException {
+    String q = request.getPathInfo();
+    if (q == null || q.equals("/")) {
+      throw new RequestException("Please give the key to the cached data, as /xsams/{key}");
+    }
+    return (q.startsWith("/"))? q.substring(1) : q;
+  }
+
+  private DataCache getCache() throws IllegalStateException {
+    DataCache cache = (DataCache) getServletContext().getAttribute(DataCache.CACHE_ATTRIBUTE);
+    if (cache == null) {
+      throw new IllegalStateException("The data cache is missing");
+    }
+    return cache;
+  }
+
+  /**
+   * A range of bytes, inclusive at both ends as in HTTP.
+   */
+  static final class ByteRange {
+
+    static final ByteRange UNSATISFIABLE = new ByteRange(-1L, -1L);
+
+    private final long first;
+
+    private final long last;
+
+    ByteRange(long f, long l) {
+      first = f;
+      last = l;
+    }
+
+    long getFirst() {
+      return first;
+    }
+
+    long getLast() {
+      return last;
+    }
+
+    boolean isSatisfiable() {
+      return first >= 0L;
+    }
+
+  }
+
+}
@@ -0,0 +1,169 @@
+package eu.vamdc.xsams.views;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A filter on an output stream that detects the XSAMS version of the
+ * document passing through it. The bytes are passed on unchanged. A copy of
+ * the head of the document is kept until the root element has been seen;
+ * the version is then taken from the namespace of the root element and
+ * no further bytes are copied.
+ * <p>
+ * The sniffer is intended to sit under a buffered stream, such that it sees
+ * writes of whole buffers rather than single bytes. It tries to find the
+ * root element after each write, so a write of a single byte is expensive
+ * until the version is known.
+ *
+ * @author Guy Rixon
+ */
+public class XsamsVersionSniffer extends FilterOutputStream {
+
+  private static final Log LOG = LogFactory.getLog(XsamsVersionSniffer.class);
+
+  /**
+   * The largest document-head that is searched for the root element.
+   */
+  public static final int MAXIMUM_HEAD_LENGTH = 64 * 1024;
+
+  private final XMLInputFactory factory;
+
+  private ByteArrayOutputStream head;
+
+  private boolean finished;
+
+  private String version;
+
+  public XsamsVersionSniffer(OutputStream out) {
+    super(out);
+    factory = makeFactory();
+    head = new ByteArrayOutputStream(8192);
+    finished = false;
+    version = null;
+  }
+
+  /**
+   * Supplies the XSAMS version found in the document.
+   *
+   * @return The version, e.g. "1.0"; null if the version is not (yet) known.
+   */
+  public String getVersion() {
+    return version;
+  }
+
+  /**
+   * Reveals whether the sniffer has stopped looking for the version.
+   *
+   * @return True if the root element was found or the head limit was reached.
+   */
+  public boolean isFinished() {
+    return finished;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    out.write(b);
+    if (!finished) {
+      head.write(b);
+      sniff();
+    }
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    out.write(b, off, len);
+    if (!finished) {
+      head.write(b, off, Math.min(len, MAXIMUM_HEAD_LENGTH - head.size()));
+      sniff();
+    }
+  }
+
+  /**
+   * Tries to find the root element in the head of the document. If the
+   * head is complete then the sniffer is finished, whether or not the
+   * root element was found.
+   */
+  private void sniff() {
+    boolean found = false;
+    XMLStreamReader r = null;
+    try {
+      r = factory.createXMLStreamReader(new ByteArrayInputStream(head.toByteArray()));
+      while (r.hasNext()) {
+        if (r.next() == XMLStreamConstants.START_ELEMENT) {
+          version = toVersion(r.getNamespaceURI());
+          found = true;
+          break;
+        }
+      }
+    }
+    catch (XMLStreamException e) {
+      // The head is truncated or not well-formed.
+    }
+    finally {
+      if (r != null) {
+        try {
+          r.close();
+        }
+        catch (XMLStreamException e) {
+          // Ignore it.
+        }
+      }
+    }
+    if (found || head.size() >= MAXIMUM_HEAD_LENGTH) {
+      finished = true;
+      head = null;
+      LOG.info((version == null)? "XSAMS version was not recognized" : "XSAMS v" + version);
+    }
+  }
+
+  /**
+   * Translates an XSAMS namespace to a version number.
+   *
+   * @param namespace The namespace URI.
+   * @return The version, e.g. "1.0"; null if the namespace is not XSAMS.
+   */
+  public static String toVersion(String namespace) {
+    if ("http://vamdc.org/xml/xsams/0.3".equals(namespace)) {
+      return "0.3";
+    }
+    else if ("http://vamdc.org/xml/xsams/1.0".equals(namespace)) {
+      return "1.0";
+    }
+    else {
+      return null;
+    }
+  }
+
+  /**
+   * Translates an XSAMS version number to a namespace.
+   *
+   * @param version The version, e.g. "1.0".
+   * @return The namespace URI.
+   * @throws IllegalArgumentException If the version is not known.
+   */
+  public static String toNamespace(String version) {
+    if ("0.3".equals(version) || "1.0".equals(version)) {
+      return "http://vamdc.org/xml/xsams/" + version;
+    }
+    else {
+      throw new IllegalArgumentException("XSAMS version " + version + " is not known");
+    }
+  }
+
+  private static XMLInputFactory makeFactory() {
+    XMLInputFactory f = XMLInputFactory.newFactory();
+    f.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    f.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    return f;
+  }
+
+}
@@ -17,6 +17,11 @@
     <h1>Download in progress</h1>
     <p>The data are being downloaded. Reload this page to see the results (reloading
        is done automatically in most browsers).</p>
+    <% Integer queuePosition = (Integer) request.getAttribute("eu.vamdc.xsams.views.queueposition");
+       if (queuePosition != null && queuePosition > 0) { %>
+    <p>The download is waiting to start: it is number <%=queuePosition%> in the queue.</p>
+    <% } else { %>
     <p>Bytes downloaded so far: <%=request.getAttribute("eu.vamdc.xsams.views.bytesdownloaded")%></p>
+    <% } %>
   </body>
 </html>
@@ -0,0 +1,120 @@
+package eu.vamdc.xsams.views;
+
+import java.io.File;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServletResponse;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the parking of batch requests while their downloads run, driven
+ * through {@code service} with stand-ins for the container.
+ *
+ * @author Guy Rixon
+ */
+public class BatchServletTest {
+
+  private DataCache cache;
+
+  private BatchServlet sut;
+
+  private File file;
+
+  @Before
+  public void setUp() throws Exception {
+    cache = new DataCache();
+    file = File.createTempFile("cache-", ".xsams.xml");
+    XsamsGenerator.write(file, "1.0", 20000L);
+    Map<String, Object> attributes = new HashMap<String, Object>();
+    attributes.put(DataCache.CACHE_ATTRIBUTE, cache);
+    sut = new BatchServlet();
+    sut.init(FakeHttp.config(attributes, new HashMap<String, String>()));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    cache.empty();
+    file.delete();
+  }
+
+  @Test
+  public void testParkedUntilReady() throws Exception {
+    DownloadTask task = newDownload();
+    FakeHttp.Request request = newRequest(task);
+    FakeHttp.Response first = service(request);
+    assertNotNull(request.async);
+    assertEquals(10000L, request.async.timeout);
+    assertEquals(0, request.async.dispatches);
+    assertEquals(0, first.body.size());
+
+    task.run();
+    assertEquals(1, request.async.dispatches);
+    request.dispatcherType = DispatcherType.ASYNC;
+    FakeHttp.Response second = service(request);
+    assertEquals(HttpServletResponse.SC_OK, second.status);
+    assertTrue(second.getBody().contains("@"));
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    DownloadTask task = newDownload();
+    FakeHttp.Request request = newRequest(task);
+    service(request);
+    request.async.timeout();
+    assertEquals(1, request.async.dispatches);
+    assertEquals(0, task.getListenerCount());
+
+    request.dispatcherType = DispatcherType.ASYNC;
+    assertEquals(HttpServletResponse.SC_GATEWAY_TIMEOUT, service(request).status);
+  }
+
+  @Test
+  public void testFailureEndsWait() throws Exception {
+    DownloadTask slow = newDownload();
+    DownloadTask broken = newDownload();
+    FakeHttp.Request request = newRequest(slow);
+    String k = cache.put(new CachedDataSet(new URL("http://example.org/broken"), file, broken, new AtomicLong()));
+    request.parameterValues.put("key", new String[] {request.parameters.get("key"), k});
+    service(request);
+    assertEquals(0, request.async.dispatches);
+
+    // The batch fails as soon as one download fails.
+    broken.fail(new DownloadException("Broken"));
+    assertEquals(1, request.async.dispatches);
+    assertEquals(0, slow.getListenerCount());
+    request.dispatcherType = DispatcherType.ASYNC;
+    assertEquals(HttpServletResponse.SC_BAD_GATEWAY, service(request).status);
+  }
+
+  private DownloadTask newDownload() {
+    return new DownloadTask(new Callable<Object>() {
+      @Override
+      public Object call() {
+        return "1.0";
+      }
+    });
+  }
+
+  private FakeHttp.Request newRequest(DownloadTask task) throws Exception {
+    String k = cache.put(new CachedDataSet(new URL("http://example.org/data"), file, task, new AtomicLong()));
+    FakeHttp.Request request = new FakeHttp.Request(null);
+    request.asyncSupported = true;
+    request.parameters.put("key", k);
+    request.parameters.put("wait", "10");
+    return request;
+  }
+
+  private FakeHttp.Response service(FakeHttp.Request request) throws Exception {
+    FakeHttp.Response response = new FakeHttp.Response();
+    sut.service(request.proxy(), response.proxy());
+    return response;
+  }
+
+}
@@ -0,0 +1,82 @@
+package eu.vamdc.xsams.views;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Guy Rixon
+ */
+public class BibliographyMergerTest {
+
+  @Test
+  public void testDuplicateSourceIds() throws Exception {
+    XsamsGenerator small = new XsamsGenerator("1.0");
+    small.setSourceCount(5);
+    XsamsGenerator large = new XsamsGenerator("0.3");
+    large.setSourceCount(8);
+
+    StringWriter out = new StringWriter();
+    BibliographyMerger sut = new BibliographyMerger(out);
+    sut.merge(toStream(small), "1.0");
+    sut.merge(toStream(large), "0.3");
+    sut.flush();
+    assertEquals(8, sut.getEntryCount());
+    assertEquals(5, sut.getDuplicateCount());
+    assertEquals(8, count(out.toString(), "{B"));
+  }
+
+  @Test
+  public void testDuplicateDoisAndTitles() throws Exception {
+    String xsams =
+        "<XSAMSData xmlns=\"http://vamdc.org/xml/xsams/1.0\"><Sources>" +
+        source("B1", "On the spectrum of iron", "2001", "10.1000/ABC") +
+        source("B2", "Something else", "2001", "https://doi.org/10.1000/abc") +
+        source("B3", "On the Spectrum of Iron.", "2001", null) +
+        source("B4", "On the spectrum of iron", "2002", null) +
+        "</Sources></XSAMSData>";
+    StringWriter out = new StringWriter();
+    BibliographyMerger sut = new BibliographyMerger(out);
+    sut.merge(new ByteArrayInputStream(xsams.getBytes("UTF-8")), "1.0");
+    sut.flush();
+    assertEquals(2, sut.getEntryCount());
+    assertTrue(out.toString().contains("{B1,"));
+    assertTrue(out.toString().contains("{B4,"));
+  }
+
+  @Test
+  public void testNormalization() {
+    assertEquals("10.1000/abc", BibliographyMerger.normalizeDoi(" doi:10.1000/ABC "));
+    assertEquals("10.1000/abc", BibliographyMerger.normalizeDoi("http://dx.doi.org/10.1000/abc"));
+    assertNull(BibliographyMerger.normalizeDoi(" "));
+    assertEquals("onthespectrumofiron", BibliographyMerger.normalizeTitle("On the  Spectrum of {Iron}."));
+    assertNull(BibliographyMerger.normalizeTitle("--"));
+  }
+
+  private String source(String id, String title, String year, String doi) {
+    return "<Source sourceID=\"" + id + "\">" +
+           "<Authors><Author><Name>A. Author</Name></Author></Authors>" +
+           "<Title>" + title + "</Title><Category>journal</Category>" +
+           "<SourceName>J. Test</SourceName><Year>" + year + "</Year>" +
+           "<Volume>1</Volume><PageBegin>1</PageBegin>" +
+           ((doi == null)? "" : "<DigitalObjectIdentifier>" + doi + "</DigitalObjectIdentifier>") +
+           "</Source>";
+  }
+
+  private ByteArrayInputStream toStream(XsamsGenerator g) throws Exception {
+    StringWriter w = new StringWriter();
+    g.write(w);
+    return new ByteArrayInputStream(w.toString().getBytes("UTF-8"));
+  }
+
+  private int count(String s, String t) {
+    int n = 0;
+    for (int i = s.indexOf(t); i != -1; i = s.indexOf(t, i + 1)) {
+      n++;
+    }
+    return n;
+  }
+
+}
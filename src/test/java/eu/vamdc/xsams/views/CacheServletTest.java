@@ -0,0 +1,61 @@
+package eu.vamdc.xsams.views;
+
+import java.util.HashMap;
+import java.util.Map;
+import javax.servlet.http.HttpServletResponse;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the status codes with which the cache servlet answers URLs given
+ * in a multipart form.
+ *
+ * @author Guy Rixon
+ */
+public class CacheServletTest {
+
+  private CacheServlet sut;
+
+  private Map<String, Object> attributes;
+
+  @Before
+  public void setUp() throws Exception {
+    attributes = new HashMap<String, Object>();
+    sut = new CacheServlet();
+    sut.init(FakeHttp.config(attributes, new HashMap<String, String>()));
+  }
+
+  @After
+  public void tearDown() {
+    sut.destroy();
+  }
+
+  @Test
+  public void testMultipartUrlInvalid() throws Exception {
+    assertEquals(HttpServletResponse.SC_BAD_REQUEST, postUrl("not a URL").status);
+  }
+
+  @Test
+  public void testMultipartUrlCacheFailure() throws Exception {
+    // A cache that has been shut down refuses downloads with a
+    // DownloadException, which must not be reported as a bad request.
+    ((DataCache) attributes.get(DataCache.CACHE_ATTRIBUTE)).close();
+    assertEquals(HttpServletResponse.SC_BAD_GATEWAY, postUrl("http://localhost:1/data").status);
+  }
+
+  private FakeHttp.Response postUrl(String url) throws Exception {
+    FakeHttp.Request request = new FakeHttp.Request(null);
+    request.method = "POST";
+    request.contentType = "multipart/form-data; boundary=XYZ";
+    request.body = ("--XYZ\r\n" +
+                    "Content-Disposition: form-data; name=\"url\"\r\n\r\n" +
+                    url + "\r\n" +
+                    "--XYZ--\r\n").getBytes("US-ASCII");
+    FakeHttp.Response response = new FakeHttp.Response();
+    sut.service(request.proxy(), response.proxy());
+    return response;
+  }
+
+}
@@ -0,0 +1,43 @@
+package eu.vamdc.xsams.views;
+
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Guy Rixon
+ */
+public class CacheSettingsTest {
+
+  @Test
+  public void testHostLimits() {
+    Map<String, String> parameters = new HashMap<String, String>();
+    parameters.put("download-deadline-seconds", "600");
+    parameters.put("download-deadline-seconds.slow.example.org", "3600");
+    parameters.put("download-min-bytes-per-second.slow.example.org", "10");
+    parameters.put("download-deadline-seconds.empty.example.org", "");
+    parameters.put("download-min-bytes-per-second.empty.example.org", " ");
+    CacheSettings sut = CacheSettings.fromContext(
+        FakeHttp.context(new HashMap<String, Object>(), parameters));
+
+    assertEquals(3600000L, sut.getDownloadDeadlineMillis("slow.example.org"));
+    assertEquals(10L, sut.getMinimumDownloadRate("slow.example.org"));
+
+    // Empty parameters leave the host to the general limits.
+    assertEquals(600000L, sut.getDownloadDeadlineMillis("empty.example.org"));
+    assertEquals(0L, sut.getMinimumDownloadRate("empty.example.org"));
+  }
+
+  @Test
+  public void testDefaults() {
+    CacheSettings sut = CacheSettings.fromContext(
+        FakeHttp.context(new HashMap<String, Object>(), new HashMap<String, String>()));
+    assertEquals(0L, sut.getDownloadDeadlineMillis("example.org"));
+    assertEquals(0L, sut.getMinimumDownloadRate("example.org"));
+    assertEquals(CacheSettings.DEFAULT_DOWNLOAD_RATE_WINDOW_IN_SECONDS * 1000L, 
+                 sut.getDownloadRateWindowMillis());
+  }
+
+}
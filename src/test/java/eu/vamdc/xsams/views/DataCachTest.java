@@ -1,8 +1,19 @@
 package eu.vamdc.xsams.views;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.URL;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import static org.junit.Assert.*;
 import org.junit.Test;
 
@@ -32,6 +43,407 @@ public class DataCachTest {
     
     assertFalse(sut.contains(k1));
     assertTrue(sut.contains(k2));
+    assertFalse(f1.exists());
+    assertTrue(f2.exists());
+    assertEquals(1L, sut.getPurgeCount());
+    assertEquals(1L, sut.getPurgedDataSetCount());
+  }
+  
+  @Test
+  public void testSharedDownload() throws Exception {
+    DataCache sut = new DataCache();
+    
+    // A server that accepts connections but never answers, so that the
+    // download stays in progress.
+    ServerSocket server = new ServerSocket(0);
+    try {
+      URL u = new URL("http://localhost:" + server.getLocalPort() + "/xsams");
+      String k1 = sut.put(u);
+      String k2 = sut.put(u);
+      assertFalse(k1.equals(k2));
+      assertSame(sut.get(k1), sut.get(k2));
+      
+      File f = sut.get(k1).getCacheFile();
+      sut.remove(k1);
+      assertTrue(f.exists());
+      sut.remove(k2);
+      assertFalse(f.exists());
+      
+      // The download is forgotten once deleted, so a new request downloads again.
+      String k3 = sut.put(u);
+      assertFalse(sut.get(k3).getCacheFile().equals(f));
+    }
+    finally {
+      server.close();
+      sut.empty();
+    }
+  }
+  
+  @Test
+  public void testEvictionByBudget() throws Exception {
+    CacheSettings settings = new CacheSettings();
+    settings.setMaxBytes(1000L);
+    settings.setMaxDataSetBytes(600L);
+    DataCache sut = new DataCache(settings);
+    try {
+      String k1 = sut.put(new ByteArrayInputStream(new byte[400]));
+      Thread.sleep(5L);
+      String k2 = sut.put(new ByteArrayInputStream(new byte[400]));
+      Thread.sleep(5L);
+      assertEquals(800L, sut.getBytesInCache());
+      
+      // Touch the older entry so that the newer one is least-recently used.
+      sut.get(k1);
+      String k3 = sut.put(new ByteArrayInputStream(new byte[400]));
+      assertTrue(sut.contains(k1));
+      assertFalse(sut.contains(k2));
+      assertTrue(sut.contains(k3));
+      assertEquals(800L, sut.getBytesInCache());
+      assertEquals(1L, sut.getEvictedDataSetCount());
+      
+      // A data set over the per-set limit is refused and leaves no trace.
+      try {
+        sut.put(new ByteArrayInputStream(new byte[700]));
+        fail("Data set over the limit was accepted");
+      }
+      catch (QuotaExceededException e) {
+        // Expected.
+      }
+      assertEquals(800L, sut.getBytesInCache());
+    }
+    finally {
+      sut.empty();
+    }
+  }
+  
+  @Test
+  public void testUpload() throws Exception {
+    CacheSettings settings = new CacheSettings();
+    settings.setMaxUploadBytes(1000L);
+    DataCache sut = new DataCache(settings);
+    try {
+      String xsams = "<XSAMSData xmlns=\"http://vamdc.org/xml/xsams/1.0\"/>";
+      String k1 = sut.upload(new ByteArrayInputStream(xsams.getBytes("UTF-8")), -1L);
+      CachedDataSet x1 = sut.get(k1);
+      x1.getFuture().get();
+      assertTrue(x1.isReady());
+      assertEquals("1.0", x1.getXsamsVersion());
+      assertEquals(xsams.length(), x1.getByteCounter().get());
+      
+      // A declared length over the limit is refused before any data are read.
+      try {
+        sut.upload(new ByteArrayInputStream(new byte[10]), 2000L);
+        fail("Upload over the limit was accepted");
+      }
+      catch (UploadTooLargeException e) {
+        // Expected.
+      }
+      
+      // An undeclared length is checked as the data arrive.
+      String k2 = sut.upload(new ByteArrayInputStream(new byte[1500]), -1L);
+      CachedDataSet x2 = sut.get(k2);
+      try {
+        x2.getFuture().get();
+        fail("Upload over the limit was accepted");
+      }
+      catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof UploadTooLargeException);
+      }
+      sut.remove(k2);
+      assertFalse(x2.getCacheFile().exists());
+      assertEquals((long) xsams.length(), sut.getBytesInCache());
+    }
+    finally {
+      sut.empty();
+    }
+  }
+  
+  @Test
+  public void testConcurrentAccess() throws Exception {
+    final DataCache sut = new DataCache();
+    
+    // One key holds the data set throughout; the threads add and remove
+    // further keys for it, so it must survive until the last key goes.
+    File f = File.createTempFile("junk", ".dat");
+    final CachedDataSet x = new CachedDataSet(new URL("http://foo/bar"), f, null, null);
+    String k0 = sut.put(x);
+    
+    final int threads = 8;
+    final int iterations = 2000;
+    final Set<String> keys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] t = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      t[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int j = 0; j < iterations; j++) {
+              String k = sut.put(x);
+              keys.add(k);
+              assertSame(x, sut.get(k));
+              sut.purge();
+              sut.remove(k);
+              assertFalse(sut.contains(k));
+            }
+          }
+          catch (Throwable e) {
+            failure.compareAndSet(null, e);
+          }
+        }
+      };
+      t[i].start();
+    }
+    start.countDown();
+    for (Thread thread : t) {
+      thread.join();
+    }
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+    
+    assertEquals(threads * iterations, keys.size());
+    assertFalse(keys.contains(k0));
+    assertTrue(f.exists());
+    assertSame(x, sut.get(k0));
+    sut.remove(k0);
+    assertFalse(f.exists());
+    assertTrue(x.isDeleted());
+  }
+  
+  @Test
+  public void testBackPressure() throws Exception {
+    CacheSettings settings = new CacheSettings();
+    settings.setDownloadThreads(1);
+    settings.setDownloadQueueCapacity(1);
+    DataCache sut = new DataCache(settings);
+    
+    // A server that accepts connections but never answers, so that the
+    // first download occupies the only thread.
+    ServerSocket server = new ServerSocket(0);
+    try {
+      String base = "http://localhost:" + server.getLocalPort();
+      String k1 = sut.put(new URL(base + "/1"));
+      String k2 = sut.put(new URL(base + "/2"));
+      assertEquals(1, sut.getQueuePosition(sut.get(k2)));
+      assertEquals(0, sut.getQueuePosition(sut.get(k1)));
+      assertEquals(1, sut.getQueueLength());
+      
+      try {
+        sut.put(new URL(base + "/3"));
+        fail("Download beyond the capacity of the queue was accepted");
+      }
+      catch (ServiceBusyException e) {
+        assertTrue(e.getRetryAfterSeconds() >= 1L);
+      }
+      
+      // A request for a queued URL shares the queued download and is not refused.
+      String k4 = sut.put(new URL(base + "/2"));
+      assertSame(sut.get(k2), sut.get(k4));
+    }
+    finally {
+      server.close();
+      sut.empty();
+    }
+  }
+  
+  @Test
+  public void testPersistence() throws Exception {
+    File dir = File.createTempFile("cache", ".dir");
+    dir.delete();
+    dir.mkdir();
+    CacheSettings settings = new CacheSettings();
+    settings.setCacheDirectory(dir);
+    byte[] xsams = "<XSAMSData xmlns=\"http://vamdc.org/xml/xsams/1.0\"/>".getBytes("UTF-8");
+    
+    DataCache first = new DataCache(settings);
+    String k1 = first.put(new ByteArrayInputStream(xsams));
+    String k2 = first.put(new ByteArrayInputStream(xsams));
+    File f1 = first.get(k1).getCacheFile();
+    assertEquals(dir, f1.getParentFile());
+    first.remove(k2);
+    first.close();
+    assertTrue(f1.exists());
+    
+    // Debris from a crash: a partial download with no index entry.
+    File debris = new File(dir, "cache-partial.xsams.xml");
+    debris.createNewFile();
+    debris.setLastModified(System.currentTimeMillis() - 2L * CacheIndex.STALL_LIMIT_IN_MILLISECONDS);
+    
+    DataCache second = new DataCache(settings);
+    try {
+      assertTrue(second.contains(k1));
+      assertFalse(second.contains(k2));
+      CachedDataSet x = second.get(k1);
+      assertEquals(f1, x.getCacheFile());
+      assertEquals("1.0", x.getXsamsVersion());
+      assertEquals((long) xsams.length, second.getBytesInCache());
+      assertFalse(debris.exists());
+      
+      // New keys do not collide with the reloaded ones.
+      String k3 = second.put(new ByteArrayInputStream(xsams));
+      assertFalse(k3.equals(k1) || k3.equals(k2));
+    }
+    finally {
+      second.empty();
+      new File(dir, "index").delete();
+      dir.delete();
+    }
+  }
+  
+  @Test
+  public void testSharedDirectory() throws Exception {
+    File dir = File.createTempFile("cache", ".dir");
+    dir.delete();
+    dir.mkdir();
+    CacheSettings settings = new CacheSettings();
+    settings.setCacheDirectory(dir);
+    byte[] xsams = "<XSAMSData xmlns=\"http://vamdc.org/xml/xsams/1.0\"/>".getBytes("UTF-8");
+    
+    // Two instances of the web application on one directory.
+    DataCache a = new DataCache(settings);
+    DataCache b = new DataCache(settings);
+    ServerSocket server = new ServerSocket(0);
+    try {
+      // Complete data cached by one instance are served by the other.
+      String k1 = a.put(new ByteArrayInputStream(xsams));
+      String k2 = b.put(new ByteArrayInputStream(xsams));
+      assertFalse(k1.equals(k2));
+      CachedDataSet x = b.get(k1);
+      assertNotNull(x);
+      assertEquals(a.get(k1).getCacheFile(), x.getCacheFile());
+      assertEquals("1.0", x.getXsamsVersion());
+      assertTrue(a.contains(k2));
+      
+      // A download in progress on one instance is followed by the other.
+      String k3 = a.put(new URL("http://localhost:" + server.getLocalPort() + "/xsams"));
+      Socket s = server.accept();
+      CachedDataSet y = b.get(k3);
+      assertNotNull(y);
+      assertTrue(y.isInProgress());
+      final CountDownLatch finished = new CountDownLatch(1);
+      y.addCompletionListener(new Runnable() {
+        @Override
+        public void run() {
+          finished.countDown();
+        }
+      });
+      assertEquals(1L, finished.getCount());
+      OutputStream out = s.getOutputStream();
+      out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + xsams.length + 
+                 "\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+      out.write(xsams);
+      out.flush();
+      s.close();
+      
+      // The borrower is told of completion without asking.
+      assertTrue(finished.await(10L, TimeUnit.SECONDS));
+      long deadline = System.currentTimeMillis() + 10000L;
+      while (!y.isReady() && System.currentTimeMillis() < deadline) {
+        Thread.sleep(50L);
+      }
+      assertTrue(y.isReady());
+      assertEquals("1.0", y.getXsamsVersion());
+      assertEquals((long) xsams.length, y.getByteCounter().get());
+      
+      // Removal by the owner is seen by the borrower, which leaves the data alone.
+      File f1 = x.getCacheFile();
+      b.remove(k3);
+      assertTrue(a.contains(k3));
+      a.remove(k1);
+      assertNull(b.get(k1));
+      assertFalse(f1.exists());
+      assertEquals((long) xsams.length, b.getBytesInCache());
+      
+      // Keys that cannot name an index entry are not looked up.
+      assertNull(b.get("../" + k2));
+    }
+    finally {
+      server.close();
+      b.empty();
+      a.empty();
+      new File(dir, "index").delete();
+      dir.delete();
+    }
+  }
+  
+  @Test
+  public void testRestartOnSharedDirectory() throws Exception {
+    File dir = File.createTempFile("cache", ".dir");
+    dir.delete();
+    dir.mkdir();
+    CacheSettings settingsA = new CacheSettings();
+    settingsA.setCacheDirectory(dir);
+    settingsA.setInstanceName("a");
+    CacheSettings settingsB = new CacheSettings();
+    settingsB.setCacheDirectory(dir);
+    settingsB.setInstanceName("b");
+    byte[] xsams = "<XSAMSData xmlns=\"http://vamdc.org/xml/xsams/1.0\"/>".getBytes("UTF-8");
+    
+    DataCache a = new DataCache(settingsA);
+    DataCache b = new DataCache(settingsB);
+    DataCache restarted = null;
+    try {
+      String k1 = a.put(new ByteArrayInputStream(xsams));
+      String k2 = b.put(new ByteArrayInputStream(xsams));
+      File f1 = a.get(k1).getCacheFile();
+      File f2 = b.get(k2).getCacheFile();
+      
+      // On restart, b adopts its own data and borrows a's.
+      b.close();
+      restarted = new DataCache(settingsB);
+      assertFalse(restarted.get(k2).isBorrowed());
+      assertTrue(restarted.get(k1).isBorrowed());
+      assertEquals((long) xsams.length, restarted.getBytesInCache());
+      
+      // Emptying the restarted instance leaves a's data alone.
+      restarted.empty();
+      assertFalse(f2.exists());
+      assertTrue(f1.exists());
+      assertTrue(a.contains(k1));
+      assertEquals("1.0", a.get(k1).getXsamsVersion());
+    }
+    finally {
+      if (restarted != null) {
+        restarted.empty();
+      }
+      a.empty();
+      new File(dir, "index").delete();
+      dir.delete();
+    }
+  }
+  
+  @Test
+  public void testDamagedIndexEntryDropped() throws Exception {
+    File dir = File.createTempFile("cache", ".dir");
+    dir.delete();
+    dir.mkdir();
+    CacheSettings settings = new CacheSettings();
+    settings.setCacheDirectory(dir);
+    
+    DataCache first = new DataCache(settings);
+    String k1 = first.put(new ByteArrayInputStream(new byte[100]));
+    File f1 = first.get(k1).getCacheFile();
+    first.close();
+    
+    // Truncate the data so that they no longer match the index, long enough
+    // ago that no other instance could still be writing them.
+    new java.io.FileOutputStream(f1).close();
+    f1.setLastModified(System.currentTimeMillis() - 2L * CacheIndex.STALL_LIMIT_IN_MILLISECONDS);
+    
+    DataCache second = new DataCache(settings);
+    try {
+      assertFalse(second.contains(k1));
+      assertFalse(f1.exists());
+      assertFalse(new File(dir, "index/" + k1 + ".properties").exists());
+    }
+    finally {
+      second.empty();
+      new File(dir, "index").delete();
+      dir.delete();
+    }
   }
   
 }
@@ -0,0 +1,113 @@
+package eu.vamdc.xsams.views;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Guy Rixon
+ */
+public class DownloadTaskTest {
+
+  @Test
+  public void testListenersRunOnCompletion() throws Exception {
+    File source = File.createTempFile("source", ".xsams.xml");
+    File target = File.createTempFile("target", ".xsams.xml");
+    try {
+      OutputStream out = new FileOutputStream(source);
+      try {
+        out.write("<XSAMSData xmlns=\"http://vamdc.org/xml/xsams/1.0\"/>".getBytes("UTF-8"));
+      }
+      finally {
+        out.close();
+      }
+      DownloadTask sut = new DownloadTask(new Download(source.toURI().toURL(), target));
+      final CountDownLatch before = new CountDownLatch(1);
+      sut.addCompletionListener(new Runnable() {
+        @Override
+        public void run() {
+          before.countDown();
+        }
+      });
+      assertEquals(1L, before.getCount());
+
+      new Thread(sut).start();
+      assertTrue(before.await(10L, TimeUnit.SECONDS));
+      assertEquals("1.0", sut.get());
+
+      // A listener added after completion runs at once.
+      final AtomicInteger after = new AtomicInteger();
+      sut.addCompletionListener(new Runnable() {
+        @Override
+        public void run() {
+          after.incrementAndGet();
+        }
+      });
+      assertEquals(1, after.get());
+    }
+    finally {
+      source.delete();
+      target.delete();
+    }
+  }
+
+  @Test
+  public void testListenersRunOnFailure() throws Exception {
+    File target = File.createTempFile("target", ".xsams.xml");
+    try {
+      DownloadTask sut = new DownloadTask(new Download(target.toURI().toURL(), target));
+      final AtomicInteger count = new AtomicInteger();
+      sut.addCompletionListener(new Runnable() {
+        @Override
+        public void run() {
+          count.incrementAndGet();
+        }
+      });
+      sut.fail(new ServiceBusyException("Busy", 1L));
+      assertEquals(1, count.get());
+      assertTrue(sut.isDone());
+
+      // Running the task after it has failed changes nothing.
+      sut.run();
+      assertEquals(1, count.get());
+    }
+    finally {
+      target.delete();
+    }
+  }
+
+  @Test
+  public void testListenerRemoved() throws Exception {
+    File target = File.createTempFile("target", ".xsams.xml");
+    try {
+      DownloadTask sut = new DownloadTask(new Download(target.toURI().toURL(), target));
+      final AtomicInteger count = new AtomicInteger();
+      Runnable listener = new Runnable() {
+        @Override
+        public void run() {
+          count.incrementAndGet();
+        }
+      };
+      sut.addCompletionListener(listener);
+      assertEquals(1, sut.getListenerCount());
+      sut.removeCompletionListener(listener);
+      assertEquals(0, sut.getListenerCount());
+
+      sut.fail(new ServiceBusyException("Busy", 1L));
+      assertEquals(0, count.get());
+
+      // Removing after completion is harmless.
+      sut.removeCompletionListener(listener);
+    }
+    finally {
+      target.delete();
+    }
+  }
+
+}
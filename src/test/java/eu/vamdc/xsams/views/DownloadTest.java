@@ -0,0 +1,405 @@
+package eu.vamdc.xsams.views;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests retries and resumption of downloads against a local HTTP server
+ * that drops connections at given offsets in the document.
+ *
+ * @author Guy Rixon
+ */
+public class DownloadTest {
+
+  private static final byte[] DOCUMENT = makeDocument(300000);
+
+  private File target;
+
+  private FlakyServer server;
+
+  @Before
+  public void setUp() throws Exception {
+    target = File.createTempFile("cache-", ".xsams.xml");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    if (server != null) {
+      server.shutdown();
+    }
+    target.delete();
+  }
+
+  @Test
+  public void testResumeWithRange() throws Exception {
+    server = new FlakyServer(true, 200, 100000, 200000);
+    Download sut = newDownload();
+    assertEquals("1.0", sut.call());
+    assertArrayEquals(DOCUMENT, read(target));
+    assertEquals((long) DOCUMENT.length, sut.getByteCounter().get());
+    assertEquals(Arrays.asList(null, "bytes=100000-", "bytes=200000-"), server.getRanges());
+    assertEquals(2, sut.getRetryCount());
+    assertEquals(0, sut.getProgress().getRestartCount());
+  }
+
+  @Test
+  public void testRestartWithoutRange() throws Exception {
+    server = new FlakyServer(false, 200, 100000);
+    Download sut = newDownload();
+    assertEquals("1.0", sut.call());
+    assertArrayEquals(DOCUMENT, read(target));
+    assertEquals((long) DOCUMENT.length, sut.getByteCounter().get());
+    assertEquals(Arrays.asList((String) null, null), server.getRanges());
+    assertEquals(1, sut.getProgress().getRestartCount());
+  }
+
+  @Test
+  public void testRestartWhenDocumentChanged() throws Exception {
+    // The If-Range validator no longer matches, so the server sends the
+    // whole document and the download starts again.
+    server = new FlakyServer(true, 200, 100000);
+    server.changeEntityTagAfterFirstRequest();
+    Download sut = newDownload();
+    assertEquals("1.0", sut.call());
+    assertArrayEquals(DOCUMENT, read(target));
+    assertEquals((long) DOCUMENT.length, sut.getByteCounter().get());
+    assertEquals(Arrays.asList(null, "bytes=100000-", null), server.getRanges());
+  }
+
+  @Test
+  public void testRetriesExhausted() throws Exception {
+    server = new FlakyServer(false, 200, 1000, 1000, 1000, 1000);
+    DiskAllocation allocation = new DiskAllocation(null, 0L);
+    Download sut = new Download(server.getUrl(), target, allocation);
+    sut.setRetryBackoffMillis(1L);
+    sut.setMaxRetries(2);
+    try {
+      sut.call();
+      fail("Download succeeded in spite of broken connections");
+    }
+    catch (IOException e) {
+      // Expected.
+    }
+    assertEquals(3, server.getRanges().size());
+    assertFalse(target.exists());
+    assertEquals(0L, allocation.getBytes());
+  }
+
+  @Test
+  public void testQuotaExceededDiscarded() throws Exception {
+    server = new FlakyServer(true, 200);
+    DiskAllocation allocation = new DiskAllocation(null, 100000L);
+    Download sut = new Download(server.getUrl(), target, allocation);
+    try {
+      sut.call();
+      fail("Download succeeded in spite of its quota");
+    }
+    catch (QuotaExceededException e) {
+      // Expected.
+    }
+    assertFalse(target.exists());
+    assertEquals(0L, allocation.getBytes());
+  }
+
+  @Test
+  public void testClientErrorNotRetried() throws Exception {
+    server = new FlakyServer(true, 404);
+    Download sut = newDownload();
+    try {
+      sut.call();
+      fail("Download succeeded in spite of 404");
+    }
+    catch (DownloadException e) {
+      // Expected.
+    }
+    assertEquals(1, server.getRanges().size());
+    assertFalse(target.exists());
+  }
+
+  @Test
+  public void testServerErrorRetried() throws Exception {
+    server = new FlakyServer(true, 503);
+    Download sut = newDownload();
+    sut.setMaxRetries(1);
+    try {
+      sut.call();
+      fail("Download succeeded in spite of 503");
+    }
+    catch (IOException e) {
+      // Expected.
+    }
+    assertEquals(2, server.getRanges().size());
+    // Nothing was written, so readers of the file were not disturbed.
+    assertEquals(0, sut.getProgress().getRestartCount());
+  }
+
+  @Test
+  public void testSlowDownloadAbandoned() throws Exception {
+    server = new FlakyServer(true, 200);
+    server.trickleAfter(10000, 50L);
+    DownloadWatchdog watchdog = new DownloadWatchdog(50L);
+    watchdog.start();
+    try {
+      DiskAllocation allocation = new DiskAllocation(null, 0L);
+      Download sut = new Download(server.getUrl(), target, allocation);
+      sut.setRetryBackoffMillis(1L);
+      sut.setLimits(0L, 1000L, 500L);
+      sut.setWatchdog(watchdog);
+      long start = System.currentTimeMillis();
+      try {
+        sut.call();
+        fail("A download slower than its minimum rate was not abandoned");
+      }
+      catch (DownloadTimeoutException e) {
+        // Expected.
+      }
+      assertTrue(System.currentTimeMillis() - start < 5000L);
+      assertFalse(target.exists());
+      assertEquals(0L, allocation.getBytes());
+      assertEquals(0, watchdog.getWatchCount());
+      assertEquals(1, server.getRanges().size());
+    }
+    finally {
+      watchdog.stop();
+    }
+  }
+
+  @Test
+  public void testDeadlineMissed() throws Exception {
+    server = new FlakyServer(true, 200);
+    server.trickleAfter(10000, 5L);
+    DownloadWatchdog watchdog = new DownloadWatchdog(50L);
+    watchdog.start();
+    try {
+      Download sut = newDownload();
+      sut.setLimits(300L, 0L, 1000L);
+      sut.setWatchdog(watchdog);
+      long start = System.currentTimeMillis();
+      try {
+        sut.call();
+        fail("A download past its deadline was not abandoned");
+      }
+      catch (DownloadTimeoutException e) {
+        // Expected.
+      }
+      assertTrue(System.currentTimeMillis() - start < 5000L);
+      assertFalse(target.exists());
+    }
+    finally {
+      watchdog.stop();
+    }
+  }
+
+  @Test
+  public void testWithinLimits() throws Exception {
+    server = new FlakyServer(true, 200, 100000);
+    DownloadWatchdog watchdog = new DownloadWatchdog(10L);
+    watchdog.start();
+    try {
+      Download sut = newDownload();
+      sut.setLimits(60000L, 1000L, 500L);
+      sut.setWatchdog(watchdog);
+      assertEquals("1.0", sut.call());
+      assertArrayEquals(DOCUMENT, read(target));
+      assertEquals(0, watchdog.getWatchCount());
+    }
+    finally {
+      watchdog.stop();
+    }
+  }
+
+  private Download newDownload() throws Exception {
+    Download d = new Download(server.getUrl(), target);
+    d.setRetryBackoffMillis(1L);
+    return d;
+  }
+
+  private static byte[] read(File f) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    InputStream in = new FileInputStream(f);
+    try {
+      byte[] b = new byte[8192];
+      int n;
+      while ((n = in.read(b)) != -1) {
+        out.write(b, 0, n);
+      }
+    }
+    finally {
+      in.close();
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] makeDocument(int size) {
+    StringBuilder b = new StringBuilder(size + 100);
+    b.append("<?xml version=\"1.0\"?>\n<XSAMSData xmlns=\"http://vamdc.org/xml/xsams/1.0\">\n");
+    int i = 0;
+    while (b.length() < size) {
+      b.append("<Comments>").append(i++).append("</Comments>\n");
+    }
+    b.append("</XSAMSData>\n");
+    try {
+      return b.toString().getBytes("UTF-8");
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+
+  /**
+   * An HTTP server for {@link #DOCUMENT}. The n-th response is cut off,
+   * by closing the connection, when it reaches the n-th of the given
+   * offsets in the document; responses beyond the given offsets are whole.
+   * If ranges are supported, the server honours Range with If-Range. The
+   * server is written on a plain socket so that it can break connections
+   * at will.
+   */
+  private static class FlakyServer extends Thread {
+
+    private final ServerSocket socket;
+
+    private final boolean supportsRanges;
+
+    private final int status;
+
+    private final int[] drops;
+
+    private final List<String> ranges = Collections.synchronizedList(new ArrayList<String>());
+
+    private volatile boolean changeEntityTag;
+
+    private volatile int trickleOffset = -1;
+
+    private volatile long tricklePause;
+
+    FlakyServer(boolean ranges, int status, int... drops) throws IOException {
+      supportsRanges = ranges;
+      this.status = status;
+      this.drops = drops;
+      socket = new ServerSocket(0);
+      setDaemon(true);
+      start();
+    }
+
+    URL getUrl() throws IOException {
+      return new URL("http://localhost:" + socket.getLocalPort() + "/data");
+    }
+
+    List<String> getRanges() {
+      return new ArrayList<String>(ranges);
+    }
+
+    void changeEntityTagAfterFirstRequest() {
+      changeEntityTag = true;
+    }
+
+    /**
+     * Makes the server send the document slowly after the given offset,
+     * one byte at a time with a pause between each.
+     */
+    void trickleAfter(int offset, long pause) {
+      tricklePause = pause;
+      trickleOffset = offset;
+    }
+
+    void shutdown() throws IOException {
+      socket.close();
+    }
+
+    @Override
+    public void run() {
+      int n = 0;
+      while (!socket.isClosed()) {
+        try {
+          Socket s = socket.accept();
+          try {
+            handle(s, n++);
+          }
+          finally {
+            s.close();
+          }
+        }
+        catch (IOException e) {
+          // The server has been shut down or the client went away.
+        }
+      }
+    }
+
+    private void handle(Socket s, int n) throws IOException {
+      BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "US-ASCII"));
+      String range = null;
+      String ifRange = null;
+      String line = in.readLine();
+      while ((line = in.readLine()) != null && line.length() > 0) {
+        int colon = line.indexOf(':');
+        String name = line.substring(0, colon).trim();
+        String value = line.substring(colon + 1).trim();
+        if (name.equalsIgnoreCase("Range")) {
+          range = value;
+        }
+        else if (name.equalsIgnoreCase("If-Range")) {
+          ifRange = value;
+        }
+      }
+      ranges.add(range);
+      OutputStream out = s.getOutputStream();
+      if (status != 200) {
+        out.write(("HTTP/1.1 " + status + " Failed\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+        out.flush();
+        return;
+      }
+      String etag = (changeEntityTag && n > 0)? "\"v2\"" : "\"v1\"";
+      StringBuilder h = new StringBuilder();
+      int start = 0;
+      if (supportsRanges && range != null && etag.equals(ifRange)) {
+        start = Integer.parseInt(range.substring(6, range.length() - 1));
+        h.append("HTTP/1.1 206 Partial Content\r\n");
+        h.append("Content-Range: bytes ").append(start).append('-')
+         .append(DOCUMENT.length - 1).append('/').append(DOCUMENT.length).append("\r\n");
+      }
+      else {
+        h.append("HTTP/1.1 200 OK\r\n");
+      }
+      if (supportsRanges) {
+        h.append("Accept-Ranges: bytes\r\n");
+      }
+      h.append("ETag: ").append(etag).append("\r\n");
+      h.append("Content-Length: ").append(DOCUMENT.length - start).append("\r\n");
+      h.append("Connection: close\r\n\r\n");
+      out.write(h.toString().getBytes("US-ASCII"));
+      int end = (n < drops.length)? drops[n] : DOCUMENT.length;
+      int fast = (trickleOffset >= 0)? Math.min(end, trickleOffset) : end;
+      out.write(DOCUMENT, start, Math.max(0, fast - start));
+      out.flush();
+      for (int i = Math.max(start, fast); i < end && !socket.isClosed(); i++) {
+        try {
+          Thread.sleep(tricklePause);
+        }
+        catch (InterruptedException e) {
+          return;
+        }
+        out.write(DOCUMENT[i]);
+        out.flush();
+      }
+    }
+  }
+
+}
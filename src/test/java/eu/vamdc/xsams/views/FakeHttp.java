@@ -0,0 +1,392 @@
+package eu.vamdc.xsams.views;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Stand-ins for the servlet container, enough to drive a servlet through
+ * {@code service} in a unit test. Each is a dynamic proxy for the servlet
+ * interface; methods not modelled return null, zero or false.
+ *
+ * @author Guy Rixon
+ */
+class FakeHttp {
+
+  /**
+   * Makes a servlet configuration in a context holding the given attributes.
+   *
+   * @param attributes The attributes of the servlet context.
+   * @param initParameters The init-parameters of the servlet.
+   * @return The configuration.
+   */
+  static ServletConfig config(final Map<String, Object> attributes,
+                              final Map<String, String> initParameters) {
+    final ServletContext context = context(attributes, new HashMap<String, String>());
+    return proxy(ServletConfig.class, new InvocationHandler() {
+      @Override
+      public Object invoke(Object p, Method m, Object[] a) {
+        if (m.getName().equals("getServletContext")) {
+          return context;
+        }
+        if (m.getName().equals("getInitParameter")) {
+          return initParameters.get((String) a[0]);
+        }
+        if (m.getName().equals("getInitParameterNames")) {
+          return Collections.enumeration(initParameters.keySet());
+        }
+        if (m.getName().equals("getServletName")) {
+          return "test";
+        }
+        return defaultValue(m);
+      }
+    });
+  }
+
+  /**
+   * Makes a servlet context.
+   *
+   * @param attributes The attributes of the context.
+   * @param contextParameters The context parameters, as set in web.xml.
+   * @return The context.
+   */
+  static ServletContext context(final Map<String, Object> attributes,
+                                final Map<String, String> contextParameters) {
+    return proxy(ServletContext.class, new InvocationHandler() {
+      @Override
+      public Object invoke(Object p, Method m, Object[] a) {
+        if (m.getName().equals("getAttribute")) {
+          return attributes.get((String) a[0]);
+        }
+        if (m.getName().equals("setAttribute")) {
+          attributes.put((String) a[0], a[1]);
+          return null;
+        }
+        if (m.getName().equals("getInitParameter")) {
+          return contextParameters.get((String) a[0]);
+        }
+        if (m.getName().equals("getInitParameterNames")) {
+          return Collections.enumeration(contextParameters.keySet());
+        }
+        return defaultValue(m);
+      }
+    });
+  }
+
+  /**
+   * A request. Set the fields, then pass {@link #proxy} to the servlet.
+   */
+  static class Request implements InvocationHandler {
+
+    String method = "GET";
+
+    String pathInfo;
+
+    String contentType;
+
+    byte[] body = new byte[0];
+
+    boolean asyncSupported;
+
+    DispatcherType dispatcherType = DispatcherType.REQUEST;
+
+    /**
+     * The asynchronous context; null until the servlet starts it.
+     */
+    Async async;
+
+    /**
+     * The path to which the servlet forwarded the request; null if it did not.
+     */
+    String forwardedTo;
+
+    final Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+
+    final Map<String, String> parameters = new HashMap<String, String>();
+
+    /**
+     * Parameters given more than once; these override {@link #parameters}.
+     */
+    final Map<String, String[]> parameterValues = new HashMap<String, String[]>();
+
+    final Map<String, Object> attributes = new HashMap<String, Object>();
+
+    Request(String path) {
+      pathInfo = path;
+    }
+
+    HttpServletRequest proxy() {
+      return FakeHttp.proxy(HttpServletRequest.class, this);
+    }
+
+    @Override
+    public Object invoke(Object p, Method m, Object[] a) {
+      String name = m.getName();
+      if (name.equals("getMethod")) {
+        return method;
+      }
+      if (name.equals("getPathInfo")) {
+        return pathInfo;
+      }
+      if (name.equals("getHeader")) {
+        return headers.get((String) a[0]);
+      }
+      if (name.equals("getDateHeader")) {
+        String h = headers.get((String) a[0]);
+        return (h == null)? -1L : parseDate(h);
+      }
+      if (name.equals("getParameter")) {
+        return parameters.get((String) a[0]);
+      }
+      if (name.equals("getParameterValues")) {
+        if (parameterValues.containsKey((String) a[0])) {
+          return parameterValues.get((String) a[0]);
+        }
+        String value = parameters.get((String) a[0]);
+        return (value == null)? null : new String[] {value};
+      }
+      if (name.equals("isAsyncSupported")) {
+        return asyncSupported;
+      }
+      if (name.equals("getDispatcherType")) {
+        return dispatcherType;
+      }
+      if (name.equals("startAsync")) {
+        if (!asyncSupported) {
+          throw new IllegalStateException("Not asynchronous");
+        }
+        async = new Async();
+        return async.proxy();
+      }
+      if (name.equals("getAttribute")) {
+        return attributes.get((String) a[0]);
+      }
+      if (name.equals("setAttribute")) {
+        attributes.put((String) a[0], a[1]);
+        return null;
+      }
+      if (name.equals("getRequestDispatcher")) {
+        final String path = (String) a[0];
+        return FakeHttp.proxy(RequestDispatcher.class, new InvocationHandler() {
+          @Override
+          public Object invoke(Object p, Method m, Object[] a) {
+            if (m.getName().equals("forward")) {
+              forwardedTo = path;
+            }
+            return null;
+          }
+        });
+      }
+      if (name.equals("getProtocol")) {
+        return "HTTP/1.1";
+      }
+      if (name.equals("getContentType")) {
+        return contentType;
+      }
+      if (name.equals("getContentLength")) {
+        return body.length;
+      }
+      if (name.equals("getInputStream")) {
+        final InputStream in = new ByteArrayInputStream(body);
+        return new ServletInputStream() {
+          @Override
+          public int read() throws IOException {
+            return in.read();
+          }
+        };
+      }
+      return defaultValue(m);
+    }
+  }
+
+  /**
+   * An asynchronous context, recording what the servlet does to it. The
+   * test plays the container, e.g. by calling {@link #timeout}.
+   */
+  static class Async implements InvocationHandler {
+
+    long timeout;
+
+    int dispatches;
+
+    boolean completed;
+
+    final List<AsyncListener> listeners = new ArrayList<AsyncListener>();
+
+    AsyncContext proxy() {
+      return FakeHttp.proxy(AsyncContext.class, this);
+    }
+
+    /**
+     * Tells the listeners that the request has timed out.
+     */
+    void timeout() throws IOException {
+      for (AsyncListener l : listeners) {
+        l.onTimeout(new AsyncEvent(proxy()));
+      }
+    }
+
+    @Override
+    public synchronized Object invoke(Object p, Method m, Object[] a) {
+      String name = m.getName();
+      if (name.equals("setTimeout")) {
+        timeout = (Long) a[0];
+        return null;
+      }
+      if (name.equals("getTimeout")) {
+        return timeout;
+      }
+      if (name.equals("addListener")) {
+        listeners.add((AsyncListener) a[0]);
+        return null;
+      }
+      if (name.equals("dispatch")) {
+        dispatches++;
+        return null;
+      }
+      if (name.equals("complete")) {
+        completed = true;
+        return null;
+      }
+      return defaultValue(m);
+    }
+  }
+
+  /**
+   * A response, recording what the servlet does to it.
+   */
+  static class Response implements InvocationHandler {
+
+    int status = HttpServletResponse.SC_OK;
+
+    final Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    boolean committed;
+
+    HttpServletResponse proxy() {
+      return FakeHttp.proxy(HttpServletResponse.class, this);
+    }
+
+    String getBody() throws UnsupportedEncodingException {
+      return body.toString("UTF-8");
+    }
+
+    @Override
+    public Object invoke(Object p, Method m, Object[] a) {
+      String name = m.getName();
+      if (name.equals("setStatus") || name.equals("sendError")) {
+        status = (Integer) a[0];
+        committed = committed || name.equals("sendError");
+        return null;
+      }
+      if (name.equals("getStatus")) {
+        return status;
+      }
+      if (name.equals("setHeader") || name.equals("addHeader")) {
+        headers.put((String) a[0], (String) a[1]);
+        return null;
+      }
+      if (name.equals("setDateHeader")) {
+        headers.put((String) a[0], Long.toString((Long) a[1]));
+        return null;
+      }
+      if (name.equals("setContentType")) {
+        headers.put("Content-Type", (String) a[0]);
+        return null;
+      }
+      if (name.equals("setContentLength")) {
+        headers.put("Content-Length", a[0].toString());
+        return null;
+      }
+      if (name.equals("containsHeader")) {
+        return headers.containsKey((String) a[0]);
+      }
+      if (name.equals("getHeader")) {
+        return headers.get((String) a[0]);
+      }
+      if (name.equals("isCommitted")) {
+        return committed;
+      }
+      if (name.equals("getOutputStream")) {
+        return new ServletOutputStream() {
+          @Override
+          public void write(int b) throws IOException {
+            committed = true;
+            body.write(b);
+          }
+        };
+      }
+      return defaultValue(m);
+    }
+  }
+
+  /**
+   * Formats a time as in an HTTP header.
+   */
+  static String formatDate(long t) {
+    return dateFormat().format(new Date(t));
+  }
+
+  private static long parseDate(String h) {
+    try {
+      return dateFormat().parse(h).getTime();
+    }
+    catch (ParseException e) {
+      throw new IllegalArgumentException(h);
+    }
+  }
+
+  private static SimpleDateFormat dateFormat() {
+    SimpleDateFormat f = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+    f.setTimeZone(TimeZone.getTimeZone("GMT"));
+    return f;
+  }
+
+  private static <T> T proxy(Class<T> type, InvocationHandler h) {
+    return type.cast(Proxy.newProxyInstance(FakeHttp.class.getClassLoader(), new Class<?>[] {type}, h));
+  }
+
+  private static Object defaultValue(Method m) {
+    Class<?> t = m.getReturnType();
+    if (t == boolean.class) {
+      return false;
+    }
+    if (t == int.class) {
+      return 0;
+    }
+    if (t == long.class) {
+      return 0L;
+    }
+    return null;
+  }
+
+}
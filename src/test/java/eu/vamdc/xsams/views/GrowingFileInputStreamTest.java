@@ -0,0 +1,187 @@
+package eu.vamdc.xsams.views;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Guy Rixon
+ */
+public class GrowingFileInputStreamTest {
+
+  @Test
+  public void testFollowsDownload() throws Exception {
+    byte[] data = new byte[100000];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) ('a' + i % 26);
+    }
+    File f = File.createTempFile("junk", ".dat");
+    FutureTask<Object> future = new DownloadTask(new Finished());
+    CachedDataSet x = new CachedDataSet(new URL("http://foo/bar"), f, future, new AtomicLong());
+    Writer writer = new Writer(f, data, future, x.getDownloadProgress());
+    InputStream in = new GrowingFileInputStream(x);
+    long start = System.currentTimeMillis();
+    try {
+      writer.start();
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] b = new byte[4096];
+      int n;
+      while ((n = in.read(b)) != -1) {
+        out.write(b, 0, n);
+      }
+      assertArrayEquals(data, out.toByteArray());
+      assertTrue(x.isReady());
+
+      // The reader woke for each signal, not at the check interval.
+      assertTrue(System.currentTimeMillis() - start < GrowingFileInputStream.CHECK_INTERVAL_IN_MILLISECONDS);
+    }
+    finally {
+      in.close();
+      writer.join();
+      f.delete();
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testFailedDownload() throws Exception {
+    File f = File.createTempFile("junk", ".dat");
+    FutureTask<Object> future = new FutureTask<Object>(new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        throw new DownloadException("Broken");
+      }
+    });
+    CachedDataSet x = new CachedDataSet(new URL("http://foo/bar"), f, future, new AtomicLong());
+    InputStream in = new GrowingFileInputStream(x);
+    try {
+      future.run();
+      in.read();
+    }
+    finally {
+      in.close();
+      f.delete();
+    }
+  }
+
+
+  @Test
+  public void testRestartedDownload() throws Exception {
+    File f = File.createTempFile("junk", ".dat");
+    DownloadTask future = new DownloadTask(new Finished());
+    CachedDataSet x = new CachedDataSet(new URL("http://foo/bar"), f, future, new AtomicLong());
+    OutputStream out = new FileOutputStream(f);
+    try {
+      out.write("first transfer".getBytes("US-ASCII"));
+    }
+    finally {
+      out.close();
+    }
+    InputStream in = new GrowingFileInputStream(x);
+    try {
+      assertEquals('f', in.read());
+      x.getDownloadProgress().restart();
+      out = new FileOutputStream(f);
+      try {
+        out.write("second transfer".getBytes("US-ASCII"));
+      }
+      finally {
+        out.close();
+      }
+      in.read();
+      fail("The read should have failed");
+    }
+    catch (IOException e) {
+      assertTrue(e.getMessage().contains("restarted"));
+    }
+    finally {
+      in.close();
+      f.delete();
+    }
+  }
+
+  @Test
+  public void testWaitLimit() throws Exception {
+    File f = File.createTempFile("junk", ".dat");
+    DownloadTask future = new DownloadTask(new Finished());
+    CachedDataSet x = new CachedDataSet(new URL("http://foo/bar"), f, future, new AtomicLong());
+    InputStream in = new GrowingFileInputStream(x, 200L);
+    long start = System.currentTimeMillis();
+    try {
+      in.read();
+      fail("The read should have given up");
+    }
+    catch (IOException e) {
+      assertTrue(System.currentTimeMillis() - start < 5000L);
+    }
+    finally {
+      in.close();
+      f.delete();
+    }
+    assertEquals(0, future.getListenerCount());
+  }
+
+
+  private static class Finished implements Callable<Object> {
+    @Override
+    public Object call() {
+      return "1.0";
+    }
+  }
+
+  /**
+   * Writes data to a file in small pieces, with pauses, then completes
+   * the given future.
+   */
+  private static class Writer extends Thread {
+
+    private final File file;
+
+    private final byte[] data;
+
+    private final FutureTask<Object> future;
+
+    private final DownloadProgress progress;
+
+    Writer(File f, byte[] d, FutureTask<Object> v, DownloadProgress p) {
+      file = f;
+      data = d;
+      future = v;
+      progress = p;
+    }
+
+    @Override
+    public void run() {
+      try {
+        OutputStream out = new FileOutputStream(file);
+        try {
+          for (int i = 0; i < data.length; i += 10000) {
+            out.write(data, i, Math.min(10000, data.length - i));
+            out.flush();
+            progress.signal();
+            Thread.sleep(20L);
+          }
+        }
+        finally {
+          out.close();
+        }
+      }
+      catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+      finally {
+        future.run();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,87 @@
+package eu.vamdc.xsams.views;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+import java.net.SocketTimeoutException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Guy Rixon
+ */
+public class MetricsTest {
+
+  @Test
+  public void testHistogramBuckets() {
+    Metrics.Histogram sut = new Metrics.Histogram();
+    sut.record(500L);            // Under a microsecond.
+    sut.record(3000L);           // 3 us: at most 4 us.
+    sut.record(4000L);           // 4 us: at most 4 us.
+    sut.record(5000L);           // 5 us: at most 8 us.
+    sut.record(3600L * 1000000000L);
+    assertEquals(1L, sut.getBucketCount(0));
+    assertEquals(2L, sut.getBucketCount(2));
+    assertEquals(1L, sut.getBucketCount(3));
+    assertEquals(1L, sut.getBucketCount(Metrics.Histogram.BUCKETS));
+    assertEquals(5L, sut.getCount());
+  }
+
+  @Test
+  public void testCounterAcrossThreads() throws Exception {
+    final Metrics.Counter sut = new Metrics.Counter();
+    Thread[] t = new Thread[8];
+    for (int i = 0; i < t.length; i++) {
+      t[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 10000; j++) {
+            sut.increment();
+          }
+        }
+      };
+      t[i].start();
+    }
+    for (Thread thread : t) {
+      thread.join();
+    }
+    assertEquals(80000L, sut.get());
+  }
+
+  @Test
+  public void testPrometheusFormat() throws Exception {
+    DataCache cache = new DataCache();
+    try {
+      String k = cache.put(new ByteArrayInputStream(new byte[100]));
+      cache.get(k);
+      cache.get("nothing");
+
+      // Lookups made by the application are not counted.
+      cache.lookup(k);
+      cache.lookup("nothing");
+      cache.contains(k);
+      Metrics sut = cache.getMetrics();
+      sut.downloadStarted();
+      sut.downloadFailed("example.org", 1000L, 2000000000L, new SocketTimeoutException());
+      sut.getTransformTime().record(3000000L);
+
+      StringWriter w = new StringWriter();
+      sut.write(w, cache);
+      String text = w.toString();
+      assertFalse(text.contains("\r"));
+      assertTrue(text.contains("\nxsams_downloads_failed_total 1\n"));
+      assertTrue(text.contains("\nxsams_downloads_timed_out_total 1\n"));
+      assertTrue(text.contains("\nxsams_download_bytes_per_second{host=\"example.org\"} 500.0\n"));
+      assertTrue(text.contains("\nxsams_cache_entries 1\n"));
+      assertTrue(text.contains("\nxsams_cache_bytes 100\n"));
+      assertTrue(text.contains("\nxsams_cache_hit_ratio 0.5\n"));
+      assertTrue(text.contains("\nxsams_transform_seconds_bucket{le=\"0.004096\"} 1\n"));
+      assertTrue(text.contains("\nxsams_transform_seconds_count 1\n"));
+      assertTrue(text.contains("# TYPE xsams_version_sniff_seconds histogram\n"));
+    }
+    finally {
+      cache.empty();
+    }
+  }
+
+}
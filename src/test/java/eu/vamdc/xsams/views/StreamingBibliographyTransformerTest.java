@@ -0,0 +1,199 @@
+package eu.vamdc.xsams.views;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Guy Rixon
+ */
+public class StreamingBibliographyTransformerTest {
+
+  @Test
+  public void testAllFormatsInOnePass() throws Exception {
+    XsamsGenerator g = new XsamsGenerator("1.0");
+    g.setSourceCount(40);
+    g.setStateCount(200);
+    StringWriter doc = new StringWriter();
+    g.write(doc);
+    byte[] data = doc.toString().getBytes("UTF-8");
+
+    Map<SourceFormatter, Writer> outputs = new LinkedHashMap<SourceFormatter, Writer>();
+    StringWriter bib = new StringWriter();
+    StringWriter ris = new StringWriter();
+    StringWriter json = new StringWriter();
+    outputs.put(new BibtexFormatter(), bib);
+    outputs.put(new RisFormatter(), ris);
+    outputs.put(new CslJsonFormatter(), json);
+    CountingStream in = new CountingStream(data);
+    new StreamingBibliographyTransformer().transform(in, "1.0", outputs);
+    assertEquals(data.length, in.count);
+
+    StringWriter expected = new StringWriter();
+    new StreamingBibliographyTransformer().transform(
+        new ByteArrayInputStream(data), "1.0", new BibtexFormatter(), expected);
+    assertEquals(expected.toString(), bib.toString());
+    assertEquals(40, count(ris.toString(), "TY  - "));
+    assertEquals(40, count(ris.toString(), "ER  - \r\n"));
+    assertTrue(json.toString().startsWith("[\n  {\"id\": "));
+    assertTrue(json.toString().endsWith("}\n]\n"));
+    assertEquals(40, count(json.toString(), "{\"id\": "));
+  }
+
+  @Test
+  public void testParallelSameAsSerial() throws Exception {
+    XsamsGenerator g = new XsamsGenerator("1.0");
+    g.setSourceCount(3000);
+    StringWriter doc = new StringWriter();
+    g.write(doc);
+    byte[] data = doc.toString().getBytes("UTF-8");
+
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      StreamingBibliographyTransformer parallel = new StreamingBibliographyTransformer(pool, 100, 37);
+      StreamingBibliographyTransformer serial = new StreamingBibliographyTransformer();
+      SourceFormatter[] formatters = {new BibtexFormatter(), new RisFormatter(), new CslJsonFormatter()};
+      for (SourceFormatter f : formatters) {
+        StringWriter expected = new StringWriter();
+        serial.transform(new ByteArrayInputStream(data), "1.0", f, expected);
+        StringWriter actual = new StringWriter();
+        parallel.transform(new ByteArrayInputStream(data), "1.0", f, actual);
+        assertEquals(f.getName(), expected.toString(), actual.toString());
+      }
+
+      Transformer t = new StylesheetRegistry().newTransformer("1.0", "XsamsToBibtex.xsl");
+      StringWriter expected = new StringWriter();
+      t.transform(new StreamSource(new ByteArrayInputStream(data)), new StreamResult(expected));
+      StringWriter actual = new StringWriter();
+      parallel.transform(new ByteArrayInputStream(data), "1.0", new BibtexFormatter(), actual);
+      assertEquals(expected.toString(), actual.toString());
+    }
+    finally {
+      pool.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testSmallDocumentSerial() throws Exception {
+    XsamsGenerator g = new XsamsGenerator("1.0");
+    g.setSourceCount(100);
+    StringWriter doc = new StringWriter();
+    g.write(doc);
+    byte[] data = doc.toString().getBytes("UTF-8");
+
+    // A pool that accepts no tasks shows that none were submitted.
+    ForkJoinPool pool = new ForkJoinPool(2);
+    pool.shutdown();
+    StringWriter actual = new StringWriter();
+    new StreamingBibliographyTransformer(pool).transform(
+        new ByteArrayInputStream(data), "1.0", new BibtexFormatter(), actual);
+    StringWriter expected = new StringWriter();
+    new StreamingBibliographyTransformer().transform(
+        new ByteArrayInputStream(data), "1.0", new BibtexFormatter(), expected);
+    assertEquals(expected.toString(), actual.toString());
+  }
+
+  @Test
+  public void testRisAndCslJson() throws Exception {
+    String xsams =
+        "<XSAMSData xmlns=\"http://vamdc.org/xml/xsams/1.0\"><Sources>" +
+        "<Source sourceID=\"B1\"><Authors><Author><Name>A. \"Quoted\" Author</Name></Author>" +
+        "<Author><Name>B. Author</Name></Author></Authors>" +
+        "<Title>Lines\n of iron</Title><Category>journal</Category><SourceName>J. Test</SourceName>" +
+        "<Year>2001</Year><Volume>7</Volume><PageBegin>10</PageBegin><PageEnd>12</PageEnd>" +
+        "<DigitalObjectIdentifier>10.1000/abc</DigitalObjectIdentifier></Source>" +
+        "<Source sourceID=\"B2\"><Title>A table</Title><Category>database</Category>" +
+        "<Year>in press</Year></Source>" +
+        "</Sources></XSAMSData>";
+
+    StringWriter ris = new StringWriter();
+    new StreamingBibliographyTransformer().transform(
+        new ByteArrayInputStream(xsams.getBytes("UTF-8")), "1.0", new RisFormatter(), ris);
+    assertEquals("TY  - JOUR\r\nID  - B1\r\nAU  - A. \"Quoted\" Author\r\nAU  - B. Author\r\n" +
+                 "TI  - Lines of iron\r\nT2  - J. Test\r\nVL  - 7\r\nSP  - 10\r\nEP  - 12\r\n" +
+                 "PY  - 2001\r\nDO  - 10.1000/abc\r\nER  - \r\n\r\n" +
+                 "TY  - DBASE\r\nID  - B2\r\nTI  - A table\r\nPY  - in press\r\nER  - \r\n\r\n",
+                 ris.toString());
+
+    StringWriter json = new StringWriter();
+    new StreamingBibliographyTransformer().transform(
+        new ByteArrayInputStream(xsams.getBytes("UTF-8")), "1.0", new CslJsonFormatter(), json);
+    assertEquals("[\n" +
+                 "  {\"id\": \"B1\", \"type\": \"article-journal\", \"author\": [" +
+                 "{\"literal\": \"A. \\\"Quoted\\\" Author\"}, {\"literal\": \"B. Author\"}], " +
+                 "\"title\": \"Lines\\n of iron\", \"container-title\": \"J. Test\", \"volume\": \"7\", " +
+                 "\"page\": \"10-12\", \"issued\": {\"date-parts\": [[2001]]}, \"DOI\": \"10.1000/abc\"},\n" +
+                 "  {\"id\": \"B2\", \"type\": \"dataset\", \"title\": \"A table\", " +
+                 "\"issued\": {\"raw\": \"in press\"}}\n" +
+                 "]\n",
+                 json.toString());
+  }
+
+  @Test
+  public void testNegotiate() {
+    List<SourceFormatter> formats = new ArrayList<SourceFormatter>();
+    formats.add(new BibtexFormatter());
+    formats.add(new RisFormatter());
+    formats.add(new CslJsonFormatter());
+    assertEquals("bib", TransformingServlet.negotiate(null, formats).getName());
+    assertEquals("bib", TransformingServlet.negotiate("text/html,*/*;q=0.8", formats).getName());
+    assertEquals("ris", TransformingServlet.negotiate("application/x-research-info-systems", formats).getName());
+    assertEquals("json", TransformingServlet.negotiate("application/json, text/plain;q=0.5", formats).getName());
+    assertEquals("bib", TransformingServlet.negotiate("application/json;q=0.5, */*", formats).getName());
+    assertEquals("json", TransformingServlet.negotiate("text/*;q=0, */*;q=0.1, application/json;q=0.2", formats).getName());
+    assertEquals("bib", TransformingServlet.negotiate("image/png", formats).getName());
+  }
+
+  private int count(String s, String t) {
+    int n = 0;
+    for (int i = s.indexOf(t); i != -1; i = s.indexOf(t, i + 1)) {
+      n++;
+    }
+    return n;
+  }
+
+  /**
+   * A stream of bytes that counts the bytes read from it.
+   */
+  private static class CountingStream extends FilterInputStream {
+
+    long count;
+
+    CountingStream(byte[] data) {
+      super(new ByteArrayInputStream(data));
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) {
+        count++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) {
+        count += n;
+      }
+      return n;
+    }
+
+  }
+
+}
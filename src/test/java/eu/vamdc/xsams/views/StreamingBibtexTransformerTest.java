@@ -0,0 +1,181 @@
+package eu.vamdc.xsams.views;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests the streaming transformation to BibTeX, by a
+ * {@link StreamingBibliographyTransformer} with a {@link BibtexFormatter},
+ * against the XsamsToBibtex stylesheets.
+ *
+ * @author Guy Rixon
+ */
+public class StreamingBibtexTransformerTest {
+
+  @Test
+  public void testSameAsStylesheetV10() throws Exception {
+    assertSameAsStylesheet("1.0");
+  }
+
+  @Test
+  public void testSameAsStylesheetV03() throws Exception {
+    assertSameAsStylesheet("0.3");
+  }
+
+  @Test
+  public void testOtherVersionIgnored() throws Exception {
+    // Source elements in the 1.0 namespace are not Sources in a 0.3 document.
+    StringWriter out = new StringWriter();
+    new StreamingBibliographyTransformer().transform(getSample("1.0"), "0.3", new BibtexFormatter(), out);
+    assertEquals("", out.toString());
+  }
+
+  /**
+   * Streams ever larger documents through the transformer and checks that
+   * the heap in use after a collection stays the same. The documents are
+   * generated on the fly, so only the transformer can use the heap.
+   */
+  @Test
+  public void testHeapStaysFlat() throws Exception {
+    long mb = 1024L * 1024L;
+    List<Long> samples = new ArrayList<Long>();
+    SyntheticXsams in = new SyntheticXsams(1000, 256 * mb, 16 * mb, samples);
+    Writer out = new OutputStreamWriter(new ByteArrayOutputStream(), "UTF-8");
+    new StreamingBibliographyTransformer().transform(in, "1.0", new BibtexFormatter(), out);
+
+    assertTrue(samples.size() >= 15);
+    long first = samples.get(0);
+    for (long s : samples) {
+      assertTrue("Heap grew from " + first + " to " + s, s - first < 8 * mb);
+    }
+  }
+
+  private void assertSameAsStylesheet(String version) throws Exception {
+    StylesheetRegistry stylesheets = new StylesheetRegistry();
+    Transformer t = stylesheets.newTransformer(version, "XsamsToBibtex.xsl");
+    StringWriter expected = new StringWriter();
+    t.transform(new StreamSource(getSample(version)), new StreamResult(expected));
+
+    StringWriter actual = new StringWriter();
+    new StreamingBibliographyTransformer().transform(
+        getSample(version), version, new BibtexFormatter(), actual);
+
+    assertTrue(expected.toString().contains("@book {B-publisher-fallback"));
+    assertTrue(expected.toString().contains("@article {B-empty-publisher"));
+    assertEquals(expected.toString(), actual.toString());
+  }
+
+  private InputStream getSample(String version) throws IOException {
+    InputStream in = getClass().getResourceAsStream("/sources.xsams.xml");
+    try {
+      ByteArrayOutputStream b = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        b.write(buffer, 0, n);
+      }
+      String s = b.toString("UTF-8").replace("http://vamdc.org/xml/xsams/1.0",
+                                             "http://vamdc.org/xml/xsams/" + version);
+      return new ByteArrayInputStream(s.getBytes("UTF-8"));
+    }
+    finally {
+      in.close();
+    }
+  }
+
+
+  /**
+   * An XSAMS 1.0 document generated on the fly: some sources followed by
+   * padding in the Processes section up to a given size. Each time a given
+   * number of bytes has been read, the heap in use after a garbage
+   * collection is recorded.
+   */
+  private static class SyntheticXsams extends InputStream {
+
+    private static final byte[] PADDING = ("<RadiativeTransition id=\"P\"><Comments>"
+        + "padding padding padding padding padding padding padding padding"
+        + "</Comments></RadiativeTransition>\n").getBytes();
+
+    private final long size;
+
+    private final long sampleInterval;
+
+    private final List<Long> samples;
+
+    private byte[] chunk;
+
+    private int position;
+
+    private long count;
+
+    private long nextSample;
+
+    private boolean ended;
+
+    SyntheticXsams(int sources, long size, long sampleInterval, List<Long> samples) {
+      this.size = size;
+      this.sampleInterval = sampleInterval;
+      this.samples = samples;
+      StringBuilder b = new StringBuilder();
+      b.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+      b.append("<XSAMSData xmlns=\"http://vamdc.org/xml/xsams/1.0\"><Sources>\n");
+      for (int i = 0; i < sources; i++) {
+        b.append("<Source sourceID=\"B").append(i).append("\"><Category>journal</Category>");
+        b.append("<Title>Title ").append(i).append("</Title><Volume>1</Volume></Source>\n");
+      }
+      b.append("</Sources><Processes><Radiative>\n");
+      chunk = b.toString().getBytes();
+      position = 0;
+      count = 0L;
+      nextSample = sampleInterval;
+      ended = false;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return (read(b, 0, 1) == -1)? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (position == chunk.length) {
+        if (ended) {
+          return -1;
+        }
+        else if (count < size) {
+          chunk = PADDING;
+        }
+        else {
+          chunk = "</Radiative></Processes></XSAMSData>\n".getBytes();
+          ended = true;
+        }
+        position = 0;
+      }
+      int n = Math.min(len, chunk.length - position);
+      System.arraycopy(chunk, position, b, off, n);
+      position += n;
+      count += n;
+      if (count >= nextSample) {
+        nextSample += sampleInterval;
+        System.gc();
+        Runtime r = Runtime.getRuntime();
+        samples.add(r.totalMemory() - r.freeMemory());
+      }
+      return n;
+    }
+  }
+
+}
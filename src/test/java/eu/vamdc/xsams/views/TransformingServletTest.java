@@ -0,0 +1,232 @@
+package eu.vamdc.xsams.views;
+
+import java.io.File;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServletResponse;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the conditional GETs, the rendered files and the waiting for
+ * downloads of the BibTeX servlet, driven through {@code service} with
+ * stand-ins for the container.
+ *
+ * @author Guy Rixon
+ */
+public class TransformingServletTest {
+
+  private DataCache cache;
+
+  private File file;
+
+  private CachedDataSet dataSet;
+
+  private String key;
+
+  @Before
+  public void setUp() throws Exception {
+    cache = new DataCache();
+    file = File.createTempFile("cache-", ".xsams.xml");
+    XsamsGenerator.write(file, "1.0", 100000L);
+    dataSet = new CachedDataSet(file, "1.0");
+    key = cache.put(dataSet);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    cache.empty();
+    file.delete();
+  }
+
+  @Test
+  public void testEntityTag() throws Exception {
+    TransformingServlet sut = newServlet("xslt");
+    FakeHttp.Response first = get(sut, "/" + key, null);
+    assertEquals(HttpServletResponse.SC_OK, first.status);
+    assertTrue(first.getBody().contains("@"));
+    String tag = first.headers.get("ETag");
+    assertNotNull(tag);
+
+    FakeHttp.Request conditional = new FakeHttp.Request("/" + key);
+    conditional.headers.put("If-None-Match", tag);
+    FakeHttp.Response second = service(sut, conditional);
+    assertEquals(HttpServletResponse.SC_NOT_MODIFIED, second.status);
+    assertEquals(0, second.body.size());
+    assertEquals(tag, second.headers.get("ETag"));
+
+    // Each format has its own tag.
+    FakeHttp.Response ris = get(sut, "/" + key + ".ris", tag);
+    assertEquals(HttpServletResponse.SC_OK, ris.status);
+    assertFalse(tag.equals(ris.headers.get("ETag")));
+  }
+
+  @Test
+  public void testEngineChangesEntityTag() throws Exception {
+    FakeHttp.Response xslt = get(newServlet("xslt"), "/" + key, null);
+    String tag = xslt.headers.get("ETag");
+    FakeHttp.Response stax = get(newServlet("stax"), "/" + key, tag);
+    assertEquals(HttpServletResponse.SC_OK, stax.status);
+    assertFalse(tag.equals(stax.headers.get("ETag")));
+    assertEquals(xslt.getBody(), stax.getBody());
+
+    // Each engine keeps its own rendering.
+    int renderings = 0;
+    for (File f : file.getParentFile().listFiles()) {
+      if (f.getName().startsWith(file.getName() + ".") && f.getName().endsWith(".bib")) {
+        renderings++;
+      }
+    }
+    assertEquals(2, renderings);
+  }
+
+  @Test
+  public void testLastModified() throws Exception {
+    TransformingServlet sut = newServlet("stax");
+    FakeHttp.Request request = new FakeHttp.Request("/" + key);
+    assertEquals(-1L, sut.getLastModified(request.proxy()));
+    assertEquals(HttpServletResponse.SC_OK, service(sut, request).status);
+    long t = sut.getLastModified(request.proxy());
+    assertTrue(t > 0L);
+    assertEquals(-1L, sut.getLastModified(new FakeHttp.Request("/nonesuch").proxy()));
+
+    FakeHttp.Request conditional = new FakeHttp.Request("/" + key);
+    conditional.headers.put("If-Modified-Since", FakeHttp.formatDate(t));
+    assertEquals(HttpServletResponse.SC_NOT_MODIFIED, service(sut, conditional).status);
+
+    // The StAX engine renders the other formats in the same pass.
+    FakeHttp.Request json = new FakeHttp.Request("/" + key + ".json");
+    assertTrue(sut.getLastModified(json.proxy()) >= t);
+  }
+
+  @Test
+  public void testDeletedDataSet() throws Exception {
+    TransformingServlet sut = newServlet("stax");
+    dataSet.delete();
+    FakeHttp.Response r = get(sut, "/" + key, null);
+    assertEquals(HttpServletResponse.SC_GONE, r.status);
+  }
+
+  @Test
+  public void testLookupsCounted() throws Exception {
+    TransformingServlet sut = newServlet("stax");
+    Metrics metrics = cache.getMetrics();
+    FakeHttp.Request request = new FakeHttp.Request("/" + key);
+    assertEquals(HttpServletResponse.SC_OK, service(sut, request).status);
+    assertEquals(1L, metrics.getHitCount());
+
+    // A conditional GET answered by the container counts once too.
+    FakeHttp.Request conditional = new FakeHttp.Request("/" + key);
+    conditional.headers.put("If-Modified-Since", FakeHttp.formatDate(sut.getLastModified(request.proxy())));
+    assertEquals(HttpServletResponse.SC_NOT_MODIFIED, service(sut, conditional).status);
+    assertEquals(2L, metrics.getHitCount());
+
+    assertEquals(HttpServletResponse.SC_BAD_REQUEST, get(sut, "/nonesuch", null).status);
+    assertEquals(2L, metrics.getHitCount());
+    assertEquals(1L, metrics.getMissCount());
+  }
+
+  @Test
+  public void testRenderingsCharged() throws Exception {
+    DiskAllocation a = new DiskAllocation(cache, 0L);
+    a.reserve(file.length());
+    dataSet.setAllocation(a);
+    assertEquals(file.length(), cache.getBytesInCache());
+    get(newServlet("stax"), "/" + key, null);
+    long renderings = 0L;
+    for (String format : new String[] {"bib", "ris", "json"}) {
+      File r = dataSet.getRenderedFile("stax." + format);
+      assertTrue(r.exists());
+      renderings += r.length();
+    }
+    assertEquals(file.length() + renderings, cache.getBytesInCache());
+    cache.remove(key);
+    assertEquals(0L, cache.getBytesInCache());
+  }
+
+  @Test
+  public void testWaitForDownload() throws Exception {
+    TransformingServlet sut = newServlet("stax");
+    DownloadTask task = newDownload();
+    FakeHttp.Request request = newWaitingRequest(task);
+    FakeHttp.Response first = service(sut, request);
+    assertNotNull(request.async);
+    assertEquals(10000L, request.async.timeout);
+    assertEquals(0, request.async.dispatches);
+    assertNull(request.forwardedTo);
+    assertEquals(0, first.body.size());
+
+    task.run();
+    assertEquals(1, request.async.dispatches);
+    request.dispatcherType = DispatcherType.ASYNC;
+    FakeHttp.Response second = service(sut, request);
+    assertEquals(HttpServletResponse.SC_OK, second.status);
+    assertTrue(second.getBody().contains("@"));
+  }
+
+  @Test
+  public void testWaitTimesOut() throws Exception {
+    TransformingServlet sut = newServlet("stax");
+    DownloadTask task = newDownload();
+    FakeHttp.Request request = newWaitingRequest(task);
+    service(sut, request);
+    request.async.timeout();
+    assertEquals(1, request.async.dispatches);
+    assertEquals(0, task.getListenerCount());
+
+    // Dispatched back, the request gets the page asking the client to return later.
+    request.dispatcherType = DispatcherType.ASYNC;
+    FakeHttp.Response second = service(sut, request);
+    assertEquals("/later.jsp", request.forwardedTo);
+    assertEquals(0, second.body.size());
+  }
+
+  private DownloadTask newDownload() {
+    return new DownloadTask(new Callable<Object>() {
+      @Override
+      public Object call() {
+        return "1.0";
+      }
+    });
+  }
+
+  private FakeHttp.Request newWaitingRequest(DownloadTask task) throws Exception {
+    String k = cache.put(new CachedDataSet(new URL("http://example.org/data"), file, task, new AtomicLong()));
+    FakeHttp.Request request = new FakeHttp.Request("/" + k);
+    request.asyncSupported = true;
+    request.parameters.put(TransformingServlet.WAIT_PARAMETER, "10");
+    return request;
+  }
+
+  private TransformingServlet newServlet(String engine) throws Exception {
+    Map<String, Object> attributes = new HashMap<String, Object>();
+    attributes.put(DataCache.CACHE_ATTRIBUTE, cache);
+    Map<String, String> parameters = new HashMap<String, String>();
+    parameters.put("stylesheet", "/XsamsToBibtex.xsl");
+    parameters.put("engine", engine);
+    TransformingServlet s = new TransformingServlet();
+    s.init(FakeHttp.config(attributes, parameters));
+    return s;
+  }
+
+  private FakeHttp.Response get(TransformingServlet s, String path, String ifNoneMatch) throws Exception {
+    FakeHttp.Request request = new FakeHttp.Request(path);
+    if (ifNoneMatch != null) {
+      request.headers.put("If-None-Match", ifNoneMatch);
+    }
+    return service(s, request);
+  }
+
+  private FakeHttp.Response service(TransformingServlet s, FakeHttp.Request request) throws Exception {
+    FakeHttp.Response response = new FakeHttp.Response();
+    s.service(request.proxy(), response.proxy());
+    return response;
+  }
+
+}
@@ -0,0 +1,88 @@
+package eu.vamdc.xsams.views;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Guy Rixon
+ */
+public class XsamsCompactorTest {
+
+  @Test
+  public void testSameBibtexV10() throws Exception {
+    assertCompactedSame("1.0");
+  }
+
+  @Test
+  public void testSameBibtexV03() throws Exception {
+    assertCompactedSame("0.3");
+  }
+
+  @Test
+  public void testMalformed() throws Exception {
+    File f = File.createTempFile("compacted", ".xml");
+    try {
+      AtomicLong counter = new AtomicLong();
+      CacheFileWriter sut = new CacheFileWriter(f, counter);
+      sut.setCompacting(true);
+      byte[] data = "This is not XML".getBytes("UTF-8");
+      try {
+        sut.write(new ByteArrayInputStream(data));
+        fail("Malformed data were accepted");
+      }
+      catch (DownloadException e) {
+        // Expected.
+      }
+    }
+    finally {
+      f.delete();
+    }
+  }
+
+  private void assertCompactedSame(String version) throws Exception {
+    XsamsGenerator g = new XsamsGenerator(version);
+    g.setSourceCount(50);
+    g.setStateCount(2000);
+    g.setProcessCount(2000);
+    StringWriter w = new StringWriter();
+    g.write(w);
+    byte[] original = w.toString().getBytes("UTF-8");
+
+    File f = File.createTempFile("compacted", ".xml");
+    try {
+      AtomicLong counter = new AtomicLong();
+      CacheFileWriter sut = new CacheFileWriter(f, counter);
+      sut.setCompacting(true);
+      long n = sut.write(new ByteArrayInputStream(original));
+      assertEquals(original.length, n);
+      assertEquals(original.length, counter.get());
+      assertEquals(version, sut.getXsamsVersion());
+      assertTrue(f.length() < original.length / 4);
+
+      StringWriter expected = new StringWriter();
+      new StreamingBibliographyTransformer().transform(
+          new ByteArrayInputStream(original), version, new BibtexFormatter(), expected);
+      StringWriter actual = new StringWriter();
+      InputStream in = new FileInputStream(f);
+      try {
+        new StreamingBibliographyTransformer().transform(in, version, new BibtexFormatter(), actual);
+      }
+      finally {
+        in.close();
+      }
+      assertTrue(expected.toString().length() > 0);
+      assertEquals(expected.toString(), actual.toString());
+    }
+    finally {
+      f.delete();
+    }
+  }
+
+}
@@ -0,0 +1,332 @@
+package eu.vamdc.xsams.views;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes synthetic XSAMS documents, in version 0.3 or 1.0, for tests,
+ * benchmarks and load tests. A document has a block of sources, then
+ * atomic species with their states, then radiative transitions between
+ * those states, each citing a source. The numbers of sources, states and
+ * processes are set separately, as is the mix of source categories. The
+ * content is pseudo-random but the same for the same settings.
+ * <p>
+ * Alternatively, a target size may be set, in which case radiative
+ * transitions are added until the document reaches that size.
+ *
+ * @author Guy Rixon
+ */
+public class XsamsGenerator {
+
+  /**
+   * The default mix of source categories, as weights.
+   */
+  public static final String DEFAULT_CATEGORY_MIX =
+      "journal=6,book=1,proceedings=1,database=1,private communication=1,report=1";
+
+  private static final String[] SURNAMES = {
+    "Einstein", "Moore", "Kurucz", "Rixon", "Dubernet", "Zw\u00f6lf", "O'Brien", "Smith & Sons"
+  };
+
+  private static final String[] ELEMENTS = {"H", "He", "C", "N", "O", "Na", "Mg", "Si", "Ca", "Fe"};
+
+  private static final int[] NUCLEAR_CHARGES = {1, 2, 6, 7, 8, 11, 12, 14, 20, 26};
+
+  /**
+   * The number of states in each ion.
+   */
+  private static final int STATES_PER_ION = 50;
+
+  private final String version;
+
+  private int sourceCount = 10;
+
+  private int stateCount = 100;
+
+  private int processCount = 1000;
+
+  private long targetSize = -1L;
+
+  private long seed = 1L;
+
+  private final List<String> categories = new ArrayList<String>();
+
+  private final List<Integer> weights = new ArrayList<Integer>();
+
+  private int totalWeight;
+
+  /**
+   * Constructs a generator with ten sources, a hundred states and a
+   * thousand processes, in the default mix of categories.
+   *
+   * @param v The XSAMS version, "0.3" or "1.0".
+   */
+  public XsamsGenerator(String v) {
+    if (XsamsVersionSniffer.toVersion(XsamsVersionSniffer.toNamespace(v)) == null) {
+      throw new IllegalArgumentException("XSAMS version " + v + " is not supported");
+    }
+    version = v;
+    setCategoryMix(DEFAULT_CATEGORY_MIX);
+  }
+
+  public void setSourceCount(int n) {
+    if (n < 1) {
+      throw new IllegalArgumentException("There must be at least one source");
+    }
+    sourceCount = n;
+  }
+
+  public void setStateCount(int n) {
+    if (n < 2) {
+      throw new IllegalArgumentException("There must be at least two states");
+    }
+    stateCount = n;
+  }
+
+  public void setProcessCount(int n) {
+    processCount = Math.max(0, n);
+  }
+
+  /**
+   * Sets the size to which the document is filled with processes. The
+   * number of processes is then ignored.
+   *
+   * @param n The size in characters; negative to use the number of processes.
+   */
+  public void setTargetSize(long n) {
+    targetSize = n;
+  }
+
+  public void setSeed(long s) {
+    seed = s;
+  }
+
+  /**
+   * Sets the mix of source categories, as a comma-separated list of
+   * category=weight. A category without a weight has weight one.
+   *
+   * @param mix The mix, e.g. "journal=3,book=1,database".
+   * @throws IllegalArgumentException If the mix is empty or a weight is not a number.
+   */
+  public void setCategoryMix(String mix) {
+    categories.clear();
+    weights.clear();
+    totalWeight = 0;
+    for (String term : mix.split(",")) {
+      int eq = term.indexOf('=');
+      String category = ((eq == -1)? term : term.substring(0, eq)).trim();
+      int weight = (eq == -1)? 1 : Integer.parseInt(term.substring(eq + 1).trim());
+      if (category.length() > 0 && weight > 0) {
+        categories.add(category);
+        weights.add(weight);
+        totalWeight += weight;
+      }
+    }
+    if (totalWeight == 0) {
+      throw new IllegalArgumentException("The mix of categories " + mix + " is empty");
+    }
+  }
+
+  /**
+   * Writes a document of about the given size, for benchmarks. About one
+   * character in ten is in the sources.
+   *
+   * @param f The file, which is overwritten.
+   * @param version The XSAMS version, e.g. "1.0".
+   * @param size The approximate size of the document in bytes.
+   * @throws IOException If the file cannot be written.
+   */
+  public static void write(File f, String version, long size) throws IOException {
+    Writer w = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(f), 65536), "UTF-8");
+    try {
+      write(w, version, size);
+    }
+    finally {
+      w.close();
+    }
+  }
+
+  /**
+   * Writes a document of about the given size to a stream of characters.
+   *
+   * @param w The destination, which is not closed.
+   * @param version The XSAMS version, e.g. "1.0".
+   * @param size The approximate size of the document in characters.
+   * @throws IOException If the document cannot be written.
+   */
+  public static void write(Writer w, String version, long size) throws IOException {
+    XsamsGenerator g = new XsamsGenerator(version);
+    g.setSeed(size);
+    g.setSourceCount((int) Math.max(1L, Math.min(1000000L, size / 4000L)));
+    g.setTargetSize(size);
+    g.write(w);
+  }
+
+  /**
+   * Writes the document to a file.
+   *
+   * @param f The file, which is overwritten.
+   * @throws IOException If the file cannot be written.
+   */
+  public void write(File f) throws IOException {
+    Writer w = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(f), 65536), "UTF-8");
+    try {
+      write(w);
+    }
+    finally {
+      w.close();
+    }
+  }
+
+  /**
+   * Writes the document to a stream of characters.
+   *
+   * @param w The destination, which is not closed.
+   * @throws IOException If the document cannot be written.
+   */
+  public void write(Writer w) throws IOException {
+    Random random = new Random(seed);
+    StringBuilder b = new StringBuilder(8192);
+    long written = 0L;
+    b.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+    b.append("<XSAMSData xmlns=\"").append(XsamsVersionSniffer.toNamespace(version)).append("\">\n");
+    b.append("<Sources>\n");
+    for (int i = 0; i < sourceCount; i++) {
+      appendSource(b, i, random);
+      written += flushIfFull(b, w);
+    }
+    b.append("</Sources>\n");
+    appendSpecies(b, random);
+    written += flushIfFull(b, w);
+
+    b.append("<Processes>\n<Radiative>\n");
+    for (int i = 0; (targetSize < 0L)? i < processCount : written + b.length() < targetSize - 50L; i++) {
+      appendTransition(b, i, random);
+      written += flushIfFull(b, w);
+    }
+    b.append("</Radiative>\n</Processes>\n</XSAMSData>\n");
+    w.write(b.toString());
+  }
+
+  private void appendSource(StringBuilder b, int n, Random random) {
+    String category = pickCategory(random);
+    b.append("<Source sourceID=\"B").append(n).append("\">\n");
+    b.append("<Authors>");
+    int authors = 1 + random.nextInt(4);
+    for (int i = 0; i < authors; i++) {
+      b.append("<Author><Name>").append((char) ('A' + random.nextInt(26))).append(". ");
+      b.append(escape(SURNAMES[random.nextInt(SURNAMES.length)])).append("</Name></Author>");
+    }
+    b.append("</Authors>\n");
+    b.append("<Title>Synthetic data set ").append(n).append(" on &lt;line&gt; strengths</Title>\n");
+    b.append("<Category>").append(escape(category)).append("</Category>\n");
+    if ("journal".equals(category)) {
+      b.append("<SourceName>J. Synth. Spectrosc.</SourceName>");
+    }
+    b.append("<Year>").append(1950 + random.nextInt(70)).append("</Year>\n");
+    if ("journal".equals(category)) {
+      b.append("<Volume>").append(1 + random.nextInt(200)).append("</Volume>");
+      int page = 1 + random.nextInt(1000);
+      b.append("<PageBegin>").append(page).append("</PageBegin>");
+      b.append("<PageEnd>").append(page + random.nextInt(30)).append("</PageEnd>\n");
+    }
+    b.append("<UniformResourceIdentifier>http://dx.doi.org/10.9999/synth.").append(n);
+    b.append("</UniformResourceIdentifier>\n");
+    if ("book".equals(category) || "proceedings".equals(category)) {
+      b.append("<Publisher>Synthetic Press</Publisher><City>Paris</City>\n");
+    }
+    b.append("</Source>\n");
+  }
+
+  private String pickCategory(Random random) {
+    int r = random.nextInt(totalWeight);
+    for (int i = 0; i < categories.size(); i++) {
+      r -= weights.get(i);
+      if (r < 0) {
+        return categories.get(i);
+      }
+    }
+    return categories.get(categories.size() - 1);
+  }
+
+  /**
+   * Appends the states, grouped into ions of successive elements. Version
+   * 1.0 calls an ion Ion; version 0.3 calls it IonState.
+   */
+  private void appendSpecies(StringBuilder b, Random random) {
+    String ion = "1.0".equals(version)? "Ion" : "IonState";
+    b.append("<Species>\n<Atoms>\n");
+    int state = 0;
+    int ions = (stateCount + STATES_PER_ION - 1) / STATES_PER_ION;
+    for (int i = 0; i < ions; i++) {
+      int e = i % ELEMENTS.length;
+      b.append("<Atom><ChemicalElement><NuclearCharge>").append(NUCLEAR_CHARGES[e]);
+      b.append("</NuclearCharge><ElementSymbol>").append(ELEMENTS[e]);
+      b.append("</ElementSymbol></ChemicalElement>\n<Isotope>");
+      b.append('<').append(ion).append(" speciesID=\"X").append(i).append("\">");
+      b.append("<IonCharge>").append((i / ELEMENTS.length) % NUCLEAR_CHARGES[e]).append("</IonCharge>\n");
+      double energy = 0.0;
+      for (int j = 0; j < STATES_PER_ION && state < stateCount; j++, state++) {
+        b.append("<AtomicState stateID=\"S").append(state).append("\">");
+        b.append("<AtomicNumericalData><StateEnergy><Value units=\"1/cm\">").append(energy);
+        b.append("</Value></StateEnergy></AtomicNumericalData></AtomicState>\n");
+        energy += random.nextDouble() * 5000.0;
+      }
+      b.append("</").append(ion).append("></Isotope></Atom>\n");
+    }
+    b.append("</Atoms>\n</Species>\n");
+  }
+
+  /**
+   * Appends a radiative transition between two states of one ion. Version
+   * 1.0 names the upper and lower states; version 0.3 names the initial
+   * and final states.
+   */
+  private void appendTransition(StringBuilder b, int n, Random random) {
+    int ion = random.nextInt((stateCount + STATES_PER_ION - 1) / STATES_PER_ION);
+    int first = ion * STATES_PER_ION;
+    int count = Math.min(STATES_PER_ION, stateCount - first);
+    int lower = first + random.nextInt(Math.max(1, count - 1));
+    int upper = lower + 1 + random.nextInt(Math.max(1, first + count - lower - 1));
+    upper = Math.min(upper, stateCount - 1);
+    b.append("<RadiativeTransition id=\"P").append(n).append("\">");
+    b.append("<SourceRef>B").append(random.nextInt(sourceCount)).append("</SourceRef>");
+    b.append("<EnergyWavelength><Wavelength><Value units=\"A\">");
+    b.append(1000.0 + random.nextDouble() * 9000.0);
+    b.append("</Value></Wavelength></EnergyWavelength>");
+    if ("1.0".equals(version)) {
+      b.append("<UpperStateRef>S").append(upper).append("</UpperStateRef>");
+      b.append("<LowerStateRef>S").append(lower).append("</LowerStateRef>");
+    }
+    else {
+      b.append("<InitialStateRef>S").append(upper).append("</InitialStateRef>");
+      b.append("<FinalStateRef>S").append(lower).append("</FinalStateRef>");
+    }
+    b.append("<Probability><Log10WeightedOscillatorStrength><Value units=\"unitless\">");
+    b.append(-5.0 + random.nextDouble() * 5.0);
+    b.append("</Value></Log10WeightedOscillatorStrength></Probability>");
+    b.append("</RadiativeTransition>\n");
+  }
+
+  private static String escape(String s) {
+    return s.replace("&", "&amp;").replace("<", "&lt;").replace("'", "&apos;");
+  }
+
+  private static int flushIfFull(StringBuilder b, Writer w) throws IOException {
+    if (b.length() < 4096) {
+      return 0;
+    }
+    int n = b.length();
+    w.write(b.toString());
+    b.setLength(0);
+    return n;
+  }
+
+}
@@ -0,0 +1,113 @@
+package eu.vamdc.xsams.views;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Guy Rixon
+ */
+public class XsamsGeneratorTest {
+
+  @Test
+  public void testCountsV10() throws Exception {
+    assertCounts("1.0", "UpperStateRef");
+  }
+
+  @Test
+  public void testCountsV03() throws Exception {
+    assertCounts("0.3", "InitialStateRef");
+  }
+
+  @Test
+  public void testCategoryMix() throws Exception {
+    XsamsGenerator sut = new XsamsGenerator("1.0");
+    sut.setSourceCount(40);
+    sut.setCategoryMix("book=1, database=0");
+    StringWriter xsams = new StringWriter();
+    sut.write(xsams);
+    StringWriter bibtex = new StringWriter();
+    new StreamingBibliographyTransformer().transform(
+        new ByteArrayInputStream(xsams.toString().getBytes("UTF-8")), "1.0", new BibtexFormatter(), bibtex);
+    assertEquals(40, count(bibtex.toString(), "@book {"));
+  }
+
+  @Test
+  public void testTargetSize() throws Exception {
+    StringWriter w = new StringWriter();
+    XsamsGenerator.write(w, "1.0", 1000000L);
+    assertTrue(w.toString().length() >= 999000);
+    assertTrue(w.toString().length() <= 1001000);
+    assertEquals("1.0", sniff(w.toString()));
+  }
+
+  private void assertCounts(String version, String stateRef) throws Exception {
+    XsamsGenerator sut = new XsamsGenerator(version);
+    sut.setSourceCount(7);
+    sut.setStateCount(120);
+    sut.setProcessCount(300);
+    StringWriter w = new StringWriter();
+    sut.write(w);
+    assertEquals(version, sniff(w.toString()));
+
+    Map<String, Integer> counts = countElements(w.toString());
+    assertEquals(Integer.valueOf(7), counts.get("Source"));
+    assertEquals(Integer.valueOf(120), counts.get("AtomicState"));
+    assertEquals(Integer.valueOf(300), counts.get("RadiativeTransition"));
+    assertEquals(Integer.valueOf(300), counts.get(stateRef));
+
+    // The same settings give the same document.
+    StringWriter again = new StringWriter();
+    sut.write(again);
+    assertEquals(w.toString(), again.toString());
+  }
+
+  /**
+   * Parses a document, counting the elements in the XSAMS namespace by name.
+   */
+  private Map<String, Integer> countElements(String xml) throws Exception {
+    Map<String, Integer> counts = new HashMap<String, Integer>();
+    XMLStreamReader r = XMLInputFactory.newInstance().createXMLStreamReader(new StringReader(xml));
+    try {
+      String namespace = null;
+      while (r.hasNext()) {
+        if (r.next() == XMLStreamConstants.START_ELEMENT) {
+          if (namespace == null) {
+            namespace = r.getNamespaceURI();
+          }
+          assertEquals(namespace, r.getNamespaceURI());
+          Integer n = counts.get(r.getLocalName());
+          counts.put(r.getLocalName(), (n == null)? 1 : n + 1);
+        }
+      }
+    }
+    finally {
+      r.close();
+    }
+    return counts;
+  }
+
+  private String sniff(String xml) throws Exception {
+    XsamsVersionSniffer s = new XsamsVersionSniffer(new java.io.ByteArrayOutputStream());
+    byte[] b = xml.getBytes("UTF-8");
+    s.write(b, 0, Math.min(b.length, XsamsVersionSniffer.MAXIMUM_HEAD_LENGTH));
+    return s.getVersion();
+  }
+
+  private int count(String s, String t) {
+    int n = 0;
+    for (int i = s.indexOf(t); i != -1; i = s.indexOf(t, i + 1)) {
+      n++;
+    }
+    return n;
+  }
+
+}
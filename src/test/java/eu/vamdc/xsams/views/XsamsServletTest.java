@@ -0,0 +1,195 @@
+package eu.vamdc.xsams.views;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import javax.servlet.http.HttpServletResponse;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the parsing of request headers and the responses of the XSAMS
+ * servlet, driven through {@code service} with stand-ins for the container.
+ *
+ * @author Guy Rixon
+ */
+public class XsamsServletTest {
+
+  private DataCache cache;
+
+  private File file;
+
+  private byte[] data;
+
+  private CachedDataSet dataSet;
+
+  private String key;
+
+  private XsamsServlet sut;
+
+  @Before
+  public void setUp() throws Exception {
+    cache = new DataCache();
+    file = File.createTempFile("cache-", ".xsams.xml");
+    XsamsGenerator.write(file, "1.0", 20000L);
+    data = Files.readAllBytes(file.toPath());
+    dataSet = new CachedDataSet(file, "1.0");
+    key = cache.put(dataSet);
+    Map<String, Object> attributes = new HashMap<String, Object>();
+    attributes.put(DataCache.CACHE_ATTRIBUTE, cache);
+    sut = new XsamsServlet();
+    sut.init(FakeHttp.config(attributes, new HashMap<String, String>()));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    cache.empty();
+    file.delete();
+  }
+
+  @Test
+  public void testParseRange() {
+    assertRange(0L, 99L, "bytes=0-99", 1000L);
+    assertRange(500L, 999L, "bytes=500-", 1000L);
+    assertRange(900L, 999L, "bytes=-100", 1000L);
+    assertRange(0L, 999L, "bytes=-2000", 1000L);
+    assertRange(990L, 999L, "bytes=990-2000", 1000L);
+    assertFalse(XsamsServlet.parseRange("bytes=1000-", 1000L).isSatisfiable());
+    assertFalse(XsamsServlet.parseRange("bytes=-0", 1000L).isSatisfiable());
+    assertNull(XsamsServlet.parseRange(null, 1000L));
+    assertNull(XsamsServlet.parseRange("bytes=0-1,5-6", 1000L));
+    assertNull(XsamsServlet.parseRange("items=0-1", 1000L));
+    assertNull(XsamsServlet.parseRange("bytes=9-1", 1000L));
+    assertNull(XsamsServlet.parseRange("bytes=a-b", 1000L));
+  }
+
+  @Test
+  public void testAcceptsGzip() {
+    assertTrue(XsamsServlet.acceptsGzip("gzip, deflate"));
+    assertTrue(XsamsServlet.acceptsGzip("deflate, GZIP;q=0.5"));
+    assertTrue(XsamsServlet.acceptsGzip("x-gzip"));
+    assertFalse(XsamsServlet.acceptsGzip("gzip;q=0"));
+    assertFalse(XsamsServlet.acceptsGzip("identity"));
+    assertFalse(XsamsServlet.acceptsGzip(null));
+  }
+
+  @Test
+  public void testWholeBody() throws Exception {
+    FakeHttp.Response r = service(new FakeHttp.Request("/" + key));
+    assertEquals(HttpServletResponse.SC_OK, r.status);
+    assertEquals(Long.toString(data.length), r.headers.get("Content-Length"));
+    assertEquals(XsamsServlet.XSAMS_MEDIA_TYPE, r.headers.get("Content-Type"));
+    assertEquals(dataSet.getEntityTag(), r.headers.get("ETag"));
+    assertEquals("bytes", r.headers.get("Accept-Ranges"));
+    assertNull(r.headers.get("Content-Encoding"));
+    assertArrayEquals(data, r.body.toByteArray());
+  }
+
+  @Test
+  public void testSendfile() throws Exception {
+    FakeHttp.Request request = new FakeHttp.Request("/" + key);
+    request.attributes.put("org.apache.tomcat.sendfile.support", Boolean.TRUE);
+    FakeHttp.Response r = service(request);
+    assertEquals(HttpServletResponse.SC_OK, r.status);
+    assertEquals(Long.toString(data.length), r.headers.get("Content-Length"));
+    assertEquals(file.getCanonicalPath(), request.attributes.get("org.apache.tomcat.sendfile.filename"));
+    assertEquals(0L, request.attributes.get("org.apache.tomcat.sendfile.start"));
+    assertEquals((long) data.length, request.attributes.get("org.apache.tomcat.sendfile.end"));
+    assertEquals(0, r.body.size());
+  }
+
+  @Test
+  public void testRange() throws Exception {
+    FakeHttp.Request request = new FakeHttp.Request("/" + key);
+    request.headers.put("Range", "bytes=100-199");
+    FakeHttp.Response r = service(request);
+    assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, r.status);
+    assertEquals("bytes 100-199/" + data.length, r.headers.get("Content-Range"));
+    assertEquals("100", r.headers.get("Content-Length"));
+    assertArrayEquals(Arrays.copyOfRange(data, 100, 200), r.body.toByteArray());
+  }
+
+  @Test
+  public void testUnsatisfiableRange() throws Exception {
+    FakeHttp.Request request = new FakeHttp.Request("/" + key);
+    request.headers.put("Range", "bytes=" + data.length + "-");
+    FakeHttp.Response r = service(request);
+    assertEquals(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, r.status);
+    assertEquals("bytes */" + data.length, r.headers.get("Content-Range"));
+    assertEquals("0", r.headers.get("Content-Length"));
+    assertEquals(0, r.body.size());
+  }
+
+  @Test
+  public void testCompressedCopy() throws Exception {
+    FakeHttp.Request request = new FakeHttp.Request("/" + key);
+    request.headers.put("Accept-Encoding", "gzip");
+    FakeHttp.Response r = service(request);
+    assertEquals(HttpServletResponse.SC_OK, r.status);
+    assertEquals("gzip", r.headers.get("Content-Encoding"));
+    assertEquals("Accept-Encoding", r.headers.get("Vary"));
+    String tag = dataSet.getEntityTag();
+    assertEquals(tag.substring(0, tag.length() - 1) + "-gz\"", r.headers.get("ETag"));
+    assertEquals(Integer.toString(r.body.size()), r.headers.get("Content-Length"));
+    assertTrue(r.body.size() < data.length);
+    assertArrayEquals(data, gunzip(r.body.toByteArray()));
+  }
+
+  @Test
+  public void testIfRangeDateOfCompressedResponse() throws Exception {
+    // The compressed copy is made now, later than the data were cached.
+    FakeHttp.Request first = new FakeHttp.Request("/" + key);
+    first.headers.put("Accept-Encoding", "gzip");
+    FakeHttp.Response whole = service(first);
+    assertEquals("gzip", whole.headers.get("Content-Encoding"));
+    long cached = System.currentTimeMillis() / 1000L * 1000L - 3600000L;
+    assertTrue(file.setLastModified(cached));
+
+    FakeHttp.Request request = new FakeHttp.Request("/" + key);
+    request.headers.put("Accept-Encoding", "gzip");
+    request.headers.put("Range", "bytes=0-9");
+    request.headers.put("If-Range", FakeHttp.formatDate(cached));
+    FakeHttp.Response part = service(request);
+    assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, part.status);
+    assertEquals(10, part.body.size());
+  }
+
+  private FakeHttp.Response service(FakeHttp.Request request) throws Exception {
+    FakeHttp.Response response = new FakeHttp.Response();
+    sut.service(request.proxy(), response.proxy());
+    return response;
+  }
+
+  private byte[] gunzip(byte[] compressed) throws Exception {
+    InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        out.write(buffer, 0, n);
+      }
+      return out.toByteArray();
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  private void assertRange(long first, long last, String header, long length) {
+    XsamsServlet.ByteRange r = XsamsServlet.parseRange(header, length);
+    assertNotNull(header, r);
+    assertTrue(header, r.isSatisfiable());
+    assertEquals(header, first, r.getFirst());
+    assertEquals(header, last, r.getLast());
+  }
+
+}
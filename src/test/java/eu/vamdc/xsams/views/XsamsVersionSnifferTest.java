@@ -0,0 +1,90 @@
+package eu.vamdc.xsams.views;
+
+import java.io.ByteArrayOutputStream;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Guy Rixon
+ */
+public class XsamsVersionSnifferTest {
+
+  @Test
+  public void testRootSplitAcrossWrites() throws Exception {
+    byte[] document = ("<?xml version=\"1.0\"?>\n" +
+                       "<XSAMSData xmlns=\"http://vamdc.org/xml/xsams/1.0\"><Sources/></XSAMSData>")
+                      .getBytes("UTF-8");
+    for (int split = 1; split < document.length; split++) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      XsamsVersionSniffer sut = new XsamsVersionSniffer(out);
+      sut.write(document, 0, split);
+      sut.write(document, split, document.length - split);
+      assertTrue("Split at " + split, sut.isFinished());
+      assertEquals("Split at " + split, "1.0", sut.getVersion());
+      assertArrayEquals(document, out.toByteArray());
+    }
+  }
+
+  @Test
+  public void testSingleBytes() throws Exception {
+    byte[] document = "<XSAMSData xmlns=\"http://vamdc.org/xml/xsams/0.3\"/>".getBytes("UTF-8");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    XsamsVersionSniffer sut = new XsamsVersionSniffer(out);
+    for (byte b : document) {
+      sut.write(b);
+    }
+    assertEquals("0.3", sut.getVersion());
+    assertArrayEquals(document, out.toByteArray());
+  }
+
+  @Test
+  public void testHeadLimit() throws Exception {
+    StringBuilder padding = new StringBuilder("<!--");
+    while (padding.length() < XsamsVersionSniffer.MAXIMUM_HEAD_LENGTH) {
+      padding.append("padding padding padding padding\n");
+    }
+    padding.append("-->");
+    byte[] head = padding.toString().getBytes("UTF-8");
+    byte[] root = "<XSAMSData xmlns=\"http://vamdc.org/xml/xsams/1.0\"/>".getBytes("UTF-8");
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    XsamsVersionSniffer sut = new XsamsVersionSniffer(out);
+    for (int i = 0; i < head.length; i += 4096) {
+      sut.write(head, i, Math.min(4096, head.length - i));
+    }
+    assertTrue(sut.isFinished());
+    sut.write(root, 0, root.length);
+    assertNull(sut.getVersion());
+    assertEquals(head.length + root.length, out.size());
+  }
+
+  @Test
+  public void testUnknownNamespace() throws Exception {
+    XsamsVersionSniffer sut = sniff("<XSAMSData xmlns=\"http://vamdc.org/xml/xsams/9.9\"/>");
+    assertTrue(sut.isFinished());
+    assertNull(sut.getVersion());
+  }
+
+  @Test
+  public void testNotXsams() throws Exception {
+    XsamsVersionSniffer sut = sniff("<html><body>Service unavailable</body></html>");
+    assertTrue(sut.isFinished());
+    assertNull(sut.getVersion());
+  }
+
+  @Test
+  public void testNotXml() throws Exception {
+    XsamsVersionSniffer sut = sniff("Service unavailable");
+    assertFalse(sut.isFinished());
+    assertNull(sut.getVersion());
+  }
+
+  private XsamsVersionSniffer sniff(String document) throws Exception {
+    byte[] b = document.getBytes("UTF-8");
+    XsamsVersionSniffer sut = new XsamsVersionSniffer(new ByteArrayOutputStream());
+    sut.write(b, 0, b.length);
+    return sut;
+  }
+
+}